@@ -0,0 +1,100 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+/**
+ * ByteRateBatch accumulates bytes read by one direction of a tunnel and adds them to byte rate
+ * counter of its Server in batches, once we have flushBytes pending or flushMilliseconds passed
+ * since the last flush, whichever comes first. Many tunnels of one Server then touch the shared
+ * counter far less often than once per read.
+ *
+ * We only check the clock when bytes arrive, so a direction that goes idle keeps less than
+ * flushBytes pending until its next read or until it closes and calls flush().
+ *
+ * Each direction owns its batch, so it is not thread-safe, except for getTotalBytes(), which
+ * the other direction reads when the tunnel closes.
+ *
+ * If the tunnel has a Flow, we also mark it as an elephant once we read elephantBytes.
+ */
+class ByteRateBatch {
+  private Server server;
+  private Flow flow;
+  private long flushBytes;
+  private long flushMilliseconds;
+
+  private long pendingBytes;
+  private long lastFlushMillis;
+
+  // All bytes this direction read.
+  private volatile long totalBytes;
+
+  // Bytes after which our flow is an elephant, Long.MAX_VALUE if we have no flow or already
+  // marked it.
+  private long elephantBytes;
+
+  /*
+   *  @param server  Server whose byte rate counter we update. Its byteRateFlushBytes and
+   *                 byteRateFlushMilliseconds bound how stale the counter can be.
+   */
+  public ByteRateBatch(Server server) {
+    this(server, null);
+  }
+
+  /*
+   *  @param server  Server whose byte rate counter we update.
+   *  @param flow    Flow of our tunnel, null if we don't classify flows.
+   */
+  public ByteRateBatch(Server server, Flow flow) {
+    this.server = server;
+    this.flow = flow;
+    this.elephantBytes = null == flow ? Long.MAX_VALUE : flow.getElephantBytes();
+    this.flushBytes = server.getByteRateFlushBytes();
+    this.flushMilliseconds = server.getByteRateFlushMilliseconds();
+    this.pendingBytes = 0;
+    this.totalBytes = 0;
+    this.lastFlushMillis = System.currentTimeMillis();
+  }
+
+  public void add(long cnt) {
+    pendingBytes += cnt;
+    totalBytes += cnt;
+    if (totalBytes >= elephantBytes) {
+      flow.markElephant();
+      elephantBytes = Long.MAX_VALUE;
+    }
+    if (pendingBytes >= flushBytes) {
+      flush();
+      return;
+    }
+    long now = System.currentTimeMillis();
+    if (now - lastFlushMillis >= flushMilliseconds) {
+      flush();
+    }
+  }
+
+  public void flush() {
+    if (pendingBytes > 0) {
+      server.incrementByteRateBy(pendingBytes);
+      pendingBytes = 0;
+    }
+    lastFlushMillis = System.currentTimeMillis();
+  }
+
+  public long getTotalBytes() {
+    return totalBytes;
+  }
+}
@@ -0,0 +1,195 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * CapacityEstimator estimates how many bytes per second each server can move, from peaks of
+ * its byte rate, and how much of that it has to spare right now.
+ *
+ * Once a second we take the last-second byte rate of every server. Its capacity is the
+ * highest rate it reached, decaying slowly so that a server that got slower is noticed. A
+ * server is assumed to manage HEADROOM more than its capacity, so that a server which only
+ * looked slow because it got little traffic gets a bit more, reaches a higher peak, and
+ * works its way up to what it can really do. Servers that moved no bytes yet are assumed to
+ * do as much per unit of weight as the measured ones do on average.
+ *
+ * Spare capacities are published as an immutable array of running sums, so that a load
+ * balancer picks a server in proportion to its spare capacity with a binary search, without
+ * locks.
+ */
+public class CapacityEstimator implements Runnable {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // How often we update our estimates.
+  static final long UPDATE_MILLIS = 1000;
+
+  // How much of its capacity a server keeps per update while it doesn't reach it again.
+  // About 0.999 per second halves a capacity in 11.5 minutes.
+  static final double DECAY_PER_UPDATE = 0.999;
+
+  // How much more than its capacity we let a server try.
+  static final double HEADROOM = 0.25;
+
+  private ArrayList<Server> servers;
+
+  // Highest byte rate of each server, decayed. Only used by our thread.
+  private double[] peakByteRates;
+
+  // Running sums of spare capacities of servers, in bytes per second: entry i is the sum
+  // over servers 0 to i. Replaced as a whole on every update.
+  private volatile long[] spareSums;
+
+  private Thread thread;
+  private volatile boolean isRunning;
+
+  // Factory for our thread, so that it can be a virtual thread.
+  private ThreadFactory threadFactory;
+
+  /*
+   *  @param servers  Servers we estimate. Their weights must be set already.
+   */
+  public CapacityEstimator(ArrayList<Server> servers) {
+    this.servers = servers;
+    this.peakByteRates = new double[servers.size()];
+    this.spareSums = weightSums(servers);
+    this.threadFactory = Thread.ofPlatform().factory();
+  }
+
+  public void setThreadFactory(ThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
+  }
+
+  public Thread start() {
+    assert null == thread;  // we should never call this method twice.
+    update();
+    isRunning = true;
+    thread = threadFactory.newThread(this);
+    thread.setName("capacityEstimator");
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  public void stop() {
+    isRunning = false;
+    thread.interrupt();
+  }
+
+  public void run() {
+    while (isRunning) {
+      try {
+        Thread.sleep(UPDATE_MILLIS);
+      } catch (InterruptedException ie) {
+        LOG.debug("Interrupted while waiting to update capacity estimates.");
+        continue;
+      }
+      update();
+    }
+  }
+
+  private static boolean isAvailable(Server server) {
+    return server.failedCnt.getLastSecondCnt() == 0 && server.isHealthy();
+  }
+
+  // Running sums of static weights of available servers, all we know before our first update.
+  private static long[] weightSums(ArrayList<Server> servers) {
+    long[] sums = new long[servers.size()];
+    long sum = 0;
+    for (int i = 0; i < servers.size(); i++) {
+      if (isAvailable(servers.get(i))) {
+        sum += servers.get(i).getWeight();
+      }
+      sums[i] = sum;
+    }
+    return sums;
+  }
+
+  // Takes a new sample of byte rates of all servers.
+  void update() {
+    int numServers = servers.size();
+    long[] byteRates = new long[numServers];
+    double peakPerWeightSum = 0;
+    int measuredWeight = 0;
+    for (int i = 0; i < numServers; i++) {
+      Server server = servers.get(i);
+      byteRates[i] = server.byteRateCnt.getLastSecondCnt();
+      peakByteRates[i] = Math.max(byteRates[i], peakByteRates[i] * DECAY_PER_UPDATE);
+      if (peakByteRates[i] >= 1) {
+        peakPerWeightSum += peakByteRates[i];
+        measuredWeight += server.getWeight();
+      }
+    }
+
+    long[] sums = new long[numServers];
+    long sum = 0;
+    for (int i = 0; i < numServers; i++) {
+      Server server = servers.get(i);
+      long spare;
+      if (0 == measuredWeight) {
+        // Nothing moved yet, static weights are all we know.
+        spare = server.getWeight();
+        server.setCapacityEstimate(0);
+      } else {
+        double capacity = peakByteRates[i] >= 1 ?
+                          peakByteRates[i] :
+                          peakPerWeightSum / measuredWeight * server.getWeight();
+        server.setCapacityEstimate((long) capacity);
+        spare = Math.max(1, (long) (capacity * (1 + HEADROOM)) - byteRates[i]);
+      }
+      if (!isAvailable(server)) {
+        spare = 0;
+      }
+      sum += spare;
+      sums[i] = sum;
+    }
+    spareSums = sums;
+  }
+
+  /*
+   *  Picks a server with probability proportional to its spare capacity.
+   *
+   *  @param random  Random number in [0, 1).
+   *
+   *  @return  Null if no server is available.
+   */
+  public Server pick(double random) {
+    long[] sums = spareSums;
+    long total = sums[sums.length - 1];
+    if (0 == total) {
+      return null;
+    }
+    long target = (long) (random * total);
+    // First server whose running sum is above target.
+    int low = 0;
+    int high = sums.length - 1;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (sums[middle] > target) {
+        high = middle;
+      } else {
+        low = middle + 1;
+      }
+    }
+    return servers.get(low);
+  }
+}
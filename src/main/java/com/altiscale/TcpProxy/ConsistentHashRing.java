@@ -0,0 +1,115 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * ConsistentHashRing maps keys, such as client addresses, to servers so that a key keeps its
+ * server, and when a server becomes unavailable only keys of that server move elsewhere.
+ *
+ * Every server owns vnodesPerWeight * weight points on a ring of 64-bit hashes. A key belongs
+ * to the first point at or after its hash whose server is available; keys of an unavailable
+ * server fall through to the servers that own the next points, spread over all other
+ * servers thanks to the many points per server.
+ *
+ * Ring never changes after we build it, so lookups take no locks and allocate nothing.
+ */
+class ConsistentHashRing {
+  // Hashes of our points in ascending order, and position in servers of their owners.
+  private final long[] points;
+  private final int[] owners;
+
+  private final ArrayList<Server> servers;
+
+  /*
+   *  @param servers          Servers on the ring. Their weights must be set already.
+   *  @param vnodesPerWeight  Number of points a server of weight 1 owns.
+   */
+  public ConsistentHashRing(ArrayList<Server> servers, int vnodesPerWeight) {
+    assert vnodesPerWeight > 0;
+    this.servers = servers;
+    int numPoints = 0;
+    for (Server server : servers) {
+      numPoints += vnodesPerWeight * server.getWeight();
+    }
+    final long[] hashes = new long[numPoints];
+    Integer[] order = new Integer[numPoints];
+    int[] unsortedOwners = new int[numPoints];
+    int point = 0;
+    for (int i = 0; i < servers.size(); i++) {
+      long seed = mix(servers.get(i).hostPort.toString().hashCode());
+      for (int vnode = 0; vnode < vnodesPerWeight * servers.get(i).getWeight(); vnode++) {
+        hashes[point] = mix(seed + vnode);
+        unsortedOwners[point] = i;
+        order[point] = point;
+        point++;
+      }
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer first, Integer second) {
+        return Long.compare(hashes[first], hashes[second]);
+      }
+    });
+    points = new long[numPoints];
+    owners = new int[numPoints];
+    for (int i = 0; i < numPoints; i++) {
+      points[i] = hashes[order[i]];
+      owners[i] = unsortedOwners[order[i]];
+    }
+  }
+
+  // Finalizer of MurmurHash3, spreads similar inputs such as neighbouring IP addresses all
+  // over the ring.
+  static long mix(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return key;
+  }
+
+  private static boolean isAvailable(Server server) {
+    return server.failedCnt.getLastSecondCnt() == 0 && server.isHealthy();
+  }
+
+  /*
+   *  @return  Server owning key, or if no server is available, server that would own it if
+   *           all were.
+   */
+  public Server get(long key) {
+    long hash = mix(key);
+    int index = Arrays.binarySearch(points, hash);
+    if (index < 0) {
+      index = -index - 1;
+    }
+    for (int i = 0; i < points.length; i++) {
+      Server server = servers.get(owners[(index + i) % points.length]);
+      if (isAvailable(server)) {
+        return server;
+      }
+    }
+    return servers.get(owners[index % points.length]);
+  }
+
+  public int getNumPoints() {
+    return points.length;
+  }
+}
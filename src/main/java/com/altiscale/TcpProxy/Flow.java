@@ -0,0 +1,111 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Flow is one tunnel as seen by FlowClassifier: the class we predicted for it when it
+ * started, the class it turned out to have, and what we measured on it.
+ *
+ * Both directions of a tunnel share their Flow, so whatever they set is thread-safe.
+ */
+class Flow {
+  private FlowClassifier classifier;
+  private InetAddress clientAddress;
+  private boolean isPredictedElephant;
+  private long startNanos;
+
+  // Set once either direction of the tunnel moved elephantBytes.
+  private AtomicBoolean isElephant;
+
+  // Server's first-byte latency on this flow in microseconds, -1 if we didn't measure it.
+  private volatile long firstByteMicros;
+
+  private AtomicBoolean isFinished;
+
+  /*
+   *  @param classifier           Classifier we report to when we finish.
+   *  @param clientAddress        Address of the client, null if unknown.
+   *  @param isPredictedElephant  Whether we expect the flow to move elephantBytes.
+   */
+  Flow(FlowClassifier classifier, InetAddress clientAddress, boolean isPredictedElephant) {
+    this.classifier = classifier;
+    this.clientAddress = clientAddress;
+    this.isPredictedElephant = isPredictedElephant;
+    this.startNanos = System.nanoTime();
+    this.isElephant = new AtomicBoolean(false);
+    this.firstByteMicros = -1;
+    this.isFinished = new AtomicBoolean(false);
+  }
+
+  boolean isPredictedElephant() {
+    return isPredictedElephant;
+  }
+
+  boolean isElephant() {
+    return isElephant.get();
+  }
+
+  InetAddress getClientAddress() {
+    return clientAddress;
+  }
+
+  long getStartNanos() {
+    return startNanos;
+  }
+
+  long getFirstByteMicros() {
+    return firstByteMicros;
+  }
+
+  // Number of bytes after which one direction makes us an elephant.
+  long getElephantBytes() {
+    return classifier.getElephantBytes();
+  }
+
+  void markElephant() {
+    if (isElephant.compareAndSet(false, true)) {
+      classifier.onElephant(this);
+    }
+  }
+
+  void setFirstByteMicros(long micros) {
+    firstByteMicros = micros;
+  }
+
+  /*
+   *  Drops the flow without reporting it, for a client we never tunneled to a server.
+   */
+  void cancel() {
+    if (isFinished.compareAndSet(false, true)) {
+      classifier.onCancel(this);
+    }
+  }
+
+  /*
+   *  Reports the flow to our classifier, once, when the tunnel closes.
+   *
+   *  @param bytes  Bytes the tunnel moved in both directions.
+   */
+  void finish(long bytes) {
+    if (isFinished.compareAndSet(false, true)) {
+      classifier.onFinish(this, bytes);
+    }
+  }
+}
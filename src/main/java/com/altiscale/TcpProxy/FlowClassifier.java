@@ -0,0 +1,198 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.altiscale.Util.Ewma;
+
+/**
+ * FlowClassifier tells short requests (mice) from bulk transfers (elephants), so that the
+ * proxy can keep them on different servers and a metadata call doesn't wait behind a
+ * multi-GB stream in the same ssh tunnel.
+ *
+ * A flow is an elephant once either direction of its tunnel moved elephantBytes. We only
+ * know that late, so for a new flow we predict its class: from the client's first request
+ * line if it is an HTTP request line, which matches elephantPattern for elephants (for
+ * example op=OPEN in a WebHDFS URL), and otherwise from the classes of recent flows of the
+ * same client. Clients we know nothing
+ * about are expected to send mice, which are the majority of flows.
+ *
+ * We also keep latency and throughput per class for /stats.
+ */
+public class FlowClassifier {
+  // Flows of one class.
+  static final int MICE = 0;
+  static final int ELEPHANTS = 1;
+
+  // Most clients whose history we keep, we forget all of them once we have more.
+  static final int MAX_CLIENTS = 10000;
+
+  // How fast old flows of a client lose weight in its history.
+  static final double HISTORY_WEIGHT = 0.5;
+
+  // First line of an HTTP request: method, target and version.
+  static final Pattern REQUEST_LINE = Pattern.compile("^[A-Z]+ \\S+ HTTP/\\d");
+
+  // How fast old samples lose weight in our per-class averages.
+  static final long STATS_DECAY_MILLIS = 60 * 1000;
+
+  private long elephantBytes;
+
+  // Pattern of first request lines of elephants.
+  private Pattern elephantPattern;
+
+  // Share of elephants among recent flows of each client.
+  private ConcurrentHashMap<InetAddress, Double> clientHistory;
+
+  // Per class, indexed by MICE and ELEPHANTS: flows in flight, finished flows, their bytes,
+  // and averages of their first-byte latency in microseconds and throughput in bytes per
+  // second.
+  private AtomicInteger[] openCnt;
+  private AtomicLong[] finishedCnt;
+  private AtomicLong[] byteCnt;
+  private Ewma[] firstByteLatency;
+  private Ewma[] throughput;
+
+  // Flows we predicted as mice that turned into elephants, and the other way round.
+  private AtomicLong missedElephantCnt;
+  private AtomicLong missedMouseCnt;
+
+  /*
+   *  @param elephantBytes    Bytes in one direction that make a flow an elephant.
+   *  @param elephantPattern  Regular expression found in first request lines of elephants.
+   */
+  public FlowClassifier(long elephantBytes, String elephantPattern) {
+    assert elephantBytes > 0;
+    this.elephantBytes = elephantBytes;
+    this.elephantPattern = Pattern.compile(elephantPattern);
+    this.clientHistory = new ConcurrentHashMap<InetAddress, Double>();
+    this.openCnt = new AtomicInteger[2];
+    this.finishedCnt = new AtomicLong[2];
+    this.byteCnt = new AtomicLong[2];
+    this.firstByteLatency = new Ewma[2];
+    this.throughput = new Ewma[2];
+    for (int flowClass = MICE; flowClass <= ELEPHANTS; flowClass++) {
+      openCnt[flowClass] = new AtomicInteger(0);
+      finishedCnt[flowClass] = new AtomicLong(0);
+      byteCnt[flowClass] = new AtomicLong(0);
+      firstByteLatency[flowClass] = new Ewma(STATS_DECAY_MILLIS);
+      throughput[flowClass] = new Ewma(STATS_DECAY_MILLIS);
+    }
+    this.missedElephantCnt = new AtomicLong(0);
+    this.missedMouseCnt = new AtomicLong(0);
+  }
+
+  public long getElephantBytes() {
+    return elephantBytes;
+  }
+
+  /*
+   *  Starts a flow with its predicted class.
+   *
+   *  @param clientAddress  Address of the client, null if unknown.
+   *  @param firstLine      First request line the client sent, null if we didn't wait for it.
+   */
+  Flow newFlow(InetAddress clientAddress, String firstLine) {
+    openCnt[MICE].incrementAndGet();
+    return new Flow(this, clientAddress, predictElephant(clientAddress, firstLine));
+  }
+
+  boolean predictElephant(InetAddress clientAddress, String firstLine) {
+    if (null != firstLine && REQUEST_LINE.matcher(firstLine).find()) {
+      return elephantPattern.matcher(firstLine).find();
+    }
+    if (null == clientAddress) {
+      return false;
+    }
+    Double elephantShare = clientHistory.get(clientAddress);
+    return null != elephantShare && elephantShare >= 0.5;
+  }
+
+  // Flow moved elephantBytes, it counts as an elephant from now on.
+  void onElephant(Flow flow) {
+    openCnt[MICE].decrementAndGet();
+    openCnt[ELEPHANTS].incrementAndGet();
+  }
+
+  void onCancel(Flow flow) {
+    openCnt[flow.isElephant() ? ELEPHANTS : MICE].decrementAndGet();
+  }
+
+  void onFinish(Flow flow, long bytes) {
+    int flowClass = flow.isElephant() ? ELEPHANTS : MICE;
+    openCnt[flowClass].decrementAndGet();
+    finishedCnt[flowClass].incrementAndGet();
+    byteCnt[flowClass].addAndGet(bytes);
+    if (flow.getFirstByteMicros() >= 0) {
+      firstByteLatency[flowClass].update(flow.getFirstByteMicros());
+    }
+    long lifetimeNanos = Math.max(1, System.nanoTime() - flow.getStartNanos());
+    throughput[flowClass].update(bytes * 1e9 / lifetimeNanos);
+
+    if (flow.isElephant() && !flow.isPredictedElephant()) {
+      missedElephantCnt.incrementAndGet();
+    } else if (!flow.isElephant() && flow.isPredictedElephant()) {
+      missedMouseCnt.incrementAndGet();
+    }
+
+    InetAddress clientAddress = flow.getClientAddress();
+    if (null == clientAddress) {
+      return;
+    }
+    if (clientHistory.size() >= MAX_CLIENTS) {
+      clientHistory.clear();
+    }
+    // Two flows of a client finishing at once may lose one update, history is only a hint.
+    double isElephant = flow.isElephant() ? 1 : 0;
+    Double elephantShare = clientHistory.get(clientAddress);
+    clientHistory.put(clientAddress, null == elephantShare ? isElephant :
+                      (1 - HISTORY_WEIGHT) * elephantShare + HISTORY_WEIGHT * isElephant);
+  }
+
+  public int getOpenCnt(int flowClass) {
+    return openCnt[flowClass].get();
+  }
+
+  public long getFinishedCnt(int flowClass) {
+    return finishedCnt[flowClass].get();
+  }
+
+  public long getByteCnt(int flowClass) {
+    return byteCnt[flowClass].get();
+  }
+
+  public long getFirstByteLatencyMicros(int flowClass) {
+    return (long) firstByteLatency[flowClass].get();
+  }
+
+  public long getThroughput(int flowClass) {
+    return (long) throughput[flowClass].get();
+  }
+
+  public long getMissedElephantCnt() {
+    return missedElephantCnt.get();
+  }
+
+  public long getMissedMouseCnt() {
+    return missedMouseCnt.get();
+  }
+}
@@ -0,0 +1,379 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HealthChecker probes one server every intervalMillis, with a TCP connect or, if we have an
+ * HTTP path, with a GET of it, and ejects the server after failureThreshold failures in a
+ * row. A connect to the local port of an ssh -L forward succeeds as long as ssh runs, and
+ * ssh only closes the connection once the jumphost failed to reach the server, so a TCP probe
+ * also fails if the connection closes within TCP_CLOSE_WAIT_MILLIS. Failed connects of real
+ * clients count as failures as well, and opened tunnels reset the count, so a server that
+ * stops accepting gets ejected before the next probe notices.
+ *
+ * An ejected server gets no new tunnels for ejectionMillis, doubled with every ejection that
+ * follows soon after the last one. Once that passed, the first successful probe re-admits it
+ * in slow start: for slowStartMillis it gets a share of the tunnels load balancer picks it
+ * for, growing from MIN_SLOW_START_SHARE to all of them, so a server that just came back
+ * isn't flooded by every client that load balancers held back from it. For every
+ * ejectionMillis a server stays healthy, it gets one doubling back.
+ *
+ * State is only changed under our lock, balancers read it without one.
+ */
+public class HealthChecker implements Runnable {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  static final int HEALTHY = 0;
+  static final int EJECTED = 1;
+  static final int SLOW_START = 2;
+  private static final String[] STATE_NAMES = {"healthy", "ejected", "slow start"};
+
+  // Most times we double ejectionMillis for a server that keeps failing.
+  static final int MAX_EJECTION_DOUBLINGS = 5;
+
+  // Share of tunnels a server gets when it enters slow start.
+  static final double MIN_SLOW_START_SHARE = 0.1;
+
+  // How long a TCP probe waits for the connection to close after it connected.
+  static final long TCP_CLOSE_WAIT_MILLIS = 500;
+
+  private Server server;
+  private long intervalMillis;
+  private long timeoutMillis;
+  // Path we GET from the server, null if we only connect.
+  private String httpPath;
+  private int failureThreshold;
+  private long ejectionMillis;
+  private long slowStartMillis;
+
+  private Thread thread;
+  private volatile boolean isRunning;
+
+  private volatile int state;
+  // When ejection ends, while we're EJECTED.
+  private volatile long ejectedUntilMillis;
+  // When we re-admitted the server, while we're in SLOW_START.
+  private volatile long readmittedMillis;
+  // When the server last became HEALTHY, or got a doubling back.
+  private long healthySinceMillis;
+  // Ejections that count towards doubling of ejectionMillis.
+  private int ejectionDoublings;
+
+  private AtomicInteger consecutiveFailures;
+
+  // Ejections and state changes so far, and the last state change.
+  private volatile long ejectionCnt;
+  private volatile long transitionCnt;
+  private volatile String lastTransition;
+  private volatile long lastTransitionMillis;
+
+  // How long the last probe took, in microseconds, and why it failed, null if it didn't.
+  private volatile long lastProbeMicros;
+  private volatile String lastProbeError;
+
+  /*
+   *  @param server            Server we check.
+   *  @param intervalMillis    How often we probe.
+   *  @param timeoutMillis     How long one probe can take.
+   *  @param httpPath          Path we GET, expecting a 2xx or 3xx status. Null if a TCP
+   *                           connect is enough.
+   *  @param failureThreshold  Failures in a row after which we eject the server.
+   *  @param ejectionMillis    How long we eject the server for the first time.
+   *  @param slowStartMillis   How long a re-admitted server takes to get its full share, 0 if
+   *                           it gets it right away.
+   */
+  public HealthChecker(Server server, long intervalMillis, long timeoutMillis, String httpPath,
+                       int failureThreshold, long ejectionMillis, long slowStartMillis) {
+    assert failureThreshold > 0;
+    this.server = server;
+    this.intervalMillis = intervalMillis;
+    this.timeoutMillis = timeoutMillis;
+    this.httpPath = httpPath;
+    this.failureThreshold = failureThreshold;
+    this.ejectionMillis = ejectionMillis;
+    this.slowStartMillis = slowStartMillis;
+    this.state = HEALTHY;
+    this.healthySinceMillis = System.currentTimeMillis();
+    this.ejectionDoublings = 0;
+    this.consecutiveFailures = new AtomicInteger(0);
+    this.ejectionCnt = 0;
+    this.transitionCnt = 0;
+    this.lastTransition = null;
+    this.lastProbeMicros = 0;
+    this.lastProbeError = null;
+  }
+
+  public Thread start() {
+    assert null == thread;  // we should never call this method twice.
+    isRunning = true;
+    thread = server.getThreadFactory().newThread(this);
+    thread.setName("healthChecker-" + server.hostPort);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  public void stop() {
+    isRunning = false;
+    thread.interrupt();
+  }
+
+  public void run() {
+    while (isRunning) {
+      // Our ssh process tells when it's down or still starting, which isn't the server's fault.
+      if (!server.isSshReady()) {
+        sleep();
+        continue;
+      }
+      long startNanos = System.nanoTime();
+      String error = probe();
+      lastProbeMicros = (System.nanoTime() - startNanos) / 1000;
+      lastProbeError = error;
+      if (null == error) {
+        onProbeSuccess(System.currentTimeMillis());
+      } else {
+        onFailure(System.currentTimeMillis(), "probe failed: " + error);
+      }
+      sleep();
+    }
+  }
+
+  private void sleep() {
+    try {
+      Thread.sleep(intervalMillis);
+    } catch (InterruptedException ie) {
+      LOG.debug("Interrupted while waiting to probe server " + server.hostPort);
+    }
+  }
+
+  /*
+   *  @return  Why the probe failed, null if it succeeded.
+   */
+  String probe() {
+    Socket socket = null;
+    try {
+      socket = server.connectSocket((int) timeoutMillis);
+      if (null == httpPath) {
+        // Channels of our embedded ssh client only open once the jumphost reached the server.
+        return null == server.getSshSession() ? checkStaysOpen(socket) : null;
+      }
+      socket.setSoTimeout((int) timeoutMillis);
+      OutputStream out = socket.getOutputStream();
+      out.write(("GET " + httpPath + " HTTP/1.0\r\n" +
+                 "Host: " + server.hostPort + "\r\n" +
+                 "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+      out.flush();
+      String statusLine = readLine(socket.getInputStream());
+      // HTTP/1.x 200 OK
+      String[] parts = statusLine.split(" ");
+      if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+        return "not an HTTP response";
+      }
+      if (!parts[1].startsWith("2") && !parts[1].startsWith("3")) {
+        return "HTTP status " + parts[1];
+      }
+      return null;
+    } catch (IOException ioe) {
+      return ioe.getMessage();
+    } finally {
+      try {
+        if (null != socket) {
+          socket.close();
+        }
+      } catch (IOException ioe) {
+        LOG.debug("IO exception while closing probe socket: " + ioe.getMessage());
+      }
+    }
+  }
+
+  /*
+   *  @return  Why the probe failed if the server closed the connection within
+   *           TCP_CLOSE_WAIT_MILLIS, null if it kept it open or sent us bytes.
+   */
+  private String checkStaysOpen(Socket socket) throws IOException {
+    socket.setSoTimeout((int) Math.min(timeoutMillis, TCP_CLOSE_WAIT_MILLIS));
+    try {
+      if (-1 == socket.getInputStream().read()) {
+        return "connection closed right after connect";
+      }
+    } catch (SocketTimeoutException ste) {
+      // Still open.
+    }
+    return null;
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    while (line.length() < 1024) {
+      int c = in.read();
+      if (-1 == c || '\n' == c) {
+        break;
+      }
+      if ('\r' != c) {
+        line.append((char) c);
+      }
+    }
+    return line.toString();
+  }
+
+  private long getEjectionMillis() {
+    return ejectionMillis << ejectionDoublings;
+  }
+
+  private void setState(int newState, long now, String reason) {
+    String transition = STATE_NAMES[state] + " -> " + STATE_NAMES[newState] + " (" +
+                        reason + ")";
+    LOG.info("Server " + server.hostPort + " " + transition);
+    state = newState;
+    transitionCnt++;
+    lastTransition = transition;
+    lastTransitionMillis = now;
+  }
+
+  synchronized void onProbeSuccess(long now) {
+    consecutiveFailures.set(0);
+    if (EJECTED == state) {
+      if (now < ejectedUntilMillis) {
+        return;
+      }
+      readmittedMillis = now;
+      if (slowStartMillis > 0) {
+        setState(SLOW_START, now, "probe succeeded");
+        return;
+      }
+      healthySinceMillis = now;
+      setState(HEALTHY, now, "probe succeeded");
+      return;
+    }
+    if (SLOW_START == state && now - readmittedMillis >= slowStartMillis) {
+      healthySinceMillis = now;
+      setState(HEALTHY, now, "slow start done");
+      return;
+    }
+    if (HEALTHY == state && ejectionDoublings > 0 &&
+        now - healthySinceMillis >= ejectionMillis) {
+      ejectionDoublings--;
+      healthySinceMillis = now;
+    }
+  }
+
+  /*
+   *  Counts a failed probe or a failed connect of a client.
+   */
+  void onFailure(long now, String reason) {
+    if (consecutiveFailures.incrementAndGet() < failureThreshold || EJECTED == state) {
+      return;
+    }
+    synchronized (this) {
+      if (EJECTED == state) {
+        return;
+      }
+      ejectedUntilMillis = now + getEjectionMillis();
+      if (ejectionDoublings < MAX_EJECTION_DOUBLINGS) {
+        ejectionDoublings++;
+      }
+      ejectionCnt++;
+      setState(EJECTED, now, consecutiveFailures.get() + " failures, last " + reason);
+    }
+  }
+
+  /*
+   *  Counts a tunnel the server opened.
+   */
+  void onSuccess() {
+    if (0 != consecutiveFailures.get()) {
+      consecutiveFailures.set(0);
+    }
+  }
+
+  // True unless the server is ejected.
+  public boolean isAdmitted() {
+    return EJECTED != state;
+  }
+
+  /*
+   *  @return  Share of the tunnels load balancer picks the server for that it should get,
+   *           between 0 and 1.
+   */
+  public double getTrafficShare(long now) {
+    int currentState = state;
+    if (HEALTHY == currentState) {
+      return 1;
+    }
+    if (EJECTED == currentState) {
+      return 0;
+    }
+    double ramp = (double) (now - readmittedMillis) / slowStartMillis;
+    return Math.min(1, MIN_SLOW_START_SHARE + (1 - MIN_SLOW_START_SHARE) * ramp);
+  }
+
+  public int getState() {
+    return state;
+  }
+
+  public String getStateName() {
+    return STATE_NAMES[state];
+  }
+
+  public int getConsecutiveFailures() {
+    return consecutiveFailures.get();
+  }
+
+  public long getEjectedUntilMillis() {
+    return ejectedUntilMillis;
+  }
+
+  public long getEjectionCnt() {
+    return ejectionCnt;
+  }
+
+  public long getTransitionCnt() {
+    return transitionCnt;
+  }
+
+  // Last state change, null if state never changed.
+  public String getLastTransition() {
+    return lastTransition;
+  }
+
+  public long getLastTransitionMillis() {
+    return lastTransitionMillis;
+  }
+
+  public long getLastProbeMicros() {
+    return lastProbeMicros;
+  }
+
+  public String getLastProbeError() {
+    return lastProbeError;
+  }
+
+  public String getHttpPath() {
+    return httpPath;
+  }
+}
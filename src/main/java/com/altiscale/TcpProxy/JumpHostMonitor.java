@@ -0,0 +1,376 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+
+import com.altiscale.Util.JumpHost;
+
+/**
+ * JumpHostMonitor watches the jumphosts our ssh tunnels spread over, so that load balancers
+ * avoid a bastion that failed or ran out of CPU as a unit, not one tunnel at a time.
+ *
+ * Every intervalMillis we add up what the servers of each jumphost did since our last check.
+ * A jumphost is down when none of its ssh tunnels is ready, or when DOWN_FAILURE_SHARE of at
+ * least DOWN_MIN_REQUESTS connects through it failed, which is the bastion's fault rather
+ * than that of one tunnel. Tunnels of a jumphost that was never ready get readyTimeoutMillis
+ * to come up before we hold that against it. A down jumphost gets no new tunnels for
+ * downMillis, and comes back once one of its ssh tunnels is ready again.
+ *
+ * A bastion moves at most what its CPU decrypts, so as TunnelAutoscaler does for a tunnel, a
+ * SaturationDetector tells when client tunnels through a jumphost grow and its byte rate
+ * doesn't follow. The jumphost is overloaded then, and stays so while it moves
+ * OVERLOAD_UTILIZATION of the byte rate it saturated at. While another one isn't, servers
+ * of an overloaded jumphost get only OVERLOADED_SHARE of the tunnels load balancers pick
+ * them for.
+ */
+public class JumpHostMonitor implements Runnable {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // How often we check our jumphosts.
+  static final long CHECK_MILLIS = 1000;
+
+  static final int UP = 0;
+  static final int OVERLOADED = 1;
+  static final int DOWN = 2;
+  private static final String[] STATE_NAMES = {"up", "overloaded", "down"};
+
+  static final double DOWN_FAILURE_SHARE = 0.5;
+  static final long DOWN_MIN_REQUESTS = 4;
+  static final double OVERLOAD_UTILIZATION = 0.9;
+  static final double OVERLOADED_SHARE = 0.5;
+
+  /*
+   *  One jumphost and the servers that tunnel through it. Servers read our state without a
+   *  lock, only our monitor changes it.
+   */
+  static class Group {
+    private JumpHost jumphost;
+    private CopyOnWriteArrayList<Server> servers;
+
+    private volatile int state;
+    private volatile long downUntilMillis;
+    // Share of tunnels load balancers pick our servers for that they get.
+    private volatile double trafficShare;
+
+    // Totals of our servers at the last check, and what they did since.
+    private long lastByteCnt;
+    private long lastRequestCnt;
+    private long lastFailedCnt;
+    private volatile double byteRate;
+    private volatile int readyServerCnt;
+
+    // Compares client tunnels through us with our byte rate, starts over when servers change.
+    private SaturationDetector saturation;
+    private int lastServerCnt;
+
+    // Whether any of our tunnels was ever ready, and since when we wait for one if not.
+    private boolean wasReady;
+    private long waitingSinceMillis;
+
+    private volatile long downCnt;
+    private volatile String lastTransition;
+
+    Group(JumpHost jumphost) {
+      this.jumphost = jumphost;
+      this.servers = new CopyOnWriteArrayList<Server>();
+      this.state = UP;
+      this.downUntilMillis = 0;
+      this.trafficShare = 1;
+      this.byteRate = 0;
+      this.readyServerCnt = 0;
+      this.saturation = new SaturationDetector();
+      this.lastServerCnt = 0;
+      this.wasReady = false;
+      this.waitingSinceMillis = 0;
+      this.downCnt = 0;
+      this.lastTransition = null;
+    }
+
+    void addServer(Server server) {
+      servers.add(server);
+      // Counts of a new server are not part of our last totals.
+      lastByteCnt += server.byteRateCnt.getTotalCnt();
+      lastRequestCnt += server.requestCnt.getTotalCnt();
+      lastFailedCnt += server.failedCnt.getTotalCnt();
+    }
+
+    void removeServer(Server server) {
+      if (servers.remove(server)) {
+        lastByteCnt -= server.byteRateCnt.getTotalCnt();
+        lastRequestCnt -= server.requestCnt.getTotalCnt();
+        lastFailedCnt -= server.failedCnt.getTotalCnt();
+      }
+    }
+
+    /*
+     *  Updates our state with what our servers did since the last check.
+     *
+     *  @param seconds           Time since the last check.
+     *  @param readyTimeoutMillis  How long tunnels of a jumphost that was never ready get.
+     */
+    synchronized void check(long now, double seconds, long downMillis,
+                            long readyTimeoutMillis) {
+      long byteCnt = 0;
+      long requestCnt = 0;
+      long failedCnt = 0;
+      long openTunnelCnt = 0;
+      int readyCnt = 0;
+      for (Server server : servers) {
+        byteCnt += server.byteRateCnt.getTotalCnt();
+        requestCnt += server.requestCnt.getTotalCnt();
+        failedCnt += server.failedCnt.getTotalCnt();
+        openTunnelCnt += server.getOpenTunnelCnt();
+        if (server.isSshReady()) {
+          readyCnt++;
+        }
+      }
+      long requests = requestCnt - lastRequestCnt;
+      long failures = failedCnt - lastFailedCnt;
+      byteRate = Math.max(0, byteCnt - lastByteCnt) / seconds;
+      readyServerCnt = readyCnt;
+      lastByteCnt = byteCnt;
+      lastRequestCnt = requestCnt;
+      lastFailedCnt = failedCnt;
+      if (servers.size() != lastServerCnt) {
+        saturation.reset();
+        lastServerCnt = servers.size();
+      }
+      boolean saturated = saturation.check(byteRate, openTunnelCnt);
+
+      if (servers.isEmpty()) {
+        return;
+      }
+      if (0 == waitingSinceMillis) {
+        waitingSinceMillis = now;
+      }
+      if (readyCnt > 0) {
+        wasReady = true;
+      }
+      if (0 == readyCnt) {
+        // Tunnels that still start say nothing about the jumphost.
+        if (wasReady || now - waitingSinceMillis >= readyTimeoutMillis) {
+          setDown(now, downMillis, "no ssh tunnel ready");
+        }
+        return;
+      }
+      if (requests >= DOWN_MIN_REQUESTS && failures >= DOWN_FAILURE_SHARE * requests) {
+        setDown(now, downMillis, failures + " of " + requests + " connects failed");
+        return;
+      }
+      if (DOWN == state && now < downUntilMillis) {
+        return;
+      }
+      double capacityByteRate = saturation.getCapacityByteRate();
+      boolean overloaded = saturated || (capacityByteRate > 0 &&
+                                         byteRate >= OVERLOAD_UTILIZATION * capacityByteRate);
+      setState(overloaded ? OVERLOADED : UP, "moving " + (long) byteRate + " B/s of " +
+                                             (long) capacityByteRate + " B/s capacity");
+    }
+
+    private void setDown(long now, long downMillis, String reason) {
+      if (DOWN != state) {
+        downCnt++;
+      }
+      downUntilMillis = now + downMillis;
+      setState(DOWN, reason);
+    }
+
+    private void setState(int newState, String reason) {
+      if (newState == state) {
+        return;
+      }
+      String transition = STATE_NAMES[state] + " -> " + STATE_NAMES[newState] + " (" +
+                          reason + ")";
+      LOG.info("Jumphost " + jumphost + " " + transition);
+      state = newState;
+      lastTransition = transition;
+    }
+
+    // True unless the jumphost is down.
+    boolean isAdmitted() {
+      return DOWN != state;
+    }
+
+    double getTrafficShare() {
+      return trafficShare;
+    }
+
+    public JumpHost getJumpHost() {
+      return jumphost;
+    }
+
+    public int getServerCnt() {
+      return servers.size();
+    }
+
+    public int getReadyServerCnt() {
+      return readyServerCnt;
+    }
+
+    public int getState() {
+      return state;
+    }
+
+    public String getStateName() {
+      return STATE_NAMES[state];
+    }
+
+    public long getByteRate() {
+      return (long) byteRate;
+    }
+
+    // Byte rate at which the jumphost last saturated, 0 if it never did.
+    public long getCapacityByteRate() {
+      return (long) saturation.getCapacityByteRate();
+    }
+
+    // Share of what the jumphost can move that it moved at our last check, 0 if we don't know.
+    public double getUtilization() {
+      double capacityByteRate = saturation.getCapacityByteRate();
+      return capacityByteRate > 0 ? byteRate / capacityByteRate : 0;
+    }
+
+    public long getDownCnt() {
+      return downCnt;
+    }
+
+    // Last state change, null if state never changed.
+    public String getLastTransition() {
+      return lastTransition;
+    }
+  }
+
+  private ArrayList<Group> groups;
+  private long intervalMillis;
+  private long downMillis;
+  private long readyTimeoutMillis;
+
+  private Thread thread;
+  private volatile boolean isRunning;
+
+  // Factory for our thread, so that it can be a virtual thread.
+  private ThreadFactory threadFactory;
+
+  private long lastCheckMillis;
+
+  /*
+   *  @param jumphosts       Jumphosts we watch.
+   *  @param intervalMillis  How often we check.
+   *  @param downMillis      How long a jumphost that went down gets no new tunnels.
+   */
+  public JumpHostMonitor(ArrayList<JumpHost> jumphosts, long intervalMillis, long downMillis) {
+    this.groups = new ArrayList<Group>();
+    for (JumpHost jumphost : jumphosts) {
+      groups.add(new Group(jumphost));
+    }
+    this.intervalMillis = intervalMillis;
+    this.downMillis = downMillis;
+    this.readyTimeoutMillis = Server.SSH_READY_TIMEOUT_MILLIS;
+    this.lastCheckMillis = System.currentTimeMillis();
+    this.threadFactory = Thread.ofPlatform().factory();
+  }
+
+  public void setThreadFactory(ThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
+  }
+
+  public Thread start() {
+    assert null == thread;  // we should never call this method twice.
+    isRunning = true;
+    thread = threadFactory.newThread(this);
+    thread.setName("jumpHostMonitor");
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  public void stop() {
+    isRunning = false;
+    thread.interrupt();
+  }
+
+  public void run() {
+    while (isRunning) {
+      try {
+        Thread.sleep(intervalMillis);
+      } catch (InterruptedException ie) {
+        LOG.debug("Interrupted while waiting to check jumphosts.");
+        continue;
+      }
+      check(System.currentTimeMillis());
+    }
+  }
+
+  void check(long now) {
+    double seconds = Math.max(1, now - lastCheckMillis) / 1000.0;
+    lastCheckMillis = now;
+    for (Group group : groups) {
+      group.check(now, seconds, downMillis, readyTimeoutMillis);
+    }
+    // Overloaded jumphosts only give way while another one has room.
+    boolean anyUp = false;
+    for (Group group : groups) {
+      if (UP == group.getState()) {
+        anyUp = true;
+      }
+    }
+    for (Group group : groups) {
+      group.trafficShare = anyUp && OVERLOADED == group.getState() ? OVERLOADED_SHARE : 1;
+    }
+  }
+
+  // Group of jumphost, null if we don't watch it.
+  public Group getGroup(JumpHost jumphost) {
+    for (Group group : groups) {
+      if (group.jumphost == jumphost) {
+        return group;
+      }
+    }
+    return null;
+  }
+
+  public ArrayList<Group> getGroups() {
+    return groups;
+  }
+
+  /*
+   *  Picks the jumphost for a new ssh tunnel: one that isn't down with the lowest
+   *  utilization, and the fewest servers among those.
+   *
+   *  @return  Null if all our jumphosts are down.
+   */
+  public JumpHost pickJumpHost() {
+    Group best = null;
+    for (Group group : groups) {
+      if (!group.isAdmitted()) {
+        continue;
+      }
+      if (null == best || group.getUtilization() < best.getUtilization() ||
+          (group.getUtilization() == best.getUtilization() &&
+           group.getServerCnt() < best.getServerCnt())) {
+        best = group;
+      }
+    }
+    return null == best ? null : best.jumphost;
+  }
+}
@@ -0,0 +1,92 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LoadIndex finds the least loaded of n servers in O(1) and updates load of a server in
+ * O(log n), without locks.
+ *
+ * It is a tournament tree: leaves are servers, every inner node keeps whichever of its two
+ * children's winners has lower load, so the root keeps the least loaded server. An update
+ * replays the matches on the path from its leaf to the root. Each match is written with
+ * compare-and-set and replayed when another update changed the node in the meantime, so
+ * concurrent updates settle on the right winner in all but rare interleavings, and the next
+ * update on the same path fixes those. Load balancers only need an approximate minimum.
+ */
+class LoadIndex {
+  // Number of leaves, a power of two, at least 2. Leaves past our servers never win.
+  private int capacity;
+
+  // Load of each server, indexed by its position.
+  private AtomicLongArray loads;
+
+  // Node k has children 2k and 2k+1 and keeps position of the winner of its subtree. Node 1
+  // is the root, leaf of position i is node capacity + i.
+  private AtomicIntegerArray winners;
+
+  /*
+   *  @param numServers  Number of servers, with positions 0 to numServers - 1, all with load 0.
+   */
+  public LoadIndex(int numServers) {
+    capacity = 2;
+    while (capacity < numServers) {
+      capacity *= 2;
+    }
+    loads = new AtomicLongArray(capacity);
+    for (int i = numServers; i < capacity; i++) {
+      loads.set(i, Long.MAX_VALUE);
+    }
+    winners = new AtomicIntegerArray(2 * capacity);
+    for (int i = 0; i < capacity; i++) {
+      winners.set(capacity + i, i);
+    }
+    for (int node = capacity - 1; node >= 1; node--) {
+      winners.set(node, match(node));
+    }
+  }
+
+  private int match(int node) {
+    int left = winners.get(2 * node);
+    int right = winners.get(2 * node + 1);
+    return loads.get(left) <= loads.get(right) ? left : right;
+  }
+
+  public void update(int position, long load) {
+    loads.set(position, load);
+    for (int node = (capacity + position) / 2; node >= 1; node /= 2) {
+      while (true) {
+        int winner = winners.get(node);
+        int newWinner = match(node);
+        if (winner == newWinner || winners.compareAndSet(node, winner, newWinner)) {
+          break;
+        }
+      }
+    }
+  }
+
+  // Position of the least loaded server.
+  public int getMin() {
+    return winners.get(1);
+  }
+
+  public long getLoad(int position) {
+    return loads.get(position);
+  }
+}
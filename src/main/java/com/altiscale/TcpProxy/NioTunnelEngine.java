@@ -0,0 +1,714 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.altiscale.Util.BufferPool;
+import com.altiscale.Util.SecondMinuteHourCounter;
+import com.altiscale.Util.SocketOptionsProfile;
+
+/**
+ * NioTunnelEngine is an alternative to thread-per-direction TcpTunnel. It runs both directions
+ * of many tunnels on a small fixed set of event-loop threads, each owning one Selector.
+ *
+ * Both channels of a tunnel are registered with the same event loop, so all state of a tunnel
+ * is only ever touched by a single thread. Tunnels update the same Server counters as TcpTunnel
+ * does, so /stats and load balancers keep working regardless of the engine in use.
+ *
+ * In multi-reactor mode (see listen()) each event loop also owns its own listening channel
+ * bound with SO_REUSEPORT, accepts clients and connects to servers itself, so the kernel
+ * spreads connections across loops and no cross-thread handoff is needed.
+ */
+public class NioTunnelEngine {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // Size of the buffer for each direction of a tunnel.
+  static final int BUFFER_SIZE = 1024 * 8;  // 8KB buffer.
+
+  private EventLoop[] eventLoops;
+
+  // Pool of direct buffers for our tunnels. Null if tunnels allocate their own heap buffers.
+  private BufferPool bufferPool;
+
+  // Index used to spread new tunnels across event loops.
+  private AtomicInteger nextEventLoop;
+
+  private volatile boolean isRunning;
+
+  // Proxy whose load balancer picks servers for clients accepted by event loops. Null if
+  // clients are accepted by TcpProxyServer and handed over via addTunnel.
+  private TcpProxyServer proxy;
+
+  // How many servers we try to connect to before we give up on a client.
+  static final int RETRY_MAX = 3;
+
+  // How long we wait for a connect to a server in multi-reactor mode, 0 to wait as long as
+  // the OS does.
+  private long connectTimeoutMillis;
+
+  // Connects that ran out of time in multi-reactor mode.
+  final SecondMinuteHourCounter timeoutCnt = new SecondMinuteHourCounter("timeoutCnt");
+
+  /*
+   *  @param numThreads  Number of event-loop threads (and selectors) to run.
+   */
+  public NioTunnelEngine(int numThreads) throws IOException {
+    this(numThreads, null);
+  }
+
+  /*
+   *  @param numThreads  Number of event-loop threads (and selectors) to run.
+   *  @param bufferPool  Optional pool of direct buffers for tunnels.
+   */
+  public NioTunnelEngine(int numThreads, BufferPool bufferPool) throws IOException {
+    assert numThreads > 0;
+    this.bufferPool = bufferPool;
+    eventLoops = new EventLoop[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      eventLoops[i] = new EventLoop("nioTunnelLoop-" + i);
+    }
+    nextEventLoop = new AtomicInteger(0);
+    isRunning = false;
+  }
+
+  public void setConnectTimeoutMillis(long connectTimeoutMillis) {
+    this.connectTimeoutMillis = connectTimeoutMillis;
+  }
+
+  public int getNumThreads() {
+    return eventLoops.length;
+  }
+
+  public void start() {
+    assert !isRunning;  // we should never call this method twice.
+    isRunning = true;
+    for (EventLoop eventLoop : eventLoops) {
+      eventLoop.start();
+    }
+  }
+
+  public void stop() {
+    isRunning = false;
+    for (EventLoop eventLoop : eventLoops) {
+      eventLoop.selector.wakeup();
+    }
+  }
+
+  /*
+   *  Waits until all event loops finish.
+   */
+  public void join() throws InterruptedException {
+    for (EventLoop eventLoop : eventLoops) {
+      if (null != eventLoop.thread) {
+        eventLoop.thread.join();
+      }
+    }
+  }
+
+  /*
+   *  Multi-reactor mode: every event loop listens on port with its own channel bound with
+   *  SO_REUSEPORT and connects accepted clients to servers picked by proxy's load balancer.
+   *  If SO_REUSEPORT is not supported we bind a single channel and register it with every
+   *  event loop instead; loops that lose the race for a client simply get nothing to accept.
+   *
+   *  @param port   Listening port for our clients.
+   *  @param proxy  Proxy whose load balancer we use to pick servers.
+   *
+   *  @return  True if SO_REUSEPORT was used.
+   */
+  public boolean listen(int port, TcpProxyServer proxy) throws IOException {
+    this.proxy = proxy;
+    ServerSocketChannel sharedChannel = null;
+    boolean reusePort = true;
+    for (EventLoop eventLoop : eventLoops) {
+      ServerSocketChannel listeningChannel = sharedChannel;
+      if (null == listeningChannel) {
+        listeningChannel = ServerSocketChannel.open();
+        if (!setReusePort(listeningChannel)) {
+          reusePort = false;
+          sharedChannel = listeningChannel;
+        }
+        SocketOptionsProfile socketOptions = proxy.getClientSocketOptions();
+        if (null != socketOptions) {
+          socketOptions.bind(listeningChannel, new InetSocketAddress(port));
+        } else {
+          listeningChannel.bind(new InetSocketAddress(port));
+        }
+        listeningChannel.configureBlocking(false);
+      }
+      eventLoop.addListeningChannel(listeningChannel);
+    }
+    return reusePort;
+  }
+
+  // SO_REUSEPORT is only available in java.net.StandardSocketOptions since Java 9, and only on
+  // platforms that support it, so we look it up among options the channel supports.
+  @SuppressWarnings("unchecked")
+  private static boolean setReusePort(ServerSocketChannel channel) throws IOException {
+    for (SocketOption<?> option : channel.supportedOptions()) {
+      if (option.name().equals("SO_REUSEPORT")) {
+        channel.setOption((SocketOption<Boolean>) option, true);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /*
+   *  Hands over a connected client and server channel pair to one of our event loops.
+   *  Channels are switched to non-blocking mode and must not be used by the caller afterwards.
+   *
+   *  @param client       Channel connected to our client.
+   *  @param server       Channel connected to server selected for this client by proxy.
+   *  @param proxyServer  Server whose counters this tunnel updates.
+   */
+  public void addTunnel(SocketChannel client, SocketChannel server, Server proxyServer)
+      throws IOException {
+    addTunnel(client, server, proxyServer, null);
+  }
+
+  /*
+   *  @param flow  Flow the tunnel reports to FlowClassifier, null if we don't classify flows.
+   */
+  public void addTunnel(SocketChannel client, SocketChannel server, Server proxyServer,
+                        Flow flow) throws IOException {
+    client.configureBlocking(false);
+    server.configureBlocking(false);
+    int index = (nextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length;
+    eventLoops[index].addTunnel(new NioTunnel(client, server, proxyServer, flow));
+  }
+
+  // One direction of a tunnel. Bytes read from source are kept in buffer until destination
+  // accepts them; while the buffer is full we stop reading from source.
+  class Direction {
+    private SocketChannel source;
+    private SocketChannel destination;
+    private ByteBuffer buffer;
+    private boolean sourceClosed;
+    private ByteRateBatch byteRateBatch;
+
+    public Direction(SocketChannel source, SocketChannel destination, Server proxyServer,
+                     Flow flow) {
+      this.source = source;
+      this.destination = destination;
+      this.byteRateBatch = new ByteRateBatch(proxyServer, flow);
+      if (null != bufferPool) {
+        this.buffer = bufferPool.acquire(BUFFER_SIZE);
+      } else {
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      }
+      this.sourceClosed = false;
+    }
+
+    // Called once the tunnel is closed.
+    void releaseBuffer() {
+      byteRateBatch.flush();
+      if (null != bufferPool) {
+        bufferPool.release(buffer);
+      }
+      buffer = null;
+    }
+
+    // Returns number of bytes read, -1 on end of stream.
+    int read() throws IOException {
+      int cnt = source.read(buffer);
+      if (cnt < 0) {
+        sourceClosed = true;
+      } else if (cnt > 0) {
+        byteRateBatch.add(cnt);
+      }
+      return cnt;
+    }
+
+    void flush() throws IOException {
+      buffer.flip();
+      destination.write(buffer);
+      buffer.compact();
+    }
+
+    boolean wantsRead() {
+      return !sourceClosed && buffer.hasRemaining();
+    }
+
+    boolean hasPendingBytes() {
+      return buffer.position() > 0;
+    }
+
+    // We are done once the source is closed and everything it sent got written.
+    boolean isFinished() {
+      return sourceClosed && !hasPendingBytes();
+    }
+  }
+
+  // Both directions of a tunnel. Same as TcpTunnel, whoever closes the connection first, our
+  // job is to simply close the other end as well.
+  class NioTunnel {
+    private SocketChannel clientChannel;
+    private SocketChannel serverChannel;
+    private SelectionKey clientKey;
+    private SelectionKey serverKey;
+    private Direction clientServer;
+    private Direction serverClient;
+    private Server proxyServer;
+    private boolean isOpened;
+    private boolean isClosed;
+    private boolean isServerAcquired;
+
+    // Flow we report to FlowClassifier when we close, null if we don't classify flows.
+    private Flow flow;
+
+    // Event loop we're registered with.
+    private EventLoop eventLoop;
+
+    // Number of servers we tried to connect to so far, servers that failed, and when we
+    // started the current connect. Only used in multi-reactor mode.
+    private int connectAttempts;
+    private HashSet<Server> failedServers;
+    private long connectStartMillis;
+    private long connectStartNanos;
+
+    // When our client's first bytes reached the server, 0 until then, and whether the server
+    // sent anything yet. Server's first bytes after that give us its first-byte latency.
+    private long requestNanos;
+    private boolean hasServerSent;
+
+    /*
+     *  @param client       Channel connected to our client.
+     *  @param server       Channel connected or connecting to server.
+     *  @param proxyServer  Server whose counters this tunnel updates.
+     *  @param flow         Flow we report to FlowClassifier, null if we don't classify flows.
+     */
+    public NioTunnel(SocketChannel client, SocketChannel server, Server proxyServer,
+                     Flow flow) {
+      this.clientChannel = client;
+      this.flow = flow;
+      this.isOpened = false;
+      this.isClosed = false;
+      this.connectAttempts = 1;
+      this.failedServers = new HashSet<Server>();
+      setServer(server, proxyServer);
+    }
+
+    // Server channel comes from Server.connectChannel, which counted us in proxyServer's
+    // open tunnels until we release it.
+    private void setServer(SocketChannel server, Server proxyServer) {
+      this.serverChannel = server;
+      this.proxyServer = proxyServer;
+      this.isServerAcquired = (null != server);
+    }
+
+    private void releaseServer() {
+      if (isServerAcquired) {
+        isServerAcquired = false;
+        proxyServer.releaseTunnel();
+      }
+    }
+
+    void register(EventLoop eventLoop) throws IOException {
+      this.eventLoop = eventLoop;
+      Selector selector = eventLoop.selector;
+      if (null == clientKey) {
+        // Don't read from client until we have a server to write to.
+        clientKey = clientChannel.register(selector, 0, this);
+      }
+      if (serverChannel.isConnected()) {
+        serverKey = serverChannel.register(selector, 0, this);
+        onConnected();
+      } else {
+        serverKey = serverChannel.register(selector, SelectionKey.OP_CONNECT, this);
+        connectStartMillis = System.currentTimeMillis();
+        connectStartNanos = System.nanoTime();
+        eventLoop.connectingTunnels.add(this);
+      }
+    }
+
+    private void onConnected() {
+      isOpened = true;
+      clientServer = new Direction(clientChannel, serverChannel, proxyServer, flow);
+      serverClient = new Direction(serverChannel, clientChannel, proxyServer, flow);
+      // Keep counting opened/closed connections per direction as TcpTunnel does.
+      proxyServer.incrementOpenedConn();
+      proxyServer.incrementOpenedConn();
+      updateInterestOps();
+    }
+
+    private void finishConnect(SelectionKey key) {
+      try {
+        serverChannel.finishConnect();
+      } catch (IOException ioe) {
+        LOG.error("Error while connecting to server " + proxyServer.hostPort);
+        failConnect();
+        return;
+      }
+      proxyServer.recordConnectLatency((System.nanoTime() - connectStartNanos) / 1000);
+      onConnected();
+    }
+
+    // Connect ran out of time.
+    boolean isConnectTimedOut(long now) {
+      return !isOpened && !isClosed && now - connectStartMillis >= connectTimeoutMillis;
+    }
+
+    void failConnect() {
+      proxyServer.incrementFailedConn();
+      failedServers.add(proxyServer);
+      serverKey.cancel();
+      closeChannel(serverChannel);
+      releaseServer();
+      retryConnect();
+    }
+
+    // Same as ServerConnector, we retry with next server picked by load balancer, skipping
+    // servers that already failed for this client.
+    private void retryConnect() {
+      while (connectAttempts < RETRY_MAX) {
+        connectAttempts++;
+        Server server = proxy.getServer(failedServers, clientChannel.socket().getInetAddress(),
+                                        flow);
+        if (null == server) {
+          break;
+        }
+        try {
+          setServer(server.connectChannel(), server);
+          register(eventLoop);
+          return;
+        } catch (IOException ioe) {
+          LOG.error("Error while connecting to server " + server.hostPort);
+          server.incrementFailedConn();
+          failedServers.add(server);
+          // Connect may have started before register failed.
+          releaseServer();
+        }
+      }
+      close();
+    }
+
+    void handle(SelectionKey key) {
+      if (key == serverKey && key.isConnectable()) {
+        finishConnect(key);
+        return;
+      }
+      boolean isClientKey = (key == clientKey);
+      Direction outgoing = isClientKey ? clientServer : serverClient;
+      Direction incoming = isClientKey ? serverClient : clientServer;
+      try {
+        if (key.isReadable()) {
+          int cnt = outgoing.read();
+          outgoing.flush();
+          if (cnt > 0) {
+            onBytesRead(isClientKey);
+          }
+        }
+        if (key.isValid() && key.isWritable()) {
+          incoming.flush();
+        }
+      } catch (IOException ioe) {
+        LOG.debug("Closing tunnel after IO exception: " + ioe.getMessage());
+        close();
+        return;
+      }
+
+      if (clientServer.isFinished() || serverClient.isFinished()) {
+        close();
+        return;
+      }
+      updateInterestOps();
+    }
+
+    private void onBytesRead(boolean isClient) {
+      if (isClient) {
+        if (0 == requestNanos) {
+          requestNanos = System.nanoTime();
+        }
+      } else if (!hasServerSent) {
+        hasServerSent = true;
+        if (0 != requestNanos) {
+          long firstByteMicros = (System.nanoTime() - requestNanos) / 1000;
+          proxyServer.recordFirstByteLatency(firstByteMicros);
+          if (null != flow) {
+            flow.setFirstByteMicros(firstByteMicros);
+          }
+        }
+      }
+    }
+
+    private void updateInterestOps() {
+      clientKey.interestOps((clientServer.wantsRead() ? SelectionKey.OP_READ : 0) |
+                            (serverClient.hasPendingBytes() ? SelectionKey.OP_WRITE : 0));
+      serverKey.interestOps((serverClient.wantsRead() ? SelectionKey.OP_READ : 0) |
+                            (clientServer.hasPendingBytes() ? SelectionKey.OP_WRITE : 0));
+    }
+
+    void close() {
+      if (isClosed) {
+        return;
+      }
+      isClosed = true;
+      if (null != clientKey) clientKey.cancel();
+      if (null != serverKey) serverKey.cancel();
+      closeChannel(clientChannel);
+      closeChannel(serverChannel);
+      releaseServer();
+      if (isOpened) {
+        clientServer.releaseBuffer();
+        serverClient.releaseBuffer();
+        if (null != flow) {
+          flow.finish(clientServer.byteRateBatch.getTotalBytes() +
+                      serverClient.byteRateBatch.getTotalBytes());
+        }
+        proxyServer.incrementClosedConn();
+        proxyServer.incrementClosedConn();
+      } else if (null != flow) {
+        flow.cancel();
+      }
+    }
+
+    private void closeChannel(SocketChannel channel) {
+      if (null == channel) {
+        return;
+      }
+      try {
+        channel.close();
+      } catch (IOException ioe) {
+        LOG.error("IO exception while closing channel: " + ioe.getMessage());
+      }
+    }
+  }
+
+  // Event loop owning one selector. New tunnels are queued by addTunnel and registered by the
+  // loop thread itself, since registering from another thread would block on select().
+  class EventLoop implements Runnable {
+    private String threadName;
+    private Thread thread;
+    private Selector selector;
+    private ConcurrentLinkedQueue<NioTunnel> pendingTunnels;
+    private ConcurrentLinkedQueue<ServerSocketChannel> pendingListeningChannels;
+
+    // Tunnels waiting for their server to connect, checked for connect timeout.
+    private HashSet<NioTunnel> connectingTunnels;
+
+    public EventLoop(String name) throws IOException {
+      threadName = name;
+      thread = null;
+      selector = Selector.open();
+      pendingTunnels = new ConcurrentLinkedQueue<NioTunnel>();
+      pendingListeningChannels = new ConcurrentLinkedQueue<ServerSocketChannel>();
+      connectingTunnels = new HashSet<NioTunnel>();
+    }
+
+    public Thread start() {
+      assert null == thread;  // we should never call this method twice.
+      LOG.debug("Starting thread [" + threadName + "]");
+      thread = new Thread(this, threadName);
+      thread.setDaemon(true);
+      thread.start();
+      return thread;
+    }
+
+    void addTunnel(NioTunnel tunnel) {
+      pendingTunnels.add(tunnel);
+      selector.wakeup();
+    }
+
+    void addListeningChannel(ServerSocketChannel listeningChannel) {
+      pendingListeningChannels.add(listeningChannel);
+      selector.wakeup();
+    }
+
+    private void registerPendingListeningChannels() {
+      ServerSocketChannel listeningChannel;
+      while (null != (listeningChannel = pendingListeningChannels.poll())) {
+        try {
+          listeningChannel.register(selector, SelectionKey.OP_ACCEPT, listeningChannel);
+        } catch (IOException ioe) {
+          LOG.error("Could not register listening channel with selector: " + ioe.getMessage());
+        }
+      }
+    }
+
+    // Accepts all pending clients and starts non-blocking connects to their servers.
+    private void accept(ServerSocketChannel listeningChannel) {
+      while (true) {
+        SocketChannel clientChannel = null;
+        try {
+          clientChannel = listeningChannel.accept();
+          if (null == clientChannel) {
+            return;
+          }
+          clientChannel.configureBlocking(false);
+          proxy.applyClientSocketOptions(clientChannel);
+        } catch (IOException ioe) {
+          LOG.error("IOException while accepting connection: " + ioe.getMessage());
+          if (null != clientChannel) {
+            try {
+              clientChannel.close();
+            } catch (IOException closeIoe) {
+              LOG.error("IO exception while closing channel: " + closeIoe.getMessage());
+            }
+          }
+          return;
+        }
+        InetAddress clientAddress = clientChannel.socket().getInetAddress();
+        Flow flow = proxy.newFlow(clientAddress, null);
+        Server server = proxy.getServer(Collections.<Server>emptySet(), clientAddress, flow);
+        if (null == server) {
+          LOG.error("Could not connect client to any server, closing it.");
+          if (null != flow) {
+            flow.cancel();
+          }
+          try {
+            clientChannel.close();
+          } catch (IOException ioe) {
+            LOG.error("IO exception while closing channel: " + ioe.getMessage());
+          }
+          continue;
+        }
+        NioTunnel tunnel = null;
+        try {
+          tunnel = new NioTunnel(clientChannel, server.connectChannel(), server, flow);
+        } catch (IOException ioe) {
+          LOG.error("Error while connecting to server " + server.hostPort);
+          server.incrementFailedConn();
+          tunnel = new NioTunnel(clientChannel, null, server, flow);
+          tunnel.eventLoop = this;
+          tunnel.failedServers.add(server);
+          tunnel.retryConnect();
+          continue;
+        }
+        try {
+          tunnel.register(this);
+        } catch (IOException ioe) {
+          LOG.error("Could not register tunnel with selector: " + ioe.getMessage());
+          tunnel.close();
+        }
+      }
+    }
+
+    private void registerPendingTunnels() {
+      NioTunnel tunnel;
+      while (null != (tunnel = pendingTunnels.poll())) {
+        try {
+          tunnel.register(this);
+        } catch (IOException ioe) {
+          LOG.error("Could not register tunnel with selector: " + ioe.getMessage());
+          tunnel.close();
+        }
+      }
+    }
+
+    // Wakes us up in time for the next connect timeout, 0 blocks until we have events.
+    private long selectTimeout() {
+      if (0 == connectTimeoutMillis || connectingTunnels.isEmpty()) {
+        return 0;
+      }
+      long oldestStartMillis = Long.MAX_VALUE;
+      for (NioTunnel tunnel : connectingTunnels) {
+        oldestStartMillis = Math.min(oldestStartMillis, tunnel.connectStartMillis);
+      }
+      return Math.max(1, oldestStartMillis + connectTimeoutMillis - System.currentTimeMillis());
+    }
+
+    private void checkConnectTimeouts() {
+      ArrayList<NioTunnel> timedOut = new ArrayList<NioTunnel>();
+      long now = System.currentTimeMillis();
+      Iterator<NioTunnel> tunnels = connectingTunnels.iterator();
+      while (tunnels.hasNext()) {
+        NioTunnel tunnel = tunnels.next();
+        if (tunnel.isOpened || tunnel.isClosed) {
+          tunnels.remove();
+        } else if (connectTimeoutMillis > 0 && tunnel.isConnectTimedOut(now)) {
+          tunnels.remove();
+          timedOut.add(tunnel);
+        }
+      }
+      for (NioTunnel tunnel : timedOut) {
+        LOG.error("Timed out connecting to server " + tunnel.proxyServer.hostPort);
+        timeoutCnt.increment();
+        tunnel.failConnect();
+      }
+    }
+
+    public void run() {
+      if (null != bufferPool) {
+        bufferPool.useThreadCache();
+      }
+      while (isRunning) {
+        try {
+          selector.select(selectTimeout());
+        } catch (IOException ioe) {
+          LOG.error("IO exception in select in thread [" + threadName + "]: " +
+                    ioe.getMessage());
+          continue;
+        }
+        registerPendingListeningChannels();
+        registerPendingTunnels();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.attachment() instanceof ServerSocketChannel) {
+            accept((ServerSocketChannel) key.attachment());
+          } else {
+            ((NioTunnel) key.attachment()).handle(key);
+          }
+        }
+        checkConnectTimeouts();
+      }
+
+      // We're stopping, close all tunnels and listening channels we still have.
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof ServerSocketChannel) {
+          try {
+            ((ServerSocketChannel) key.attachment()).close();
+          } catch (IOException ioe) {
+            LOG.error("IO exception while closing listening channel: " + ioe.getMessage());
+          }
+        } else {
+          ((NioTunnel) key.attachment()).close();
+        }
+      }
+      try {
+        selector.close();
+      } catch (IOException ioe) {
+        LOG.error("IO exception while closing selector: " + ioe.getMessage());
+      }
+      LOG.debug("Exiting thread [" + threadName + "]");
+    }
+  }
+}
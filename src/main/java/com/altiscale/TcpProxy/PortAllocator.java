@@ -0,0 +1,166 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * PortAllocator hands out local ports for our ssh tunnels from firstPort up to but excluding
+ * lastPort. We take the lowest port that neither we nor anybody else uses, so a proxy that
+ * restarts gets the ports it had before, as long as nobody took them meanwhile.
+ *
+ * A port we can bind now may be taken by the time ssh binds it, so servers check their port
+ * again before every ssh (re)start, and reallocate it when somebody else took it. We don't
+ * hand out such a port again for CONFLICT_MILLIS.
+ */
+public class PortAllocator {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // How long we skip a port somebody else took.
+  static final long CONFLICT_MILLIS = 60 * 1000;
+
+  private int firstPort;
+  private int lastPort;
+
+  // Ports we handed out or that are taken for other uses of ours.
+  private HashSet<Integer> usedPorts;
+  // Ports somebody else took, and until when we skip them.
+  private HashMap<Integer, Long> conflictedPorts;
+
+  private volatile long conflictCnt;
+
+  /*
+   *  @param firstPort  First local port we hand out.
+   *  @param numPorts   Number of local ports we hand out.
+   */
+  public PortAllocator(int firstPort, int numPorts) {
+    this.firstPort = firstPort;
+    this.lastPort = firstPort + numPorts;
+    this.usedPorts = new HashSet<Integer>();
+    this.conflictedPorts = new HashMap<Integer, Long>();
+    this.conflictCnt = 0;
+  }
+
+  /*
+   *  Keeps port from being handed out, for example because we listen on it ourselves.
+   */
+  public synchronized void reserve(int port) {
+    usedPorts.add(port);
+  }
+
+  /*
+   *  @return  Lowest free port, -1 if we have none left.
+   */
+  public synchronized int allocate() {
+    long now = System.currentTimeMillis();
+    for (int port = firstPort; port < lastPort; port++) {
+      if (usedPorts.contains(port)) {
+        continue;
+      }
+      Long conflictedUntil = conflictedPorts.get(port);
+      if (null != conflictedUntil) {
+        if (now < conflictedUntil) {
+          continue;
+        }
+        conflictedPorts.remove(port);
+      }
+      if (!isFree(port)) {
+        LOG.debug("Local port " + port + " is taken.");
+        continue;
+      }
+      usedPorts.add(port);
+      return port;
+    }
+    return -1;
+  }
+
+  public synchronized void release(int port) {
+    usedPorts.remove(port);
+  }
+
+  /*
+   *  Replaces port, which somebody else took, with a free one.
+   *
+   *  @return  New port, -1 if we have none left, port is ours still then.
+   */
+  public synchronized int reallocate(int port) {
+    conflictCnt++;
+    conflictedPorts.put(port, System.currentTimeMillis() + CONFLICT_MILLIS);
+    int newPort = allocate();
+    if (-1 != newPort) {
+      usedPorts.remove(port);
+    }
+    return newPort;
+  }
+
+  // True if nothing listens on port, on loopback or any other interface.
+  static boolean isFree(int port) {
+    return canBind(new InetSocketAddress("localhost", port)) &&
+           canBind(new InetSocketAddress(port));
+  }
+
+  private static boolean canBind(InetSocketAddress address) {
+    ServerSocket probe = null;
+    try {
+      probe = new ServerSocket();
+      // Connections of an ssh process that just exited don't keep its port from us.
+      probe.setReuseAddress(true);
+      probe.bind(address);
+      return true;
+    } catch (IOException ioe) {
+      return false;
+    } finally {
+      try {
+        if (null != probe) {
+          probe.close();
+        }
+      } catch (IOException ioe) {
+        LOG.debug("IO exception while closing port probe: " + ioe.getMessage());
+      }
+    }
+  }
+
+  public int getFirstPort() {
+    return firstPort;
+  }
+
+  public int getNumPorts() {
+    return lastPort - firstPort;
+  }
+
+  public synchronized int getUsedCnt() {
+    int usedCnt = 0;
+    for (int port : usedPorts) {
+      if (port >= firstPort && port < lastPort) {
+        usedCnt++;
+      }
+    }
+    return usedCnt;
+  }
+
+  // Ports somebody else took after we handed them out.
+  public long getConflictCnt() {
+    return conflictCnt;
+  }
+}
@@ -18,9 +18,11 @@ package com.altiscale.TcpProxy;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import com.altiscale.Util.HostPort;
 import com.altiscale.Util.JumpHost;
+import com.altiscale.Util.SocketOptionsProfile;
 
 /**
  *  Utility class which is dealing with the configuration parameters
@@ -38,18 +40,209 @@ public class ProxyConfiguration {
 
   String loadBalancerString;
 
-  // List of all our servers.
+  // Engine used to move bytes through tunnels: "blocking" uses two threads per tunnel,
+  // "nio" uses a fixed number of selector threads for all tunnels, and "reactor" uses
+  // selector threads that also accept clients on their own SO_REUSEPORT listening channels.
+  String tunnelEngineString;
+
+  // Number of event-loop threads for the nio and reactor tunnel engines.
+  static final int defaultNioThreads = Runtime.getRuntime().availableProcessors();
+  int nioThreads;
+
+  // Run blocking tunnels, ssh monitors and status handlers on virtual threads.
+  boolean virtualThreads;
+
+  // Size of bounded worker pool for blocking tunnels, 0 if we spawn threads per tunnel.
+  int tunnelPoolSize;
+
+  // Number of tunnel directions that can wait for a worker of the pool.
+  int tunnelQueueDepth;
+
+  // What to do when pool and queue are full: reject, wait or thread.
+  String tunnelQueueFullPolicy;
+
+  // How long the wait policy waits for a free slot in the queue.
+  static final long defaultTunnelQueueWaitMilliseconds = 1000;
+  long tunnelQueueWaitMilliseconds;
+
+  // Cap on direct memory for pooled tunnel buffers, 0 if tunnels use heap buffers.
+  static final long defaultBufferPoolMaxMegabytes = 64;
+  long bufferPoolMaxMegabytes;
+
+  // Largest buffer a pooled tunnel direction grows to while reads keep filling its buffer.
+  static final int defaultTunnelBufferMaxKilobytes = 256;
+  int tunnelBufferMaxKilobytes;
+
+  // How long we wait for a connect to a server before we try the next one.
+  static final long defaultConnectTimeoutMilliseconds = 5000;
+  long connectTimeoutMilliseconds;
+
+  // After how long we race a connect to a second server, 0 if we don't.
+  long hedgeMilliseconds;
+
+  // Idle connections we keep to each server, 0 if we connect on demand, and how long they
+  // can stay idle.
+  int serverPoolSize;
+  static final long defaultServerPoolMaxIdleMilliseconds = 60 * 1000;
+  long serverPoolMaxIdleMilliseconds;
+
+  // Tunnels add bytes to byte rate counters of their servers in batches of at most this many
+  // kilobytes, or at least this often while bytes keep coming.
+  static final long defaultByteRateFlushKilobytes = 64;
+  long byteRateFlushKilobytes;
+  static final long defaultByteRateFlushMilliseconds = 100;
+  long byteRateFlushMilliseconds;
+
+  // Tunnels that move this many kilobytes in one direction are elephants, 0 if we don't
+  // classify flows. Last miceServers servers are reserved for flows we expect to be mice.
+  long elephantKilobytes;
+  int miceServers;
+
+  // How long we wait for the first request line of a client to classify its flow, 0 if we
+  // don't, and pattern of first lines of elephants.
+  long flowPeekMilliseconds;
+  static final String defaultElephantPattern = "op=(OPEN|CREATE|APPEND)";
+  String elephantPattern;
+
+  // How often we probe each server, 0 if we only check that its ssh process runs, and path
+  // we GET from it, null if a TCP connect is enough. See HealthChecker.
+  long healthCheckMilliseconds;
+  String healthCheckPath;
+
+  // Failures in a row after which we eject a server, for how long we eject it the first
+  // time, and how long it takes to get its full share of tunnels back.
+  static final int defaultHealthCheckFailures = 3;
+  int healthCheckFailures;
+  static final long defaultEjectionMilliseconds = 10 * 1000;
+  long ejectionMilliseconds;
+  static final long defaultSlowStartMilliseconds = 30 * 1000;
+  long slowStartMilliseconds;
+
+  // Most ssh tunnels we scale up to, 0 if we keep the ones we start with, fewest we scale down
+  // to, 0 for as many as we start with, and how often we check. See TunnelAutoscaler.
+  int autoscaleMaxServers;
+  int autoscaleMinServers;
+  static final long defaultAutoscaleMilliseconds = 5000;
+  long autoscaleMilliseconds;
+
+  // Most ssh master sessions our ssh tunnels share, 0 if each tunnel runs its own ssh
+  // process, and how many tunnels share a master before we start another. See SshMaster.
+  int sshMasters;
+  static final int defaultForwardsPerMaster = 4;
+  int forwardsPerMaster;
+
+  // How we tunnel through the jumphost: "process" for ssh processes, "embedded" for channels
+  // of our own ssh client. Window and largest packet of its channels, 0 for defaults. See
+  // SshTransport.
+  String sshTransportString;
+  int sshWindowKilobytes;
+  int sshPacketKilobytes;
+
+  // Named socket options profiles, built-in ones and those from the command line.
+  HashMap<String, SocketOptionsProfile> socketOptionsProfiles;
+
+  // Profile for our listening socket and client connections.
+  String clientSocketOptions;
+
+  // Profile for connections to servers, and per-server overrides keyed by host:port.
+  String serverSocketOptions;
+  HashMap<String, String> serverSocketOptionsByServer;
+
+  // Local ports our ssh tunnels listen on, from firstLocalPort on. See PortAllocator.
+  static final int defaultFirstLocalPort = 48139;
+  static final int defaultLocalPorts = 1000;
+  int firstLocalPort;
+  int localPorts;
+
+  // List of all our servers. Port 0 stands for a local port we pick for an ssh tunnel when
+  // we start it.
   ArrayList<HostPort> serverHostPortList;
 
+  // Weights of servers that have one, keyed by host:port. Other servers have weight 1.
+  HashMap<String, Integer> serverWeights;
+
   // JumpHost to use for establishing ssh tunnels to the server. Null if we don't want it.
   public JumpHost jumphost;
 
+  // All jumphosts our ssh tunnels spread over, jumphost first. Empty if we don't use any.
+  ArrayList<JumpHost> jumphosts;
+
   public ProxyConfiguration() {
     listeningPort = defaultListeningPort;
     statusPort = defaultStatusPort;
     loadBalancerString = "RoundRobin";  // default value
+    tunnelEngineString = "blocking";  // default value
+    nioThreads = defaultNioThreads;
+    virtualThreads = false;
+    tunnelPoolSize = 0;
+    tunnelQueueDepth = 0;
+    tunnelQueueFullPolicy = TunnelExecutor.REJECT;  // default value
+    tunnelQueueWaitMilliseconds = defaultTunnelQueueWaitMilliseconds;
+    bufferPoolMaxMegabytes = defaultBufferPoolMaxMegabytes;
+    tunnelBufferMaxKilobytes = defaultTunnelBufferMaxKilobytes;
+    connectTimeoutMilliseconds = defaultConnectTimeoutMilliseconds;
+    hedgeMilliseconds = 0;
+    serverPoolSize = 0;
+    serverPoolMaxIdleMilliseconds = defaultServerPoolMaxIdleMilliseconds;
+    byteRateFlushKilobytes = defaultByteRateFlushKilobytes;
+    byteRateFlushMilliseconds = defaultByteRateFlushMilliseconds;
+    elephantKilobytes = 0;
+    miceServers = 0;
+    flowPeekMilliseconds = 0;
+    elephantPattern = defaultElephantPattern;
+    healthCheckMilliseconds = 0;
+    healthCheckPath = null;
+    healthCheckFailures = defaultHealthCheckFailures;
+    ejectionMilliseconds = defaultEjectionMilliseconds;
+    slowStartMilliseconds = defaultSlowStartMilliseconds;
+    autoscaleMaxServers = 0;
+    autoscaleMinServers = 0;
+    autoscaleMilliseconds = defaultAutoscaleMilliseconds;
+    sshMasters = 0;
+    forwardsPerMaster = defaultForwardsPerMaster;
+    sshTransportString = "process";  // default value
+    sshWindowKilobytes = 0;
+    sshPacketKilobytes = 0;
+    firstLocalPort = defaultFirstLocalPort;
+    localPorts = defaultLocalPorts;
     serverHostPortList = new ArrayList<HostPort>();
+    serverWeights = new HashMap<String, Integer>();
+    socketOptionsProfiles = new HashMap<String, SocketOptionsProfile>();
+    for (SocketOptionsProfile profile : SocketOptionsProfile.builtinProfiles()) {
+      socketOptionsProfiles.put(profile.name, profile);
+    }
+    clientSocketOptions = "default";  // default value
+    serverSocketOptions = "default";  // default value
+    serverSocketOptionsByServer = new HashMap<String, String>();
     jumphost = null;
+    jumphosts = new ArrayList<JumpHost>();
+  }
+
+  /*
+   *  Spreads numServers servers over our jumphosts. Each jumphost with tunnels gets that many,
+   *  one after the other, and those without take turns with the rest, or all jumphosts if
+   *  all of them have tunnels.
+   *
+   *  @return  Jumphost of each server.
+   */
+  public ArrayList<JumpHost> spreadServers(int numServers) {
+    ArrayList<JumpHost> serverJumpHosts = new ArrayList<JumpHost>();
+    ArrayList<JumpHost> sharingJumpHosts = new ArrayList<JumpHost>();
+    for (JumpHost host : jumphosts) {
+      for (int i = 0; i < host.tunnels && serverJumpHosts.size() < numServers; i++) {
+        serverJumpHosts.add(host);
+      }
+      if (0 == host.tunnels) {
+        sharingJumpHosts.add(host);
+      }
+    }
+    if (sharingJumpHosts.isEmpty()) {
+      sharingJumpHosts = jumphosts;
+    }
+    for (int i = 0; serverJumpHosts.size() < numServers; i++) {
+      serverJumpHosts.add(sharingJumpHosts.get(i % sharingJumpHosts.size()));
+    }
+    return serverJumpHosts;
   }
 
   public HostPort parseServerString(String server) throws URISyntaxException {
@@ -63,11 +256,46 @@ public class ProxyConfiguration {
     return new HostPort(host, port);
   }
 
+  // Socket options profile for server, either its own or the one for all servers.
+  public SocketOptionsProfile getServerSocketOptions(HostPort server) {
+    String profileName = serverSocketOptionsByServer.get(server.toString());
+    if (null == profileName) {
+      profileName = serverSocketOptions;
+    }
+    return socketOptionsProfiles.get(profileName);
+  }
+
+  public int getServerWeight(HostPort server) {
+    Integer weight = serverWeights.get(server.toString());
+    return null == weight ? 1 : weight;
+  }
+
+  /*
+   *  @param server  Server in host:port format, optionally followed by @weight, for example
+   *                 localhost:48139@3 for a server three times as capable as one without.
+   */
   public void parseServerStringAndAdd(String server) throws URISyntaxException {
-    HostPort hostPort = parseServerString(server);
+    String hostPortString = server;
+    int weight = 1;
+    int weightStart = server.lastIndexOf('@');
+    if (weightStart >= 0) {
+      hostPortString = server.substring(0, weightStart);
+      try {
+        weight = Integer.parseInt(server.substring(weightStart + 1));
+      } catch (NumberFormatException nfe) {
+        throw new URISyntaxException(server, "Weight of server must be a number.");
+      }
+      if (weight <= 0) {
+        throw new URISyntaxException(server, "Weight of server must be positive.");
+      }
+    }
+    HostPort hostPort = parseServerString(hostPortString);
     if (hostPort.port == -1) {
       throw new URISyntaxException(server, "No port specified for server in server list.");
     }
     serverHostPortList.add(hostPort);
+    if (weightStart >= 0) {
+      serverWeights.put(hostPort.toString(), weight);
+    }
   }
 }
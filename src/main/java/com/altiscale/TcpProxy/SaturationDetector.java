@@ -0,0 +1,86 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+/**
+ * SaturationDetector tells when whatever moves our bytes, such as one ssh tunnel or all
+ * tunnels through a jumphost, can't move more: for SATURATED_CHECKS checks in a row, demand
+ * on it grew by DEMAND_GROWTH or more while its byte rate grew by less than RATE_GROWTH_SHARE
+ * of that. Demand is what grows while clients wait, such as the client tunnels we have open.
+ *
+ * A steady load, however high, is no sign of saturation, since nothing tells us that more
+ * capacity would move more bytes. The byte rate at the last saturated check is our estimate
+ * of capacity, 0 until we saw saturation.
+ *
+ * Only the thread that checks changes our state, others read the capacity estimate.
+ */
+class SaturationDetector {
+  static final double DEMAND_GROWTH = 0.1;
+  static final double RATE_GROWTH_SHARE = 0.5;
+  static final int SATURATED_CHECKS = 3;
+
+  // Byte rate and demand at our last check, 0 before the first one.
+  private double lastByteRate;
+  private double lastDemand;
+
+  // Checks in a row in which demand grew and byte rate didn't follow.
+  private int saturatedChecks;
+
+  private volatile double capacityByteRate;
+
+  SaturationDetector() {
+    this.capacityByteRate = 0;
+    reset();
+  }
+
+  /*
+   *  Starts over, keeping our capacity estimate. Callers reset us when what we watch changed,
+   *  so that byte rates before and after don't compare.
+   */
+  void reset() {
+    lastByteRate = 0;
+    lastDemand = 0;
+    saturatedChecks = 0;
+  }
+
+  /*
+   *  @param byteRate  Bytes per second moved since the last check.
+   *  @param demand    Demand at this check.
+   *
+   *  @return  True if we are saturated.
+   */
+  boolean check(double byteRate, double demand) {
+    if (lastDemand > 0 && byteRate > 0 && demand >= lastDemand * (1 + DEMAND_GROWTH) &&
+        byteRate < lastByteRate * (1 + RATE_GROWTH_SHARE * (demand / lastDemand - 1))) {
+      saturatedChecks++;
+    } else {
+      saturatedChecks = 0;
+    }
+    lastByteRate = byteRate;
+    lastDemand = demand;
+    if (saturatedChecks < SATURATED_CHECKS) {
+      return false;
+    }
+    capacityByteRate = byteRate;
+    return true;
+  }
+
+  // Byte rate at which we last saw saturation, 0 if we never did.
+  double getCapacityByteRate() {
+    return capacityByteRate;
+  }
+}
@@ -18,12 +18,20 @@ package com.altiscale.TcpProxy;
 
 import org.apache.log4j.Logger;
 
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.altiscale.Util.BufferPool;
+import com.altiscale.Util.Ewma;
 import com.altiscale.Util.ExecLoop;
 import com.altiscale.Util.HostPort;
 import com.altiscale.Util.JumpHost;
 import com.altiscale.Util.SecondMinuteHourCounter;
+import com.altiscale.Util.SocketOptionsProfile;
+import com.altiscale.Util.SshErrorClassifier;
 
 /**
  *  Server class holds host:port of where we expect TcpTunnel's servers to run and
@@ -34,8 +42,11 @@ public class Server {
   private static Logger LOG = Logger.getLogger("TransferAccelerator");
 
   // Host and port of the server to connect. If jumphost exists, then it's as seen from
-  // jumphost.
-  HostPort hostPort;
+  // jumphost. Our ssh process moves to another local port if somebody takes ours.
+  volatile HostPort hostPort;
+
+  // Hands out our local port and a new one if somebody takes it. Null if our port is fixed.
+  PortAllocator portAllocator;
 
   // Jumphost to use for ssh tunnel to server. Null if not needed.
   JumpHost jumphost;
@@ -43,6 +54,85 @@ public class Server {
   // If we have a jumphost, we also start ssh process, monitor it, and restart it if needed.
   ExecLoop sshProcess;
 
+  // ssh master session through which we forward our port instead, if we use a jumphost in
+  // ControlMaster mode. Null if we have our own ssh process.
+  SshMaster sshMaster;
+
+  // Session of our embedded ssh client whose channels we tunnel through instead, if we don't
+  // run ssh processes. Null otherwise.
+  SshSession sshSession;
+
+  // Event-loop engine for our tunnels. Null if we use thread-per-direction TcpTunnel.
+  NioTunnelEngine tunnelEngine;
+
+  // Factory for threads of our TcpTunnels and ssh ExecLoop, platform threads by default.
+  ThreadFactory threadFactory;
+
+  // Bounded pool for our TcpTunnels. Null if every tunnel direction gets its own thread.
+  TunnelExecutor tunnelExecutor;
+
+  // Pool of direct buffers for our TcpTunnels. Null if tunnels copy through heap buffers.
+  BufferPool bufferPool;
+
+  // Idle connections to the server, connected ahead of time. Null if we connect on demand.
+  ServerConnectionPool connectionPool;
+
+  // Probes the server and ejects it when it fails. Null if we only check our ssh process.
+  HealthChecker healthChecker;
+
+  // Our jumphost as JumpHostMonitor sees it. Null if we don't spread over jumphosts.
+  JumpHostMonitor.Group jumpHostGroup;
+
+  // Socket options for our connections to the server. Null if we use OS defaults.
+  SocketOptionsProfile socketOptions;
+
+  // Socket options as the OS set them on our first connection to the server.
+  volatile String effectiveSocketOptions;
+
+  // Tunnels add bytes to byteRateCnt in batches of at most this many bytes, or at least this
+  // often while bytes keep coming. See ByteRateBatch.
+  long byteRateFlushBytes;
+  long byteRateFlushMilliseconds;
+
+  // Tunnels in flight, from the start of their connect to the server until they close.
+  AtomicInteger openTunnelCnt;
+
+  // Relative capacity of the server, from host:port@weight in --servers. Load balancers
+  // that look at load divide it by weight.
+  int weight;
+
+  // True if only flows we predict to be mice get this server. Set before the server is added
+  // to load balancers, and kept for its lifetime.
+  private volatile boolean isReservedForMice;
+
+  // Bytes per second we think the server can move, 0 until CapacityEstimator estimates it.
+  volatile long capacityEstimate;
+
+  // Index in which load balancer keeps our openTunnelCnt, and our position in it. Null if
+  // load balancer doesn't use one.
+  private LoadIndex loadIndex;
+  private int loadIndexPosition;
+
+  // Index in which load balancer keeps our weighted byte rate, and our position in it. Null
+  // if load balancer doesn't use one.
+  private LoadIndex byteRateIndex;
+  private int byteRateIndexPosition;
+
+  // Weighted byte rate of a server with failures in the last second, above that of any
+  // server without.
+  static final long FAILED_BYTE_RATE = Long.MAX_VALUE / 2;
+
+  // How long a new ssh process can take to listen on our port before we restart it.
+  static final long SSH_READY_TIMEOUT_MILLIS = 30 * 1000;
+
+  // How fast old samples lose weight in our latency averages. See Ewma.
+  static final long LATENCY_DECAY_MILLIS = 10000;
+
+  // Moving averages, in microseconds, of how long connects to the server take and how long
+  // the server takes to send its first bytes once our client's first bytes reached it.
+  Ewma connectLatency;
+  Ewma firstByteLatency;
+
   SecondMinuteHourCounter requestCnt;
   SecondMinuteHourCounter failedCnt;
   SecondMinuteHourCounter openedCnt;
@@ -74,6 +164,28 @@ public class Server {
   private void init(HostPort hostPort) {
     this.hostPort = hostPort;
     this.jumphost = null;
+    this.sshMaster = null;
+    this.sshSession = null;
+    this.tunnelEngine = null;
+    this.threadFactory = Thread.ofPlatform().factory();
+    this.tunnelExecutor = null;
+    this.bufferPool = null;
+    this.connectionPool = null;
+    this.healthChecker = null;
+    this.jumpHostGroup = null;
+    this.portAllocator = null;
+    this.openTunnelCnt = new AtomicInteger(0);
+    this.weight = 1;
+    this.isReservedForMice = false;
+    this.capacityEstimate = 0;
+    this.loadIndex = null;
+    this.byteRateIndex = null;
+    this.connectLatency = new Ewma(LATENCY_DECAY_MILLIS);
+    this.firstByteLatency = new Ewma(LATENCY_DECAY_MILLIS);
+    this.socketOptions = null;
+    this.effectiveSocketOptions = null;
+    this.byteRateFlushBytes = 0;
+    this.byteRateFlushMilliseconds = 0;
     requestCnt = new SecondMinuteHourCounter("requestCnt " + hostPort.toString());
     failedCnt = new SecondMinuteHourCounter("incrementCnt " + hostPort.toString());
     openedCnt = new SecondMinuteHourCounter("openedCnt " + hostPort.toString());
@@ -85,87 +197,557 @@ public class Server {
     assert null != jumphost.sshd;
     assert null != jumphost.server;
 
-    String sshTunnelCmd = "ssh";
+    // Start in foreground, but not interactive. Exit if we can't listen on our port, instead
+    // of running without it, or with somebody else listening on it.
+    return jumphost.sshOptions() + " -o ExitOnForwardFailure=yes -n -N -L " +
+           jumphost.forwardSpec(hostPort.port) + jumphost.sshDestination();
+  }
 
-    if (null != jumphost.sshBinary) {
-      sshTunnelCmd = jumphost.sshBinary;
-    }
+  /*
+   *  Lets us move to another local port from portAllocator, which handed out ours, when
+   *  somebody takes it.
+   */
+  public void setPortAllocator(PortAllocator portAllocator) {
+    this.portAllocator = portAllocator;
+  }
 
-    if (null != jumphost.credentials) {
-      sshTunnelCmd += " -i " + jumphost.credentials;
+  public void startJumphostThread() {
+    assert null == sshProcess;
+
+    sshProcess = new ExecLoop(sshJumphostCommand(), true, LOG);
+    sshProcess.setThreadFactory(threadFactory);
+    // ssh listens on our port once it authenticated and set up forwarding.
+    sshProcess.setReadinessProbe(new ExecLoop.ReadinessProbe() {
+      public boolean isReady() {
+        return isListening();
+      }
+    }, SSH_READY_TIMEOUT_MILLIS);
+    sshProcess.setStderrClassifier(new SshErrorClassifier());
+    if (null != portAllocator) {
+      // Our last ssh process is gone, so whoever listens on our port now isn't us.
+      sshProcess.setBeforeExec(new Runnable() {
+        public void run() {
+          if (!PortAllocator.isFree(hostPort.port)) {
+            moveToFreePort();
+          }
+        }
+      });
     }
-    if (jumphost.compression) {
-      sshTunnelCmd += " -C";
+    // Launch ssh tunnel in ExecLoop.
+    sshProcess.start();
+  }
+
+  private void moveToFreePort() {
+    int oldPort = hostPort.port;
+    int port = portAllocator.reallocate(oldPort);
+    if (-1 == port) {
+      LOG.error("Local port " + oldPort + " of ssh tunnel is taken and no other is free.");
+      return;
     }
-    if (null != jumphost.ciphers) {
-      sshTunnelCmd += " -c " + jumphost.ciphers;
+    LOG.warn("Local port " + oldPort + " of ssh tunnel is taken, moving to " + port + ".");
+    hostPort = new HostPort(hostPort.host, port);
+    sshProcess.setCommand(sshJumphostCommand());
+  }
+
+  // True if something accepts connections on our host:port.
+  private boolean isListening() {
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(hostPort.host, hostPort.port),
+                     (int) ExecLoop.READY_POLL_MILLISECONDS);
+      return true;
+    } catch (java.io.IOException ioe) {
+      return false;
+    } finally {
+      try {
+        socket.close();
+      } catch (java.io.IOException ioe) {
+        LOG.debug("IO exception while closing probe socket: " + ioe.getMessage());
+      }
     }
+  }
 
-    // Accept key automatically
-    sshTunnelCmd += " -o StrictHostKeyChecking=no";
+  /*
+   *  Forwards our port through sshMaster instead of an ssh process of our own.
+   */
+  public void setSshMaster(SshMaster sshMaster) {
+    assert null == sshProcess;
+    this.sshMaster = sshMaster;
+    sshMaster.addServer(this);
+  }
 
-    // Start in foreground, but not interactive.
-    sshTunnelCmd += " -n -N -L ";
+  /*
+   *  Tunnels through channels of sshSession instead of our port, and starts it.
+   */
+  public void setSshSession(SshSession sshSession) {
+    assert null == sshProcess && null == sshMaster;
+    this.sshSession = sshSession;
+    sshSession.setThreadFactory(threadFactory);
+    sshSession.start();
+  }
 
-    // Open all network interfaces.
-    if (jumphost.openInterfaces)
-      sshTunnelCmd += "*:";
+  // Session of our embedded ssh client, null if we don't use one.
+  public SshSession getSshSession() {
+    return sshSession;
+  }
 
-    sshTunnelCmd += hostPort.port + ":" + jumphost.server.host + ":" + jumphost.server.port;
+  // Our ssh master session, null if we don't share one.
+  public SshMaster getSshMaster() {
+    return sshMaster;
+  }
 
-    if (null != jumphost.user) {
-      sshTunnelCmd += " -l " + jumphost.user;
-    }
-    if (-1 != jumphost.sshd.port) {
-      sshTunnelCmd += " -p " + jumphost.sshd.port;
-    }
-    sshTunnelCmd += " " + jumphost.sshd.host;
-    return sshTunnelCmd;
+  // Our ssh process, null if we don't use a jumphost or share an ssh master session.
+  public ExecLoop getSshProcess() {
+    return sshProcess;
   }
 
-  public void startJumphostThread() {
-    assert null == sshProcess;
+  public void setTunnelEngine(NioTunnelEngine tunnelEngine) {
+    this.tunnelEngine = tunnelEngine;
+  }
 
-    sshProcess = new ExecLoop(sshJumphostCommand(), true, LOG);
-    // Launch ssh tunnel in ExecLoop.
-    sshProcess.start();
+  public void setThreadFactory(ThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
+  }
+
+  public ThreadFactory getThreadFactory() {
+    return threadFactory;
+  }
+
+  public void setTunnelExecutor(TunnelExecutor tunnelExecutor) {
+    this.tunnelExecutor = tunnelExecutor;
+  }
+
+  public TunnelExecutor getTunnelExecutor() {
+    return tunnelExecutor;
+  }
+
+  public void setBufferPool(BufferPool bufferPool) {
+    this.bufferPool = bufferPool;
+  }
+
+  public BufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  /*
+   *  @param flushBytes         Most bytes a tunnel direction keeps before adding them to our
+   *                            byte rate counter, 0 to add them on every read.
+   *  @param flushMilliseconds  Most time between such additions while bytes keep coming.
+   */
+  public void setByteRateFlush(long flushBytes, long flushMilliseconds) {
+    this.byteRateFlushBytes = flushBytes;
+    this.byteRateFlushMilliseconds = flushMilliseconds;
+  }
+
+  public long getByteRateFlushBytes() {
+    return byteRateFlushBytes;
+  }
+
+  public long getByteRateFlushMilliseconds() {
+    return byteRateFlushMilliseconds;
+  }
+
+  /*
+   *  Starts keeping idle connections to the server in connectionPool.
+   */
+  public void setConnectionPool(ServerConnectionPool connectionPool) {
+    this.connectionPool = connectionPool;
+    connectionPool.start();
+  }
+
+  public ServerConnectionPool getConnectionPool() {
+    return connectionPool;
+  }
+
+  /*
+   *  Starts probing the server with healthChecker.
+   */
+  public void setHealthChecker(HealthChecker healthChecker) {
+    this.healthChecker = healthChecker;
+    healthChecker.start();
+  }
+
+  public HealthChecker getHealthChecker() {
+    return healthChecker;
+  }
+
+  /*
+   *  Joins jumpHostGroup, so that we count towards our jumphost and share its state.
+   */
+  public void setJumpHostGroup(JumpHostMonitor.Group jumpHostGroup) {
+    this.jumpHostGroup = jumpHostGroup;
+    jumpHostGroup.addServer(this);
+  }
+
+  public JumpHostMonitor.Group getJumpHostGroup() {
+    return jumpHostGroup;
+  }
+
+  public void setSocketOptions(SocketOptionsProfile socketOptions) {
+    this.socketOptions = socketOptions;
   }
 
   public void incrementFailedConn() {
     failedCnt.increment();
+    if (null != healthChecker) {
+      healthChecker.onFailure(System.currentTimeMillis(), "connect failed");
+    }
+    updateByteRateIndex();
   }
 
   public void incrementOpenedConn() {
     openedCnt.increment();
+    if (null != healthChecker) {
+      healthChecker.onSuccess();
+    }
   }
 
   public void incrementClosedConn() {
     closedCnt.increment();
   }
 
+  /*
+   *  Counts a tunnel from the start of its connect to the server. Whoever starts the connect
+   *  calls releaseTunnel() once the connect fails or the tunnel closes.
+   */
+  void acquireTunnel() {
+    openTunnelCnt.incrementAndGet();
+    updateLoadIndex();
+  }
+
+  void releaseTunnel() {
+    openTunnelCnt.decrementAndGet();
+    updateLoadIndex();
+  }
+
+  public int getOpenTunnelCnt() {
+    return openTunnelCnt.get();
+  }
+
+  public void setWeight(int weight) {
+    assert weight > 0;
+    this.weight = weight;
+    updateLoadIndex();
+  }
+
+  public int getWeight() {
+    return weight;
+  }
+
+  void setReservedForMice(boolean isReservedForMice) {
+    this.isReservedForMice = isReservedForMice;
+  }
+
+  public boolean isReservedForMice() {
+    return isReservedForMice;
+  }
+
+  void setCapacityEstimate(long capacityEstimate) {
+    this.capacityEstimate = capacityEstimate;
+  }
+
+  public long getCapacityEstimate() {
+    return capacityEstimate;
+  }
+
+  /*
+   *  @param loadIndex  Index in which we keep our weighted openTunnelCnt.
+   *  @param position   Our position in loadIndex.
+   */
+  void setLoadIndex(LoadIndex loadIndex, int position) {
+    this.loadIndex = loadIndex;
+    this.loadIndexPosition = position;
+    updateLoadIndex();
+  }
+
+  // Weighted number of open tunnels, in thousandths of a tunnel per unit of weight.
+  long getWeightedLoad() {
+    return openTunnelCnt.get() * 1000L / weight;
+  }
+
+  private void updateLoadIndex() {
+    if (null == loadIndex) {
+      return;
+    }
+    // Concurrent updates may write our load out of order, so we write until what we wrote
+    // is still current.
+    long load;
+    do {
+      load = getWeightedLoad();
+      loadIndex.update(loadIndexPosition, load);
+    } while (load != getWeightedLoad());
+  }
+
+  void recordConnectLatency(long micros) {
+    connectLatency.update(micros);
+  }
+
+  void recordFirstByteLatency(long micros) {
+    firstByteLatency.update(micros);
+  }
+
+  public long getConnectLatencyMicros() {
+    return (long) connectLatency.get();
+  }
+
+  public long getFirstByteLatencyMicros() {
+    return (long) firstByteLatency.get();
+  }
+
   public void incrementByteRateBy(long amount) {
     byteRateCnt.incrementBy(amount);
   }
 
+  /*
+   *  @param byteRateIndex  Index in which we keep our weighted byte rate.
+   *  @param position       Our position in byteRateIndex.
+   */
+  void setByteRateIndex(LoadIndex byteRateIndex, int position) {
+    this.byteRateIndex = byteRateIndex;
+    this.byteRateIndexPosition = position;
+    updateByteRateIndex();
+  }
+
+  // Bytes in the last minute per unit of weight, FAILED_BYTE_RATE if we have failures in the
+  // last second or aren't healthy.
+  long getWeightedByteRate() {
+    if (failedCnt.getLastSecondCnt() > 0 || !isHealthy()) {
+      return FAILED_BYTE_RATE;
+    }
+    return byteRateCnt.getLastMinuteCnt() / weight;
+  }
+
+  /*
+   *  Writes our current weighted byte rate to byteRateIndex. Tunnels don't call this when
+   *  they publish bytes, and byte rate also drops as bytes leave the last minute and
+   *  failures the last second, so load balancer calls this for the servers it looks at.
+   */
+  void updateByteRateIndex() {
+    if (null == byteRateIndex) {
+      return;
+    }
+    byteRateIndex.update(byteRateIndexPosition, getWeightedByteRate());
+  }
+
+  // True if our ssh process runs and listens, and our health checker didn't eject us.
   public boolean isHealthy() {
+    if (null != healthChecker && !healthChecker.isAdmitted()) return false;
+    if (null != jumpHostGroup && !jumpHostGroup.isAdmitted()) return false;
+    return isSshReady();
+  }
+
+  // True if our ssh process runs and listens, our ssh master forwards our port, or our ssh
+  // session is authenticated, or we need none of them.
+  public boolean isSshReady() {
+    if (null != sshMaster) return sshMaster.isForwarding(this);
+    if (null != sshSession) return sshSession.isReady();
     if (null == sshProcess) return true;
     return sshProcess.isRunning();
   }
 
+  /*
+   *  Decides if we take a tunnel load balancer picked us for. We take all of them unless
+   *  we're in slow start after an ejection, or our jumphost is overloaded.
+   *
+   *  @param random  Random number in [0, 1).
+   */
+  boolean admitsTunnel(double random) {
+    double share = 1;
+    if (null != healthChecker) {
+      share = healthChecker.getTrafficShare(System.currentTimeMillis());
+    }
+    if (null != jumpHostGroup) {
+      share *= jumpHostGroup.getTrafficShare();
+    }
+    return random < share;
+  }
+
+  /*
+   *  Starts a non-blocking connect to this server. Used by event loops which finish the
+   *  connect themselves instead of blocking in establishTunnel.
+   *
+   *  @return  Non-blocking channel, connected (for example, taken from our connection pool)
+   *           or with connect in progress.
+   */
+  public SocketChannel connectChannel() throws java.io.IOException {
+    requestCnt.increment();
+    acquireTunnel();
+    SocketChannel pooledChannel = takePooledChannel();
+    if (null != pooledChannel) {
+      return pooledChannel;
+    }
+    try {
+      return openChannel(false);
+    } catch (java.io.IOException ioe) {
+      releaseTunnel();
+      throw ioe;
+    }
+  }
+
+  private SocketChannel takePooledChannel() {
+    if (null == connectionPool) {
+      return null;
+    }
+    return connectionPool.take();
+  }
+
+  /*
+   *  Connects a channel for our connection pool, waiting at most connectTimeoutMillis.
+   *
+   *  @return  Connected non-blocking channel.
+   */
+  SocketChannel openPoolChannel(long connectTimeoutMillis) throws java.io.IOException {
+    SocketChannel serverChannel = SocketChannel.open();
+    try {
+      if (null != socketOptions) {
+        socketOptions.apply(serverChannel);
+      }
+      serverChannel.socket().connect(new InetSocketAddress(hostPort.host, hostPort.port),
+                                     (int) connectTimeoutMillis);
+      serverChannel.configureBlocking(false);
+    } catch (java.io.IOException ioe) {
+      serverChannel.close();
+      throw ioe;
+    }
+    return serverChannel;
+  }
+
+  // Opens channel to the server with our socket options, which have to be set before connect.
+  private SocketChannel openChannel(boolean blocking) throws java.io.IOException {
+    SocketChannel serverChannel = SocketChannel.open();
+    try {
+      serverChannel.configureBlocking(blocking);
+      if (null != socketOptions) {
+        socketOptions.apply(serverChannel);
+      }
+      serverChannel.connect(new InetSocketAddress(hostPort.host, hostPort.port));
+      if (null == effectiveSocketOptions) {
+        effectiveSocketOptions = SocketOptionsProfile.effectiveOptions(serverChannel);
+      }
+    } catch (java.io.IOException ioe) {
+      serverChannel.close();
+      throw ioe;
+    }
+    return serverChannel;
+  }
+
+  /*
+   *  Connects a blocking socket to the server, through a channel of our ssh session if we have
+   *  one. Used by health probes.
+   */
+  Socket connectSocket(int timeoutMillis) throws java.io.IOException {
+    if (null != sshSession) {
+      return sshSession.openChannel(jumphost.server);
+    }
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(hostPort.host, hostPort.port), timeoutMillis);
+    } catch (java.io.IOException ioe) {
+      socket.close();
+      throw ioe;
+    }
+    return socket;
+  }
+
   public void establishTunnel(Socket clientSocket) throws java.io.IOException {
+    establishTunnel(clientSocket, null);
+  }
+
+  /*
+   *  Connects to the server, blocking until we did, and tunnels clientSocket to it.
+   *
+   *  @param flow  Flow the tunnel reports to FlowClassifier, null if we don't classify flows.
+   */
+  public void establishTunnel(Socket clientSocket, Flow flow) throws java.io.IOException {
     requestCnt.increment();
-    Socket serverSocket = new Socket(hostPort.host, hostPort.port);
+    acquireTunnel();
+    if (null != sshSession) {
+      try {
+        long startNanos = System.nanoTime();
+        Socket serverSocket = sshSession.openChannel(jumphost.server);
+        recordConnectLatency((System.nanoTime() - startNanos) / 1000);
+        LOG.debug("Setting ssh channel tunnel between [" +
+            clientSocket.getInetAddress().getHostAddress() + ":" +
+            clientSocket.getPort() + "] and server [" +
+            hostPort + "]");
+        new TcpTunnel(clientSocket, serverSocket, this, flow).spawnTunnelThreads();
+      } catch (java.io.IOException ioe) {
+        releaseTunnel();
+        throw ioe;
+      }
+      return;
+    }
+    try {
+      SocketChannel serverChannel = takePooledChannel();
+      if (null == serverChannel) {
+        long startNanos = System.nanoTime();
+        serverChannel = openChannel(true);
+        recordConnectLatency((System.nanoTime() - startNanos) / 1000);
+      }
+      startTunnel(clientSocket, serverChannel, flow);
+    } catch (java.io.IOException ioe) {
+      releaseTunnel();
+      throw ioe;
+    }
+  }
+
+  public void startTunnel(Socket clientSocket, SocketChannel serverChannel)
+      throws java.io.IOException {
+    startTunnel(clientSocket, serverChannel, null);
+  }
+
+  /*
+   *  Tunnels clientSocket to serverChannel, which we already connected with connectChannel or
+   *  openChannel. Closes serverChannel if it fails, the tunnel releases itself when it closes.
+   *
+   *  @param flow  Flow the tunnel reports to FlowClassifier, null if we don't classify flows.
+   */
+  public void startTunnel(Socket clientSocket, SocketChannel serverChannel, Flow flow)
+      throws java.io.IOException {
+    SocketChannel clientChannel = clientSocket.getChannel();
+    if (null != tunnelEngine && null != clientChannel) {
+      LOG.debug("Setting nio tunnel between [" +
+          clientSocket.getInetAddress().getHostAddress() + ":" +
+          clientSocket.getPort() + "] and server [" +
+          hostPort + "]");
+      try {
+        tunnelEngine.addTunnel(clientChannel, serverChannel, this, flow);
+      } catch (java.io.IOException ioe) {
+        serverChannel.close();
+        throw ioe;
+      }
+      return;
+    }
+
+    // TcpTunnel uses socket streams which only work in blocking mode.
+    try {
+      serverChannel.configureBlocking(true);
+    } catch (java.io.IOException ioe) {
+      serverChannel.close();
+      throw ioe;
+    }
+    Socket serverSocket = serverChannel.socket();
     LOG.debug("Setting tunnel between [" +
         clientSocket.getInetAddress().getHostAddress() + ":" +
         clientSocket.getPort() + "] and server [" +
         hostPort + "]");
-    TcpTunnel tunnel = new TcpTunnel(clientSocket, serverSocket, this);
+    TcpTunnel tunnel = new TcpTunnel(clientSocket, serverSocket, this, flow);
 
     // Create threads that will handle this tunnel.
     tunnel.spawnTunnelThreads();
   }
   
   void close() {
-    sshProcess.stop();
+    if (null != connectionPool) connectionPool.stop();
+    if (null != healthChecker) healthChecker.stop();
+    if (null != jumpHostGroup) jumpHostGroup.removeServer(this);
+    if (null != sshMaster) sshMaster.removeServer(this);
+    if (null != sshSession) sshSession.stop();
+    if (null != sshProcess) {
+      // ExecLoop would restart the process we stop.
+      sshProcess.setShouldRestart(false);
+      sshProcess.stop();
+    }
+    if (null != portAllocator) portAllocator.release(hostPort.port);
   }
 }
@@ -0,0 +1,273 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ServerConnectionPool keeps idle connections to one server, connected ahead of time, so that
+ * a new client doesn't wait for a TCP handshake, which through an ssh tunnel also includes a
+ * round-trip to the jumphost.
+ *
+ * A background thread keeps the pool full, drops connections idle longer than maxIdleMillis
+ * and connections the server closed. We check a connection again when we hand it out.
+ *
+ * Idle connections are only useful for protocols where the client talks first, a connection
+ * on which the server sent something before we handed it out is dropped.
+ */
+public class ServerConnectionPool implements Runnable {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // How long we wait before we retry after a failed connect.
+  static final long RETRY_MILLIS = 1000;
+
+  private Server server;
+  private int size;
+  private long maxIdleMillis;
+  private long connectTimeoutMillis;
+
+  private Thread thread;
+  private volatile boolean isRunning;
+
+  // Idle connections, oldest first, guarded by lock. We hand out the newest ones.
+  private class IdleConnection {
+    SocketChannel channel;
+    long connectedMillis;
+  }
+  private ArrayDeque<IdleConnection> idleConnections;
+  private final ReentrantLock lock = new ReentrantLock();
+  // Signalled when we hand out a connection and should refill.
+  private final Condition needsRefill = lock.newCondition();
+
+  // Connections handed out, clients for which we had none, and connections we dropped.
+  private AtomicLong hitCnt = new AtomicLong(0);
+  private AtomicLong missCnt = new AtomicLong(0);
+  private AtomicLong evictedCnt = new AtomicLong(0);
+
+  // Average time our connects took, in microseconds. Every hit saves a client about as much.
+  private volatile long avgConnectMicros;
+
+  /*
+   *  @param server                Server we connect to.
+   *  @param size                  Number of idle connections we keep.
+   *  @param maxIdleMillis         How long a connection can stay idle before we replace it.
+   *  @param connectTimeoutMillis  How long we wait for one connect.
+   */
+  public ServerConnectionPool(Server server, int size, long maxIdleMillis,
+                              long connectTimeoutMillis) {
+    assert size > 0;
+    this.server = server;
+    this.size = size;
+    this.maxIdleMillis = maxIdleMillis;
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.idleConnections = new ArrayDeque<IdleConnection>(size);
+    this.avgConnectMicros = 0;
+  }
+
+  public Thread start() {
+    assert null == thread;  // we should never call this method twice.
+    isRunning = true;
+    thread = server.getThreadFactory().newThread(this);
+    thread.setName("serverConnectionPool-" + server.hostPort);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  public void stop() {
+    isRunning = false;
+    lock.lock();
+    try {
+      needsRefill.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   *  @return  Connected non-blocking channel, or null if we have no live connection.
+   */
+  public SocketChannel take() {
+    while (true) {
+      IdleConnection connection = null;
+      lock.lock();
+      try {
+        connection = idleConnections.pollLast();
+        needsRefill.signal();
+      } finally {
+        lock.unlock();
+      }
+      if (null == connection) {
+        missCnt.incrementAndGet();
+        return null;
+      }
+      if (isLive(connection, System.currentTimeMillis())) {
+        hitCnt.incrementAndGet();
+        return connection.channel;
+      }
+      evict(connection);
+    }
+  }
+
+  // Connection is live if it wasn't idle too long and the server neither closed it nor sent
+  // anything on it.
+  private boolean isLive(IdleConnection connection, long now) {
+    if (now - connection.connectedMillis > maxIdleMillis) {
+      return false;
+    }
+    try {
+      return 0 == connection.channel.read(ByteBuffer.allocate(1));
+    } catch (IOException ioe) {
+      return false;
+    }
+  }
+
+  private void evict(IdleConnection connection) {
+    evictedCnt.incrementAndGet();
+    try {
+      connection.channel.close();
+    } catch (IOException ioe) {
+      LOG.error("IO exception while closing idle connection: " + ioe.getMessage());
+    }
+  }
+
+  public void run() {
+    while (isRunning) {
+      evictDeadConnections();
+      boolean isFull = false;
+      lock.lock();
+      try {
+        isFull = idleConnections.size() >= size;
+      } finally {
+        lock.unlock();
+      }
+      if (!isFull && connect()) {
+        continue;
+      }
+      lock.lock();
+      try {
+        // Wake up to evict connections, earlier if somebody took one, later if connect failed.
+        needsRefill.await(isFull ? Math.max(1, maxIdleMillis / 2) : RETRY_MILLIS,
+                          TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ie) {
+        LOG.debug("Interrupted while waiting to refill connection pool.");
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    lock.lock();
+    try {
+      for (IdleConnection connection : idleConnections) {
+        evict(connection);
+      }
+      idleConnections.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void evictDeadConnections() {
+    long now = System.currentTimeMillis();
+    lock.lock();
+    try {
+      Iterator<IdleConnection> connections = idleConnections.iterator();
+      while (connections.hasNext()) {
+        IdleConnection connection = connections.next();
+        if (!isLive(connection, now)) {
+          connections.remove();
+          evict(connection);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Adds one connection to the pool, false if we could not connect.
+  private boolean connect() {
+    long startNanos = System.nanoTime();
+    SocketChannel channel = null;
+    try {
+      channel = server.openPoolChannel(connectTimeoutMillis);
+    } catch (IOException ioe) {
+      LOG.debug("Could not connect to server " + server.hostPort + " for connection pool: " +
+                ioe.getMessage());
+      return false;
+    }
+    long connectMicros = (System.nanoTime() - startNanos) / 1000;
+    server.recordConnectLatency(connectMicros);
+    // Moving average over about the last 8 connects.
+    avgConnectMicros = 0 == avgConnectMicros ?
+                       connectMicros : (7 * avgConnectMicros + connectMicros) / 8;
+    IdleConnection connection = new IdleConnection();
+    connection.channel = channel;
+    connection.connectedMillis = System.currentTimeMillis();
+    lock.lock();
+    try {
+      idleConnections.addLast(connection);
+    } finally {
+      lock.unlock();
+    }
+    return true;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public int getIdleCnt() {
+    lock.lock();
+    try {
+      return idleConnections.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getHitCnt() {
+    return hitCnt.get();
+  }
+
+  public long getMissCnt() {
+    return missCnt.get();
+  }
+
+  public long getEvictedCnt() {
+    return evictedCnt.get();
+  }
+
+  public long getAvgConnectMicros() {
+    return avgConnectMicros;
+  }
+
+  // Connect time our hits saved clients, estimated from our average connect time.
+  public long getSavedMillis() {
+    return hitCnt.get() * avgConnectMicros / 1000;
+  }
+}
@@ -0,0 +1,493 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.altiscale.Util.SecondMinuteHourCounter;
+
+/**
+ * ServerConnector connects accepted clients to their servers without blocking the accept loop.
+ *
+ * One thread runs non-blocking connects for all clients in flight. A connect that doesn't
+ * finish within connectTimeoutMillis fails, and we retry with another server picked by the
+ * load balancer, skipping servers that already failed for this client. In hedged mode, if the
+ * first connect hasn't finished within hedgeMillis we race a connect to a second server and
+ * tunnel to whichever connects first.
+ *
+ * If the proxy classifies flows, we can first wait up to flowPeekMillis for the first request
+ * line of a client, which tells FlowClassifier whether to expect a short request or a bulk
+ * transfer and so which servers to pick from. We send the bytes we read to the server before
+ * the tunnel starts.
+ */
+public class ServerConnector implements Runnable {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // Servers we try for a client before we give up and close it.
+  static final int RETRY_MAX = 3;
+
+  // Most bytes we read from a client while we wait for its first request line.
+  static final int PEEK_BYTES = 1024;
+
+  private TcpProxyServer proxy;
+  private long connectTimeoutMillis;
+
+  // 0 if we don't hedge.
+  private long hedgeMillis;
+
+  // How long we wait for first request line of a client, 0 if we don't.
+  private long flowPeekMillis;
+
+  private Thread thread;
+  private Selector selector;
+  private volatile boolean isRunning;
+
+  // Clients handed over by the accept loop, not yet picked up by our thread.
+  private ConcurrentLinkedQueue<Socket> newClients;
+
+  // Connects in flight, only used by our thread.
+  private ArrayList<Attempt> attempts;
+
+  // Clients whose first request line we wait for, only used by our thread.
+  private ArrayList<PendingClient> peekingClients;
+
+  // Attempts that connected in this round of our loop, handed over to tunnels at its end.
+  private ArrayList<Attempt> connected;
+
+  // Size of attempts, for other threads.
+  private volatile int pendingCnt;
+
+  // Connects that ran out of time, hedges we started and hedges that connected first.
+  final SecondMinuteHourCounter timeoutCnt = new SecondMinuteHourCounter("timeoutCnt");
+  final SecondMinuteHourCounter hedgeCnt = new SecondMinuteHourCounter("hedgeCnt");
+  final SecondMinuteHourCounter hedgeWinCnt = new SecondMinuteHourCounter("hedgeWinCnt");
+
+  // Client waiting for its tunnel.
+  private class PendingClient {
+    Socket clientSocket;
+    HashSet<Server> failedServers = new HashSet<Server>();
+    ArrayList<Attempt> attempts = new ArrayList<Attempt>();
+    int attemptCnt = 0;
+    boolean isHedged = false;
+
+    // Flow we predicted for the client, null if we don't classify flows.
+    Flow flow = null;
+
+    // Bytes we read while waiting for first request line, null if we didn't wait.
+    ByteBuffer peekBuffer = null;
+    SelectionKey peekKey = null;
+    long peekDeadlineMillis;
+
+    public PendingClient(Socket clientSocket) {
+      this.clientSocket = clientSocket;
+    }
+  }
+
+  // Connect to one server for a client.
+  private class Attempt {
+    PendingClient client;
+    Server server;
+    SocketChannel channel;
+    SelectionKey key;
+    long startMillis;
+    long startNanos;
+    boolean isHedge;
+  }
+
+  /*
+   *  @param proxy                 Proxy whose load balancer picks servers.
+   *  @param connectTimeoutMillis  How long we wait for one connect.
+   *  @param hedgeMillis           After how long we race a second server, 0 not to hedge.
+   */
+  public ServerConnector(TcpProxyServer proxy, long connectTimeoutMillis, long hedgeMillis)
+      throws IOException {
+    this.proxy = proxy;
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.hedgeMillis = hedgeMillis;
+    this.selector = Selector.open();
+    this.newClients = new ConcurrentLinkedQueue<Socket>();
+    this.attempts = new ArrayList<Attempt>();
+    this.peekingClients = new ArrayList<PendingClient>();
+    this.flowPeekMillis = 0;
+    this.connected = new ArrayList<Attempt>();
+    this.isRunning = true;
+  }
+
+  public Thread start() {
+    assert null == thread;  // we should never call this method twice.
+    thread = new Thread(this, "serverConnector");
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  public void stop() {
+    isRunning = false;
+    selector.wakeup();
+  }
+
+  /*
+   *  Hands over an accepted client. We own clientSocket from now on and close it if we can't
+   *  connect it to any server.
+   */
+  public void connect(Socket clientSocket) {
+    newClients.add(clientSocket);
+    selector.wakeup();
+  }
+
+  // Number of connects in flight, read by /stats.
+  public int getPendingCnt() {
+    return pendingCnt;
+  }
+
+  public long getConnectTimeoutMillis() {
+    return connectTimeoutMillis;
+  }
+
+  public long getHedgeMillis() {
+    return hedgeMillis;
+  }
+
+  /*
+   *  @param flowPeekMillis  How long we wait for first request line of a client to predict
+   *                         its flow, 0 not to wait. Only used if proxy classifies flows.
+   */
+  public void setFlowPeekMillis(long flowPeekMillis) {
+    this.flowPeekMillis = flowPeekMillis;
+  }
+
+  public void run() {
+    while (isRunning) {
+      try {
+        selector.select(selectTimeout());
+      } catch (IOException ioe) {
+        LOG.error("IO exception in select in serverConnector: " + ioe.getMessage());
+        continue;
+      }
+
+      Socket clientSocket;
+      while (null != (clientSocket = newClients.poll())) {
+        PendingClient client = new PendingClient(clientSocket);
+        if (flowPeekMillis > 0 && null != proxy.getFlowClassifier() &&
+            null != clientSocket.getChannel()) {
+          startPeek(client);
+        } else {
+          client.flow = proxy.newFlow(clientSocket.getInetAddress(), null);
+          startAttempt(client, false);
+        }
+      }
+
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (!key.isValid()) {
+          continue;
+        }
+        if (key.attachment() instanceof PendingClient) {
+          peek((PendingClient) key.attachment());
+          continue;
+        }
+        Attempt attempt = (Attempt) key.attachment();
+        try {
+          if (attempt.channel.finishConnect()) {
+            win(attempt);
+          }
+        } catch (IOException ioe) {
+          LOG.error("Error while connecting to server " + attempt.server.hostPort + ": " +
+                    ioe.getMessage());
+          fail(attempt);
+        }
+      }
+
+      long now = System.currentTimeMillis();
+      for (PendingClient client : new ArrayList<PendingClient>(peekingClients)) {
+        if (now >= client.peekDeadlineMillis) {
+          finishPeek(client);
+        }
+      }
+      for (Attempt attempt : new ArrayList<Attempt>(attempts)) {
+        if (now - attempt.startMillis >= connectTimeoutMillis) {
+          LOG.error("Timed out connecting to server " + attempt.server.hostPort);
+          timeoutCnt.increment();
+          fail(attempt);
+        } else if (hedgeMillis > 0 && !attempt.client.isHedged &&
+                   now - attempt.startMillis >= hedgeMillis) {
+          attempt.client.isHedged = true;
+          hedgeCnt.increment();
+          startAttempt(attempt.client, true);
+        }
+      }
+
+      handOver();
+      pendingCnt = attempts.size();
+    }
+
+    for (Attempt attempt : attempts) {
+      closeChannel(attempt.channel);
+      attempt.server.releaseTunnel();
+      closeClient(attempt.client);
+    }
+    for (PendingClient client : peekingClients) {
+      closeClient(client);
+    }
+    try {
+      selector.close();
+    } catch (IOException ioe) {
+      LOG.error("IO exception while closing selector: " + ioe.getMessage());
+    }
+  }
+
+  // Wakes us up in time for the next timeout or hedge, 0 blocks until a connect finishes.
+  private long selectTimeout() {
+    if (attempts.isEmpty() && peekingClients.isEmpty()) {
+      return 0;
+    }
+    long now = System.currentTimeMillis();
+    long timeout = Long.MAX_VALUE;
+    for (PendingClient client : peekingClients) {
+      timeout = Math.min(timeout, client.peekDeadlineMillis - now);
+    }
+    for (Attempt attempt : attempts) {
+      long deadline = attempt.startMillis + connectTimeoutMillis;
+      if (hedgeMillis > 0 && !attempt.client.isHedged) {
+        deadline = Math.min(deadline, attempt.startMillis + hedgeMillis);
+      }
+      timeout = Math.min(timeout, deadline - now);
+    }
+    return Math.max(1, timeout);
+  }
+
+  // Starts waiting for first request line of client.
+  private void startPeek(PendingClient client) {
+    SocketChannel clientChannel = client.clientSocket.getChannel();
+    client.peekBuffer = ByteBuffer.allocate(PEEK_BYTES);
+    client.peekDeadlineMillis = System.currentTimeMillis() + flowPeekMillis;
+    try {
+      clientChannel.configureBlocking(false);
+      client.peekKey = clientChannel.register(selector, SelectionKey.OP_READ, client);
+    } catch (IOException ioe) {
+      LOG.error("Could not wait for first request line of client: " + ioe.getMessage());
+      closeClient(client);
+      return;
+    }
+    peekingClients.add(client);
+  }
+
+  private void peek(PendingClient client) {
+    int cnt = 0;
+    try {
+      cnt = client.clientSocket.getChannel().read(client.peekBuffer);
+    } catch (IOException ioe) {
+      LOG.debug("Closing client after IO exception while reading: " + ioe.getMessage());
+      cnt = -1;
+    }
+    if (cnt < 0) {
+      client.peekKey.cancel();
+      peekingClients.remove(client);
+      closeClient(client);
+      return;
+    }
+    if (!client.peekBuffer.hasRemaining() || hasLineEnd(client.peekBuffer)) {
+      finishPeek(client);
+    }
+  }
+
+  private static boolean hasLineEnd(ByteBuffer buffer) {
+    for (int i = 0; i < buffer.position(); i++) {
+      if ('\n' == buffer.get(i)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Predicts flow of client from what it sent so far and starts connecting it.
+  private void finishPeek(PendingClient client) {
+    client.peekKey.cancel();
+    peekingClients.remove(client);
+    int lineEnd = 0;
+    while (lineEnd < client.peekBuffer.position() && '\n' != client.peekBuffer.get(lineEnd)) {
+      lineEnd++;
+    }
+    String firstLine = new String(client.peekBuffer.array(), 0, lineEnd,
+                                  StandardCharsets.ISO_8859_1);
+    client.flow = proxy.newFlow(client.clientSocket.getInetAddress(), firstLine);
+    startAttempt(client, false);
+  }
+
+  // Starts connect to a server that neither failed nor is being tried for this client.
+  private void startAttempt(PendingClient client, boolean isHedge) {
+    while (client.attemptCnt < RETRY_MAX) {
+      HashSet<Server> excluded = new HashSet<Server>(client.failedServers);
+      for (Attempt attempt : client.attempts) {
+        excluded.add(attempt.server);
+      }
+      Server server = proxy.getServer(excluded, client.clientSocket.getInetAddress(),
+                                      client.flow);
+      if (null == server) {
+        break;
+      }
+      client.attemptCnt++;
+      Attempt attempt = new Attempt();
+      attempt.client = client;
+      attempt.server = server;
+      attempt.isHedge = isHedge;
+      attempt.startMillis = System.currentTimeMillis();
+      attempt.startNanos = System.nanoTime();
+      try {
+        attempt.channel = server.connectChannel();
+        if (!attempt.channel.isConnected()) {
+          attempt.key = attempt.channel.register(selector, SelectionKey.OP_CONNECT, attempt);
+        }
+      } catch (IOException ioe) {
+        LOG.error("Error while connecting to server " + server.hostPort + ": " +
+                  ioe.getMessage());
+        server.incrementFailedConn();
+        client.failedServers.add(server);
+        if (null != attempt.channel) {
+          // Connect started, but we couldn't register it.
+          closeChannel(attempt.channel);
+          server.releaseTunnel();
+        }
+        continue;
+      }
+      client.attempts.add(attempt);
+      attempts.add(attempt);
+      if (null == attempt.key) {
+        // Connection from server's connection pool.
+        win(attempt);
+      }
+      return;
+    }
+    if (client.attempts.isEmpty()) {
+      LOG.error("Could not connect client to any server, closing it.");
+      closeClient(client);
+    }
+  }
+
+  private void fail(Attempt attempt) {
+    attempt.key.cancel();
+    closeChannel(attempt.channel);
+    attempt.server.releaseTunnel();
+    attempt.server.incrementFailedConn();
+    attempt.client.failedServers.add(attempt.server);
+    attempt.client.attempts.remove(attempt);
+    attempts.remove(attempt);
+    if (attempt.client.attempts.isEmpty()) {
+      startAttempt(attempt.client, false);
+    }
+  }
+
+  // First connect for a client wins, we drop the other one without counting it as failed.
+  private void win(Attempt attempt) {
+    if (attempt.isHedge) {
+      hedgeWinCnt.increment();
+    }
+    for (Attempt other : attempt.client.attempts) {
+      attempts.remove(other);
+      if (other != attempt) {
+        other.key.cancel();
+        closeChannel(other.channel);
+        other.server.releaseTunnel();
+      }
+    }
+    attempt.client.attempts.clear();
+    if (null != attempt.key) {
+      attempt.key.cancel();
+      attempt.server.recordConnectLatency((System.nanoTime() - attempt.startNanos) / 1000);
+    }
+    connected.add(attempt);
+  }
+
+  // Channels stay registered until the selector drops their cancelled keys, and only then can
+  // the tunnels switch them to the blocking mode they need. startTunnel never blocks us, a
+  // tunnel that waits for free workers waits on its TunnelExecutor's waiter thread.
+  private void handOver() {
+    if (connected.isEmpty()) {
+      return;
+    }
+    try {
+      selector.selectNow();
+    } catch (IOException ioe) {
+      LOG.error("IO exception in select in serverConnector: " + ioe.getMessage());
+    }
+    for (Attempt attempt : connected) {
+      try {
+        if (null != attempt.client.peekBuffer) {
+          sendPeekedBytes(attempt);
+        }
+        attempt.server.startTunnel(attempt.client.clientSocket, attempt.channel,
+                                   attempt.client.flow);
+      } catch (IOException ioe) {
+        LOG.error("Could not start tunnel to server " + attempt.server.hostPort + ": " +
+                  ioe.getMessage());
+        closeChannel(attempt.channel);
+        attempt.server.releaseTunnel();
+        closeClient(attempt.client);
+      }
+    }
+    connected.clear();
+  }
+
+  // Sends to the server what we read from the client while we waited for its first request
+  // line. Both channels are deregistered by now, tunnels expect client in blocking mode.
+  private void sendPeekedBytes(Attempt attempt) throws IOException {
+    attempt.client.clientSocket.getChannel().configureBlocking(true);
+    attempt.channel.configureBlocking(true);
+    ByteBuffer peekBuffer = attempt.client.peekBuffer;
+    peekBuffer.flip();
+    while (peekBuffer.hasRemaining()) {
+      attempt.channel.write(peekBuffer);
+    }
+  }
+
+  private void closeChannel(SocketChannel channel) {
+    if (null == channel) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (IOException ioe) {
+      LOG.error("IO exception while closing channel: " + ioe.getMessage());
+    }
+  }
+
+  private void closeClient(PendingClient client) {
+    if (null != client.flow) {
+      client.flow.cancel();
+    }
+    try {
+      client.clientSocket.close();
+    } catch (IOException ioe) {
+      LOG.error("IO exception while closing client socket: " + ioe.getMessage());
+    }
+  }
+}
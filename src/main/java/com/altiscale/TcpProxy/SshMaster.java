@@ -0,0 +1,349 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.altiscale.Util.ExecLoop;
+import com.altiscale.Util.JumpHost;
+import com.altiscale.Util.SshErrorClassifier;
+
+/**
+ * SshMaster keeps one authenticated ssh session to the jumphost, an ssh ControlMaster, and
+ * forwards local ports of servers through it with "ssh -O forward", instead of starting an
+ * ssh process per server. Adding or removing a forward on a running master takes
+ * milliseconds, while a new ssh process pays for a TCP connect, key exchange and
+ * authentication.
+ *
+ * Our ExecLoop restarts the master when it exits, with its usual backoff. The master is
+ * ready once "ssh -O check" succeeds, and then we forward ports of all our servers again,
+ * since forwards die with the master that had them. Every CHECK_MILLIS we check the master,
+ * kill it if it stopped answering, and retry forwards that failed.
+ */
+public class SshMaster implements Runnable {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // How often we check a running master.
+  static final long CHECK_MILLIS = 1000;
+
+  // How long one "ssh -O" command can take.
+  static final long CONTROL_TIMEOUT_MILLIS = 5000;
+
+  // ssh exits if the jumphost didn't answer this many keepalives sent this many seconds apart,
+  // so that a master on a dead connection restarts.
+  static final int SERVER_ALIVE_INTERVAL_SECONDS = 5;
+  static final int SERVER_ALIVE_COUNT_MAX = 3;
+
+  private JumpHost jumphost;
+
+  // Unix socket on which the master takes commands.
+  private String controlPath;
+
+  // Forwards we want on this master before we start another one.
+  private int maxForwards;
+
+  // Factory for our thread and the one of our ExecLoop.
+  private ThreadFactory threadFactory;
+
+  // Runs and restarts our master ssh process, null until we start.
+  volatile ExecLoop sshProcess;
+
+  private Thread thread;
+  private volatile boolean isRunning;
+
+  // Servers whose ports we forward. Guarded by our lock.
+  private Set<Server> servers;
+
+  // Servers whose ports the master process we have now forwards, and its restartCnt when we
+  // forwarded them. A master that restarted forwards nothing yet.
+  private Set<Server> forwardedServers;
+  private long forwardedGeneration;
+
+  // How long our last "ssh -O check" and our last forward took, in microseconds.
+  private volatile long checkMicros;
+  private volatile long forwardMicros;
+
+  // Checks a running master failed.
+  private volatile long checkFailureCnt;
+  private volatile long forwardCnt;
+  private volatile long forwardFailureCnt;
+  private volatile long cancelCnt;
+
+  /*
+   *  @param jumphost       Jumphost our master connects to.
+   *  @param controlPath    Path of the unix socket of the master.
+   *  @param maxForwards    Forwards we want on this master before we start another one.
+   *  @param threadFactory  Factory for our threads, null for plain threads.
+   */
+  public SshMaster(JumpHost jumphost, String controlPath, int maxForwards,
+                   ThreadFactory threadFactory) {
+    this.jumphost = jumphost;
+    this.controlPath = controlPath;
+    this.maxForwards = maxForwards;
+    this.threadFactory = null == threadFactory ? Thread.ofPlatform().factory() : threadFactory;
+    this.servers = new HashSet<Server>();
+    this.forwardedServers = ConcurrentHashMap.newKeySet();
+    this.forwardedGeneration = 0;
+    this.checkMicros = 0;
+    this.forwardMicros = 0;
+    this.checkFailureCnt = 0;
+    this.forwardCnt = 0;
+    this.forwardFailureCnt = 0;
+    this.cancelCnt = 0;
+  }
+
+  /*
+   *  @return  Path for the control socket of master index of this process.
+   */
+  static String controlPath(int index) {
+    return System.getProperty("java.io.tmpdir") + File.separator + "transfer-accelerator-" +
+           ProcessHandle.current().pid() + "-" + index;
+  }
+
+  // Command that runs our master in foreground, but not interactive.
+  String sshMasterCommand() {
+    return jumphost.sshOptions() + " -o ControlMaster=yes -o ControlPath=" + controlPath +
+           " -o ControlPersist=no -o ServerAliveInterval=" + SERVER_ALIVE_INTERVAL_SECONDS +
+           " -o ServerAliveCountMax=" + SERVER_ALIVE_COUNT_MAX + " -n -N" +
+           jumphost.sshDestination();
+  }
+
+  /*
+   *  @param operation  check, forward or cancel.
+   *  @param localPort  Port we forward or cancel, ignored for check.
+   *
+   *  @return  Command that asks our master for operation.
+   */
+  String sshControlCommand(String operation, int localPort) {
+    String command = (null == jumphost.sshBinary ? "ssh" : jumphost.sshBinary) +
+                     " -o ControlPath=" + controlPath + " -O " + operation;
+    if (!"check".equals(operation)) {
+      command += " -L " + jumphost.forwardSpec(localPort);
+    }
+    return command + jumphost.sshDestination();
+  }
+
+  public Thread start() {
+    assert null == thread;  // we should never call this method twice.
+    ExecLoop process = new ExecLoop(sshMasterCommand(), true, LOG);
+    process.setThreadFactory(threadFactory);
+    process.setReadinessProbe(new ExecLoop.ReadinessProbe() {
+      public boolean isReady() {
+        if (!check()) {
+          return false;
+        }
+        forwardMissing();
+        return true;
+      }
+    }, Server.SSH_READY_TIMEOUT_MILLIS);
+    // ssh doesn't start a master on a control socket a killed master left behind.
+    process.setBeforeExec(new Runnable() {
+      public void run() {
+        new File(controlPath).delete();
+      }
+    });
+    process.setStderrClassifier(new SshErrorClassifier());
+    sshProcess = process;
+    sshProcess.start();
+    isRunning = true;
+    thread = threadFactory.newThread(this);
+    thread.setName("sshMaster-" + controlPath);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  public void stop() {
+    isRunning = false;
+    if (null != thread) {
+      thread.interrupt();
+    }
+    // ExecLoop would restart the process we stop.
+    if (null != sshProcess) {
+      sshProcess.setShouldRestart(false);
+      sshProcess.stop();
+    }
+    new File(controlPath).delete();
+  }
+
+  public void run() {
+    while (isRunning) {
+      try {
+        Thread.sleep(CHECK_MILLIS);
+      } catch (InterruptedException ie) {
+        LOG.debug("Interrupted while waiting to check ssh master " + controlPath);
+        continue;
+      }
+      if (!sshProcess.isRunning()) {
+        continue;
+      }
+      if (!check()) {
+        checkFailureCnt++;
+        // ExecLoop restarts it.
+        LOG.error("ssh master " + controlPath + " failed check, restarting it.");
+        sshProcess.stop();
+        continue;
+      }
+      forwardMissing();
+    }
+  }
+
+  /*
+   *  Forwards the local port of server through our master from now on.
+   */
+  public void addServer(Server server) {
+    synchronized (this) {
+      servers.add(server);
+    }
+    if (isMasterRunning()) {
+      forwardMissing();
+    }
+  }
+
+  /*
+   *  Cancels the forward of server, if the master has it.
+   */
+  public synchronized void removeServer(Server server) {
+    servers.remove(server);
+    if (forwardedServers.remove(server) && isMasterRunning()) {
+      if (control(sshControlCommand("cancel", server.hostPort.port))) {
+        cancelCnt++;
+      }
+    }
+  }
+
+  // True if our master runs and forwards the local port of server.
+  public boolean isForwarding(Server server) {
+    return isMasterRunning() && forwardedServers.contains(server);
+  }
+
+  // False before we start as well.
+  private boolean isMasterRunning() {
+    ExecLoop process = sshProcess;
+    return null != process && process.isRunning();
+  }
+
+  private boolean check() {
+    long startNanos = System.nanoTime();
+    boolean isAlive = control(sshControlCommand("check", 0));
+    checkMicros = (System.nanoTime() - startNanos) / 1000;
+    return isAlive;
+  }
+
+  // Forwards ports of servers our master process doesn't forward yet.
+  private synchronized void forwardMissing() {
+    long generation = sshProcess.getRestartCnt();
+    if (generation != forwardedGeneration) {
+      forwardedServers.clear();
+      forwardedGeneration = generation;
+    }
+    for (Server server : servers) {
+      if (forwardedServers.contains(server)) {
+        continue;
+      }
+      long startNanos = System.nanoTime();
+      if (control(sshControlCommand("forward", server.hostPort.port))) {
+        forwardMicros = (System.nanoTime() - startNanos) / 1000;
+        forwardCnt++;
+        forwardedServers.add(server);
+        LOG.info("ssh master " + controlPath + " forwards " + server.hostPort + " in " +
+                 forwardMicros + " us.");
+      } else {
+        forwardFailureCnt++;
+      }
+    }
+  }
+
+  // Runs an "ssh -O" command, true if our master did what it asked.
+  private boolean control(String command) {
+    try {
+      Process process = Runtime.getRuntime().exec(command);
+      if (!process.waitFor(CONTROL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        LOG.error("Command timed out after " + CONTROL_TIMEOUT_MILLIS + "ms: [" + command + "]");
+        process.destroy();
+        return false;
+      }
+      if (0 != process.exitValue()) {
+        LOG.debug("Command failed: [" + command + "]: " +
+                  new String(process.getErrorStream().readAllBytes()).trim());
+        return false;
+      }
+      return true;
+    } catch (IOException ioe) {
+      LOG.error("Failed to execute command [" + command + "]: " + ioe.getMessage());
+    } catch (InterruptedException ie) {
+      LOG.debug("Interrupted command [" + command + "]: " + ie.getMessage());
+    }
+    return false;
+  }
+
+  public JumpHost getJumpHost() {
+    return jumphost;
+  }
+
+  public String getControlPath() {
+    return controlPath;
+  }
+
+  public int getMaxForwards() {
+    return maxForwards;
+  }
+
+  public synchronized int getServerCnt() {
+    return servers.size();
+  }
+
+  public int getForwardedCnt() {
+    return isMasterRunning() ? forwardedServers.size() : 0;
+  }
+
+  public ExecLoop getSshProcess() {
+    return sshProcess;
+  }
+
+  public long getCheckMicros() {
+    return checkMicros;
+  }
+
+  public long getForwardMicros() {
+    return forwardMicros;
+  }
+
+  public long getCheckFailureCnt() {
+    return checkFailureCnt;
+  }
+
+  public long getForwardCnt() {
+    return forwardCnt;
+  }
+
+  public long getForwardFailureCnt() {
+    return forwardFailureCnt;
+  }
+
+  public long getCancelCnt() {
+    return cancelCnt;
+  }
+}
@@ -0,0 +1,337 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.EnumSet;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.sshd.client.channel.ChannelDirectTcpip;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.util.net.SshdSocketAddress;
+
+import com.altiscale.Util.ExecLoop;
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.SecondMinuteHourCounter;
+import com.altiscale.Util.SshErrorClassifier;
+
+/**
+ * SshSession keeps one session of our embedded ssh client to the jumphost and opens
+ * direct-tcpip channels to the server behind it, one per tunnel. Like ExecLoop does for an ssh
+ * process, we reconnect when the session closes, waiting twice as long after every failure in
+ * a row, with jitter, and longest right away after errors retrying won't fix.
+ */
+public class SshSession implements Runnable {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // How long we wait after the first failure, and most we wait.
+  static final long WAIT_MILLIS = 500;
+  static final long MAX_WAIT_MILLIS = 60 * 1000;
+
+  /*
+   *  Channel as a connected socket, so that TcpTunnel copies between it and the client the way
+   *  it copies between sockets.
+   */
+  static class ChannelSocket extends Socket {
+    private ChannelDirectTcpip channel;
+    private InputStream input;
+    private OutputStream output;
+
+    public ChannelSocket(ChannelDirectTcpip channel) {
+      this.channel = channel;
+      this.input = channel.getInvertedOut();
+      // Channel stream keeps bytes until a packet is full, tunnels expect them sent right away.
+      this.output = new FilterOutputStream(channel.getInvertedIn()) {
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+          out.write(buffer, offset, length);
+          out.flush();
+        }
+      };
+    }
+
+    ChannelDirectTcpip getSshChannel() {
+      return channel;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return output;
+    }
+
+    @Override
+    public boolean isConnected() {
+      return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+      return channel.isClosed() || channel.isClosing();
+    }
+
+    @Override
+    public void close() {
+      // Lets the jumphost get what we sent so far.
+      channel.close(false);
+    }
+
+    @Override
+    public String toString() {
+      return "ChannelSocket[" + channel + "]";
+    }
+  }
+
+  private SshTransport transport;
+  private String name;
+
+  // How long connect and authentication of a session can take, and opening a channel.
+  private long connectTimeoutMillis;
+  private long channelTimeoutMillis;
+
+  private SshErrorClassifier errorClassifier;
+
+  private Thread thread;
+  private volatile boolean isRunning;
+
+  // Factory for our thread, so that it can be a virtual thread.
+  private ThreadFactory threadFactory;
+
+  // Null while we have no authenticated session.
+  private volatile ClientSession session;
+
+  // ExecLoop.STARTING, READY, BACKING_OFF or STOPPED.
+  private volatile String state;
+
+  // How long our last session took to connect and authenticate, -1 if none did yet.
+  private volatile long readyMilliseconds;
+
+  // Failures in a row and how long we wait before we reconnect.
+  private volatile int failureCnt;
+  private volatile long backoffMilliseconds;
+
+  // Errors so far, and the last one with its class.
+  private volatile long errorCnt;
+  private volatile String lastErrorClass;
+  private volatile String lastError;
+
+  // Reconnects, channels we opened, and how long the last open took in microseconds.
+  final SecondMinuteHourCounter restartCnt = new SecondMinuteHourCounter("sshSession");
+  final SecondMinuteHourCounter channelCnt = new SecondMinuteHourCounter("sshChannels");
+  final SecondMinuteHourCounter failedChannelCnt =
+      new SecondMinuteHourCounter("failedSshChannels");
+  private volatile long channelMicros;
+
+  /*
+   *  @param transport             Embedded ssh client we connect with.
+   *  @param name                  Name of our session in logs, usually our server.
+   *  @param connectTimeoutMillis  Most we wait for connect, and then for authentication.
+   *  @param channelTimeoutMillis  Most we wait for a channel to open.
+   */
+  public SshSession(SshTransport transport, String name, long connectTimeoutMillis,
+                    long channelTimeoutMillis) {
+    this.transport = transport;
+    this.name = name;
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.channelTimeoutMillis = channelTimeoutMillis;
+    this.errorClassifier = new SshErrorClassifier();
+    this.session = null;
+    this.state = ExecLoop.STOPPED;
+    this.readyMilliseconds = -1;
+    this.failureCnt = 0;
+    this.backoffMilliseconds = 0;
+    this.errorCnt = 0;
+    this.lastErrorClass = null;
+    this.lastError = null;
+    this.channelMicros = 0;
+    this.threadFactory = Thread.ofPlatform().factory();
+  }
+
+  public void setThreadFactory(ThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
+  }
+
+  public Thread start() {
+    assert null == thread;  // we should never call this method twice.
+    isRunning = true;
+    state = ExecLoop.STARTING;
+    thread = threadFactory.newThread(this);
+    thread.setName("sshSession-" + name);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  public void stop() {
+    isRunning = false;
+    ClientSession currentSession = session;
+    if (null != currentSession) {
+      currentSession.close(true);
+    }
+    if (null != thread) {
+      thread.interrupt();
+    }
+  }
+
+  public void run() {
+    while (isRunning) {
+      state = ExecLoop.STARTING;
+      long startMillis = System.currentTimeMillis();
+      long readyMillis = -1;
+      String errorClass = null;
+      try {
+        session = transport.connect(connectTimeoutMillis);
+        readyMillis = System.currentTimeMillis();
+        readyMilliseconds = readyMillis - startMillis;
+        state = ExecLoop.READY;
+        LOG.info("ssh session " + name + " ready in " + readyMilliseconds + "ms.");
+        session.waitFor(EnumSet.of(ClientSession.ClientSessionEvent.CLOSED), 0L);
+        if (isRunning) {
+          LOG.error("ssh session " + name + " closed.");
+        }
+      } catch (IOException ioe) {
+        errorClass = onError(ioe);
+      } catch (RuntimeException re) {
+        // Client throws these for unresolvable hosts, among others.
+        errorClass = onError(re);
+      }
+      session = null;
+      if (!isRunning) {
+        break;
+      }
+
+      if (-1 != readyMillis &&
+          System.currentTimeMillis() - readyMillis >= ExecLoop.STABLE_MILLISECONDS) {
+        failureCnt = 0;
+      } else {
+        failureCnt++;
+      }
+      backoffMilliseconds = ExecLoop.getBackoffMilliseconds(
+          WAIT_MILLIS, MAX_WAIT_MILLIS, failureCnt, errorClassifier.isPermanent(errorClass));
+      state = ExecLoop.BACKING_OFF;
+      restartCnt.increment();
+      LOG.info("Reconnecting ssh session " + name + " in " + backoffMilliseconds + "ms after " +
+               failureCnt + " failures in a row.");
+      try {
+        Thread.sleep(backoffMilliseconds);
+      } catch (InterruptedException ie) {
+        LOG.debug("Interrupted while waiting to reconnect ssh session " + name);
+      }
+    }
+    state = ExecLoop.STOPPED;
+  }
+
+  // Logs and classifies error, and returns its class.
+  private String onError(Exception e) {
+    String error = e.toString();
+    String errorClass = errorClassifier.classify(error);
+    if (null == errorClass) {
+      errorClass = SshErrorClassifier.OTHER;
+    }
+    LOG.error("ssh session " + name + " failed, " + errorClass + ": " + error);
+    errorCnt++;
+    lastErrorClass = errorClass;
+    lastError = error;
+    return errorClass;
+  }
+
+  // True if we have an authenticated session.
+  public boolean isReady() {
+    ClientSession currentSession = session;
+    return null != currentSession && currentSession.isOpen();
+  }
+
+  /*
+   *  Opens a channel through the jumphost to server.
+   *
+   *  @return  Connected socket whose streams are those of the channel.
+   */
+  public Socket openChannel(HostPort server) throws IOException {
+    ClientSession currentSession = session;
+    if (null == currentSession || !currentSession.isOpen()) {
+      failedChannelCnt.increment();
+      throw new IOException("ssh session " + name + " is not ready.");
+    }
+    long startNanos = System.nanoTime();
+    ChannelDirectTcpip channel = null;
+    try {
+      channel = currentSession.createDirectTcpipChannel(
+          SshdSocketAddress.LOCALHOST_ADDRESS, new SshdSocketAddress(server.host, server.port));
+      channel.open().verify(channelTimeoutMillis);
+    } catch (IOException ioe) {
+      failedChannelCnt.increment();
+      if (null != channel) {
+        channel.close(true);
+      }
+      throw ioe;
+    }
+    channelMicros = (System.nanoTime() - startNanos) / 1000;
+    channelCnt.increment();
+    return new ChannelSocket(channel);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  public long getReadyMilliseconds() {
+    return readyMilliseconds;
+  }
+
+  public long getRestartCnt() {
+    return restartCnt.getTotalCnt();
+  }
+
+  public int getFailureCnt() {
+    return failureCnt;
+  }
+
+  public long getBackoffMilliseconds() {
+    return backoffMilliseconds;
+  }
+
+  public long getErrorCnt() {
+    return errorCnt;
+  }
+
+  // Class of the last error, null if we had none.
+  public String getLastErrorClass() {
+    return lastErrorClass;
+  }
+
+  public String getLastError() {
+    return lastError;
+  }
+
+  public long getChannelMicros() {
+    return channelMicros;
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.keyverifier.AcceptAllServerKeyVerifier;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.keyprovider.FileKeyPairProvider;
+import org.apache.sshd.core.CoreModuleProperties;
+
+import com.altiscale.Util.JumpHost;
+
+/**
+ * SshTransport is an ssh client inside our JVM, so that tunnels to the jumphost are channels
+ * of ssh sessions we hold ourselves instead of local ports of ssh processes. A client's bytes
+ * then go from our client socket straight into an ssh channel, without a round trip through
+ * loopback TCP and another process, and we need no local port per tunnel.
+ *
+ * We authenticate with the jumphost credentials, or with the default identities in ~/.ssh,
+ * and accept any host key, as our ssh processes do. Each Server holds an SshSession of its
+ * own, so that as many sessions as servers encrypt in parallel.
+ */
+public class SshTransport {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // Identities ssh tries when we have no credentials, in ~/.ssh.
+  static final String[] DEFAULT_IDENTITIES = {"id_ed25519", "id_ecdsa", "id_rsa"};
+
+  // Keepalives as in our ssh processes, so that a session on a dead connection closes.
+  static final long HEARTBEAT_SECONDS = SshMaster.SERVER_ALIVE_INTERVAL_SECONDS;
+  static final int HEARTBEAT_NO_REPLY_MAX = SshMaster.SERVER_ALIVE_COUNT_MAX;
+
+  private JumpHost jumphost;
+  private SshClient client;
+
+  // Window and largest packet we announce for our channels, 0 for defaults of the client.
+  private long windowBytes;
+  private long packetBytes;
+
+  /*
+   *  @param jumphost     Jumphost we connect to, and server behind it our channels go to.
+   *  @param windowBytes  Window we announce for each channel, how much the jumphost can send
+   *                      before it waits for us. 0 for the default.
+   *  @param packetBytes  Largest packet we take. 0 for the default.
+   */
+  public SshTransport(JumpHost jumphost, long windowBytes, long packetBytes) {
+    this.jumphost = jumphost;
+    this.windowBytes = windowBytes;
+    this.packetBytes = packetBytes;
+    client = SshClient.setUpDefaultClient();
+    client.setServerKeyVerifier(AcceptAllServerKeyVerifier.INSTANCE);
+    client.setKeyIdentityProvider(new FileKeyPairProvider(getIdentities()));
+    if (jumphost.compression) {
+      client.setCompressionFactoriesNameList("zlib@openssh.com,zlib,none");
+    }
+    if (null != jumphost.ciphers) {
+      client.setCipherFactoriesNameList(jumphost.ciphers);
+    }
+    if (windowBytes > 0) {
+      CoreModuleProperties.WINDOW_SIZE.set(client, windowBytes);
+    }
+    if (packetBytes > 0) {
+      CoreModuleProperties.MAX_PACKET_SIZE.set(client, packetBytes);
+    }
+    CoreModuleProperties.HEARTBEAT_INTERVAL.set(client, Duration.ofSeconds(HEARTBEAT_SECONDS));
+    CoreModuleProperties.HEARTBEAT_NO_REPLY_MAX.set(client, HEARTBEAT_NO_REPLY_MAX);
+  }
+
+  private ArrayList<Path> getIdentities() {
+    ArrayList<Path> identities = new ArrayList<Path>();
+    if (null != jumphost.credentials) {
+      identities.add(Paths.get(jumphost.credentials));
+      return identities;
+    }
+    File sshDirectory = new File(System.getProperty("user.home"), ".ssh");
+    for (String identity : DEFAULT_IDENTITIES) {
+      File file = new File(sshDirectory, identity);
+      if (file.exists()) {
+        identities.add(file.toPath());
+      }
+    }
+    return identities;
+  }
+
+  public void start() {
+    client.start();
+    LOG.info("Started embedded ssh client for jumphost " + jumphost.sshd);
+  }
+
+  public void stop() {
+    client.stop();
+  }
+
+  /*
+   *  Connects and authenticates a new session to the jumphost.
+   *
+   *  @param timeoutMillis  Most we wait for connect, and then for authentication.
+   */
+  ClientSession connect(long timeoutMillis) throws IOException {
+    String user = null == jumphost.user ? System.getProperty("user.name") : jumphost.user;
+    int port = -1 == jumphost.sshd.port ? 22 : jumphost.sshd.port;
+    ClientSession session = client.connect(user, jumphost.sshd.host, port)
+                                  .verify(timeoutMillis).getSession();
+    try {
+      session.auth().verify(timeoutMillis);
+    } catch (IOException ioe) {
+      session.close(true);
+      throw ioe;
+    }
+    return session;
+  }
+
+  public JumpHost getJumpHost() {
+    return jumphost;
+  }
+
+  public long getWindowBytes() {
+    return windowBytes > 0 ? windowBytes : CoreModuleProperties.WINDOW_SIZE.getRequired(client);
+  }
+
+  public long getPacketBytes() {
+    return packetBytes > 0 ? packetBytes :
+                             CoreModuleProperties.MAX_PACKET_SIZE.getRequired(client);
+  }
+}
@@ -22,19 +22,40 @@ import org.apache.log4j.Level;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URISyntaxException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Properties;
-import java.util.Random;
-
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import com.altiscale.Util.BufferPool;
+import com.altiscale.Util.Ewma;
+import com.altiscale.Util.ExecLoop;
 import com.altiscale.Util.HostPort;
+import com.altiscale.Util.Json;
 import com.altiscale.Util.JumpHost;
+import com.altiscale.Util.SecondMinuteHourCounter;
 import com.altiscale.Util.ServerStatus;
 import com.altiscale.Util.ServerWithStats;
+import com.altiscale.Util.SocketOptionsProfile;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
@@ -70,21 +91,28 @@ public class TcpProxyServer implements ServerWithStats {
 
   protected interface LoadBalancer {
     public Server getServer();
+
+    // Picks server for a client. Load balancers that keep clients on the same server use
+    // clientAddress, others ignore it.
+    default public Server getServer(InetAddress clientAddress) {
+      return getServer();
+    }
   }
 
   protected class RoundRobin implements LoadBalancer {
     private ArrayList<Server> servers;
 
-    private int nextServerId = 0;
+    // Reactor threads and the connector thread pick servers at the same time.
+    private AtomicInteger nextServerId;
 
     public RoundRobin(ArrayList<Server> servers) {
       this.servers = servers;
+      this.nextServerId = new AtomicInteger(0);
     }
 
     @Override
     public Server getServer() {
-      nextServerId = (nextServerId + 1) % servers.size();
-      return servers.get(nextServerId);
+      return servers.get((nextServerId.getAndIncrement() & Integer.MAX_VALUE) % servers.size());
     }
   }
 
@@ -97,36 +125,271 @@ public class TcpProxyServer implements ServerWithStats {
 
      @Override
      public Server getServer() {
-       return servers.get(
-           new Random(System.currentTimeMillis()).nextInt(servers.size()));
+       // Random seeded with current time would pick the same server for all clients that
+       // connect within the same millisecond.
+       return servers.get(ThreadLocalRandom.current().nextInt(servers.size()));
      }
   }
 
+  // Picks server with the lowest byte rate in the last minute per unit of weight, skipping
+  // servers with failures in the last second. We keep byte rates in a LoadIndex, so we find
+  // the least used server in O(1), and refresh it ourselves rather than on every batch of
+  // bytes a tunnel publishes, which keeps the O(log n) update off the data path. Every pick
+  // refreshes REFRESH_CNT servers in turn, so with n servers each one is at most n /
+  // REFRESH_CNT picks stale, and then the server it is about to return, so we don't keep
+  // picking a server whose traffic grew since its last refresh. Connect failures refresh
+  // their server right away.
   protected class LeastUsed implements LoadBalancer {
+    private static final int REFRESH_CNT = 2;
+
     private ArrayList<Server> servers;
+    private LoadIndex byteRateIndex;
+
+    // Next server to refresh.
+    private AtomicInteger nextRefresh;
 
     public LeastUsed(ArrayList<Server> servers) {
       this.servers = servers;
+      this.byteRateIndex = new LoadIndex(servers.size());
+      this.nextRefresh = new AtomicInteger(0);
+      for (int i = 0; i < servers.size(); i++) {
+        servers.get(i).setByteRateIndex(byteRateIndex, i);
+      }
+    }
+
+    @Override
+    public Server getServer() {
+      for (int i = 0; i < REFRESH_CNT; i++) {
+        int refresh = (nextRefresh.getAndIncrement() & Integer.MAX_VALUE) % servers.size();
+        servers.get(refresh).updateByteRateIndex();
+      }
+
+      int leastUsed = byteRateIndex.getMin();
+      servers.get(leastUsed).updateByteRateIndex();
+      leastUsed = byteRateIndex.getMin();
+      // All servers have failures in the last second so we return one at random.
+      if (byteRateIndex.getLoad(leastUsed) >= Server.FAILED_BYTE_RATE) {
+         return new UniformRandom(servers).getServer();
+      }
+
+      return servers.get(leastUsed);
+    }
+  }
+
+  // Picks server with the fewest tunnels in flight per unit of weight. Servers keep their load
+  // in a LoadIndex as tunnels open and close, so we pick in O(1).
+  protected class LeastConnections implements LoadBalancer {
+    private ArrayList<Server> servers;
+    private LoadIndex loadIndex;
+
+    public LeastConnections(ArrayList<Server> servers) {
+      this.servers = servers;
+      this.loadIndex = new LoadIndex(servers.size());
+      for (int i = 0; i < servers.size(); i++) {
+        servers.get(i).setLoadIndex(loadIndex, i);
+      }
+    }
+
+    @Override
+    public Server getServer() {
+      Server server = servers.get(loadIndex.getMin());
+      if (server.failedCnt.getLastSecondCnt() == 0 && server.isHealthy()) {
+        return server;
+      }
+
+      // Server that failed has no tunnels, so it stays least loaded. Like LeastUsed, we skip
+      // servers with failures in the last second or that aren't healthy, which needs a scan.
+      Server leastLoadedServer = null;
+      for (Server candidate : servers) {
+        if (candidate.failedCnt.getLastSecondCnt() == 0 && candidate.isHealthy() &&
+            (null == leastLoadedServer ||
+             candidate.getWeightedLoad() < leastLoadedServer.getWeightedLoad())) {
+          leastLoadedServer = candidate;
+        }
+      }
+
+      // All servers have failures in the last second so we stay with the least loaded.
+      return null == leastLoadedServer ? server : leastLoadedServer;
+    }
+  }
+
+  // Samples two servers at random and picks the one with fewer tunnels in flight per unit of
+  // weight, or with lower byte rate in the last minute if they have as many. This keeps the
+  // most loaded server far less loaded than a uniform random pick does, without looking at
+  // all servers.
+  protected class PowerOfTwoChoices implements LoadBalancer {
+    // How many pairs we sample before we give up on finding a healthy server.
+    private static final int MAX_SAMPLES = 4;
+
+    private ArrayList<Server> servers;
+
+    public PowerOfTwoChoices(ArrayList<Server> servers) {
+      this.servers = servers;
+    }
+
+    private boolean isAvailable(Server server) {
+      return server.failedCnt.getLastSecondCnt() == 0 && server.isHealthy();
+    }
+
+    // True if first is less loaded than second.
+    private boolean isLessLoaded(Server first, Server second) {
+      if (first.getWeightedLoad() != second.getWeightedLoad()) {
+        return first.getWeightedLoad() < second.getWeightedLoad();
+      }
+      return first.byteRateCnt.getLastMinuteCnt() < second.byteRateCnt.getLastMinuteCnt();
+    }
+
+    @Override
+    public Server getServer() {
+      int numServers = servers.size();
+      if (1 == numServers) {
+        return servers.get(0);
+      }
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      Server first = null;
+      for (int i = 0; i < MAX_SAMPLES; i++) {
+        // Two distinct servers.
+        int firstIndex = random.nextInt(numServers);
+        int secondIndex = random.nextInt(numServers - 1);
+        if (secondIndex >= firstIndex) {
+          secondIndex++;
+        }
+        first = servers.get(firstIndex);
+        Server second = servers.get(secondIndex);
+        boolean isFirstAvailable = isAvailable(first);
+        boolean isSecondAvailable = isAvailable(second);
+        if (isFirstAvailable && isSecondAvailable) {
+          return isLessLoaded(second, first) ? second : first;
+        }
+        if (isFirstAvailable) {
+          return first;
+        }
+        if (isSecondAvailable) {
+          return second;
+        }
+      }
+
+      // All servers we sampled have failures in the last second so we return one at random.
+      return first;
+    }
+  }
+
+  // Picks server with the lowest expected latency for a new tunnel: its average connect plus
+  // first-byte latency, scaled by tunnels in flight per unit of weight, since a busy server
+  // answers slower. Every connect failure in the last minute adds FAILURE_PENALTY_MICROS.
+  // Servers without latency samples look fastest, so each new server gets tried. Averages
+  // older than STALE_MILLIS count as no samples, so a server we left because it was slow gets
+  // tried again later.
+  protected class LeastLatency implements LoadBalancer {
+    // Penalty for one failure, in microseconds of latency.
+    private static final long FAILURE_PENALTY_MICROS = 1000 * 1000;
+
+    // Age of a latency average after which we no longer trust it.
+    static final long STALE_MILLIS = 60 * 1000;
+
+    private ArrayList<Server> servers;
+
+    public LeastLatency(ArrayList<Server> servers) {
+      this.servers = servers;
+    }
+
+    // Expected latency of a new tunnel on server, in microseconds.
+    private double getCost(Server server, long now) {
+      double latencyMicros = 1 + getLatency(server.connectLatency, now) +
+                             getLatency(server.firstByteLatency, now);
+      return latencyMicros * (server.getOpenTunnelCnt() + 1) / server.getWeight() +
+             server.failedCnt.getLastMinuteCnt() * FAILURE_PENALTY_MICROS;
+    }
+
+    private double getLatency(Ewma latency, long now) {
+      return latency.getAgeMillis(now) > STALE_MILLIS ? 0 : latency.get();
     }
 
     @Override
     public Server getServer() {
-      Server leastUsedServer = null;
-      long leastUsedByteRate = Long.MAX_VALUE;
+      long now = System.currentTimeMillis();
+      Server fastestServer = null;
+      double fastestCost = Double.MAX_VALUE;
       for (Server server : servers) {
-        if (server.failedCnt.getLastSecondCnt() == 0 &&
-            server.byteRateCnt.getLastMinuteCnt() < leastUsedByteRate) {
-          leastUsedByteRate = server.byteRateCnt.getLastMinuteCnt();
-          leastUsedServer = server;
+        if (!server.isHealthy()) {
+          continue;
+        }
+        double cost = getCost(server, now);
+        if (cost < fastestCost) {
+          fastestCost = cost;
+          fastestServer = server;
         }
       }
 
-      // All servers have failures in the last second so we return one at random.
-      if (leastUsedServer == null) {
-         leastUsedServer = new UniformRandom(servers).getServer();
+      // No server is healthy so we return one at random.
+      if (null == fastestServer) {
+        fastestServer = new UniformRandom(servers).getServer();
+      }
+
+      return fastestServer;
+    }
+  }
+
+  // Keeps every client IP on the same server, so that servers with per-client caches stay
+  // warm. Uses a ConsistentHashRing, so a server that fails or becomes unhealthy only loses
+  // its own clients to other servers, and gets them back once it recovers.
+  protected class ConsistentHash implements LoadBalancer {
+    // Points on the ring per unit of server weight. More points spread clients more evenly.
+    static final int VNODES_PER_WEIGHT = 160;
+
+    private ConsistentHashRing ring;
+
+    public ConsistentHash(ArrayList<Server> servers) {
+      this.ring = new ConsistentHashRing(servers, VNODES_PER_WEIGHT);
+    }
+
+    // Without a client address we have nothing to keep, any server will do.
+    @Override
+    public Server getServer() {
+      return ring.get(ThreadLocalRandom.current().nextLong());
+    }
+
+    // InetAddress.hashCode() is the address itself for IPv4 and a hash of it for IPv6, and
+    // unlike getAddress() it doesn't copy the address.
+    @Override
+    public Server getServer(InetAddress clientAddress) {
+      if (null == clientAddress) {
+        return getServer();
+      }
+      return ring.get(clientAddress.hashCode());
+    }
+  }
+
+  // Picks servers at random in proportion to their spare capacity, estimated from peaks of
+  // their byte rates by a CapacityEstimator. Tunnels through fast servers then get the
+  // bandwidth fast servers have, instead of every server getting the same share of tunnels
+  // and the slowest one holding them back.
+  protected class SpareCapacity implements LoadBalancer {
+    // How many servers we pick before we give up on finding one without recent failures.
+    private static final int MAX_SAMPLES = 4;
+
+    private ArrayList<Server> servers;
+    private CapacityEstimator capacityEstimator;
+
+    public SpareCapacity(ArrayList<Server> servers, CapacityEstimator capacityEstimator) {
+      this.servers = servers;
+      this.capacityEstimator = capacityEstimator;
+    }
+
+    @Override
+    public Server getServer() {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      // Estimates are up to a second old, so we check failures again.
+      for (int i = 0; i < MAX_SAMPLES; i++) {
+        Server server = capacityEstimator.pick(random.nextDouble());
+        if (null != server && server.failedCnt.getLastSecondCnt() == 0 &&
+            server.isHealthy()) {
+          return server;
+        }
       }
 
-      return leastUsedServer;
+      // All servers we picked have failures in the last second so we return one at random.
+      return new UniformRandom(servers).getServer();
     }
   }
 
@@ -138,24 +401,91 @@ public class TcpProxyServer implements ServerWithStats {
   // Port number where we want to listen for our clients.
   private int tcpProxyPort;
 
-  // This is our ServerSocket running on tcpProxyPort.
+  // This is our ServerSocket running on tcpProxyPort. Null in reactor mode where event loops
+  // of tunnelEngine listen on tcpProxyPort themselves.
   private ServerSocket tcpProxyService;
 
   // List of all servers we can use to tunnel our client trafic. We choose from this list
   // based on our load-balancing algorithm, and if we cannot connect we retry using next
-  // server until we establish the tunnel.
-  private ArrayList<Server> serverList;
+  // server until we establish the tunnel. Once we run, we replace the list instead of
+  // changing it when we add or remove servers.
+  private volatile ArrayList<Server> serverList;
+
+  private volatile LoadBalancer loadBalancer;
 
-  private LoadBalancer loadBalancer;
+  // Threads for blocking tunnels, ssh monitors and status handlers. Null for platform threads.
+  private ThreadFactory threadFactory;
+
+  // Event-loop engine for tunnels. Null if we use thread-per-direction TcpTunnel.
+  private NioTunnelEngine tunnelEngine;
+
+  // Bounded pool for blocking tunnels. Null if every tunnel direction gets its own thread.
+  private TunnelExecutor tunnelExecutor;
+
+  // Pool of direct buffers for tunnels. Null if tunnels copy through heap buffers.
+  private BufferPool bufferPool;
+
+  // Estimate capacity of our servers for SpareCapacity load balancers. Empty if we use another.
+  // Replaced together with load balancers.
+  private volatile ArrayList<CapacityEstimator> capacityEstimators;
+
+  // Tells short requests from bulk transfers. Null if we don't classify flows.
+  private FlowClassifier flowClassifier;
+
+  // Picks servers reserved for flows we predict to be mice, miceServerCnt servers of
+  // serverList. Null if we don't reserve any, loadBalancer picks among the others then.
+  private volatile LoadBalancer miceLoadBalancer;
+  private int miceServerCnt;
+
+  // Number of servers we don't pick when a load balancer picks them, because they're ejected
+  // or in slow start.
+  private AtomicInteger heldBackCnt;
+
+  // Adds and retires ssh tunnels as our traffic needs. Null if we keep the ones we started.
+  private TunnelAutoscaler tunnelAutoscaler;
+
+  // ssh master sessions our ssh tunnels share, in the order we started them. Empty if each
+  // tunnel runs its own ssh process. Guarded by our lock.
+  private ArrayList<SshMaster> sshMasters;
+
+  // Embedded ssh clients our servers tunnel through, one per jumphost. Empty if we use ssh
+  // processes or no jumphost.
+  private HashMap<JumpHost, SshTransport> sshTransports;
+
+  // Opens ssh channels for clients we accept, when we have embedded ssh clients. Opening one
+  // waits a round trip to the jumphost, so a few threads keep up with bursts of clients, and
+  // we reset clients that find all of them busy and the queue full instead of starting
+  // threads without bound. Null if we don't use embedded ssh clients.
+  private ThreadPoolExecutor sshConnectExecutor;
+  static final int SSH_CONNECT_THREADS = 32;
+  static final int SSH_CONNECT_QUEUE_DEPTH = 1024;
+
+  // Clients we reset because sshConnectExecutor was full.
+  final SecondMinuteHourCounter sshConnectRejectedCnt =
+      new SecondMinuteHourCounter("sshConnectRejectedCnt");
+
+  // Watches jumphosts our ssh tunnels spread over. Null if we have fewer than two.
+  private JumpHostMonitor jumpHostMonitor;
+
+  // Hands out local ports for our ssh tunnels.
+  private PortAllocator portAllocator;
+
+  // Most servers we let a load balancer pick for one client before we look ourselves.
+  static final int MAX_PICKS = 16;
+
+  // Connects clients we accept to servers. Null in reactor mode where event loops connect.
+  private ServerConnector serverConnector;
+
+  // Socket options for our listening socket and client connections.
+  private SocketOptionsProfile clientSocketOptions;
+
+  // Socket options as the OS set them on our first client connection.
+  private volatile String effectiveClientSocketOptions;
 
   private String name;
 
   private String version;
 
-  // transfer-accelerator uses by default ports in the range 48139 - 48160
-  private static final int START_PORT_RANGE = 48139;
-  private static final int MAX_NUM_SERVERS = 22;
-
   @Override
   public void setVersion(String version) {
     this.version = version;
@@ -181,60 +511,430 @@ public class TcpProxyServer implements ServerWithStats {
       lastHourByteRate += server.byteRateCnt.getLastHourCnt();
     }
 
-    String htmlServerStats = "";
-    htmlServerStats += "HTTP/1.0 200 OK\r\n";
-    htmlServerStats += "\r\n";
-    htmlServerStats += "<head><meta http-equiv=\"refresh\" content=\"5\" /></head>\r\n";
-    htmlServerStats += "<style> table, th, td { padding: 3px; border: 1px solid black;" +
-                       " border-collapse: collapse; text-align: right;} </style>\r\n";
-    htmlServerStats += "<TITLE>" + getServerName() + " Status</TITLE>\r\n";
+    StringBuilder htmlServerStats = new StringBuilder();
+    htmlServerStats.append("HTTP/1.0 200 OK\r\n");
+    htmlServerStats.append("\r\n");
+    htmlServerStats.append("<head><meta http-equiv=\"refresh\" content=\"5\" /></head>\r\n");
+    htmlServerStats.append("<style> table, th, td { padding: 3px; border: 1px solid black;" +
+                           " border-collapse: collapse; text-align: right;} </style>\r\n");
+    htmlServerStats.append("<TITLE>" + getServerName() + " Status</TITLE>\r\n");
+
+    htmlServerStats.append("<b>" + getServerName() + "</b> - " + tcpProxyPort +
+                           "<br/><br/><br/>\r\n");
+
+    htmlServerStats.append("<table>\r\n");
+    htmlServerStats.append("<tr><td><b>counters</b></td><td><b>values</b></td></tr>\r\n");
+
+    htmlServerStats.append("<tr><td>Open connections</td><td>" +
+                           (openedConnections - closedConnections) +
+                           "</td></tr>\r\n");
+
+    htmlServerStats.append("<tr><td><b>server</b> byte rate</td><td>" +
+                           "<table><tr>" +
+                           "<td>" + lastSecondByteRate + " B/s</td>" +
+                           "<td>" + lastMinuteByteRate + " B/min</td>" +
+                           "<td>" + lastHourByteRate + " B/h</td>" +
+                           "</tr></table>");
+
+    for (Server server : serverList) {
+      htmlServerStats.append("<tr><td><b>" + server.hostPort.toString() + "</b>" +
+                             " byte rate </td><td>" +
+                             "<table><tr>" +
+                             "<td>" + server.byteRateCnt.getLastSecondCnt() + " B/s</td>" +
+                             "<td>" + server.byteRateCnt.getLastMinuteCnt() + " B/min</td>" +
+                             "<td>" + server.byteRateCnt.getLastHourCnt() + " B/h</td>" +
+                             "</tr></table>" +
+                             "</td></tr>\r\n");
+    }
+
+    for (Server server : serverList) {
+      htmlServerStats.append("<tr><td><b>" + server.hostPort.toString() + "</b>" +
+                             " open tunnels </td>" +
+                             "<td>" + server.getOpenTunnelCnt() + "</td></tr>\r\n");
+    }
+
+    for (Server server : serverList) {
+      htmlServerStats.append("<tr><td><b>" + server.hostPort.toString() + "</b>" +
+                             " capacity </td>" +
+                             "<td><table><tr>" +
+                             "<td>weight " + server.getWeight() + "</td>" +
+                             (capacityEstimators.isEmpty() ? "" :
+                              "<td>" + server.getCapacityEstimate() + " B/s estimated</td>") +
+                             "</tr></table>" +
+                             "</td></tr>\r\n");
+    }
+
+    for (Server server : serverList) {
+      htmlServerStats.append("<tr><td><b>" + server.hostPort.toString() + "</b>" +
+                             " latency EWMA </td>" +
+                             "<td><table><tr>" +
+                             "<td>" + server.getConnectLatencyMicros() + " us connect</td>" +
+                             "<td>" + server.getFirstByteLatencyMicros() + " us first byte</td>" +
+                             "</tr></table>" +
+                             "</td></tr>\r\n");
+    }
+
+    for (Server server : serverList) {
+      htmlServerStats.append("<tr><td><b>" + server.hostPort.toString() + "</b>" +
+                             " failed connections </td>" +
+                             "<td><table><tr>" +
+                             "<td>" + server.failedCnt.getLastSecondCnt() + " /s</td>" +
+                             "<td>" + server.failedCnt.getLastMinuteCnt() + " /min</td>" +
+                             "<td>" + server.failedCnt.getLastHourCnt() + " /h</td>" +
+                             "</tr></table>" +
+                             "</td></tr>\r\n");
+    }
+
+    for (Server server : serverList) {
+      SshSession sshSession = server.getSshSession();
+      if (null != sshSession) {
+        String state = sshSession.getState();
+        if (ExecLoop.BACKING_OFF.equals(state)) {
+          state += " " + sshSession.getBackoffMilliseconds() + "ms";
+        }
+        long readyMillis = sshSession.getReadyMilliseconds();
+        htmlServerStats.append("<tr><td><b>" + server.hostPort.toString() + "</b>" +
+                               " ssh session </td>" +
+                               "<td><table><tr>" +
+                               "<td>" + state + "</td>" +
+                               "<td>" + (-1 == readyMillis ? "never ready" :
+                                         "ready in " + readyMillis + "ms") + "</td>" +
+                               "<td>" + sshSession.getRestartCnt() + " restarts</td>" +
+                               "<td>" + sshSession.getFailureCnt() + " failures in a row</td>" +
+                               "<td>" + sshSession.channelCnt.getLastMinuteCnt() +
+                               " channels /min</td>" +
+                               "<td>" + sshSession.failedChannelCnt.getLastMinuteCnt() +
+                               " failed channels /min</td>" +
+                               "<td>" + sshSession.getChannelMicros() + " us open</td>" +
+                               "<td>" + sshSession.getErrorCnt() + " errors</td>" +
+                               "<td>" + (null == sshSession.getLastErrorClass() ? "no errors" :
+                                         "last " + sshSession.getLastErrorClass() + ": " +
+                                         sshSession.getLastError()) + "</td>" +
+                               "</tr></table>" +
+                               "</td></tr>\r\n");
+        continue;
+      }
+      SshMaster sshMaster = server.getSshMaster();
+      if (null != sshMaster) {
+        htmlServerStats.append("<tr><td><b>" + server.hostPort.toString() + "</b>" +
+                               " ssh </td>" +
+                               "<td><table><tr>" +
+                               "<td>" + (server.isSshReady() ? "forwarded" : "not forwarded") +
+                               " via " + sshMaster.getControlPath() + "</td>" +
+                               "</tr></table>" +
+                               "</td></tr>\r\n");
+        continue;
+      }
+      ExecLoop sshProcess = server.getSshProcess();
+      if (null == sshProcess) {
+        continue;
+      }
+      htmlServerStats.append("<tr><td><b>" + server.hostPort.toString() + "</b>" +
+                             " ssh </td>" +
+                             "<td><table><tr>" +
+                             "<td>" + getSshStateString(sshProcess) + "</td>" +
+                             "<td>" + getSshReadyString(sshProcess) + "</td>" +
+                             "<td>" + sshProcess.getRestartCnt() + " restarts</td>" +
+                             "<td>" + sshProcess.getFailureCnt() + " failures in a row</td>" +
+                             "<td>" + sshProcess.getErrorCnt() + " errors</td>" +
+                             "<td>" + (null == sshProcess.getLastErrorClass() ? "no errors" :
+                                       "last " + sshProcess.getLastErrorClass() + ": " +
+                                       sshProcess.getLastErrorLine()) + "</td>" +
+                             "</tr></table>" +
+                             "</td></tr>\r\n");
+    }
+
+    synchronized (this) {
+      for (SshMaster sshMaster : sshMasters) {
+        ExecLoop sshProcess = sshMaster.getSshProcess();
+        htmlServerStats.append("<tr><td><b>" + sshMaster.getControlPath() + "</b>" +
+                               " ssh master </td>" +
+                               "<td><table><tr>" +
+                               "<td>" + getSshStateString(sshProcess) + "</td>" +
+                               "<td>" + getSshReadyString(sshProcess) + "</td>" +
+                               "<td>" + sshProcess.getRestartCnt() + " restarts</td>" +
+                               "<td>" + sshMaster.getForwardedCnt() + " / " +
+                               sshMaster.getServerCnt() + " forwarded (" +
+                               sshMaster.getMaxForwards() + " per master)</td>" +
+                               "<td>" + sshMaster.getCheckMicros() + " us check</td>" +
+                               "<td>" + sshMaster.getCheckFailureCnt() + " failed checks</td>" +
+                               "<td>" + sshMaster.getForwardMicros() + " us forward</td>" +
+                               "<td>" + sshMaster.getForwardCnt() + " forwards</td>" +
+                               "<td>" + sshMaster.getForwardFailureCnt() + " failed forwards</td>" +
+                               "<td>" + sshMaster.getCancelCnt() + " cancels</td>" +
+                               "<td>" + (null == sshProcess.getLastErrorClass() ? "no errors" :
+                                         "last " + sshProcess.getLastErrorClass() + ": " +
+                                         sshProcess.getLastErrorLine()) + "</td>" +
+                               "</tr></table>" +
+                               "</td></tr>\r\n");
+      }
+    }
+
+    long now = System.currentTimeMillis();
+    for (Server server : serverList) {
+      HealthChecker healthChecker = server.getHealthChecker();
+      if (null == healthChecker) {
+        continue;
+      }
+      String state = healthChecker.getStateName();
+      if (HealthChecker.SLOW_START == healthChecker.getState()) {
+        state += " " + Math.round(100 * healthChecker.getTrafficShare(now)) + "%";
+      } else if (HealthChecker.EJECTED == healthChecker.getState()) {
+        state += " for " + Math.max(0, healthChecker.getEjectedUntilMillis() - now) + "ms";
+      }
+      htmlServerStats.append("<tr><td><b>" + server.hostPort.toString() + "</b>" +
+                             " health </td>" +
+                             "<td><table><tr>" +
+                             "<td>" + state + "</td>" +
+                             "<td>" + healthChecker.getConsecutiveFailures() +
+                             " failures in a row</td>" +
+                             "<td>" + healthChecker.getEjectionCnt() + " ejections</td>" +
+                             "<td>" + (null == healthChecker.getLastProbeError() ?
+                                       healthChecker.getLastProbeMicros() + " us probe" :
+                                       "probe failed: " + healthChecker.getLastProbeError()) +
+                             "</td>" +
+                             "<td>" + (null == healthChecker.getLastTransition() ? "no changes" :
+                                       healthChecker.getLastTransition() + " " +
+                                       (now - healthChecker.getLastTransitionMillis()) +
+                                       "ms ago") + "</td>" +
+                             "</tr></table>" +
+                             "</td></tr>\r\n");
+    }
+    if (config.healthCheckMilliseconds > 0) {
+      htmlServerStats.append("<tr><td>health checks</td><td>" +
+                             "<table><tr>" +
+                             "<td>" + (null == config.healthCheckPath ? "TCP" :
+                                       "HTTP GET " + config.healthCheckPath) +
+                             " every " + config.healthCheckMilliseconds + "ms</td>" +
+                             "<td>" + heldBackCnt.get() + " picks held back</td>" +
+                             "</tr></table>" +
+                             "</td></tr>\r\n");
+    }
+
+    if (null != flowClassifier) {
+      String[] classNames = {"mice", "elephants"};
+      for (int flowClass = FlowClassifier.MICE; flowClass <= FlowClassifier.ELEPHANTS;
+           flowClass++) {
+        htmlServerStats.append("<tr><td><b>" + classNames[flowClass] + "</b></td>" +
+                               "<td><table><tr>" +
+                               "<td>" + flowClassifier.getOpenCnt(flowClass) + " open</td>" +
+                               "<td>" + flowClassifier.getFinishedCnt(flowClass) + " closed</td>" +
+                               "<td>" + flowClassifier.getByteCnt(flowClass) + " B</td>" +
+                               "<td>" + flowClassifier.getFirstByteLatencyMicros(flowClass) +
+                               " us first byte</td>" +
+                               "<td>" + flowClassifier.getThroughput(flowClass) + " B/s</td>" +
+                               "</tr></table>" +
+                               "</td></tr>\r\n");
+      }
+      htmlServerStats.append("<tr><td>flow classes</td><td>" +
+                             "<table><tr>" +
+                             "<td>elephants from " + flowClassifier.getElephantBytes() / 1024 +
+                             "KB</td>" +
+                             "<td>" + flowClassifier.getMissedElephantCnt() +
+                             " elephants predicted as mice</td>" +
+                             "<td>" + flowClassifier.getMissedMouseCnt() +
+                             " mice predicted as elephants</td>" +
+                             "<td>" + (null == miceLoadBalancer ? "no" :
+                                       getReservedForMiceCnt(serverList)) +
+                             " servers reserved for mice</td>" +
+                             "</tr></table>" +
+                             "</td></tr>\r\n");
+    }
+
+    for (SshTransport sshTransport : sshTransports.values()) {
+      htmlServerStats.append("<tr><td><b>" + sshTransport.getJumpHost() + "</b>" +
+                             " embedded ssh client</td><td>" +
+                             "<table><tr>" +
+                             "<td>" + sshTransport.getWindowBytes() + " B window</td>" +
+                             "<td>" + sshTransport.getPacketBytes() + " B max packet</td>" +
+                             "</tr></table>" +
+                             "</td></tr>\r\n");
+    }
+    if (null != sshConnectExecutor) {
+      htmlServerStats.append("<tr><td>ssh channel opens</td><td>" +
+                             "<table><tr>" +
+                             "<td>" + sshConnectExecutor.getActiveCount() + " / " +
+                             SSH_CONNECT_THREADS + " threads busy</td>" +
+                             "<td>" + sshConnectExecutor.getQueue().size() + " / " +
+                             SSH_CONNECT_QUEUE_DEPTH + " queued</td>" +
+                             "<td>" + sshConnectRejectedCnt.getLastMinuteCnt() +
+                             " rejected /min</td>" +
+                             "<td>" + sshConnectRejectedCnt.getTotalCnt() +
+                             " rejected total</td>" +
+                             "</tr></table>" +
+                             "</td></tr>\r\n");
+    }
+
+    if (null != jumpHostMonitor) {
+      for (JumpHostMonitor.Group group : jumpHostMonitor.getGroups()) {
+        String transition = group.getLastTransition();
+        htmlServerStats.append("<tr><td><b>" + group.getJumpHost() + "</b>" +
+                               " jumphost </td>" +
+                               "<td><table><tr>" +
+                               "<td>" + group.getStateName() + "</td>" +
+                               "<td>" + group.getReadyServerCnt() + " of " +
+                               group.getServerCnt() + " tunnels ready</td>" +
+                               "<td>" + group.getByteRate() + " B/s</td>" +
+                               "<td>" + group.getCapacityByteRate() +
+                               " B/s capacity</td>" +
+                               "<td>" + Math.round(100 * group.getUtilization()) +
+                               "% utilized</td>" +
+                               "<td>" + Math.round(100 * group.getTrafficShare()) +
+                               "% of picks</td>" +
+                               "<td>" + group.getDownCnt() + " times down</td>" +
+                               "<td>" + (null == transition ? "no transitions" :
+                                         "last " + transition) + "</td>" +
+                               "</tr></table>" +
+                               "</td></tr>\r\n");
+      }
+    }
+
+    if (null != tunnelAutoscaler) {
+      htmlServerStats.append("<tr><td>ssh tunnel autoscaler</td><td>" +
+                             "<table><tr>" +
+                             "<td>" + serverList.size() + " tunnels (" +
+                             tunnelAutoscaler.getMinServers() + " to " +
+                             tunnelAutoscaler.getMaxServers() + ")</td>" +
+                             "<td>" + tunnelAutoscaler.getDrainingCnt() + " draining</td>" +
+                             "<td>" + Math.round(100 * tunnelAutoscaler.getUtilization()) +
+                             "% utilized</td>" +
+                             "<td>" + tunnelAutoscaler.getCapacityByteRate() +
+                             " B/s per tunnel capacity</td>" +
+                             "<td>" + tunnelAutoscaler.getScaleUpCnt() + " added</td>" +
+                             "<td>" + tunnelAutoscaler.getScaleDownCnt() + " retired</td>" +
+                             "<td>" + tunnelAutoscaler.getFailedStartCnt() +
+                             " failed to start</td>" +
+                             "</tr></table>" +
+                             "</td></tr>\r\n");
+    }
 
-    htmlServerStats += "<b>" + getServerName() + "</b> - " + tcpProxyPort + "<br/><br/><br/>\r\n";
+    if (null != config.jumphost) {
+      htmlServerStats.append("<tr><td>local ports</td><td>" +
+                             "<table><tr>" +
+                             "<td>" + portAllocator.getFirstPort() + "-" +
+                             (portAllocator.getFirstPort() + portAllocator.getNumPorts() - 1) +
+                             "</td>" +
+                             "<td>" + portAllocator.getUsedCnt() + " used</td>" +
+                             "<td>" + portAllocator.getConflictCnt() + " taken by others</td>" +
+                             "</tr></table>" +
+                             "</td></tr>\r\n");
+    }
 
-    htmlServerStats += "<table>\r\n";
-    htmlServerStats += "<tr><td><b>counters</b></td><td><b>values</b></td></tr>\r\n";
+    htmlServerStats.append("<tr><td>tunnel engine</td><td>" +
+                           (null == tunnelEngine ? "blocking" :
+                            config.tunnelEngineString + " (" + tunnelEngine.getNumThreads() +
+                            " threads)") +
+                           "</td></tr>\r\n");
+
+    if (null == serverConnector && null != tunnelEngine) {
+      htmlServerStats.append("<tr><td>server connects</td><td>" +
+                             tunnelEngine.timeoutCnt.getTotalCnt() + " timed out (" +
+                             config.connectTimeoutMilliseconds + "ms)" +
+                             "</td></tr>\r\n");
+    }
+    if (null != serverConnector) {
+      htmlServerStats.append("<tr><td>server connects</td><td>" +
+                             "<table><tr>" +
+                             "<td>" + serverConnector.getPendingCnt() + " pending</td>" +
+                             "<td>" + serverConnector.timeoutCnt.getTotalCnt() + " timed out (" +
+                             serverConnector.getConnectTimeoutMillis() + "ms)</td>" +
+                             "<td>" + serverConnector.hedgeCnt.getTotalCnt() + " hedged (" +
+                             (serverConnector.getHedgeMillis() > 0 ?
+                              serverConnector.getHedgeMillis() + "ms" : "off") + ")</td>" +
+                             "<td>" + serverConnector.hedgeWinCnt.getTotalCnt() +
+                             " won by hedge</td>" +
+                             "</tr></table>" +
+                             "</td></tr>\r\n");
+    }
 
-    htmlServerStats += "<tr><td>Open connections</td><td>" +
-                       (openedConnections - closedConnections) +
-                       "</td></tr>\r\n";
+    if (null != tunnelExecutor) {
+      htmlServerStats.append("<tr><td>tunnel pool</td><td>" +
+                             "<table><tr>" +
+                             "<td>" + tunnelExecutor.getActiveCount() + " active</td>" +
+                             "<td>" + tunnelExecutor.getPoolSize() + " threads</td>" +
+                             "<td>" + tunnelExecutor.getQueueSize() + "/" +
+                             tunnelExecutor.getQueueDepth() + " queued</td>" +
+                             "<td>" + tunnelExecutor.getQueueFullPolicy() + " when full</td>" +
+                             "</tr></table>" +
+                             "</td></tr>\r\n");
+      htmlServerStats.append("<tr><td>rejected tunnels</td>" +
+                             "<td><table><tr>" +
+                             "<td>" + tunnelExecutor.rejectedCnt.getLastSecondCnt() + " /s</td>" +
+                             "<td>" + tunnelExecutor.rejectedCnt.getLastMinuteCnt() + " /min</td>" +
+                             "<td>" + tunnelExecutor.rejectedCnt.getLastHourCnt() + " /h</td>" +
+                             "<td>" + tunnelExecutor.rejectedCnt.getTotalCnt() + " total</td>" +
+                             "</tr></table>" +
+                             "</td></tr>\r\n");
+      htmlServerStats.append("<tr><td>overflow tunnel threads</td><td>" +
+                             tunnelExecutor.overflowCnt.getTotalCnt() + "</td></tr>\r\n");
+    }
 
-    htmlServerStats += "<tr><td><b>server</b> byte rate</td><td>" +
-                       "<table><tr>" +
-                       "<td>" + lastSecondByteRate + " B/s</td>" +
-                       "<td>" + lastMinuteByteRate + " B/min</td>" +
-                       "<td>" + lastHourByteRate + " B/h</td>" +
-                       "</tr></table>";
+    if (null != bufferPool) {
+      htmlServerStats.append("<tr><td>buffer pool</td><td>" +
+                             "<table><tr>" +
+                             "<td>" + bufferPool.getHitRatePercent() + "% hit rate</td>" +
+                             "<td>" + bufferPool.getMissCnt() + " allocated</td>" +
+                             "<td>" + bufferPool.getHeapCnt() + " heap fallbacks</td>" +
+                             "<td>" + bufferPool.getReservedBytes() + " B reserved</td>" +
+                             "<td>" + bufferPool.getHighWaterBytes() + " B high-water</td>" +
+                             "<td>" + bufferPool.getMaxReservedBytes() + " B max</td>" +
+                             "</tr></table>" +
+                             "</td></tr>\r\n");
+      htmlServerStats.append("<tr><td>tunnel buffers in use / acquired</td><td><table><tr>");
+      for (int i = 0; i < bufferPool.getNumSizeClasses(); i++) {
+        htmlServerStats.append("<td>" + bufferPool.getSizeClassBufferSize(i) / 1024 + "KB: " +
+                               bufferPool.getInUseCnt(i) + " / " + bufferPool.getAcquireCnt(i) +
+                               "</td>");
+      }
+      htmlServerStats.append("</tr></table></td></tr>\r\n");
+    }
 
+    htmlServerStats.append("<tr><td><b>client</b> socket options</td><td>" +
+                           "<table><tr>" +
+                           "<td>" + clientSocketOptions + "</td>" +
+                           "<td>effective: " + effectiveClientSocketOptions + "</td>" +
+                           "</tr></table>" +
+                           "</td></tr>\r\n");
     for (Server server : serverList) {
-      htmlServerStats += "<tr><td><b>" + server.hostPort.toString() + "</b> byte rate </td><td>" +
-                         "<table><tr>" +
-                         "<td>" + server.byteRateCnt.getLastSecondCnt() + " B/s</td>" +
-                         "<td>" + server.byteRateCnt.getLastMinuteCnt() + " B/min</td>" +
-                         "<td>" + server.byteRateCnt.getLastHourCnt() + " B/h</td>" +
-                         "</tr></table>" +
-                         "</td></tr>\r\n";
+      htmlServerStats.append("<tr><td><b>" + server.hostPort.toString() + "</b>" +
+                             " socket options </td>" +
+                             "<td><table><tr>" +
+                             "<td>" + server.socketOptions + "</td>" +
+                             "<td>effective: " + server.effectiveSocketOptions + "</td>" +
+                             "</tr></table>" +
+                             "</td></tr>\r\n");
     }
 
     for (Server server : serverList) {
-      htmlServerStats += "<tr><td><b>" + server.hostPort.toString() + "</b>" +
-                         " failed connections </td>" +
-                         "<td><table><tr>" +
-                         "<td>" + server.failedCnt.getLastSecondCnt() + " /s</td>" +
-                         "<td>" + server.failedCnt.getLastMinuteCnt() + " /min</td>" +
-                         "<td>" + server.failedCnt.getLastHourCnt() + " /h</td>" +
-                         "</tr></table>" +
-                         "</td></tr>\r\n";
+      ServerConnectionPool connectionPool = server.getConnectionPool();
+      if (null == connectionPool) {
+        continue;
+      }
+      htmlServerStats.append("<tr><td><b>" + server.hostPort.toString() + "</b>" +
+                             " connection pool </td>" +
+                             "<td><table><tr>" +
+                             "<td>" + connectionPool.getIdleCnt() + "/" +
+                             connectionPool.getSize() + " idle</td>" +
+                             "<td>" + connectionPool.getHitCnt() + " hits</td>" +
+                             "<td>" + connectionPool.getMissCnt() + " misses</td>" +
+                             "<td>" + connectionPool.getEvictedCnt() + " evicted</td>" +
+                             "<td>" + connectionPool.getAvgConnectMicros() +
+                             " us per connect</td>" +
+                             "<td>" + connectionPool.getSavedMillis() + " ms saved</td>" +
+                             "</tr></table>" +
+                             "</td></tr>\r\n");
     }
 
-    htmlServerStats += "<tr><td>opened connections</td><td>" + openedConnections +
-                       "</td></tr>\r\n";
-    htmlServerStats += "<tr><td>closed connections</td><td>" + closedConnections +
-                       "</td></tr>\r\n";
-    htmlServerStats += "</table>\r\n";
+    htmlServerStats.append("<tr><td>opened connections</td><td>" + openedConnections +
+                           "</td></tr>\r\n");
+    htmlServerStats.append("<tr><td>closed connections</td><td>" + closedConnections +
+                           "</td></tr>\r\n");
+    htmlServerStats.append("</table>\r\n");
 
-    htmlServerStats += "Healthy servers " + getHealthyServerCnt() + " out of " + serverList.size();
+    htmlServerStats.append("Healthy servers " + getHealthyServerCnt() + " out of " +
+                           serverList.size());
 
-    return htmlServerStats;
+    return htmlServerStats.toString();
   }
 
   @Override
@@ -242,6 +942,35 @@ public class TcpProxyServer implements ServerWithStats {
     return 0 != getHealthyServerCnt();
   }
 
+  @Override
+  public String getServerHealthJson() {
+    long now = System.currentTimeMillis();
+    StringBuilder json = new StringBuilder("[");
+    for (Server server : serverList) {
+      if (json.length() > 1) {
+        json.append(", ");
+      }
+      json.append("{ \"server\" : " + Json.quote(server.hostPort.toString()) + ", " +
+                  "\"healthy\" : " + server.isHealthy());
+      HealthChecker healthChecker = server.getHealthChecker();
+      if (null != healthChecker) {
+        json.append(", \"state\" : " + Json.quote(healthChecker.getStateName()) + ", " +
+                    "\"traffic_share\" : " + healthChecker.getTrafficShare(now) + ", " +
+                    "\"ejections\" : " + healthChecker.getEjectionCnt() + ", " +
+                    "\"transitions\" : " + healthChecker.getTransitionCnt());
+        String lastTransition = healthChecker.getLastTransition();
+        if (null != lastTransition) {
+          // Carries the message of whatever exception failed the last probe.
+          json.append(", \"last_transition\" : " + Json.quote(lastTransition) + ", " +
+                      "\"last_transition_ms_ago\" : " +
+                      (now - healthChecker.getLastTransitionMillis()));
+        }
+      }
+      json.append(" }");
+    }
+    return json.append("]").toString();
+  }
+
   private int getHealthyServerCnt() {
     int healthyCnt = 0;
     for (Server server : serverList) {
@@ -255,91 +984,661 @@ public class TcpProxyServer implements ServerWithStats {
   public TcpProxyServer(String name) {
     this.name = name;
     serverList = new ArrayList<Server>();
+    capacityEstimators = new ArrayList<CapacityEstimator>();
+    heldBackCnt = new AtomicInteger(0);
+    sshMasters = new ArrayList<SshMaster>();
+    sshTransports = new HashMap<JumpHost, SshTransport>();
+    jumpHostMonitor = null;
+    threadFactory = null;
+  }
+
+  private static String getSshStateString(ExecLoop sshProcess) {
+    String state = sshProcess.getState();
+    if (ExecLoop.BACKING_OFF.equals(state)) {
+      state += " " + sshProcess.getBackoffMilliseconds() + "ms";
+    }
+    return state;
+  }
+
+  // How long the last ssh process we started took to get ready.
+  private static String getSshReadyString(ExecLoop sshProcess) {
+    long readyMillis = sshProcess.getReadyMilliseconds();
+    return -1 == readyMillis ? "never ready" : "ready in " + readyMillis + "ms";
   }
 
   public void init(ProxyConfiguration conf) {
     config = conf;
+    clientSocketOptions = config.socketOptionsProfiles.get(config.clientSocketOptions);
+
+    // Threads for blocking tunnels, ssh monitors, background checks and status handlers.
+    if (config.virtualThreads) {
+      threadFactory = Thread.ofVirtual().factory();
+      LOG.info("Using virtual threads.");
+    }
 
     // Launch ServerStats thread.
-    new Thread(new ServerStatus(this, config.statusPort)).start();
+    new Thread(new ServerStatus(this, config.statusPort, threadFactory)).start();
+
+    // Pool of direct buffers for tunnels.
+    if (config.bufferPoolMaxMegabytes > 0) {
+      bufferPool = new BufferPool(TcpTunnel.BUFFER_SIZE, config.tunnelBufferMaxKilobytes * 1024,
+                                  config.bufferPoolMaxMegabytes * 1024 * 1024);
+    }
+
+    // Start nio tunnel engine if we don't want thread-per-direction tunnels.
+    if (!config.tunnelEngineString.equals("blocking")) {
+      try {
+        tunnelEngine = new NioTunnelEngine(config.nioThreads, bufferPool);
+        tunnelEngine.setConnectTimeoutMillis(config.connectTimeoutMilliseconds);
+        tunnelEngine.start();
+        LOG.info("Using " + config.tunnelEngineString + " tunnel engine with " +
+                 config.nioThreads + " threads.");
+      } catch (IOException ioe) {
+        LOG.error("IO exception while starting nio tunnel engine: " + ioe.getMessage());
+        System.exit(1);
+      }
+    }
+
+    // Start bounded pool for blocking tunnels.
+    if (config.tunnelPoolSize > 0) {
+      tunnelExecutor = new TunnelExecutor(config.tunnelPoolSize, config.tunnelQueueDepth,
+                                          config.tunnelQueueFullPolicy,
+                                          config.tunnelQueueWaitMilliseconds);
+      LOG.info("Using tunnel pool with " + config.tunnelPoolSize + " threads.");
+    }
+
+    // Maybe tunnel through channels of our own ssh clients instead of ssh processes.
+    if (config.sshTransportString.equals("embedded")) {
+      for (JumpHost jumphost : config.jumphosts) {
+        SshTransport sshTransport = new SshTransport(jumphost,
+                                                     config.sshWindowKilobytes * 1024L,
+                                                     config.sshPacketKilobytes * 1024L);
+        sshTransport.start();
+        sshTransports.put(jumphost, sshTransport);
+      }
+      sshConnectExecutor = new ThreadPoolExecutor(
+          SSH_CONNECT_THREADS, SSH_CONNECT_THREADS, 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(SSH_CONNECT_QUEUE_DEPTH),
+          null == threadFactory ? Executors.defaultThreadFactory() : threadFactory);
+    }
 
-    // Initialize servers and optional ssh tunnels via jumphost.
+    // Maybe spread ssh tunnels over jumphosts and avoid those that fail or are overloaded.
+    if (config.jumphosts.size() > 1) {
+      jumpHostMonitor = new JumpHostMonitor(config.jumphosts, JumpHostMonitor.CHECK_MILLIS,
+                                            config.ejectionMilliseconds);
+      if (null != threadFactory) {
+        jumpHostMonitor.setThreadFactory(threadFactory);
+      }
+    }
+
+    // Local ports for ssh tunnels, except those we or servers we were given listen on.
+    portAllocator = new PortAllocator(config.firstLocalPort, config.localPorts);
+    portAllocator.reserve(config.listeningPort);
+    portAllocator.reserve(config.statusPort);
     for (HostPort serverHostPort : config.serverHostPortList) {
-      Server server = null;
-      if (null == config.jumphost) {
-        server = new Server(serverHostPort);
-      } else {
-        server = new Server(serverHostPort, config.jumphost);
-        server.startJumphostThread();
+      if (0 != serverHostPort.port) {
+        portAllocator.reserve(serverHostPort.port);
+      }
+    }
+
+    // Initialize servers and optional ssh tunnels via jumphosts.
+    ArrayList<Server> servers = new ArrayList<Server>();
+    ArrayList<JumpHost> serverJumpHosts =
+        config.spreadServers(config.serverHostPortList.size());
+    for (int i = 0; i < config.serverHostPortList.size(); i++) {
+      HostPort serverHostPort = config.serverHostPortList.get(i);
+      PortAllocator serverPortAllocator = null;
+      // Port 0 stands for a local port we pick, see ProxyConfiguration.
+      if (0 == serverHostPort.port) {
+        int port = portAllocator.allocate();
+        if (-1 == port) {
+          LOG.error("No free local port in " + config.firstLocalPort + "-" +
+                    (config.firstLocalPort + config.localPorts - 1) + " for ssh tunnel " + i);
+          System.exit(1);
+        }
+        serverHostPort = new HostPort(serverHostPort.host, port);
+        serverPortAllocator = portAllocator;
+      }
+      Server server = newServer(serverHostPort,
+                                serverJumpHosts.isEmpty() ? null : serverJumpHosts.get(i),
+                                serverPortAllocator);
+      startServerChecks(server);
+      servers.add(server);
+    }
+
+    // Maybe classify flows and reserve servers for mice.
+    if (config.elephantKilobytes > 0) {
+      flowClassifier = new FlowClassifier(config.elephantKilobytes * 1024,
+                                          config.elephantPattern);
+    }
+    miceServerCnt = config.miceServers;
+    // Servers stay in their class for good, so that servers autoscaler adds or retires don't
+    // move others, and tunnels they have, from one class to the other.
+    if (miceServerCnt > 0 && servers.size() > miceServerCnt) {
+      for (int i = servers.size() - miceServerCnt; i < servers.size(); i++) {
+        servers.get(i).setReservedForMice(true);
+      }
+    }
+
+    // Set load balancers.
+    setServers(servers);
+
+    // ssh tunnels start in parallel, we take clients as soon as the first one is ready.
+    if (null != config.jumphost) {
+      waitForFirstReadyServer(Server.SSH_READY_TIMEOUT_MILLIS);
+    }
+
+    // Watch jumphosts once our first tunnel came up, not while all of them start.
+    if (null != jumpHostMonitor) {
+      jumpHostMonitor.start();
+    }
+
+    // Maybe add and retire ssh tunnels as our traffic needs.
+    if (config.autoscaleMaxServers > 0) {
+      int minServers = config.autoscaleMinServers > 0 ? config.autoscaleMinServers :
+                                                        servers.size();
+      tunnelAutoscaler = new TunnelAutoscaler(this, minServers, config.autoscaleMaxServers,
+                                              config.autoscaleMilliseconds, portAllocator);
+      if (null != threadFactory) {
+        tunnelAutoscaler.setThreadFactory(threadFactory);
       }
-      assert null != server;
-      serverList.add(server);
+      tunnelAutoscaler.start();
+      LOG.info("Scaling ssh tunnels between " + minServers + " and " +
+               config.autoscaleMaxServers + ".");
     }
 
     // Open our listening port.
     tcpProxyPort = config.listeningPort;
     try {
-      tcpProxyService = new ServerSocket(tcpProxyPort);
+      if (config.tunnelEngineString.equals("reactor")) {
+        // Each event loop listens and accepts on its own, we don't need tcpProxyService.
+        boolean reusePort = tunnelEngine.listen(tcpProxyPort, this);
+        if (!reusePort) {
+          LOG.info("SO_REUSEPORT not supported, event loops share one listening channel.");
+        }
+      } else {
+        // Accepted sockets need a channel so that we can hand them over to the engine, or
+        // copy through direct buffers in TcpTunnel.
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        clientSocketOptions.bind(serverChannel, new InetSocketAddress(tcpProxyPort));
+        tcpProxyService = serverChannel.socket();
+        serverConnector = new ServerConnector(this, config.connectTimeoutMilliseconds,
+                                              config.hedgeMilliseconds);
+        serverConnector.setFlowPeekMillis(config.flowPeekMilliseconds);
+        serverConnector.start();
+      }
       LOG.info("Listening for incoming clients on port " + tcpProxyPort);
     } catch (IOException ioe) {
       LOG.error("IO exception while establishing proxy service on port " + tcpProxyPort);
       System.exit(1);
     }
+  }
 
-    // Set load balancer.
-    if (config.loadBalancerString.equals("LeastUsed")) {
-      loadBalancer = new LeastUsed(getServerList());
-    } else if (config.loadBalancerString.equals("UniformRandom")) {
-      loadBalancer = new UniformRandom(getServerList());
-    } else {
-      loadBalancer = new RoundRobin(getServerList());
+  SocketOptionsProfile getClientSocketOptions() {
+    return clientSocketOptions;
+  }
+
+  /*
+   *  Applies our client socket options to a newly accepted client connection.
+   */
+  void applyClientSocketOptions(SocketChannel clientChannel) throws IOException {
+    if (null == clientSocketOptions) {
+      return;
+    }
+    clientSocketOptions.apply(clientChannel);
+    if (null == effectiveClientSocketOptions) {
+      effectiveClientSocketOptions = SocketOptionsProfile.effectiveOptions(clientChannel);
     }
-    setLoadBalancer(loadBalancer);
   }
 
   public ArrayList<Server> getServerList() {
     return serverList;
   }
 
-  public void setupTunnel(Socket clientSocket) {
-    final int RETRY_MAX = 3;
-    for (int i = 0; i < RETRY_MAX; i++) {
-      Server server = loadBalancer.getServer();
-      try {
-        server.establishTunnel(clientSocket);
-        break;
-      } catch (IOException ioe) {
-        LOG.error("Error while connecting to server " +
-                  server.hostPort);
-        server.incrementFailedConn();
+  /*
+   *  Creates a server with our settings, and starts its ssh tunnel through the jumphost that
+   *  has most room if we use jumphosts. Load balancers don't know it until we addServer it.
+   *
+   *  @param portAllocator  Handed out local port of server, null if its port is fixed.
+   */
+  Server newServer(HostPort serverHostPort, PortAllocator portAllocator) {
+    JumpHost jumphost = config.jumphost;
+    if (null != jumpHostMonitor) {
+      jumphost = jumpHostMonitor.pickJumpHost();
+      if (null == jumphost) {
+        // All are down, one of them has to come back.
+        jumphost = config.jumphost;
       }
     }
+    return newServer(serverHostPort, jumphost, portAllocator);
   }
 
-  public void runListeningLoop() {
-    while (!tcpProxyService.isClosed()) {
-      try {
-        Socket clientSocket = null;
-        clientSocket = tcpProxyService.accept();
-        if (null != clientSocket) {
-          setupTunnel(clientSocket);
-        }
-      } catch (IOException ioe) {
-        LOG.error("IOException while accepting connection: " + ioe.getMessage());
+  /*
+   *  Creates a server with our settings, and starts its ssh tunnel if we use a jumphost.
+   *  Load balancers don't know it until we addServer it.
+   *
+   *  @param jumphost       Jumphost the server tunnels through, null if it doesn't.
+   *  @param portAllocator  Handed out local port of server, null if its port is fixed.
+   */
+  Server newServer(HostPort serverHostPort, JumpHost jumphost, PortAllocator portAllocator) {
+    Server server = null;
+    if (null == jumphost) {
+      server = new Server(serverHostPort);
+    } else {
+      server = new Server(serverHostPort, jumphost);
+    }
+    if (null != threadFactory) {
+      server.setThreadFactory(threadFactory);
+    }
+    if (null != jumpHostMonitor) {
+      server.setJumpHostGroup(jumpHostMonitor.getGroup(jumphost));
+    }
+    if (null != portAllocator) {
+      server.setPortAllocator(portAllocator);
+    }
+    if (!sshTransports.isEmpty()) {
+      server.setSshSession(new SshSession(sshTransports.get(jumphost),
+                                          serverHostPort.toString(),
+                                          Server.SSH_READY_TIMEOUT_MILLIS,
+                                          config.connectTimeoutMilliseconds));
+    } else if (null != jumphost) {
+      if (config.sshMasters > 0) {
+        server.setSshMaster(getSshMaster(jumphost));
+      } else {
+        server.startJumphostThread();
       }
     }
+    assert null != server;
+    server.setWeight(config.getServerWeight(serverHostPort));
+    server.setTunnelEngine(tunnelEngine);
+    server.setTunnelExecutor(tunnelExecutor);
+    server.setBufferPool(bufferPool);
+    server.setByteRateFlush(config.byteRateFlushKilobytes * 1024,
+                            config.byteRateFlushMilliseconds);
+    server.setSocketOptions(config.getServerSocketOptions(serverHostPort));
+    return server;
   }
 
-  public void stop() {
-    for (Server server: serverList) {
-      server.close();
+  /*
+   *  Picks the ssh master session to jumphost for a new ssh tunnel: the one with the fewest
+   *  tunnels if it has fewer than forwardsPerMaster, else a new one while jumphost has fewer
+   *  than sshMasters.
+   */
+  private synchronized SshMaster getSshMaster(JumpHost jumphost) {
+    SshMaster leastUsed = null;
+    int jumphostMasterCnt = 0;
+    for (SshMaster sshMaster : sshMasters) {
+      if (sshMaster.getJumpHost() != jumphost) {
+        continue;
+      }
+      jumphostMasterCnt++;
+      if (null == leastUsed || sshMaster.getServerCnt() < leastUsed.getServerCnt()) {
+        leastUsed = sshMaster;
+      }
+    }
+    if (null != leastUsed && (leastUsed.getServerCnt() < config.forwardsPerMaster ||
+                              jumphostMasterCnt >= config.sshMasters)) {
+      return leastUsed;
     }
+    SshMaster sshMaster = new SshMaster(jumphost,
+                                        SshMaster.controlPath(sshMasters.size()),
+                                        config.forwardsPerMaster, threadFactory);
+    sshMaster.start();
+    sshMasters.add(sshMaster);
+    LOG.info("Started ssh master " + sshMaster.getControlPath());
+    return sshMaster;
   }
 
-  @Override
-  public String getServerName() {
-    return name;
-  }
+  // Starts connection pool and health checks of server, once it can take connections.
+  private void startServerChecks(Server server) {
+    if (config.serverPoolSize > 0) {
+      server.setConnectionPool(new ServerConnectionPool(server, config.serverPoolSize,
+                                                        config.serverPoolMaxIdleMilliseconds,
+                                                        config.connectTimeoutMilliseconds));
+    }
+    if (config.healthCheckMilliseconds > 0) {
+      // A probe that takes longer than our interval would delay the next one.
+      long probeTimeoutMillis = Math.min(config.connectTimeoutMilliseconds,
+                                         config.healthCheckMilliseconds);
+      server.setHealthChecker(new HealthChecker(server, config.healthCheckMilliseconds,
+                                                probeTimeoutMillis, config.healthCheckPath,
+                                                config.healthCheckFailures,
+                                                config.ejectionMilliseconds,
+                                                config.slowStartMilliseconds));
+    }
+  }
+
+  // Waits until one of our servers is ready, at most timeoutMillis.
+  private void waitForFirstReadyServer(long timeoutMillis) {
+    long startMillis = System.currentTimeMillis();
+    while (System.currentTimeMillis() - startMillis < timeoutMillis) {
+      // Autoscaler may replace serverList while we look.
+      ArrayList<Server> servers = serverList;
+      for (Server server : servers) {
+        if (server.isSshReady()) {
+          LOG.info("ssh tunnel " + server.hostPort + " ready after " +
+                   (System.currentTimeMillis() - startMillis) + "ms.");
+          return;
+        }
+      }
+      try {
+        Thread.sleep(ExecLoop.READY_POLL_MILLISECONDS);
+      } catch (InterruptedException ie) {
+        LOG.debug("Interrupted while waiting for ssh tunnels.");
+      }
+    }
+    LOG.warn("No ssh tunnel ready after " + timeoutMillis + "ms, taking clients anyway.");
+  }
+
+  /*
+   *  Adds server we created with newServer to load balancers.
+   */
+  synchronized void addServer(Server server) {
+    startServerChecks(server);
+    // New server takes the place of servers for mice that autoscaler retired, as long as we
+    // have servers for elephants.
+    int reservedCnt = getReservedForMiceCnt(serverList);
+    if (reservedCnt < miceServerCnt && reservedCnt < serverList.size()) {
+      server.setReservedForMice(true);
+    }
+    ArrayList<Server> servers = new ArrayList<Server>(serverList);
+    servers.add(server);
+    setServers(servers);
+    LOG.info("Added server " + server.hostPort + ", we have " + servers.size() + ".");
+  }
+
+  /*
+   *  Removes server from load balancers. Its open tunnels keep running, and we don't close
+   *  it, whoever removes it does.
+   */
+  synchronized void removeServer(Server server) {
+    ArrayList<Server> servers = new ArrayList<Server>(serverList);
+    servers.remove(server);
+    setServers(servers);
+    LOG.info("Removed server " + server.hostPort + ", we have " + servers.size() + ".");
+  }
+
+  // Makes servers our server list and gives load balancers for it the place of old ones.
+  private void setServers(ArrayList<Server> servers) {
+    ArrayList<CapacityEstimator> oldCapacityEstimators = capacityEstimators;
+    capacityEstimators = new ArrayList<CapacityEstimator>();
+
+    // We only reserve servers for mice if some are left for elephants.
+    ArrayList<Server> elephantServers = new ArrayList<Server>();
+    ArrayList<Server> miceServers = new ArrayList<Server>();
+    for (Server server : servers) {
+      (server.isReservedForMice() ? miceServers : elephantServers).add(server);
+    }
+    LoadBalancer newMiceLoadBalancer = null;
+    if (miceServers.isEmpty() || elephantServers.isEmpty()) {
+      elephantServers = servers;
+    } else {
+      newMiceLoadBalancer = newLoadBalancer(config.loadBalancerString, miceServers);
+    }
+    LoadBalancer newLoadBalancer = newLoadBalancer(config.loadBalancerString, elephantServers);
+
+    serverList = servers;
+    miceLoadBalancer = newMiceLoadBalancer;
+    setLoadBalancer(newLoadBalancer);
+    for (CapacityEstimator capacityEstimator : oldCapacityEstimators) {
+      capacityEstimator.stop();
+    }
+  }
+
+  private static int getReservedForMiceCnt(ArrayList<Server> servers) {
+    int reservedCnt = 0;
+    for (Server server : servers) {
+      if (server.isReservedForMice()) {
+        reservedCnt++;
+      }
+    }
+    return reservedCnt;
+  }
+
+  private LoadBalancer newLoadBalancer(String name, ArrayList<Server> servers) {
+    if (name.equals("LeastUsed")) {
+      return new LeastUsed(servers);
+    } else if (name.equals("PowerOfTwoChoices")) {
+      return new PowerOfTwoChoices(servers);
+    } else if (name.equals("LeastConnections")) {
+      return new LeastConnections(servers);
+    } else if (name.equals("SpareCapacity")) {
+      CapacityEstimator capacityEstimator = new CapacityEstimator(servers);
+      if (null != threadFactory) {
+        capacityEstimator.setThreadFactory(threadFactory);
+      }
+      capacityEstimator.start();
+      capacityEstimators.add(capacityEstimator);
+      return new SpareCapacity(servers, capacityEstimator);
+    } else if (name.equals("ConsistentHash")) {
+      return new ConsistentHash(servers);
+    } else if (name.equals("LeastLatency")) {
+      return new LeastLatency(servers);
+    } else if (name.equals("UniformRandom")) {
+      return new UniformRandom(servers);
+    }
+    return new RoundRobin(servers);
+  }
+
+  /*
+   *  Starts a flow for a new client, if we classify flows.
+   *
+   *  @param clientAddress  Address of the client, null if unknown.
+   *  @param firstLine      First request line the client sent, null if we didn't wait for it.
+   *
+   *  @return  Null if we don't classify flows.
+   */
+  Flow newFlow(InetAddress clientAddress, String firstLine) {
+    if (null == flowClassifier) {
+      return null;
+    }
+    return flowClassifier.newFlow(clientAddress, firstLine);
+  }
+
+  FlowClassifier getFlowClassifier() {
+    return flowClassifier;
+  }
+
+  // Load balancer for servers of the class we predict for flow.
+  LoadBalancer getLoadBalancer(Flow flow) {
+    if (null != miceLoadBalancer && null != flow && !flow.isPredictedElephant()) {
+      return miceLoadBalancer;
+    }
+    return loadBalancer;
+  }
+
+  /*
+   *  Picks a server with our load balancer, or the one for mice if we predict flow is one,
+   *  skipping servers in excluded. Load balancers skip servers that aren't healthy, but some
+   *  don't look, so we skip them here as well, and take only a share of picks of servers in
+   *  slow start. If load balancer keeps picking servers we skip, MAX_PICKS times at most so
+   *  that picks that scan all servers don't add up with hundreds of them, we take a healthy
+   *  server that isn't excluded, starting from a random one. We look at servers of the class
+   *  of flow first and only then at the other class, and take any server that isn't excluded
+   *  if none is healthy.
+   *
+   *  @param excluded       Servers that already failed for this client.
+   *  @param clientAddress  Address of the client, null if unknown.
+   *  @param flow           Flow of the client, null if we don't classify flows.
+   *
+   *  @return  Null if we have no servers or all of them are excluded.
+   */
+  Server getServer(Set<Server> excluded, InetAddress clientAddress, Flow flow) {
+    // Autoscaler replaces serverList with a shorter one when it retires a server, so we size
+    // and index the same list.
+    ArrayList<Server> servers = serverList;
+    if (servers.isEmpty()) {
+      return null;
+    }
+    LoadBalancer currentMiceLoadBalancer = miceLoadBalancer;
+    LoadBalancer flowLoadBalancer = getLoadBalancer(flow);
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int maxPicks = Math.min(servers.size(), MAX_PICKS);
+    for (int i = 0; i < maxPicks; i++) {
+      Server server = flowLoadBalancer.getServer(clientAddress);
+      if (excluded.contains(server)) {
+        continue;
+      }
+      if (server.isHealthy() && server.admitsTunnel(random.nextDouble())) {
+        return server;
+      }
+      heldBackCnt.incrementAndGet();
+    }
+    int numServers = servers.size();
+    int first = random.nextInt(numServers);
+    boolean isMice = null != flow && !flow.isPredictedElephant();
+    Server fallbackServer = null;
+    // First pass only takes servers of the class of flow, if we reserve servers for mice.
+    for (int pass = null == currentMiceLoadBalancer ? 1 : 0; pass < 2; pass++) {
+      for (int i = 0; i < numServers; i++) {
+        Server server = servers.get((first + i) % numServers);
+        if (excluded.contains(server) || (0 == pass && server.isReservedForMice() != isMice)) {
+          continue;
+        }
+        if (server.isHealthy()) {
+          return server;
+        }
+        if (null == fallbackServer) {
+          fallbackServer = server;
+        }
+      }
+    }
+    return fallbackServer;
+  }
+
+  /*
+   *  Hands clientSocket over to our ServerConnector, which connects it to a server without
+   *  blocking our accept loop, or with an embedded ssh client to a thread that opens a channel
+   *  for it.
+   */
+  public void setupTunnel(final Socket clientSocket) {
+    if (null != sshConnectExecutor) {
+      try {
+        sshConnectExecutor.execute(new Runnable() {
+          public void run() {
+            connectOverSsh(clientSocket);
+          }
+        });
+      } catch (RejectedExecutionException ree) {
+        LOG.warn("ssh connect queue is full, resetting connection from [" +
+                 clientSocket.getInetAddress().getHostAddress() + ":" +
+                 clientSocket.getPort() + "]");
+        sshConnectRejectedCnt.increment();
+        resetClient(clientSocket);
+      }
+      return;
+    }
+    serverConnector.connect(clientSocket);
+  }
+
+  // Closes clientSocket with RST instead of FIN, as TcpTunnel does for clients it rejects.
+  private static void resetClient(Socket clientSocket) {
+    try {
+      clientSocket.setSoLinger(true, 0);
+    } catch (IOException ioe) {
+      LOG.debug("Could not set SO_LINGER on client socket: " + ioe.getMessage());
+    }
+    try {
+      clientSocket.close();
+    } catch (IOException ioe) {
+      LOG.error("IO exception while resetting client: " + ioe.getMessage());
+    }
+  }
+
+  // Tunnels client through a channel of the ssh session of a server, trying other servers
+  // when opening the channel fails, up to ServerConnector.RETRY_MAX of them.
+  private void connectOverSsh(Socket clientSocket) {
+    Flow flow = newFlow(clientSocket.getInetAddress(), null);
+    HashSet<Server> failedServers = new HashSet<Server>();
+    for (int i = 0; i < ServerConnector.RETRY_MAX; i++) {
+      Server server = getServer(failedServers, clientSocket.getInetAddress(), flow);
+      if (null == server) {
+        break;
+      }
+      try {
+        server.establishTunnel(clientSocket, flow);
+        return;
+      } catch (IOException ioe) {
+        LOG.error("Error while opening ssh channel to server " + server.hostPort + ": " +
+                  ioe.getMessage());
+        server.incrementFailedConn();
+        failedServers.add(server);
+      }
+    }
+    LOG.error("Could not connect client to any server, closing it.");
+    if (null != flow) {
+      flow.cancel();
+    }
+    try {
+      clientSocket.close();
+    } catch (IOException ioe) {
+      LOG.error("IO exception while closing client: " + ioe.getMessage());
+    }
+  }
+
+  public void runListeningLoop() {
+    if (null == tcpProxyService) {
+      // Reactor mode, event loops accept clients so we just wait for them.
+      try {
+        tunnelEngine.join();
+      } catch (InterruptedException ie) {
+        LOG.error("Interrupted while waiting for event loops: " + ie.getMessage());
+      }
+      return;
+    }
+    while (!tcpProxyService.isClosed()) {
+      try {
+        Socket clientSocket = null;
+        clientSocket = tcpProxyService.accept();
+        if (null != clientSocket) {
+          applyClientSocketOptions(clientSocket.getChannel());
+          setupTunnel(clientSocket);
+        }
+      } catch (IOException ioe) {
+        LOG.error("IOException while accepting connection: " + ioe.getMessage());
+      }
+    }
+  }
+
+  public void stop() {
+    if (null != tunnelAutoscaler) {
+      tunnelAutoscaler.stop();
+    }
+    for (Server server: serverList) {
+      server.close();
+    }
+    synchronized (this) {
+      for (SshMaster sshMaster : sshMasters) {
+        sshMaster.stop();
+      }
+    }
+    for (SshTransport sshTransport : sshTransports.values()) {
+      sshTransport.stop();
+    }
+    if (null != jumpHostMonitor) {
+      jumpHostMonitor.stop();
+    }
+    if (null != serverConnector) {
+      serverConnector.stop();
+    }
+    for (CapacityEstimator capacityEstimator : capacityEstimators) {
+      capacityEstimator.stop();
+    }
+    if (null != tunnelEngine) {
+      tunnelEngine.stop();
+    }
+    if (null != tunnelExecutor) {
+      tunnelExecutor.shutdown();
+    }
+    if (null != sshConnectExecutor) {
+      sshConnectExecutor.shutdownNow();
+    }
+  }
+
+  @Override
+  public String getServerName() {
+    return name;
+  }
 
   public static Options getCommandLineOptions() {
     Options options = new Options();
@@ -369,24 +1668,427 @@ public class TcpProxyServer implements ServerWithStats {
     options.addOption(OptionBuilder.withLongOpt("servers")
                                    .withArgName("HOST1:PORT1> <HOST2:PORT2")
                                    .withDescription("Server/servers for the proxy to connect to" +
-                                                    " in host:port format.")
+                                                    " in host:port format. host:port@WEIGHT " +
+                                                    "gives a server WEIGHT times the share " +
+                                                    "of a server without weight, with all " +
+                                                    "load balancers but RoundRobin and " +
+                                                    "UniformRandom.")
                                    .hasArgs()
                                    .withValueSeparator(' ')
                                    .create('s'));
 
     options.addOption(OptionBuilder.withLongOpt("num_servers")
                                    .withArgName("NUM_SERVERS")
-                                   .withDescription("Number of servers to instatntiate.")
+                                   .withDescription("Number of servers to instatntiate. " +
+                                                    "With a jumphost we start their ssh " +
+                                                    "tunnels on the lowest free ports of " +
+                                                    "local_ports, else they are the first " +
+                                                    "ports of local_ports.")
                                    .hasArgs()
                                    .create('n'));
 
+    options.addOption(OptionBuilder.withLongOpt("local_ports")
+                                   .withArgName("FIRST-LAST")
+                                   .withDescription("Local ports our ssh tunnels listen on. " +
+                                                    "We skip ports somebody else listens on, " +
+                                                    "and move a tunnel whose port somebody " +
+                                                    "takes. Default is " +
+                                                    ProxyConfiguration.defaultFirstLocalPort +
+                                                    "-" +
+                                                    (ProxyConfiguration.defaultFirstLocalPort +
+                                                     ProxyConfiguration.defaultLocalPorts - 1) +
+                                                    ".")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("autoscale_max")
+                                   .withArgName("NUM_SERVERS")
+                                   .withDescription("Start more ssh tunnels on free local " +
+                                                    "ports, up to NUM_SERVERS, while the ones " +
+                                                    "we have are saturated, and retire idle " +
+                                                    "ones. Needs jumphost. Default is 0, we " +
+                                                    "keep the tunnels we start with.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("autoscale_min")
+                                   .withArgName("NUM_SERVERS")
+                                   .withDescription("Fewest ssh tunnels we retire idle ones " +
+                                                    "down to. Needs autoscale_max. Default is " +
+                                                    "the number of servers we start with.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("autoscale_ms")
+                                   .withArgName("MILLISECONDS")
+                                   .withDescription("How often we decide whether we need more " +
+                                                    "or fewer ssh tunnels. Needs " +
+                                                    "autoscale_max. Default is " +
+                                                    ProxyConfiguration
+                                                        .defaultAutoscaleMilliseconds + ".")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("ssh_masters")
+                                   .withArgName("NUM_MASTERS")
+                                   .withDescription("Share up to NUM_MASTERS authenticated " +
+                                                    "ssh sessions (ControlMaster) among ssh " +
+                                                    "tunnels, adding tunnels to them as port " +
+                                                    "forwards instead of starting an ssh " +
+                                                    "process per tunnel. Needs jumphost. " +
+                                                    "Default is 0, every tunnel runs its own " +
+                                                    "ssh process.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("forwards_per_master")
+                                   .withArgName("NUM_TUNNELS")
+                                   .withDescription("ssh tunnels that share one ssh master " +
+                                                    "before we start another. Needs " +
+                                                    "ssh_masters. Default is " +
+                                                    ProxyConfiguration
+                                                        .defaultForwardsPerMaster + ".")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("ssh_transport")
+                                   .withArgName("TRANSPORT")
+                                   .withDescription("How we tunnel through the jumphost. " +
+                                                    "Options: process (an ssh process per " +
+                                                    "server listening on its local port), " +
+                                                    "embedded (a session of our own ssh " +
+                                                    "client per server, a channel per " +
+                                                    "tunnel, ports of servers only name " +
+                                                    "them). embedded needs the blocking " +
+                                                    "tunnel_engine. Default is process.")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("ssh_window_kb")
+                                   .withArgName("KILOBYTES")
+                                   .withDescription("Window of embedded ssh channels, how " +
+                                                    "much the jumphost sends before it waits " +
+                                                    "for us. Default is that of the ssh " +
+                                                    "client.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("ssh_packet_kb")
+                                   .withArgName("KILOBYTES")
+                                   .withDescription("Largest packet of embedded ssh channels. " +
+                                                    "Default is that of the ssh client.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
     options.addOption(OptionBuilder.withLongOpt("load_balancer")
                                    .withArgName("LOAD_BALANCER")
                                    .withDescription("Load balancing algorithm. Options: " +
-                                                    "RoundRobin, LeastUsed, UniformRandom.")
+                                                    "RoundRobin, LeastUsed, UniformRandom, " +
+                                                    "LeastConnections, PowerOfTwoChoices, " +
+                                                    "LeastLatency, ConsistentHash (keeps " +
+                                                    "every client IP on the same server), " +
+                                                    "SpareCapacity (spreads tunnels in " +
+                                                    "proportion to spare capacity estimated " +
+                                                    "from peak byte rates).")
                                    .hasArg()
                                    .create('b'));
 
+    options.addOption(OptionBuilder.withLongOpt("tunnel_engine")
+                                   .withArgName("TUNNEL_ENGINE")
+                                   .withDescription("Engine for moving bytes through tunnels. " +
+                                                    "Options: blocking (two threads per " +
+                                                    "tunnel), nio (shared selector threads), " +
+                                                    "reactor (selector threads each accepting " +
+                                                    "on own SO_REUSEPORT listener). " +
+                                                    "Default is blocking.")
+                                   .hasArg()
+                                   .create('e'));
+
+    options.addOption(OptionBuilder.withLongOpt("nio_threads")
+                                   .withArgName("NUM_THREADS")
+                                   .withDescription("Number of event-loop threads for nio " +
+                                                    "and reactor tunnel engines. Default is " +
+                                                    "number of cores.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("virtual_threads")
+                                   .withDescription("Run blocking tunnels, ssh tunnel " +
+                                                    "monitors and status handlers on virtual " +
+                                                    "threads.")
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("tunnel_pool_size")
+                                   .withArgName("NUM_THREADS")
+                                   .withDescription("Run blocking tunnels on a bounded pool of " +
+                                                    "pre-started threads, two per tunnel. " +
+                                                    "By default every tunnel starts its own " +
+                                                    "threads.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("tunnel_queue_depth")
+                                   .withArgName("DEPTH")
+                                   .withDescription("Number of tunnel directions waiting for a " +
+                                                    "thread of tunnel pool. Default is 0.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("tunnel_queue_full_policy")
+                                   .withArgName("POLICY")
+                                   .withDescription("What to do with new tunnels when tunnel " +
+                                                    "pool and queue are full. Options: reject " +
+                                                    "(reset client connection), wait (wait " +
+                                                    "for the queue up to " +
+                                                    "tunnel_queue_wait_ms, then reject), " +
+                                                    "thread (run on a new thread outside " +
+                                                    "of the pool). Default is reject.")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("tunnel_queue_wait_ms")
+                                   .withArgName("MILLISECONDS")
+                                   .withDescription("How long wait policy waits for tunnel " +
+                                                    "queue. Default is " +
+                                                    ProxyConfiguration
+                                                        .defaultTunnelQueueWaitMilliseconds +
+                                                    "ms.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("buffer_pool_max_mb")
+                                   .withArgName("MEGABYTES")
+                                   .withDescription("Cap on direct memory for pooled tunnel " +
+                                                    "buffers, 0 to use heap buffers. " +
+                                                    "Default is " +
+                                                    ProxyConfiguration
+                                                        .defaultBufferPoolMaxMegabytes +
+                                                    "MB.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("tunnel_buffer_max_kb")
+                                   .withArgName("KILOBYTES")
+                                   .withDescription("Largest buffer a tunnel grows to while " +
+                                                    "its reads keep filling the buffer. " +
+                                                    "Default is " +
+                                                    ProxyConfiguration
+                                                        .defaultTunnelBufferMaxKilobytes +
+                                                    "KB.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("connect_timeout_ms")
+                                   .withArgName("MILLISECONDS")
+                                   .withDescription("How long we wait for a connect to a " +
+                                                    "server before we try the next one. " +
+                                                    "Default is " +
+                                                    ProxyConfiguration
+                                                        .defaultConnectTimeoutMilliseconds +
+                                                    "ms.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("hedge_ms")
+                                   .withArgName("MILLISECONDS")
+                                   .withDescription("If a connect to a server doesn't finish " +
+                                                    "within this time, race a connect to a " +
+                                                    "second server and use whichever " +
+                                                    "connects first. Not used by reactor " +
+                                                    "tunnel engine. Default is 0, no hedging.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("server_pool_size")
+                                   .withArgName("CONNECTIONS")
+                                   .withDescription("Number of idle connections to each server " +
+                                                    "we keep connected ahead of clients, " +
+                                                    "only useful for protocols where clients " +
+                                                    "talk first. Default is 0, we connect " +
+                                                    "when a client connects.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("server_pool_max_idle_ms")
+                                   .withArgName("MILLISECONDS")
+                                   .withDescription("How long an idle connection to a server " +
+                                                    "can wait for a client before we replace " +
+                                                    "it. Default is " +
+                                                    ProxyConfiguration
+                                                        .defaultServerPoolMaxIdleMilliseconds +
+                                                    "ms.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("byte_rate_flush_kb")
+                                   .withArgName("KILOBYTES")
+                                   .withDescription("Tunnels add bytes to byte rate counters " +
+                                                    "in batches of at most this many " +
+                                                    "kilobytes, 0 to add them on every read. " +
+                                                    "Default is " +
+                                                    ProxyConfiguration
+                                                        .defaultByteRateFlushKilobytes +
+                                                    "KB.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("byte_rate_flush_ms")
+                                   .withArgName("MILLISECONDS")
+                                   .withDescription("Tunnels add bytes to byte rate counters " +
+                                                    "at least this often while bytes keep " +
+                                                    "coming. Default is " +
+                                                    ProxyConfiguration
+                                                        .defaultByteRateFlushMilliseconds +
+                                                    "ms.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("elephant_kb")
+                                   .withArgName("KILOBYTES")
+                                   .withDescription("Classify tunnels that move at least this " +
+                                                    "many KB in one direction as elephants " +
+                                                    "and others as mice, and report both " +
+                                                    "classes in /stats. Default is 0, which " +
+                                                    "doesn't classify tunnels.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("mice_servers")
+                                   .withArgName("NUM_SERVERS")
+                                   .withDescription("Reserve the last NUM_SERVERS servers for " +
+                                                    "tunnels we expect to be mice, so that " +
+                                                    "short requests don't share ssh tunnels " +
+                                                    "with bulk transfers. Needs elephant_kb. " +
+                                                    "Default is 0.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("flow_peek_ms")
+                                   .withArgName("MILLISECONDS")
+                                   .withDescription("Wait up to this long for the first " +
+                                                    "request line of a client and expect an " +
+                                                    "elephant if it matches elephant_pattern. " +
+                                                    "Otherwise we expect whatever recent " +
+                                                    "tunnels of the client were. Needs " +
+                                                    "elephant_kb, not used with the reactor " +
+                                                    "tunnel engine. Default is 0.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("elephant_pattern")
+                                   .withArgName("REGEX")
+                                   .withDescription("Regular expression found in first " +
+                                                    "request lines of elephants. Default is " +
+                                                    ProxyConfiguration.defaultElephantPattern +
+                                                    " (WebHDFS reads and writes).")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("health_check_ms")
+                                   .withArgName("MILLISECONDS")
+                                   .withDescription("Probe every server this often and eject " +
+                                                    "servers that fail. Default is 0, we only " +
+                                                    "check that ssh processes run.")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("health_check_http")
+                                   .withArgName("PATH")
+                                   .withDescription("Probe servers with an HTTP GET of PATH " +
+                                                    "and expect a 2xx or 3xx status, instead " +
+                                                    "of just connecting. Needs " +
+                                                    "health_check_ms.")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("health_check_failures")
+                                   .withArgName("NUM_FAILURES")
+                                   .withDescription("Eject a server after this many failed " +
+                                                    "probes or client connects in a row. " +
+                                                    "Needs health_check_ms. Default is " +
+                                                    ProxyConfiguration.defaultHealthCheckFailures +
+                                                    ".")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("ejection_ms")
+                                   .withArgName("MILLISECONDS")
+                                   .withDescription("How long we eject a server for the first " +
+                                                    "time, doubled for every ejection that " +
+                                                    "follows soon after. Needs " +
+                                                    "health_check_ms. Default is " +
+                                                    ProxyConfiguration.defaultEjectionMilliseconds +
+                                                    ".")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("slow_start_ms")
+                                   .withArgName("MILLISECONDS")
+                                   .withDescription("How long a server we re-admit after an " +
+                                                    "ejection takes to get its full share of " +
+                                                    "tunnels, 0 to give it right away. Needs " +
+                                                    "health_check_ms. Default is " +
+                                                    ProxyConfiguration
+                                                        .defaultSlowStartMilliseconds + ".")
+                                   .withType(Number.class)
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("socket_profile")
+                                   .withArgName("NAME:OPTION=VALUE,...")
+                                   .withDescription("Define named socket options profiles. " +
+                                                    "Options: nodelay, keepalive (true/false), " +
+                                                    "rcvbuf, sndbuf (bytes, k/m suffix), " +
+                                                    "tos (traffic class), backlog (listening " +
+                                                    "socket only). Built-in profiles: " +
+                                                    "default, lowlatency, bulk.")
+                                   .hasArgs()
+                                   .withValueSeparator(' ')
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("client_socket_profile")
+                                   .withArgName("NAME")
+                                   .withDescription("Socket options profile for our listening " +
+                                                    "socket and client connections. Default " +
+                                                    "is default.")
+                                   .hasArg()
+                                   .create());
+
+    options.addOption(OptionBuilder.withLongOpt("server_socket_profile")
+                                   .withArgName("NAME> <HOST:PORT=NAME")
+                                   .withDescription("Socket options profile for connections to " +
+                                                    "all servers, and optionally for " +
+                                                    "connections to a single server. Default " +
+                                                    "is default.")
+                                   .hasArgs()
+                                   .withValueSeparator(' ')
+                                   .create());
+
     options.addOption(OptionBuilder.withLongOpt("ssh_binary")
         .withArgName("SSH_BINARY")
         .withDescription("Optional path to use as ssh command. Default is ssh.")
@@ -428,6 +2130,25 @@ public class TcpProxyServer implements ServerWithStats {
         .hasArg()
         .create('y'));
 
+    options.addOption(OptionBuilder.withLongOpt("jumphost_tunnels")
+        .withArgName("TUNNELS")
+        .withDescription("Servers that tunnel through jumphost when we have more jumphosts. " +
+            "Default is an even share of servers no jumphost claims.")
+        .withType(Number.class)
+        .hasArg()
+        .create());
+
+    options.addOption(OptionBuilder.withLongOpt("jumphosts")
+        .withArgName("SSHD_HOST:PORT,OPTION=VALUE,...")
+        .withDescription("More jumphosts our servers spread over, so that no single bastion " +
+            "decrypts all our traffic. Options: user, credentials, compression (true/false), " +
+            "ciphers (colon separated), server (JHSERVER:JHS_PORT), tunnels (servers that " +
+            "tunnel through it, default an even share of servers no jumphost claims). " +
+            "Options we don't set are those of jumphost. Needs jumphost_server.")
+        .hasArgs()
+        .withValueSeparator(' ')
+        .create());
+
     options.addOption("o", "openInterfaces", false,
         "Open all interfaces for ssh tunnel using \\* as bind_address: " +
         "SSH_BINARY \\*:PORT:JHSERVER:JHS_PORT");
@@ -441,6 +2162,10 @@ public class TcpProxyServer implements ServerWithStats {
     this.loadBalancer = loadBalancer;
   }
 
+  LoadBalancer getLoadBalancer() {
+    return loadBalancer;
+  }
+
   public static void printHelp(Options options) {
     String header = "Connects clients to multiple replicas of the same server." +
                     "It can also setup multiple ssh tunnels via jumphost to a single server" +
@@ -587,6 +2312,39 @@ public class TcpProxyServer implements ServerWithStats {
                                    jumphostCompression, jumphostCiphers,
                                    sshBinary,
                                    openInterfaces);
+      conf.jumphosts.add(conf.jumphost);
+    }
+
+    if (commandLine.hasOption("jumphost_tunnels")) {
+      try {
+        if (null == conf.jumphost) {
+          throw new NumberFormatException("jumphost_tunnels needs jumphost and jumphost_server.");
+        }
+        conf.jumphost.tunnels = Integer.parseInt(commandLine.getOptionValue("jumphost_tunnels"));
+        if (conf.jumphost.tunnels < 1) {
+          throw new NumberFormatException("jumphost_tunnels must be positive.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("jumphost_tunnels parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    // Maybe spread our servers over more jumphosts.
+    if (commandLine.hasOption("jumphosts")) {
+      try {
+        if (null == conf.jumphost) {
+          throw new IllegalArgumentException("jumphosts needs jumphost and jumphost_server.");
+        }
+        for (String spec : commandLine.getOptionValues("jumphosts")) {
+          conf.jumphosts.add(JumpHost.parse(spec, conf.jumphost));
+        }
+      } catch (IllegalArgumentException e) {
+        LOG.error("jumphosts parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
     }
 
     if (!commandLine.hasOption("num_servers") && !commandLine.hasOption("servers")) {
@@ -601,15 +2359,39 @@ public class TcpProxyServer implements ServerWithStats {
       System.exit(1);
     }
 
+    if (commandLine.hasOption("local_ports")) {
+      try {
+        String[] range = commandLine.getOptionValue("local_ports").split("-");
+        if (2 != range.length) {
+          throw new NumberFormatException("local_ports must be FIRST-LAST.");
+        }
+        int firstPort = Integer.parseInt(range[0]);
+        int lastPort = Integer.parseInt(range[1]);
+        if (firstPort < 1 || lastPort > 65535 || firstPort > lastPort) {
+          throw new NumberFormatException("local_ports must be within 1-65535.");
+        }
+        conf.firstLocalPort = firstPort;
+        conf.localPorts = lastPort - firstPort + 1;
+      } catch (NumberFormatException e) {
+        LOG.error("local_ports parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
     // Add servers.
     if (commandLine.hasOption("num_servers")) {
       try {
         int num_servers = Integer.parseInt(commandLine.getOptionValue("num_servers"));
-        if (num_servers > TcpProxyServer.MAX_NUM_SERVERS ) {
-          throw new Exception("Please specify -servers.");
+        if (num_servers > conf.localPorts) {
+          throw new Exception("We have only " + conf.localPorts + " local_ports.");
         }
         for (int i = 0; i < num_servers; i++) {
-          conf.parseServerStringAndAdd("localhost:" + (TcpProxyServer.START_PORT_RANGE + i));
+          if (null != conf.jumphost) {
+            conf.serverHostPortList.add(new HostPort("localhost", 0));
+          } else {
+            conf.parseServerStringAndAdd("localhost:" + (conf.firstLocalPort + i));
+          }
         }
       } catch (Exception e) {
         LOG.error("num_servers parsing exception " + e.getMessage());
@@ -631,10 +2413,111 @@ public class TcpProxyServer implements ServerWithStats {
       }
     }
 
+    int claimedTunnels = 0;
+    for (JumpHost jumphost : conf.jumphosts) {
+      claimedTunnels += jumphost.tunnels;
+    }
+    if (claimedTunnels > conf.serverHostPortList.size()) {
+      LOG.error("Jumphosts claim " + claimedTunnels + " tunnels, but we have only " +
+                conf.serverHostPortList.size() + " servers.");
+      printHelp(options);
+      System.exit(1);
+    }
+
+    if (commandLine.hasOption("autoscale_max")) {
+      try {
+        if (null == conf.jumphost) {
+          throw new NumberFormatException("autoscale_max needs jumphost.");
+        }
+        conf.autoscaleMaxServers = Integer.parseInt(commandLine.getOptionValue("autoscale_max"));
+        if (conf.autoscaleMaxServers < conf.serverHostPortList.size() ||
+            conf.autoscaleMaxServers > conf.localPorts) {
+          throw new NumberFormatException("autoscale_max must be at least the number of " +
+                                          "servers and at most that of local_ports, " +
+                                          conf.localPorts + ".");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("autoscale_max parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if ((commandLine.hasOption("autoscale_min") || commandLine.hasOption("autoscale_ms")) &&
+        0 == conf.autoscaleMaxServers) {
+      LOG.error("You need to specify autoscale_max if you specify autoscale_min or " +
+                "autoscale_ms.");
+      printHelp(options);
+      System.exit(1);
+    }
+
+    if (commandLine.hasOption("autoscale_min")) {
+      try {
+        conf.autoscaleMinServers = Integer.parseInt(commandLine.getOptionValue("autoscale_min"));
+        if (conf.autoscaleMinServers < 1 ||
+            conf.autoscaleMinServers > conf.autoscaleMaxServers) {
+          throw new NumberFormatException("autoscale_min must be positive and at most " +
+                                          "autoscale_max.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("autoscale_min parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("autoscale_ms")) {
+      try {
+        conf.autoscaleMilliseconds = Long.parseLong(commandLine.getOptionValue("autoscale_ms"));
+        if (conf.autoscaleMilliseconds < 1) {
+          throw new NumberFormatException("autoscale_ms must be positive.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("autoscale_ms parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("ssh_masters")) {
+      try {
+        if (null == conf.jumphost) {
+          throw new NumberFormatException("ssh_masters needs jumphost.");
+        }
+        conf.sshMasters = Integer.parseInt(commandLine.getOptionValue("ssh_masters"));
+        if (conf.sshMasters < 0) {
+          throw new NumberFormatException("ssh_masters must not be negative.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("ssh_masters parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("forwards_per_master")) {
+      try {
+        if (0 == conf.sshMasters) {
+          throw new NumberFormatException("forwards_per_master needs ssh_masters.");
+        }
+        conf.forwardsPerMaster =
+            Integer.parseInt(commandLine.getOptionValue("forwards_per_master"));
+        if (conf.forwardsPerMaster < 1) {
+          throw new NumberFormatException("forwards_per_master must be positive.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("forwards_per_master parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
     // Maybe set load balancer.
     if (commandLine.hasOption("load_balancer")) {
       HashSet<String> loadBalancers = new HashSet<String>(
-          Arrays.asList("RoundRobin", "LeastUsed", "UniformRandom"));
+          Arrays.asList("RoundRobin", "LeastUsed", "UniformRandom", "LeastConnections",
+                        "PowerOfTwoChoices", "LeastLatency", "ConsistentHash",
+                        "SpareCapacity"));
       conf.loadBalancerString = commandLine.getOptionValue("load_balancer");
       if (!loadBalancers.contains(conf.loadBalancerString)) {
         LOG.error("Bad load_balancer value.");
@@ -642,6 +2525,438 @@ public class TcpProxyServer implements ServerWithStats {
         System.exit(1);
       }
     }
+
+    // Maybe set tunnel engine.
+    if (commandLine.hasOption("tunnel_engine")) {
+      HashSet<String> tunnelEngines = new HashSet<String>(Arrays.asList("blocking", "nio",
+                                                                      "reactor"));
+      conf.tunnelEngineString = commandLine.getOptionValue("tunnel_engine");
+      if (!tunnelEngines.contains(conf.tunnelEngineString)) {
+        LOG.error("Bad tunnel_engine value.");
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("virtual_threads")) {
+      conf.virtualThreads = true;
+    }
+
+    // Maybe set bounded pool for blocking tunnels.
+    if (commandLine.hasOption("tunnel_pool_size")) {
+      if (!conf.tunnelEngineString.equals("blocking") || conf.virtualThreads) {
+        LOG.error("Tunnel pool works only with blocking tunnel_engine on platform threads.");
+        printHelp(options);
+        System.exit(1);
+      }
+      try {
+        conf.tunnelPoolSize = Integer.parseInt(commandLine.getOptionValue("tunnel_pool_size"));
+        if (conf.tunnelPoolSize < 1) {
+          throw new NumberFormatException("tunnel_pool_size must be positive.");
+        }
+        if (commandLine.hasOption("tunnel_queue_depth")) {
+          conf.tunnelQueueDepth =
+              Integer.parseInt(commandLine.getOptionValue("tunnel_queue_depth"));
+          if (conf.tunnelQueueDepth < 0) {
+            throw new NumberFormatException("tunnel_queue_depth must not be negative.");
+          }
+        }
+        if (commandLine.hasOption("tunnel_queue_wait_ms")) {
+          conf.tunnelQueueWaitMilliseconds =
+              Long.parseLong(commandLine.getOptionValue("tunnel_queue_wait_ms"));
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("Tunnel pool parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+      if (commandLine.hasOption("tunnel_queue_full_policy")) {
+        HashSet<String> policies = new HashSet<String>(
+            Arrays.asList(TunnelExecutor.REJECT, TunnelExecutor.WAIT, TunnelExecutor.THREAD));
+        conf.tunnelQueueFullPolicy = commandLine.getOptionValue("tunnel_queue_full_policy");
+        if (!policies.contains(conf.tunnelQueueFullPolicy)) {
+          LOG.error("Bad tunnel_queue_full_policy value.");
+          printHelp(options);
+          System.exit(1);
+        }
+      }
+    } else if (commandLine.hasOption("tunnel_queue_depth") ||
+               commandLine.hasOption("tunnel_queue_full_policy") ||
+               commandLine.hasOption("tunnel_queue_wait_ms")) {
+      LOG.error("You need to specify tunnel_pool_size if you specify tunnel queue options.");
+      printHelp(options);
+      System.exit(1);
+    }
+
+    if (commandLine.hasOption("buffer_pool_max_mb")) {
+      try {
+        conf.bufferPoolMaxMegabytes =
+            Long.parseLong(commandLine.getOptionValue("buffer_pool_max_mb"));
+        if (conf.bufferPoolMaxMegabytes < 0) {
+          throw new NumberFormatException("buffer_pool_max_mb must not be negative.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("buffer_pool_max_mb parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("tunnel_buffer_max_kb")) {
+      try {
+        conf.tunnelBufferMaxKilobytes =
+            Integer.parseInt(commandLine.getOptionValue("tunnel_buffer_max_kb"));
+        if (conf.tunnelBufferMaxKilobytes * 1024 < TcpTunnel.BUFFER_SIZE) {
+          throw new NumberFormatException("tunnel_buffer_max_kb must be at least " +
+                                          TcpTunnel.BUFFER_SIZE / 1024 + ".");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("tunnel_buffer_max_kb parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("connect_timeout_ms")) {
+      try {
+        conf.connectTimeoutMilliseconds =
+            Long.parseLong(commandLine.getOptionValue("connect_timeout_ms"));
+        if (conf.connectTimeoutMilliseconds < 1) {
+          throw new NumberFormatException("connect_timeout_ms must be positive.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("connect_timeout_ms parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("hedge_ms")) {
+      try {
+        conf.hedgeMilliseconds = Long.parseLong(commandLine.getOptionValue("hedge_ms"));
+        if (conf.hedgeMilliseconds < 0) {
+          throw new NumberFormatException("hedge_ms must not be negative.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("hedge_ms parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("server_pool_size")) {
+      try {
+        conf.serverPoolSize = Integer.parseInt(commandLine.getOptionValue("server_pool_size"));
+        if (conf.serverPoolSize < 0) {
+          throw new NumberFormatException("server_pool_size must not be negative.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("server_pool_size parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("server_pool_max_idle_ms")) {
+      try {
+        conf.serverPoolMaxIdleMilliseconds =
+            Long.parseLong(commandLine.getOptionValue("server_pool_max_idle_ms"));
+        if (conf.serverPoolMaxIdleMilliseconds < 1) {
+          throw new NumberFormatException("server_pool_max_idle_ms must be positive.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("server_pool_max_idle_ms parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("byte_rate_flush_kb")) {
+      try {
+        conf.byteRateFlushKilobytes =
+            Long.parseLong(commandLine.getOptionValue("byte_rate_flush_kb"));
+        if (conf.byteRateFlushKilobytes < 0) {
+          throw new NumberFormatException("byte_rate_flush_kb must not be negative.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("byte_rate_flush_kb parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("byte_rate_flush_ms")) {
+      try {
+        conf.byteRateFlushMilliseconds =
+            Long.parseLong(commandLine.getOptionValue("byte_rate_flush_ms"));
+        if (conf.byteRateFlushMilliseconds < 0) {
+          throw new NumberFormatException("byte_rate_flush_ms must not be negative.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("byte_rate_flush_ms parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("elephant_kb")) {
+      try {
+        conf.elephantKilobytes = Long.parseLong(commandLine.getOptionValue("elephant_kb"));
+        if (conf.elephantKilobytes < 0) {
+          throw new NumberFormatException("elephant_kb must not be negative.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("elephant_kb parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("mice_servers")) {
+      try {
+        conf.miceServers = Integer.parseInt(commandLine.getOptionValue("mice_servers"));
+        if (conf.miceServers < 0 || conf.miceServers >= conf.serverHostPortList.size()) {
+          throw new NumberFormatException("mice_servers must leave at least one server for " +
+                                          "elephants.");
+        }
+        if (conf.miceServers > 0 && 0 == conf.elephantKilobytes) {
+          throw new NumberFormatException("mice_servers needs elephant_kb.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("mice_servers parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("flow_peek_ms")) {
+      try {
+        conf.flowPeekMilliseconds = Long.parseLong(commandLine.getOptionValue("flow_peek_ms"));
+        if (conf.flowPeekMilliseconds < 0) {
+          throw new NumberFormatException("flow_peek_ms must not be negative.");
+        }
+        if (conf.flowPeekMilliseconds > 0 && 0 == conf.elephantKilobytes) {
+          throw new NumberFormatException("flow_peek_ms needs elephant_kb.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("flow_peek_ms parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("elephant_pattern")) {
+      conf.elephantPattern = commandLine.getOptionValue("elephant_pattern");
+      try {
+        Pattern.compile(conf.elephantPattern);
+      } catch (PatternSyntaxException e) {
+        LOG.error("elephant_pattern parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("health_check_ms")) {
+      try {
+        conf.healthCheckMilliseconds =
+            Long.parseLong(commandLine.getOptionValue("health_check_ms"));
+        if (conf.healthCheckMilliseconds < 0) {
+          throw new NumberFormatException("health_check_ms must not be negative.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("health_check_ms parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if ((commandLine.hasOption("health_check_http") ||
+         commandLine.hasOption("health_check_failures") ||
+         commandLine.hasOption("ejection_ms") ||
+         commandLine.hasOption("slow_start_ms")) && 0 == conf.healthCheckMilliseconds) {
+      LOG.error("You need to specify health_check_ms if you specify health_check_http, " +
+                "health_check_failures, ejection_ms or slow_start_ms.");
+      printHelp(options);
+      System.exit(1);
+    }
+
+    if (commandLine.hasOption("health_check_http")) {
+      conf.healthCheckPath = commandLine.getOptionValue("health_check_http");
+      if (!conf.healthCheckPath.startsWith("/")) {
+        LOG.error("health_check_http must start with /");
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("health_check_failures")) {
+      try {
+        conf.healthCheckFailures =
+            Integer.parseInt(commandLine.getOptionValue("health_check_failures"));
+        if (conf.healthCheckFailures < 1) {
+          throw new NumberFormatException("health_check_failures must be positive.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("health_check_failures parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("ejection_ms")) {
+      try {
+        conf.ejectionMilliseconds = Long.parseLong(commandLine.getOptionValue("ejection_ms"));
+        if (conf.ejectionMilliseconds < 1) {
+          throw new NumberFormatException("ejection_ms must be positive.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("ejection_ms parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("slow_start_ms")) {
+      try {
+        conf.slowStartMilliseconds = Long.parseLong(commandLine.getOptionValue("slow_start_ms"));
+        if (conf.slowStartMilliseconds < 0) {
+          throw new NumberFormatException("slow_start_ms must not be negative.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("slow_start_ms parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    // Maybe add socket options profiles.
+    if (commandLine.hasOption("socket_profile")) {
+      try {
+        for (String spec : commandLine.getOptionValues("socket_profile")) {
+          SocketOptionsProfile profile = SocketOptionsProfile.parse(spec);
+          conf.socketOptionsProfiles.put(profile.name, profile);
+        }
+      } catch (IllegalArgumentException e) {
+        LOG.error("socket_profile parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("client_socket_profile")) {
+      conf.clientSocketOptions = commandLine.getOptionValue("client_socket_profile");
+      if (!conf.socketOptionsProfiles.containsKey(conf.clientSocketOptions)) {
+        LOG.error("Unknown client_socket_profile " + conf.clientSocketOptions);
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("server_socket_profile")) {
+      for (String value : commandLine.getOptionValues("server_socket_profile")) {
+        int equals = value.lastIndexOf('=');
+        String profileName = value.substring(equals + 1);
+        if (!conf.socketOptionsProfiles.containsKey(profileName)) {
+          LOG.error("Unknown server_socket_profile " + profileName);
+          printHelp(options);
+          System.exit(1);
+        }
+        if (-1 == equals) {
+          conf.serverSocketOptions = profileName;
+          continue;
+        }
+        try {
+          HostPort server = conf.parseServerString(value.substring(0, equals));
+          conf.serverSocketOptionsByServer.put(server.toString(), profileName);
+        } catch (URISyntaxException e) {
+          LOG.error("Server path parsing exception for server_socket_profile: " +
+                    e.getMessage());
+          printHelp(options);
+          System.exit(1);
+        }
+      }
+    }
+
+    // Maybe tunnel through channels of our own ssh client.
+    if (commandLine.hasOption("ssh_transport")) {
+      conf.sshTransportString = commandLine.getOptionValue("ssh_transport");
+      if (!conf.sshTransportString.equals("process") &&
+          !conf.sshTransportString.equals("embedded")) {
+        LOG.error("Bad ssh_transport value.");
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+    if (conf.sshTransportString.equals("embedded")) {
+      String error = null;
+      if (null == conf.jumphost) {
+        error = "You need to specify jumphost if you specify embedded ssh_transport.";
+      } else if (!conf.tunnelEngineString.equals("blocking")) {
+        error = "embedded ssh_transport needs blocking tunnel_engine.";
+      } else if (conf.sshMasters > 0 || conf.serverPoolSize > 0 ||
+                 conf.hedgeMilliseconds > 0 || conf.flowPeekMilliseconds > 0) {
+        error = "embedded ssh_transport doesn't work with ssh_masters, server_pool_size, " +
+                "hedge_ms or flow_peek_ms.";
+      }
+      if (null != error) {
+        LOG.error(error);
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if ((commandLine.hasOption("ssh_window_kb") || commandLine.hasOption("ssh_packet_kb")) &&
+        !conf.sshTransportString.equals("embedded")) {
+      LOG.error("You need to specify embedded ssh_transport if you specify ssh_window_kb or " +
+                "ssh_packet_kb.");
+      printHelp(options);
+      System.exit(1);
+    }
+
+    if (commandLine.hasOption("ssh_window_kb")) {
+      try {
+        conf.sshWindowKilobytes = Integer.parseInt(commandLine.getOptionValue("ssh_window_kb"));
+        if (conf.sshWindowKilobytes < 1) {
+          throw new NumberFormatException("ssh_window_kb must be positive.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("ssh_window_kb parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("ssh_packet_kb")) {
+      try {
+        conf.sshPacketKilobytes = Integer.parseInt(commandLine.getOptionValue("ssh_packet_kb"));
+        if (conf.sshPacketKilobytes < 1) {
+          throw new NumberFormatException("ssh_packet_kb must be positive.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("ssh_packet_kb parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
+
+    if (commandLine.hasOption("nio_threads")) {
+      if (conf.tunnelEngineString.equals("blocking")) {
+        LOG.error("You need to specify nio or reactor tunnel_engine if you specify " +
+                  "nio_threads.");
+        printHelp(options);
+        System.exit(1);
+      }
+      try {
+        conf.nioThreads = Integer.parseInt(commandLine.getOptionValue("nio_threads"));
+        if (conf.nioThreads < 1) {
+          throw new NumberFormatException("nio_threads must be positive.");
+        }
+      } catch (NumberFormatException e) {
+        LOG.error("nio_threads parsing exception " + e.getMessage());
+        printHelp(options);
+        System.exit(1);
+      }
+    }
     return conf;
   }
 
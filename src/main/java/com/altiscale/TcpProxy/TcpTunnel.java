@@ -23,9 +23,12 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.lang.Thread;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import com.altiscale.Util.SecondMinuteHourCounter;
+import com.altiscale.Util.BufferPool;
 import com.altiscale.TcpProxy.Server;
 
 /**
@@ -57,6 +60,73 @@ public class TcpTunnel {
 
   private Server server;
 
+  // Flow we report to FlowClassifier when we close, null if we don't classify flows.
+  private Flow flow;
+
+  // Whether we released our count in server's open tunnels, once the first direction ended.
+  private AtomicBoolean isReleased = new AtomicBoolean(false);
+
+  // When our client's first bytes reached the server, 0 until then. Server's first bytes
+  // after that give us its first-byte latency.
+  private volatile long requestNanos = 0;
+
+  // Size of the buffer for each direction of a tunnel.
+  static final int BUFFER_SIZE = 1024 * 8;  // 8KB buffer.
+
+  // Reads in a row that fill less than half of a pooled buffer before we halve it, and how
+  // long a read must block, the tunnel being idle, before we go back to the smallest buffer.
+  static final int SHRINK_AFTER_SHORT_READS = 8;
+  static final long SHRINK_AFTER_IDLE_MILLIS = 1000;
+
+  // Decides the size of the pooled buffer of one direction from the reads it does. A read
+  // that fills the whole buffer means more data is waiting, so we double the buffer and bulk
+  // transfers need fewer syscalls. We only shrink after SHRINK_AFTER_SHORT_READS short reads
+  // in a row or a read that blocked SHRINK_AFTER_IDLE_MILLIS, so that a bulk transfer whose
+  // socket buffer is empty for a moment keeps its buffer instead of churning the pool.
+  static class BufferSizer {
+    private int minSize;
+    private int maxSize;
+    // Reads in a row that filled less than half the buffer.
+    private int shortReads;
+
+    public BufferSizer(int minSize, int maxSize) {
+      this.minSize = minSize;
+      this.maxSize = maxSize;
+      this.shortReads = 0;
+    }
+
+    /*
+     *  @param capacity   Capacity of the buffer we read into.
+     *  @param cnt        Bytes we read.
+     *  @param readNanos  How long the read blocked.
+     *
+     *  @return  Capacity of the buffer for our next read.
+     */
+    int next(int capacity, int cnt, long readNanos) {
+      if (cnt == capacity && capacity < maxSize) {
+        shortReads = 0;
+        return 2 * capacity;
+      }
+      if (capacity <= minSize) {
+        return capacity;
+      }
+      if (readNanos >= SHRINK_AFTER_IDLE_MILLIS * 1000 * 1000) {
+        shortReads = 0;
+        return minSize;
+      }
+      if (2 * cnt >= capacity) {
+        shortReads = 0;
+        return capacity;
+      }
+      shortReads++;
+      if (shortReads < SHRINK_AFTER_SHORT_READS) {
+        return capacity;
+      }
+      shortReads = 0;
+      return capacity / 2;
+    }
+  }
+
   // We are just a proxy. We create two pipes, proxy all data and whoever closes the
   // connection first our job is to simply close the other end as well.
   protected class OneDirectionTunnel implements Runnable {
@@ -66,28 +136,34 @@ public class TcpTunnel {
     private Socket sourceSocket;
     private Socket destinationSocket;
 
-    private SecondMinuteHourCounter byteRateCnt;
+    private ByteRateBatch byteRateBatch;
 
     private Server proxyServer;
 
+    // Whether we read anything yet.
+    private boolean hasRead;
+
     /**
      *  OneDirectionalTunnel is responsible for reading on its source socket and writing
-     *  all data to its destination socket. It is blocking, so it runs in its own thread.
+     *  all data to its destination socket. It is blocking, so it runs in its own thread,
+     *  created by thread factory of proxyServer (platform or virtual thread).
      *
      *  @param source       Socket from which we read data
      *  @param destination  Socket to which we write data
      *  @param name         Thread name for the thread we'll create when started.
      *  @param proxyServer  Referece used to aggregate byte rates/opened connections/
      *                      closed connections per server.
+     *  @param flow         Flow of our tunnel, null if we don't classify flows.
      */
     public OneDirectionTunnel(Socket source, Socket destination, String name,
-                              Server proxyServer) {
+                              Server proxyServer, Flow flow) {
       threadName = name;
       thread = null;
       sourceSocket = source;
       destinationSocket = destination;
-      byteRateCnt = new SecondMinuteHourCounter(name + " byteRateCnt");
+      byteRateBatch = new ByteRateBatch(proxyServer, flow);
       this.proxyServer = proxyServer;
+      hasRead = false;
     }
 
     /*
@@ -98,28 +174,60 @@ public class TcpTunnel {
     public Thread start() {
       assert null == thread;  // we should never call this method twice.
       LOG.debug("Starting thread [" + threadName + "]");
-      thread = new Thread(this, threadName);
+      thread = proxyServer.getThreadFactory().newThread(this);
+      thread.setName(threadName);
       thread.start();
       return thread;
     }
 
     /*
-     *  We open input and output streams, read the input and then write all data to output.
-     *  If anything happens we simply close the sockets and finish.
+     *  We read the input and then write all data to output. If both sockets have channels and
+     *  proxyServer has a BufferPool, we copy through a pooled direct buffer, otherwise through
+     *  input and output streams. If anything happens we simply close the sockets and finish.
      */
     public void run() {
-      DataInputStream input = null;
-      DataOutputStream output = null;
+      BufferPool bufferPool = proxyServer.getBufferPool();
+      SocketChannel sourceChannel = sourceSocket.getChannel();
+      SocketChannel destinationChannel = destinationSocket.getChannel();
+      if (null != bufferPool && null != sourceChannel && null != destinationChannel) {
+        proxyServer.incrementOpenedConn();
+        copyChannels(sourceChannel, destinationChannel, bufferPool);
+      } else {
+        DataInputStream input = null;
+        DataOutputStream output = null;
+        try {
+          input = new DataInputStream(sourceSocket.getInputStream());
+          output = new DataOutputStream(destinationSocket.getOutputStream());
+        } catch (IOException ioe) {
+          LOG.error("Could not open input or output stream.");
+          releaseTunnel();
+          return;
+        }
+        proxyServer.incrementOpenedConn();
+        copyStreams(input, output);
+      }
+
+      // Either the input is closed or we got an exception. Either way, close the
+      // sockets since we're done with this tunnel.
+      byteRateBatch.flush();
+      releaseTunnel();
       try {
-        input = new DataInputStream(sourceSocket.getInputStream());
-        output = new DataOutputStream(destinationSocket.getOutputStream());
+        closeConnection();
+        proxyServer.incrementClosedConn();
       } catch (IOException ioe) {
-        LOG.error("Could not open input or output stream.");
-        return;
+        LOG.error("IO exception while closing sockets in thread [" + threadName +
+            "]: " + ioe.getMessage());
       }
-      proxyServer.incrementOpenedConn();
+
+      LOG.debug("Thread [" + threadName + "] tunneled " + byteRateBatch.getTotalBytes() +
+                " bytes");
+
+      LOG.debug("Exiting thread [" + threadName + "]");
+    }
+
+    private void copyStreams(DataInputStream input, DataOutputStream output) {
       int cnt = 0;
-      byte[] buffer = new byte[1024 * 8];  // 8KB buffer.
+      byte[] buffer = new byte[BUFFER_SIZE];
       try {
         do {
 
@@ -127,30 +235,65 @@ public class TcpTunnel {
           cnt = input.read(buffer);
 
           if (cnt > 0) {
+            // No need to flush, socket output stream is not buffered.
             output.write(buffer, 0, cnt);
 
-            // NOTE: if this becomes expensive, we can increment counter and flush less often.
-            byteRateCnt.incrementBy(cnt);
-            proxyServer.incrementByteRateBy(cnt);
-            output.flush();
+            byteRateBatch.add(cnt);
+            if (!hasRead) {
+              hasRead = true;
+              onFirstWrite(this);
+            }
           }
         } while (cnt >= 0);
       } catch (IOException ioe) {
         LOG.debug("Closing socket after IO exception while reading: " + ioe.getMessage());
       }
-      // Either the input stream is closed or we got an exception. Either way, close the
-      // sockets since we're done with this tunnel.
+    }
+
+    // Direct buffer saves the copy between heap and native memory that socket streams and
+    // heap buffers need on every read and write.
+    //
+    // Buffer size adapts to the traffic as BufferSizer decides, up to bufferPool's largest
+    // size class, so that bulk transfers need fewer syscalls and idle or interactive tunnels
+    // don't hold large buffers.
+    private void copyChannels(SocketChannel input, SocketChannel output,
+                              BufferPool bufferPool) {
+      int cnt = 0;
+      ByteBuffer buffer = bufferPool.acquire(BUFFER_SIZE);
+      BufferSizer bufferSizer = new BufferSizer(bufferPool.getMinBufferSize(),
+                                                bufferPool.getMaxBufferSize());
       try {
-        closeConnection();
-        proxyServer.incrementClosedConn();
-      } catch (IOException ioe) {
-        LOG.error("IO exception while closing sockets in thread [" + threadName +
-            "]: " + ioe.getMessage());
-      }
+        do {
+          // Read some data.
+          long startNanos = System.nanoTime();
+          cnt = input.read(buffer);
+          long readNanos = System.nanoTime() - startNanos;
 
-      LOG.debug(byteRateCnt.toString());
+          if (cnt > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+              output.write(buffer);
+            }
+            buffer.clear();
 
-      LOG.debug("Exiting thread [" + threadName + "]");
+            byteRateBatch.add(cnt);
+            if (!hasRead) {
+              hasRead = true;
+              onFirstWrite(this);
+            }
+
+            int size = bufferSizer.next(buffer.capacity(), cnt, readNanos);
+            if (size != buffer.capacity()) {
+              bufferPool.release(buffer);
+              buffer = bufferPool.acquire(size);
+            }
+          }
+        } while (cnt >= 0);
+      } catch (IOException ioe) {
+        LOG.debug("Closing socket after IO exception while reading: " + ioe.getMessage());
+      } finally {
+        bufferPool.release(buffer);
+      }
     }
 
     public void closeConnection() throws IOException {
@@ -171,20 +314,96 @@ public class TcpTunnel {
    */
   public TcpTunnel(Socket client, Socket server,
                    Server proxyServer) {
+    this(client, server, proxyServer, null);
+  }
+
+  /*
+   *  @param  client  Socket connected to our client
+   *  @param  server  Socket connected to server selected for this client by proxy
+   *  @param  flow    Flow we report to FlowClassifier, null if we don't classify flows
+   */
+  public TcpTunnel(Socket client, Socket server,
+                   Server proxyServer, Flow flow) {
     clientSocket = client;
     serverSocket = server;
+    this.server = proxyServer;
+    this.flow = flow;
 
     // Create two one-directional tunnels to connect both pipes.
-    clientServer = new OneDirectionTunnel(clientSocket, serverSocket, "clientServer", proxyServer);
-    serverClient = new OneDirectionTunnel(serverSocket, clientSocket, "serverClient", proxyServer);
+    clientServer = new OneDirectionTunnel(clientSocket, serverSocket, "clientServer", proxyServer,
+                                          flow);
+    serverClient = new OneDirectionTunnel(serverSocket, clientSocket, "serverClient", proxyServer,
+                                          flow);
   }
 
   /*
-   *  Starts data tunneling in two OneDirectionTunnel threads.
+   *  Starts data tunneling in two OneDirectionTunnel threads. If the server has a
+   *  TunnelExecutor, both directions run on its workers instead, and we return right away
+   *  even if they have to wait for free workers.
    */
   public void spawnTunnelThreads() {
-    // Start both of them in their own threads.
-    clientServer.start();
-    serverClient.start();
+    TunnelExecutor tunnelExecutor = server.getTunnelExecutor();
+    if (null == tunnelExecutor) {
+      // Start both of them in their own threads.
+      clientServer.start();
+      serverClient.start();
+      return;
+    }
+    // Never block here, we may be on the server connector's selector thread.
+    tunnelExecutor.executeAsync(clientServer, serverClient, new Runnable() {
+      @Override
+      public void run() {
+        LOG.warn("Tunnel executor is full, resetting connection from [" +
+                 clientSocket.getInetAddress().getHostAddress() + ":" +
+                 clientSocket.getPort() + "]");
+        reset();
+      }
+    });
+  }
+
+  // Called once each direction wrote its first bytes.
+  private void onFirstWrite(OneDirectionTunnel direction) {
+    if (direction == clientServer) {
+      requestNanos = System.nanoTime();
+    } else if (0 != requestNanos) {
+      long firstByteMicros = (System.nanoTime() - requestNanos) / 1000;
+      server.recordFirstByteLatency(firstByteMicros);
+      if (null != flow) {
+        flow.setFirstByteMicros(firstByteMicros);
+      }
+    }
+  }
+
+  // Called once the first direction ends, which for a download or upload is the one that
+  // carried it, so the other direction moved all it will by now but a few bytes.
+  private void releaseTunnel() {
+    if (isReleased.compareAndSet(false, true)) {
+      server.releaseTunnel();
+      if (null != flow) {
+        flow.finish(clientServer.byteRateBatch.getTotalBytes() +
+                    serverClient.byteRateBatch.getTotalBytes());
+      }
+    }
+  }
+
+  /*
+   *  Closes both sockets, sending RST instead of FIN to our client.
+   */
+  private void reset() {
+    if (null != flow) {
+      flow.cancel();
+    }
+    releaseTunnel();
+    try {
+      clientSocket.setSoLinger(true, 0);
+    } catch (IOException ioe) {
+      LOG.debug("Could not set SO_LINGER on client socket: " + ioe.getMessage());
+    }
+    try {
+      clientSocket.close();
+      serverSocket.close();
+    } catch (IOException ioe) {
+      LOG.error("IO exception while resetting tunnel: " + ioe.getMessage());
+    }
   }
 }
@@ -0,0 +1,336 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ThreadFactory;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * TunnelAutoscaler adds ssh tunnels when the ones we have are saturated and retires idle
+ * ones, keeping between minServers and maxServers of them.
+ *
+ * Every intervalMillis we measure the byte rate of each tunnel. One ssh process moves at
+ * most what one core can encrypt, so once client tunnels per tunnel keep growing while byte
+ * rate per tunnel levels off, our tunnels are saturated, see SaturationDetector, and the byte
+ * rate per tunnel then is our estimate of what a tunnel can do. When our tunnels are
+ * saturated, or have SCALE_UP_OPEN_TUNNELS client tunnels each on average, we start one more
+ * ssh tunnel on a free local port, and add it to load balancers once it accepts connections.
+ * When one tunnel less could carry our client tunnels, and our traffic at
+ * SCALE_DOWN_UTILIZATION of its estimated capacity if we have an estimate, for
+ * SCALE_DOWN_CHECKS checks in a row, we take the least busy tunnel out of load balancers and
+ * stop its ssh process once its last client tunnel closed.
+ */
+public class TunnelAutoscaler implements Runnable {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  static final int SCALE_UP_OPEN_TUNNELS = 32;
+  static final double SCALE_DOWN_UTILIZATION = 0.5;
+  static final int SCALE_DOWN_CHECKS = 6;
+
+  // How long a new ssh tunnel can take to accept connections, and how often we look.
+  static final long READY_TIMEOUT_MILLIS = Server.SSH_READY_TIMEOUT_MILLIS;
+  static final long READY_POLL_MILLIS = 200;
+
+  static final int SCALE_UP = 1;
+  static final int KEEP = 0;
+  static final int SCALE_DOWN = -1;
+
+  private TcpProxyServer proxy;
+  private int minServers;
+  private int maxServers;
+  private long intervalMillis;
+
+  // Hands out local ports for ssh tunnels we start.
+  private PortAllocator portAllocator;
+
+  private Thread thread;
+  private volatile boolean isRunning;
+
+  // Factory for our thread, so that it can be a virtual thread.
+  private ThreadFactory threadFactory;
+
+  // Watches byte rate and client tunnels per tunnel.
+  private SaturationDetector saturation;
+  // Tunnels at our last decision, per tunnel figures only compare while it stays the same.
+  private int lastNumServers;
+  // Checks in a row in which we could do with one tunnel less.
+  private int idleChecks;
+  // Total bytes of each server at our last check.
+  private HashMap<Server, Long> lastByteCnts;
+  private long lastCheckMillis;
+
+  // Servers we took out of load balancers, until their last tunnel closes. Only used by
+  // our thread, others read drainingCnt.
+  private ArrayList<Server> drainingServers;
+  private volatile int drainingCnt;
+
+  private volatile double utilization;
+  private volatile long scaleUpCnt;
+  private volatile long scaleDownCnt;
+  private volatile long failedStartCnt;
+
+  /*
+   *  @param proxy           Proxy whose servers we scale. Its servers must be ssh tunnels.
+   *  @param minServers      Fewest tunnels we keep.
+   *  @param maxServers      Most tunnels we start.
+   *  @param intervalMillis  How often we check.
+   *  @param portAllocator   Hands out local ports for new tunnels.
+   */
+  public TunnelAutoscaler(TcpProxyServer proxy, int minServers, int maxServers,
+                          long intervalMillis, PortAllocator portAllocator) {
+    assert minServers > 0 && minServers <= maxServers;
+    this.proxy = proxy;
+    this.minServers = minServers;
+    this.maxServers = maxServers;
+    this.intervalMillis = intervalMillis;
+    this.portAllocator = portAllocator;
+    this.saturation = new SaturationDetector();
+    this.lastNumServers = 0;
+    this.idleChecks = 0;
+    this.lastByteCnts = new HashMap<Server, Long>();
+    this.lastCheckMillis = System.currentTimeMillis();
+    this.drainingServers = new ArrayList<Server>();
+    this.drainingCnt = 0;
+    this.utilization = 0;
+    this.scaleUpCnt = 0;
+    this.scaleDownCnt = 0;
+    this.failedStartCnt = 0;
+    this.threadFactory = Thread.ofPlatform().factory();
+  }
+
+  public void setThreadFactory(ThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
+  }
+
+  public Thread start() {
+    assert null == thread;  // we should never call this method twice.
+    isRunning = true;
+    thread = threadFactory.newThread(this);
+    thread.setName("tunnelAutoscaler");
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  public void stop() {
+    isRunning = false;
+    thread.interrupt();
+  }
+
+  public void run() {
+    while (isRunning) {
+      try {
+        Thread.sleep(intervalMillis);
+      } catch (InterruptedException ie) {
+        LOG.debug("Interrupted while waiting to check tunnels.");
+        continue;
+      }
+      check();
+    }
+  }
+
+  private void check() {
+    retireDrainedServers();
+
+    ArrayList<Server> servers = proxy.getServerList();
+    long now = System.currentTimeMillis();
+    double seconds = Math.max(1, now - lastCheckMillis) / 1000.0;
+    lastCheckMillis = now;
+    double[] byteRates = new double[servers.size()];
+    int[] openTunnels = new int[servers.size()];
+    HashMap<Server, Long> byteCnts = new HashMap<Server, Long>();
+    for (int i = 0; i < servers.size(); i++) {
+      Server server = servers.get(i);
+      long byteCnt = server.byteRateCnt.getTotalCnt();
+      Long lastByteCnt = lastByteCnts.get(server);
+      // A new server moved nothing we know of yet.
+      byteRates[i] = null == lastByteCnt ? 0 : (byteCnt - lastByteCnt) / seconds;
+      byteCnts.put(server, byteCnt);
+      openTunnels[i] = server.getOpenTunnelCnt();
+    }
+    lastByteCnts = byteCnts;
+
+    int decision = decide(byteRates, openTunnels);
+    if (SCALE_UP == decision) {
+      addServer();
+    } else if (SCALE_DOWN == decision) {
+      retireServer(servers, byteRates, openTunnels);
+    }
+  }
+
+  /*
+   *  Decides whether we need a tunnel more or less.
+   *
+   *  @param byteRates    Bytes per second each tunnel moved since our last check.
+   *  @param openTunnels  Client tunnels each tunnel has open.
+   *
+   *  @return  SCALE_UP, KEEP or SCALE_DOWN.
+   */
+  int decide(double[] byteRates, int[] openTunnels) {
+    int numServers = byteRates.length;
+    double byteRate = 0;
+    long openTunnelCnt = 0;
+    for (int i = 0; i < numServers; i++) {
+      byteRate += byteRates[i];
+      openTunnelCnt += openTunnels[i];
+    }
+    if (numServers != lastNumServers) {
+      saturation.reset();
+      lastNumServers = numServers;
+    }
+    boolean isSaturated = numServers > 0 &&
+                          saturation.check(byteRate / numServers,
+                                           (double) openTunnelCnt / numServers);
+    double capacityByteRate = saturation.getCapacityByteRate();
+    utilization = capacityByteRate > 0 ? byteRate / (numServers * capacityByteRate) : 0;
+
+    if (numServers < minServers) {
+      return SCALE_UP;
+    }
+    if (numServers > maxServers) {
+      return SCALE_DOWN;
+    }
+    if (numServers < maxServers &&
+        (isSaturated || openTunnelCnt >= (long) SCALE_UP_OPEN_TUNNELS * numServers)) {
+      idleChecks = 0;
+      return SCALE_UP;
+    }
+    if (numServers > minServers &&
+        openTunnelCnt < (long) SCALE_UP_OPEN_TUNNELS * (numServers - 1) / 2 &&
+        (0 == capacityByteRate ||
+         byteRate <= SCALE_DOWN_UTILIZATION * (numServers - 1) * capacityByteRate)) {
+      idleChecks++;
+      if (idleChecks >= SCALE_DOWN_CHECKS) {
+        idleChecks = 0;
+        return SCALE_DOWN;
+      }
+      return KEEP;
+    }
+    idleChecks = 0;
+    return KEEP;
+  }
+
+  // Starts an ssh tunnel on a free local port and adds it to the proxy once it's ready.
+  private void addServer() {
+    int port = portAllocator.allocate();
+    if (-1 == port) {
+      LOG.warn("No free local port for another ssh tunnel.");
+      return;
+    }
+    Server server = proxy.newServer(new HostPort("localhost", port), portAllocator);
+    LOG.info("Starting ssh tunnel " + server.hostPort + " to scale up.");
+    if (!waitForReady(server)) {
+      LOG.error("ssh tunnel " + server.hostPort + " did not accept connections in " +
+                READY_TIMEOUT_MILLIS + "ms.");
+      failedStartCnt++;
+      server.close();
+      return;
+    }
+    proxy.addServer(server);
+    scaleUpCnt++;
+  }
+
+  // Waits until ssh process of server is ready, that is listens on its local port.
+  private boolean waitForReady(Server server) {
+    long deadline = System.currentTimeMillis() + READY_TIMEOUT_MILLIS;
+    while (isRunning && System.currentTimeMillis() < deadline) {
+      if (server.isHealthy()) {
+        return true;
+      }
+      try {
+        Thread.sleep(READY_POLL_MILLIS);
+      } catch (InterruptedException ie) {
+        LOG.debug("Interrupted while waiting for ssh tunnel " + server.hostPort);
+      }
+    }
+    return false;
+  }
+
+  // Takes the tunnel with the fewest client tunnels, and the lowest byte rate among those,
+  // out of load balancers.
+  private void retireServer(ArrayList<Server> servers, double[] byteRates,
+                            int[] openTunnels) {
+    int idlest = 0;
+    for (int i = 1; i < servers.size(); i++) {
+      if (openTunnels[i] < openTunnels[idlest] ||
+          (openTunnels[i] == openTunnels[idlest] && byteRates[i] < byteRates[idlest])) {
+        idlest = i;
+      }
+    }
+    Server server = servers.get(idlest);
+    LOG.info("Draining ssh tunnel " + server.hostPort + " to scale down.");
+    proxy.removeServer(server);
+    drainingServers.add(server);
+    drainingCnt = drainingServers.size();
+    scaleDownCnt++;
+  }
+
+  private void retireDrainedServers() {
+    Iterator<Server> servers = drainingServers.iterator();
+    while (servers.hasNext()) {
+      Server server = servers.next();
+      if (0 == server.getOpenTunnelCnt()) {
+        LOG.info("Stopping drained ssh tunnel " + server.hostPort);
+        server.close();
+        servers.remove();
+      }
+    }
+    drainingCnt = drainingServers.size();
+  }
+
+  public int getMinServers() {
+    return minServers;
+  }
+
+  public int getMaxServers() {
+    return maxServers;
+  }
+
+  public int getDrainingCnt() {
+    return drainingCnt;
+  }
+
+  // Share of what our tunnels can move that they moved at our last check, 0 until we know
+  // what they can move.
+  public double getUtilization() {
+    return utilization;
+  }
+
+  // What we think one tunnel can move, in bytes per second, 0 until we saw it saturated.
+  public long getCapacityByteRate() {
+    return (long) saturation.getCapacityByteRate();
+  }
+
+  public long getScaleUpCnt() {
+    return scaleUpCnt;
+  }
+
+  public long getScaleDownCnt() {
+    return scaleDownCnt;
+  }
+
+  public long getFailedStartCnt() {
+    return failedStartCnt;
+  }
+}
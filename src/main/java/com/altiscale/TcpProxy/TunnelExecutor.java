@@ -0,0 +1,239 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.TcpProxy;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.altiscale.Util.SecondMinuteHourCounter;
+
+/**
+ * TunnelExecutor is a bounded pool of pre-started worker threads for blocking TcpTunnels.
+ * It protects us from creating unlimited number of threads during a connection storm and
+ * saves thread start-up cost on the path between accepting a client and its first byte.
+ *
+ * Every OneDirectionTunnel occupies one worker for the whole lifetime of its connection, so
+ * a pool of N workers serves N/2 tunnels; directions that don't get a worker wait in a queue.
+ * Both directions of a tunnel are admitted together, and when pool and queue are full we apply
+ * one of the queue-full policies.
+ */
+public class TunnelExecutor {
+  // log4j logger.
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  // Queue-full policies.
+  // Reject the tunnel and reset client connection.
+  static final String REJECT = "reject";
+  // Wait for free slots in the queue up to waitMilliseconds, then reject.
+  static final String WAIT = "wait";
+  // Run the tunnel on new dedicated threads outside of the pool, as if we had no pool.
+  static final String THREAD = "thread";
+
+  private ThreadPoolExecutor executor;
+
+  private int queueDepth;
+
+  // One permit per worker and per slot in the queue. A direction holds its permit until it
+  // finishes, so the executor's own queue never grows beyond queueDepth.
+  private Semaphore slots;
+
+  private String queueFullPolicy;
+
+  // How long WAIT policy waits for slots in the queue.
+  private long waitMilliseconds;
+
+  // Single thread that waits for slots on behalf of callers that must not block, one tunnel
+  // after the other in the order they came. Only WAIT policy has one.
+  private ExecutorService waiter;
+
+  // Tunnels we rejected because the pool and queue were full.
+  final SecondMinuteHourCounter rejectedCnt = new SecondMinuteHourCounter("rejectedCnt");
+
+  // Directions we ran on dedicated threads because the pool and queue were full.
+  final SecondMinuteHourCounter overflowCnt = new SecondMinuteHourCounter("overflowCnt");
+
+  // Creates named and indexed threads for the pool and for THREAD policy.
+  private static class NamedThreadFactory implements ThreadFactory {
+    private String prefix;
+    private AtomicInteger nextIndex = new AtomicInteger(0);
+
+    public NamedThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      return new Thread(runnable, prefix + "-" + nextIndex.getAndIncrement());
+    }
+  }
+
+  private ThreadFactory overflowThreadFactory = new NamedThreadFactory("tunnelOverflow");
+
+  /*
+   *  @param poolSize          Number of worker threads, all of them started right away.
+   *  @param queueDepth        Number of directions that can wait for a worker. 0 means no
+   *                           queue, if all workers are busy we apply queueFullPolicy.
+   *  @param queueFullPolicy   One of REJECT, WAIT, or THREAD.
+   *  @param waitMilliseconds  How long WAIT policy waits for slots in the queue.
+   */
+  public TunnelExecutor(int poolSize, int queueDepth, String queueFullPolicy,
+                        long waitMilliseconds) {
+    assert poolSize > 0;
+    this.queueDepth = queueDepth;
+    this.queueFullPolicy = queueFullPolicy;
+    this.waitMilliseconds = waitMilliseconds;
+    this.slots = new Semaphore(poolSize + queueDepth);
+    executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                                      new LinkedBlockingQueue<Runnable>(),
+                                      new NamedThreadFactory("tunnelWorker"));
+    executor.prestartAllCoreThreads();
+    if (queueFullPolicy.equals(WAIT)) {
+      waiter = Executors.newSingleThreadExecutor(new NamedThreadFactory("tunnelWaiter"));
+    }
+  }
+
+  // Runs a direction and gives back its slot once the direction finishes.
+  private class SlotHolder implements Runnable {
+    private Runnable direction;
+
+    public SlotHolder(Runnable direction) {
+      this.direction = direction;
+    }
+
+    @Override
+    public void run() {
+      try {
+        direction.run();
+      } finally {
+        slots.release();
+      }
+    }
+  }
+
+  /*
+   *  Runs both directions of a tunnel.
+   *
+   *  @return  False if the tunnel was rejected, in which case neither direction runs.
+   */
+  public boolean execute(Runnable clientServer, Runnable serverClient) {
+    if (slots.tryAcquire(2) || (queueFullPolicy.equals(WAIT) && waitForSlots(waitMilliseconds))) {
+      runOnWorkers(clientServer, serverClient);
+      return true;
+    }
+    return runWhenFull(clientServer, serverClient);
+  }
+
+  /*
+   *  Like execute, but never blocks the caller. When WAIT policy has to wait for slots, our
+   *  waiter thread does the waiting and either runs the tunnel or calls onReject.
+   *
+   *  @param onReject  Runs if the tunnel was rejected, on the caller's thread or on the waiter.
+   */
+  public void executeAsync(final Runnable clientServer, final Runnable serverClient,
+                           final Runnable onReject) {
+    if (slots.tryAcquire(2)) {
+      runOnWorkers(clientServer, serverClient);
+      return;
+    }
+    if (!queueFullPolicy.equals(WAIT)) {
+      if (!runWhenFull(clientServer, serverClient)) {
+        onReject.run();
+      }
+      return;
+    }
+    final long deadlineMillis = System.currentTimeMillis() + waitMilliseconds;
+    try {
+      waiter.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (waitForSlots(deadlineMillis - System.currentTimeMillis())) {
+            runOnWorkers(clientServer, serverClient);
+          } else {
+            rejectedCnt.increment();
+            onReject.run();
+          }
+        }
+      });
+    } catch (RejectedExecutionException ree) {
+      // We are shutting down.
+      rejectedCnt.increment();
+      onReject.run();
+    }
+  }
+
+  private void runOnWorkers(Runnable clientServer, Runnable serverClient) {
+    executor.execute(new SlotHolder(clientServer));
+    executor.execute(new SlotHolder(serverClient));
+  }
+
+  // Applies queue-full policy after we got no slots, returns false if we rejected the tunnel.
+  private boolean runWhenFull(Runnable clientServer, Runnable serverClient) {
+    if (queueFullPolicy.equals(THREAD)) {
+      overflowCnt.incrementBy(2);
+      overflowThreadFactory.newThread(clientServer).start();
+      overflowThreadFactory.newThread(serverClient).start();
+      return true;
+    }
+    rejectedCnt.increment();
+    return false;
+  }
+
+  private boolean waitForSlots(long timeoutMillis) {
+    try {
+      return slots.tryAcquire(2, Math.max(0, timeoutMillis), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ie) {
+      LOG.error("Interrupted while waiting for tunnel queue: " + ie.getMessage());
+    }
+    return false;
+  }
+
+  public void shutdown() {
+    if (null != waiter) {
+      waiter.shutdownNow();
+    }
+    executor.shutdownNow();
+  }
+
+  public int getPoolSize() {
+    return executor.getPoolSize();
+  }
+
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  public int getQueueSize() {
+    return executor.getQueue().size();
+  }
+
+  public int getQueueDepth() {
+    return queueDepth;
+  }
+
+  public String getQueueFullPolicy() {
+    return queueFullPolicy;
+  }
+}
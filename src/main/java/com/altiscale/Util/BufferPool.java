@@ -0,0 +1,230 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * BufferPool is a shared pool of direct ByteBuffers in power-of-two size classes.
+ *
+ * Released buffers go to a small cache of the releasing thread if that thread asked for one
+ * (long-lived threads such as event loops and pool workers), otherwise to a global free list
+ * of their size class. Total direct memory the pool ever allocates is capped; once we reach
+ * the cap we hand out heap buffers which are not pooled.
+ */
+public class BufferPool {
+  // How many buffers of each size class a thread keeps for itself.
+  static final int THREAD_CACHE_SIZE = 4;
+
+  private int minBufferSize;
+  private int maxBufferSize;
+  private long maxReservedBytes;
+
+  // Global free lists, one per size class.
+  private ArrayList<ConcurrentLinkedQueue<ByteBuffer>> freeLists;
+
+  // Per-thread caches, only for threads that called useThreadCache().
+  private ThreadLocal<ArrayList<ArrayDeque<ByteBuffer>>> threadCache =
+      new ThreadLocal<ArrayList<ArrayDeque<ByteBuffer>>>();
+
+  // Direct memory allocated by the pool so far (buffers in use and free), and its maximum.
+  private AtomicLong reservedBytes = new AtomicLong(0);
+  private AtomicLong highWaterBytes = new AtomicLong(0);
+
+  // Acquires served from a free list, served by allocating new buffer, and served by
+  // a heap buffer because we reached maxReservedBytes.
+  private AtomicLong hitCnt = new AtomicLong(0);
+  private AtomicLong missCnt = new AtomicLong(0);
+  private AtomicLong heapCnt = new AtomicLong(0);
+
+  // Buffers handed out and not yet released, and all acquires, per size class.
+  private AtomicLongArray inUseCnt;
+  private AtomicLongArray acquireCnt;
+
+  /*
+   *  @param minBufferSize     Size of the smallest size class, rounded up to a power of two.
+   *  @param maxBufferSize     Size of the largest size class, rounded up to a power of two.
+   *  @param maxReservedBytes  Cap on direct memory allocated by the pool.
+   */
+  public BufferPool(int minBufferSize, int maxBufferSize, long maxReservedBytes) {
+    this.minBufferSize = roundUpToPowerOfTwo(minBufferSize);
+    this.maxBufferSize = Math.max(this.minBufferSize, roundUpToPowerOfTwo(maxBufferSize));
+    this.maxReservedBytes = maxReservedBytes;
+    int numClasses = sizeClass(this.maxBufferSize) + 1;
+    freeLists = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>(numClasses);
+    for (int i = 0; i < numClasses; i++) {
+      freeLists.add(new ConcurrentLinkedQueue<ByteBuffer>());
+    }
+    inUseCnt = new AtomicLongArray(numClasses);
+    acquireCnt = new AtomicLongArray(numClasses);
+  }
+
+  private static int roundUpToPowerOfTwo(int size) {
+    return Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+  }
+
+  private int sizeClass(int size) {
+    if (size <= minBufferSize) {
+      return 0;
+    }
+    return Integer.numberOfTrailingZeros(roundUpToPowerOfTwo(size)) -
+           Integer.numberOfTrailingZeros(minBufferSize);
+  }
+
+  /*
+   *  Gives the calling thread its own cache of released buffers. Only long-lived threads
+   *  should call this, buffers cached by a thread that exits are lost for the pool.
+   */
+  public void useThreadCache() {
+    ArrayList<ArrayDeque<ByteBuffer>> cache =
+        new ArrayList<ArrayDeque<ByteBuffer>>(freeLists.size());
+    for (int i = 0; i < freeLists.size(); i++) {
+      cache.add(new ArrayDeque<ByteBuffer>(THREAD_CACHE_SIZE));
+    }
+    threadCache.set(cache);
+  }
+
+  public int getMinBufferSize() {
+    return minBufferSize;
+  }
+
+  public int getMaxBufferSize() {
+    return maxBufferSize;
+  }
+
+  /*
+   *  @param size  Minimum capacity we need, capped at maxBufferSize.
+   *
+   *  @return  Cleared buffer with capacity of the size class for size.
+   */
+  public ByteBuffer acquire(int size) {
+    int sizeClass = sizeClass(Math.min(size, maxBufferSize));
+    inUseCnt.incrementAndGet(sizeClass);
+    acquireCnt.incrementAndGet(sizeClass);
+    ByteBuffer buffer = null;
+    ArrayList<ArrayDeque<ByteBuffer>> cache = threadCache.get();
+    if (null != cache) {
+      buffer = cache.get(sizeClass).pollFirst();
+    }
+    if (null == buffer) {
+      buffer = freeLists.get(sizeClass).poll();
+    }
+    if (null != buffer) {
+      hitCnt.incrementAndGet();
+      buffer.clear();
+      return buffer;
+    }
+
+    int capacity = minBufferSize << sizeClass;
+    if (reserve(capacity)) {
+      missCnt.incrementAndGet();
+      return ByteBuffer.allocateDirect(capacity);
+    }
+    heapCnt.incrementAndGet();
+    return ByteBuffer.allocate(capacity);
+  }
+
+  private boolean reserve(int capacity) {
+    while (true) {
+      long reserved = reservedBytes.get();
+      if (reserved + capacity > maxReservedBytes) {
+        return false;
+      }
+      if (reservedBytes.compareAndSet(reserved, reserved + capacity)) {
+        long highWater = highWaterBytes.get();
+        while (reserved + capacity > highWater &&
+               !highWaterBytes.compareAndSet(highWater, reserved + capacity)) {
+          highWater = highWaterBytes.get();
+        }
+        return true;
+      }
+    }
+  }
+
+  /*
+   *  Gives buffer back to the pool. Heap buffers we handed out past our cap are dropped.
+   */
+  public void release(ByteBuffer buffer) {
+    if (null == buffer) {
+      return;
+    }
+    int sizeClass = sizeClass(buffer.capacity());
+    assert (minBufferSize << sizeClass) == buffer.capacity();
+    inUseCnt.decrementAndGet(sizeClass);
+    if (!buffer.isDirect()) {
+      return;
+    }
+    ArrayList<ArrayDeque<ByteBuffer>> cache = threadCache.get();
+    if (null != cache && cache.get(sizeClass).size() < THREAD_CACHE_SIZE) {
+      cache.get(sizeClass).addFirst(buffer);
+      return;
+    }
+    freeLists.get(sizeClass).add(buffer);
+  }
+
+  public long getReservedBytes() {
+    return reservedBytes.get();
+  }
+
+  public long getHighWaterBytes() {
+    return highWaterBytes.get();
+  }
+
+  public long getMaxReservedBytes() {
+    return maxReservedBytes;
+  }
+
+  public long getHitCnt() {
+    return hitCnt.get();
+  }
+
+  public long getMissCnt() {
+    return missCnt.get();
+  }
+
+  public long getHeapCnt() {
+    return heapCnt.get();
+  }
+
+  public int getNumSizeClasses() {
+    return freeLists.size();
+  }
+
+  public int getSizeClassBufferSize(int sizeClass) {
+    return minBufferSize << sizeClass;
+  }
+
+  // Buffers of a size class handed out and not yet released.
+  public long getInUseCnt(int sizeClass) {
+    return inUseCnt.get(sizeClass);
+  }
+
+  public long getAcquireCnt(int sizeClass) {
+    return acquireCnt.get(sizeClass);
+  }
+
+  // Percentage of acquires served from free lists.
+  public long getHitRatePercent() {
+    long acquires = hitCnt.get() + missCnt.get() + heapCnt.get();
+    return 0 == acquires ? 0 : 100 * hitCnt.get() / acquires;
+  }
+}
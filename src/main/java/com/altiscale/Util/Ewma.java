@@ -0,0 +1,101 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Ewma is an exponentially weighted moving average of samples, such as latencies, that arrive
+ * at irregular times. Weight of a sample decays with time constant decayMillis: a sample
+ * decayMillis old counts about a third as much as a new one. Every new sample gets at least
+ * MIN_SAMPLE_WEIGHT, so a burst of samples within the same millisecond still moves the
+ * average.
+ *
+ * Time only ages old samples, it never changes the average while no samples arrive. Callers
+ * that must not trust an old average, such as a load balancer that wants to probe a server it
+ * left because it was slow, check getAgeMillis.
+ *
+ * Updates and reads take no locks.
+ */
+public class Ewma {
+  // Least weight of a new sample, however close it comes after the last one.
+  static final double MIN_SAMPLE_WEIGHT = 0.1;
+
+  private long decayMillis;
+
+  // Average and time of its last sample. We replace both at once.
+  private static class State {
+    final double value;
+    final long timeMillis;
+
+    State(double value, long timeMillis) {
+      this.value = value;
+      this.timeMillis = timeMillis;
+    }
+  }
+  private AtomicReference<State> state;
+
+  /*
+   *  @param decayMillis  Time constant of the decay.
+   */
+  public Ewma(long decayMillis) {
+    assert decayMillis > 0;
+    this.decayMillis = decayMillis;
+    this.state = new AtomicReference<State>(null);
+  }
+
+  public void update(double sample) {
+    update(sample, System.currentTimeMillis());
+  }
+
+  public void update(double sample, long nowMillis) {
+    while (true) {
+      State current = state.get();
+      double value = sample;
+      if (null != current) {
+        // Weight of the average so far.
+        double weight = Math.min(1 - MIN_SAMPLE_WEIGHT,
+                                 Math.exp(-Math.max(0, nowMillis - current.timeMillis) /
+                                          (double) decayMillis));
+        value = weight * current.value + (1 - weight) * sample;
+      }
+      if (state.compareAndSet(current, new State(value, nowMillis))) {
+        return;
+      }
+    }
+  }
+
+  /*
+   *  @return  Average as of its last sample, 0 if we have no samples.
+   */
+  public double get() {
+    State current = state.get();
+    return null == current ? 0 : current.value;
+  }
+
+  /*
+   *  @return  Time since the last sample, Long.MAX_VALUE if we have no samples.
+   */
+  public long getAgeMillis(long nowMillis) {
+    State current = state.get();
+    return null == current ? Long.MAX_VALUE : Math.max(0, nowMillis - current.timeMillis);
+  }
+
+  public boolean hasSamples() {
+    return null != state.get();
+  }
+}
@@ -18,66 +18,193 @@ package com.altiscale.Util;
 
 import org.apache.log4j.Logger;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 /**
  * ExecLoop starts a java thread and then executes a command in new process on its host machine.
  * It then waits for the process to finish and either tries to restart it again or finishes.
  *
+ * With a ReadinessProbe, the process only counts as running once the probe succeeds, and we
+ * kill and restart a process that doesn't get ready within readyTimeoutMilliseconds. A
+ * process that failed to get ready, or exited within STABLE_MILLISECONDS of getting ready,
+ * is a failure, and we wait twice as long after every failure in a row, from
+ * waitMilliseconds up to maxWaitMilliseconds, with random jitter so that many loops that
+ * failed together don't restart together. We log what the process writes to stderr, and a
+ * StderrClassifier tells errors that retrying soon won't fix, after which we wait
+ * maxWaitMilliseconds right away.
  */
 public class ExecLoop implements Runnable {
 
+  /*
+   *  Tells whether a process we started is ready for work.
+   */
+  public interface ReadinessProbe {
+    public boolean isReady();
+  }
+
+  /*
+   *  Sorts lines a process writes to stderr into classes of errors.
+   */
+  public interface StderrClassifier {
+    // Class of error line reports, null if it isn't an error.
+    public String classify(String line);
+
+    // True if retrying soon won't fix errors of errorClass.
+    public boolean isPermanent(String errorClass);
+  }
+
+  // A process that stays ready this long before it exits didn't fail.
+  public static final long STABLE_MILLISECONDS = 60 * 1000;
+
+  // How often we probe a process that isn't ready yet.
+  public static final long READY_POLL_MILLISECONDS = 200;
+
+  // How long we wait for the rest of stderr once the process exited.
+  public static final long STDERR_DRAIN_MILLISECONDS = 1000;
+
+  // States of our process.
+  public static final String STARTING = "starting";
+  public static final String READY = "ready";
+  public static final String BACKING_OFF = "backing off";
+  public static final String STOPPED = "stopped";
+
   // log4j logger.
   private static Logger LOG;
 
   // Command to run on host OS in a new process.
-  private String command;
+  private volatile String command;
 
   // Process this ExecLoop is monitoring.
-  private Process execProcess;
+  private volatile Process execProcess;
 
   // Should we restart this process?
-  private boolean shouldRestart;
+  private volatile boolean shouldRestart;
 
   // Counter for restarts.
   final SecondMinuteHourCounter restartCnt = new SecondMinuteHourCounter("ExecLoop");
 
-  // How much should we wait between restarts?
+  // How much should we wait between restarts? We wait longer after failures in a row, up to
+  // maxWaitMilliseconds.
   private long waitMilliseconds;
+  private long maxWaitMilliseconds;
+
+  // Failures in a row, and how long we wait before the next restart.
+  private volatile int failureCnt;
+  private volatile long backoffMilliseconds;
+
+  // True if the process is running command, and ready if we have a readiness probe.
+  private volatile boolean isRunning;
+
+  // How long our last process took from exec until it was ready, -1 if none was ready yet.
+  private volatile long readyMilliseconds;
+
+  // STARTING, READY, BACKING_OFF or STOPPED.
+  private volatile String state;
 
-  // True if the process is running command.
-  private boolean isRunning;
+  // Null if the process is ready as soon as it starts.
+  private ReadinessProbe readinessProbe;
+  private long readyTimeoutMilliseconds;
+
+  // Runs before every exec of command, for example to clean up after a process that died.
+  // Null if we don't need that.
+  private Runnable beforeExec;
+
+  // Null if we don't classify errors.
+  private StderrClassifier stderrClassifier;
+
+  // Errors the process reported on stderr, and the last one with its class.
+  private volatile long errorCnt;
+  private volatile String lastErrorClass;
+  private volatile String lastErrorLine;
+  // Class of the last error the current process reported, null if none.
+  private volatile String runErrorClass;
 
   private Thread thread;
 
+  // Factory for the thread monitoring our process, so that it can be a virtual thread.
+  private ThreadFactory threadFactory;
+
   public ExecLoop(String command, boolean shouldRestart, Logger LOG) {
     this.LOG = LOG;
     this.command = command;
     this.shouldRestart = shouldRestart;
     this.waitMilliseconds = 500;
+    this.maxWaitMilliseconds = 60 * 1000;
+    this.failureCnt = 0;
+    this.backoffMilliseconds = 0;
     this.isRunning = false;
+    this.state = STOPPED;
+    this.readyMilliseconds = -1;
+    this.readinessProbe = null;
+    this.readyTimeoutMilliseconds = 30 * 1000;
+    this.stderrClassifier = null;
+    this.beforeExec = null;
+    this.errorCnt = 0;
+    this.lastErrorClass = null;
+    this.lastErrorLine = null;
+    this.runErrorClass = null;
     this.execProcess = null;
     this.thread = null;
+    this.threadFactory = Thread.ofPlatform().factory();
+  }
+
+  public void setThreadFactory(ThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
   }
 
   public void setWaitMilliseconds(long waitMilliseconds) {
     this.waitMilliseconds = waitMilliseconds;
   }
 
-  private synchronized void setIsRunning(boolean value) {
+  public void setMaxWaitMilliseconds(long maxWaitMilliseconds) {
+    this.maxWaitMilliseconds = maxWaitMilliseconds;
+  }
+
+  /*
+   *  @param readinessProbe            Probe that succeeds once our process is ready.
+   *  @param readyTimeoutMilliseconds  How long we wait for it before we restart the process.
+   */
+  public void setReadinessProbe(ReadinessProbe readinessProbe, long readyTimeoutMilliseconds) {
+    this.readinessProbe = readinessProbe;
+    this.readyTimeoutMilliseconds = readyTimeoutMilliseconds;
+  }
+
+  // beforeExec may change our command with setCommand.
+  public void setBeforeExec(Runnable beforeExec) {
+    this.beforeExec = beforeExec;
+  }
+
+  // Command we run from our next restart on.
+  public void setCommand(String command) {
+    this.command = command;
+  }
+
+  public String getCommand() {
+    return command;
+  }
+
+  public void setStderrClassifier(StderrClassifier stderrClassifier) {
+    this.stderrClassifier = stderrClassifier;
+  }
+
+  private void setIsRunning(boolean value) {
     isRunning = value;
   }
 
-  public synchronized boolean isRunning() {
+  public boolean isRunning() {
     return isRunning;
   }
 
-  public synchronized void setShouldRestart(boolean value) {
+  public void setShouldRestart(boolean value) {
     shouldRestart = value;
   }
 
-  public synchronized boolean shouldRestart() {
+  public boolean shouldRestart() {
     return shouldRestart;
   }
 
@@ -89,7 +216,8 @@ public class ExecLoop implements Runnable {
   public Thread start() {
     assert null == thread;  // we should never call this method twice.
     LOG.debug("Starting thread to run [" + command + "]");
-    thread = new Thread(this);
+    state = STARTING;
+    thread = threadFactory.newThread(this);
     thread.start();
     return thread;
   }
@@ -99,22 +227,197 @@ public class ExecLoop implements Runnable {
     assert null == execProcess;
 
     while (shouldRestart()) {
+      state = STARTING;
+      long readyMillis = -1;
+      Thread stderrThread = null;
+      runErrorClass = null;
       try {
+        if (null != beforeExec) {
+          beforeExec.run();
+        }
+        long startMillis = System.currentTimeMillis();
         execProcess = Runtime.getRuntime().exec(command);
-        setIsRunning(true);
         LOG.info("Executed command: [" + command + "]");
-        execProcess.waitFor();
-        setIsRunning(false);
-        TimeUnit.MILLISECONDS.sleep(waitMilliseconds);
+        stderrThread = readStderr(execProcess);
+        if (waitForReady(execProcess)) {
+          readyMillis = System.currentTimeMillis();
+          readyMilliseconds = readyMillis - startMillis;
+          state = READY;
+          setIsRunning(true);
+          if (null != readinessProbe) {
+            LOG.info("Command ready: [" + command + "]");
+          }
+          execProcess.waitFor();
+          setIsRunning(false);
+        } else if (!execProcess.isAlive()) {
+          LOG.error("Command exited with code " + execProcess.exitValue() +
+                    " before it was ready: [" + command + "]");
+        } else if (shouldRestart()) {
+          LOG.error("Command not ready in " + readyTimeoutMilliseconds + "ms, restarting: [" +
+                    command + "]");
+          execProcess.destroy();
+          execProcess.waitFor();
+        }
       } catch (IOException ioe) {
         LOG.error("Failed to execute command [" + command + "]: " + ioe.getMessage());
       } catch (InterruptedException ie) {
         LOG.error("Interrupted process with exception: " + ie.getMessage());
       }
+      setIsRunning(false);
+      if (!shouldRestart()) {
+        break;
+      }
+      // Last lines on stderr tell why the process exited, read them before we decide how long
+      // to wait.
+      try {
+        if (null != stderrThread) {
+          stderrThread.join(STDERR_DRAIN_MILLISECONDS);
+        }
+      } catch (InterruptedException ie) {
+        LOG.error("Interrupted process with exception: " + ie.getMessage());
+      }
+
+      if (-1 != readyMillis &&
+          System.currentTimeMillis() - readyMillis >= STABLE_MILLISECONDS) {
+        failureCnt = 0;
+      } else {
+        failureCnt++;
+      }
+      backoffMilliseconds = getBackoffMilliseconds(failureCnt, runErrorClass);
+      state = BACKING_OFF;
+      restartCnt.increment();
+      LOG.info("Restarting command in " + backoffMilliseconds + "ms after " + failureCnt +
+               " failures in a row: [" + command + "]");
+      try {
+        TimeUnit.MILLISECONDS.sleep(backoffMilliseconds);
+      } catch (InterruptedException ie) {
+        LOG.error("Interrupted process with exception: " + ie.getMessage());
+      }
+    }
+    state = STOPPED;
+  }
+
+  /*
+   *  @param failureCnt  Failures in a row.
+   *  @param errorClass  Class of the last error the process reported, null if none.
+   *
+   *  @return  How long we wait before we restart.
+   */
+  long getBackoffMilliseconds(int failureCnt, String errorClass) {
+    boolean isPermanent = null != errorClass && null != stderrClassifier &&
+                          stderrClassifier.isPermanent(errorClass);
+    return getBackoffMilliseconds(waitMilliseconds, maxWaitMilliseconds, failureCnt,
+                                  isPermanent);
+  }
+
+  /*
+   *  @param waitMilliseconds     How long we wait after the first failure.
+   *  @param maxWaitMilliseconds  Most we wait.
+   *  @param failureCnt           Failures in a row.
+   *  @param isPermanent          True if the last failure won't go away on a quick retry.
+   *
+   *  @return  How long we wait before we retry, with jitter: between half of and all of
+   *           waitMilliseconds doubled for every failure after the first, or of
+   *           maxWaitMilliseconds after a permanent failure.
+   */
+  public static long getBackoffMilliseconds(long waitMilliseconds, long maxWaitMilliseconds,
+                                            int failureCnt, boolean isPermanent) {
+    long backoff = isPermanent ? maxWaitMilliseconds : waitMilliseconds;
+    for (int i = 1; i < failureCnt && backoff < maxWaitMilliseconds; i++) {
+      backoff *= 2;
+    }
+    backoff = Math.min(backoff, maxWaitMilliseconds);
+    return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+  }
+
+  // Waits until our readiness probe succeeds, false if process exits or doesn't get ready
+  // in time.
+  private boolean waitForReady(Process process) throws InterruptedException {
+    if (null == readinessProbe) {
+      return true;
+    }
+    long deadline = System.currentTimeMillis() + readyTimeoutMilliseconds;
+    while (process.isAlive() && System.currentTimeMillis() < deadline) {
+      if (readinessProbe.isReady()) {
+        return true;
+      }
+      TimeUnit.MILLISECONDS.sleep(READY_POLL_MILLISECONDS);
+    }
+    return false;
+  }
+
+  // Logs and classifies what process writes to stderr, in a thread of its own. Also keeps
+  // the process from blocking on a full stderr pipe.
+  private Thread readStderr(final Process process) {
+    Thread stderrThread = threadFactory.newThread(new Runnable() {
+      public void run() {
+        BufferedReader stderr = new BufferedReader(
+            new InputStreamReader(process.getErrorStream()));
+        try {
+          String line;
+          while (null != (line = stderr.readLine())) {
+            onStderrLine(line);
+          }
+        } catch (IOException ioe) {
+          LOG.debug("Stopped reading stderr of [" + command + "]: " + ioe.getMessage());
+        }
+      }
+    });
+    stderrThread.setDaemon(true);
+    stderrThread.start();
+    return stderrThread;
+  }
+
+  void onStderrLine(String line) {
+    String errorClass = null == stderrClassifier ? null : stderrClassifier.classify(line);
+    if (null == errorClass) {
+      LOG.info("[" + command + "] " + line);
+      return;
     }
+    LOG.error("[" + command + "] " + errorClass + ": " + line);
+    errorCnt++;
+    lastErrorClass = errorClass;
+    lastErrorLine = line;
+    runErrorClass = errorClass;
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  public long getReadyMilliseconds() {
+    return readyMilliseconds;
+  }
+
+  public long getRestartCnt() {
+    return restartCnt.getTotalCnt();
+  }
+
+  public int getFailureCnt() {
+    return failureCnt;
+  }
+
+  public long getBackoffMilliseconds() {
+    return backoffMilliseconds;
+  }
+
+  public long getErrorCnt() {
+    return errorCnt;
+  }
+
+  // Class of the last error the process reported, null if it reported none.
+  public String getLastErrorClass() {
+    return lastErrorClass;
+  }
+
+  public String getLastErrorLine() {
+    return lastErrorLine;
   }
 
+  // Kills our process. We restart it if we should restart, else we also stop waiting.
   public void stop() {
-    if (execProcess != null) execProcess.destroy();
+    Process process = execProcess;
+    if (process != null) process.destroy();
+    if (!shouldRestart() && null != thread) thread.interrupt();
   }
 }
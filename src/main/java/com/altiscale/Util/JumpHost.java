@@ -27,6 +27,8 @@ public class JumpHost {
   public String ciphers;
   public String sshBinary;
   public boolean openInterfaces;
+  // Servers that tunnel through us, 0 if we take an even share of those nobody claimed.
+  public int tunnels;
 
   /*  @param sshd            host:port of machine to use for establishing ssh tunnel to
    *                         jumphostServer. sshd.host is the name of the machine where sshd
@@ -59,6 +61,114 @@ public class JumpHost {
     this.ciphers = ciphers;
     this.sshBinary = sshBinary;
     this.openInterfaces = openInterfaces;
+    this.tunnels = 0;
+  }
+
+  /*
+   *  Parses a jumphost spec like bastion2:22,user=coyote,ciphers=aes128-ctr:aes256-ctr,tunnels=4.
+   *  Options: user, credentials, compression (true/false), ciphers (colon separated), server
+   *  (host:port), tunnels. Options the spec doesn't set are those of defaults.
+   *
+   *  @param spec      sshd host, optionally with port, and options.
+   *  @param defaults  Jumphost we take options from that spec doesn't set.
+   */
+  public static JumpHost parse(String spec, JumpHost defaults) {
+    String[] parts = spec.split(",");
+    if (parts[0].isEmpty()) {
+      throw new IllegalArgumentException("Jumphost needs a host: " + spec);
+    }
+    JumpHost jumphost = new JumpHost(parseHostPort(parts[0]), defaults.server, defaults.user,
+                                     defaults.credentials, defaults.compression,
+                                     defaults.ciphers, defaults.sshBinary,
+                                     defaults.openInterfaces);
+    for (int i = 1; i < parts.length; i++) {
+      if (parts[i].isEmpty()) {
+        continue;
+      }
+      String[] keyValue = parts[i].split("=", 2);
+      if (keyValue.length != 2) {
+        throw new IllegalArgumentException("Jumphost option needs key=value: " + parts[i]);
+      }
+      String key = keyValue[0].trim();
+      String value = keyValue[1].trim();
+      if (key.equals("user")) {
+        jumphost.user = value;
+      } else if (key.equals("credentials")) {
+        jumphost.credentials = value;
+      } else if (key.equals("compression")) {
+        if (!value.equals("true") && !value.equals("false")) {
+          throw new IllegalArgumentException("compression must be true or false: " + value);
+        }
+        jumphost.compression = value.equals("true");
+      } else if (key.equals("ciphers")) {
+        // Commas separate our options already.
+        jumphost.ciphers = value.replace(':', ',');
+      } else if (key.equals("server")) {
+        jumphost.server = parseHostPort(value);
+        if (-1 == jumphost.server.port) {
+          throw new IllegalArgumentException("server needs a port: " + value);
+        }
+      } else if (key.equals("tunnels")) {
+        jumphost.tunnels = Integer.parseInt(value);
+        if (jumphost.tunnels < 1) {
+          throw new IllegalArgumentException("tunnels must be positive: " + value);
+        }
+      } else {
+        throw new IllegalArgumentException("Unknown jumphost option: " + key);
+      }
+    }
+    return jumphost;
+  }
+
+  // host or host:port, port -1 if missing.
+  private static HostPort parseHostPort(String hostPort) {
+    int colon = hostPort.lastIndexOf(':');
+    if (-1 == colon) {
+      return new HostPort(hostPort, -1);
+    }
+    return new HostPort(hostPort.substring(0, colon),
+                        Integer.parseInt(hostPort.substring(colon + 1)));
+  }
+
+  // ssh binary and the options we use for every ssh process to the jumphost.
+  public String sshOptions() {
+    String options = null == sshBinary ? "ssh" : sshBinary;
+    if (null != credentials) {
+      options += " -i " + credentials;
+    }
+    if (compression) {
+      options += " -C";
+    }
+    if (null != ciphers) {
+      options += " -c " + ciphers;
+    }
+    // Accept key automatically
+    options += " -o StrictHostKeyChecking=no";
+    return options;
+  }
+
+  // Argument of ssh -L that forwards localPort to our server.
+  public String forwardSpec(int localPort) {
+    // Open all network interfaces.
+    String spec = openInterfaces ? "*:" : "";
+    return spec + localPort + ":" + server.host + ":" + server.port;
+  }
+
+  // User, port and host of sshd, last arguments of every ssh process to the jumphost.
+  public String sshDestination() {
+    String destination = "";
+    if (null != user) {
+      destination += " -l " + user;
+    }
+    if (-1 != sshd.port) {
+      destination += " -p " + sshd.port;
+    }
+    return destination + " " + sshd.host;
+  }
+
+  @Override
+  public String toString() {
+    return null == user ? sshd.toString() : user + "@" + sshd.toString();
   }
 }
 
@@ -16,7 +16,9 @@
 
 package com.altiscale.Util;
 
-import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
 class AltiTimer {
   /** This class wraps System.currentTimeMillis. It's useful for testing. */
@@ -26,80 +28,67 @@ class AltiTimer {
 }
 
 class SlidingWindowCounter {
-  /** This class implements a sparse sliding window using a set of buckets kept in a Deque.
+  /** This class implements a sliding window over a shared running total. Instead of counting
+   *  each bucket we keep a fixed ring of snapshots of the total, one per bucket, taken at the
+   *  bucket's start. Count in the window is the total now minus the snapshot at the start of
+   *  the oldest bucket in the window.
+   *
+   *  Snapshots are written only when the clock moves to a new bucket, so in the common case
+   *  an increment only reads lastBucket. Writers race benignly: any of them stores the total
+   *  as of about the same moment, so the counts are approximate under concurrent updates.
+   *
    *  @param numBuckets Number of buckets per each interval (more buckets, higher precision)
    */
 
-  private long counter;
-  private ArrayDeque<Pair> buckets;
-  private long numBuckets;
+  private LongAdder total;
   private long bucketSize;
   private long windowSize;
-  private AltiTimer timer;
 
-  class Pair {
-    /** This class implements a pair needed in our sparse sliding window implementation.
-     *
-     * @param timestamp keeps a id for the bucket we're working on from the beggining of time.
-     * @param count keeps the count for that particular bucket.
-     */
-    private long timestamp;
-    private long count;
-
-    public Pair(long timestamp, long count) {
-      this.timestamp = timestamp;
-      this.count = count;
-    }
+  // Bucket in which we were created, everything before it counts from 0.
+  private long firstBucket;
 
-    public long getTimestamp() {
-      return this.timestamp;
-    }
+  // Newest bucket whose snapshot is in the ring.
+  private AtomicLong lastBucket;
 
-    public long getCount() {
-      return this.count;
-    }
+  // Snapshots of total, ring indexed by bucket. A window spans numBuckets + 1 buckets.
+  private AtomicLongArray snapshots;
 
-    public void incCount(long amount) {
-      this.count += amount;
-    }
-  }
-
-  public SlidingWindowCounter(AltiTimer timer, long numBuckets, long windowSize) {
-    this.timer = timer;
-    this.numBuckets = numBuckets;
+  public SlidingWindowCounter(LongAdder total, long numBuckets, long windowSize, long now) {
+    this.total = total;
     this.windowSize = windowSize;
     // we assume windowSize is a multiple of numBuckets
     assert windowSize % numBuckets == 0;
     this.bucketSize = windowSize / numBuckets;
-    this.buckets = new ArrayDeque<Pair>();
-  }
-
-  public void incrementBy(long amount) {
-    removeOutdatedBuckets();
-    counter += amount;
-    long bucketTimestamp = timer.currentTimeMillis() / bucketSize;
-    if (buckets.size() > 0 && buckets.getLast().getTimestamp() == bucketTimestamp) {
-      buckets.getLast().incCount(amount);
-    } else {
-      buckets.add(new Pair(bucketTimestamp, amount));
+    this.firstBucket = now / bucketSize;
+    this.lastBucket = new AtomicLong(firstBucket);
+    this.snapshots = new AtomicLongArray((int) numBuckets + 2);
+  }
+
+  /** Takes snapshots for buckets up to the one that holds now, must be called before we add
+   *  to total at time now. */
+  public void advance(long now) {
+    long bucket = now / bucketSize;
+    long last = lastBucket.get();
+    if (bucket <= last) {
+      return;
     }
+    long snapshot = total.sum();
+    for (long b = Math.max(last + 1, bucket - snapshots.length() + 1); b <= bucket; b++) {
+      snapshots.set((int) (b % snapshots.length()), snapshot);
+    }
+    // If we lose, another thread wrote the same buckets.
+    lastBucket.compareAndSet(last, bucket);
   }
 
-  public long getCount() {
-    removeOutdatedBuckets();
-    return counter;
-  }
-
-  /** This method lazily deletes buckets that are no longer within the sliding window */
-  private void removeOutdatedBuckets() {
-    long currentTime = timer.currentTimeMillis();
-    long bucketTimestamp = currentTime / bucketSize;
-    while (buckets.size() > 0 &&
-           buckets.getFirst().getTimestamp() * bucketSize <
-             currentTime - windowSize) {
-      counter -= buckets.getFirst().getCount();
-      buckets.removeFirst();
+  public long getCount(long now) {
+    advance(now);
+    // Oldest bucket that starts within the window.
+    long oldestBucket = Math.floorDiv(now - windowSize + bucketSize - 1, bucketSize);
+    if (oldestBucket <= firstBucket) {
+      return total.sum();
     }
+    long snapshot = snapshots.get((int) (oldestBucket % snapshots.length()));
+    return Math.max(0, total.sum() - snapshot);
   }
 }
 
@@ -111,17 +100,19 @@ class SlidingWindowCounter {
  * it to keep counters for how many requests are handled by a web server or for measuring the
  * throughput of a network transfer.
  *
- * The methods used are increment and incrementBy, they aren't very light weight so using them
- * in a tight loop might slow performance. The use case for increment is somewhat infrequent requests
- * up to 1000 per second. When we need faster increments we use the incrementBy to do it in bulk.
+ * The methods used are increment and incrementBy. They take no locks and allocate nothing: the
+ * total is a LongAdder, whose cells are striped across threads, and the sliding windows keep
+ * fixed rings of snapshots of the total. An increment reads the clock once and otherwise only
+ * touches shared memory when the clock moves to a new bucket, so many tunnels can update the
+ * same counter on every read without contending.
 **/
 public class SecondMinuteHourCounter {
 
   private SlidingWindowCounter secondCounter, minuteCounter, hourCounter;
-  private long totalCounter;
+  private LongAdder totalCounter;
   private long numBuckets;
   private String name;
-
+  private AltiTimer timer;
   /*
    *  @param name  Human-readable name for this counter.
    */
@@ -150,38 +141,41 @@ public class SecondMinuteHourCounter {
    */
   public SecondMinuteHourCounter(AltiTimer timer, String name, Long numBuckets) {
     this.name = name;
-    this.totalCounter = 0;
+    this.timer = timer;
+    this.totalCounter = new LongAdder();
     this.numBuckets = numBuckets;
-    this.secondCounter = new SlidingWindowCounter(timer, numBuckets, 1000);
-    this.minuteCounter = new SlidingWindowCounter(timer, numBuckets, 60 * 1000);
-    this.hourCounter = new SlidingWindowCounter(timer, numBuckets, 60 * 60 * 1000);
+    long now = timer.currentTimeMillis();
+    this.secondCounter = new SlidingWindowCounter(totalCounter, numBuckets, 1000, now);
+    this.minuteCounter = new SlidingWindowCounter(totalCounter, numBuckets, 60 * 1000, now);
+    this.hourCounter = new SlidingWindowCounter(totalCounter, numBuckets, 60 * 60 * 1000, now);
   }
 
-  public synchronized void increment() {
+  public void increment() {
     this.incrementBy(1);
   }
 
-  public synchronized void incrementBy(long amount) {
-    totalCounter += amount;
-    secondCounter.incrementBy(amount);
-    minuteCounter.incrementBy(amount);
-    hourCounter.incrementBy(amount);
+  public void incrementBy(long amount) {
+    long now = timer.currentTimeMillis();
+    secondCounter.advance(now);
+    minuteCounter.advance(now);
+    hourCounter.advance(now);
+    totalCounter.add(amount);
   }
 
-  public synchronized long getLastSecondCnt() {
-    return secondCounter.getCount();
+  public long getLastSecondCnt() {
+    return secondCounter.getCount(timer.currentTimeMillis());
   }
 
-  public synchronized long getLastMinuteCnt() {
-    return minuteCounter.getCount();
+  public long getLastMinuteCnt() {
+    return minuteCounter.getCount(timer.currentTimeMillis());
   }
 
-  public synchronized long getLastHourCnt() {
-    return hourCounter.getCount();
+  public long getLastHourCnt() {
+    return hourCounter.getCount(timer.currentTimeMillis());
   }
 
-  public synchronized long getTotalCnt() {
-    return totalCounter;
+  public long getTotalCnt() {
+    return totalCounter.sum();
   }
 
   public String toString() {
@@ -19,6 +19,8 @@ package com.altiscale.Util;
 import java.io.OutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
@@ -41,9 +43,23 @@ public class ServerStatus implements Runnable {
   private ServerWithStats serverWithStats;
   private int port;
 
+  // Factory for threads running our handlers. Null if handlers run on HttpServer's own thread.
+  private ThreadFactory threadFactory;
+
   public ServerStatus(ServerWithStats server, int port) {
+    this(server, port, null);
+  }
+
+  /*
+   *  @param server         Server whose stats and health we export.
+   *  @param port           Port where we listen for http requests.
+   *  @param threadFactory  Optional factory for threads running http handlers, one thread
+   *                        per request. For example, a virtual thread factory.
+   */
+  public ServerStatus(ServerWithStats server, int port, ThreadFactory threadFactory) {
     this.port = port;
     this.serverWithStats = server;
+    this.threadFactory = threadFactory;
   }
 
   @Override
@@ -53,6 +69,9 @@ public class ServerStatus implements Runnable {
       HttpServer httpServer = HttpServer.create(addr, 0);
       httpServer.createContext("/stats", new StatsHandler(serverWithStats));
       httpServer.createContext("/admin", new HealthHandler(serverWithStats));
+      if (null != threadFactory) {
+        httpServer.setExecutor(Executors.newThreadPerTaskExecutor(threadFactory));
+      }
       httpServer.start();
       LOG.info("Started HttpServer accessible at localhost:" + port + "/stats");
     } catch (IOException e) {
@@ -73,7 +92,8 @@ public class ServerStatus implements Runnable {
       if (requestMethod.equalsIgnoreCase("GET")) {
         boolean isHealthy = serverWithStats.isHealthy();
         Headers responseHeaders = exchange.getResponseHeaders();
-        String response = "{ \"version\" : \"" + serverWithStats.getVersion() + "\"}";
+        String response = "{ \"version\" : " + Json.quote(serverWithStats.getVersion()) + ", " +
+                          "\"servers\" : " + serverWithStats.getServerHealthJson() + "}";
         if (isHealthy) {
           responseHeaders.set("Content-Type", "text/html");
           exchange.sendResponseHeaders(200, response.getBytes().length);
@@ -22,6 +22,8 @@ package com.altiscale.Util;
 public interface ServerWithStats {
   public String getServerStatsHtml();
   public boolean isHealthy();
+  // JSON array with health of each of our backends.
+  public String getServerHealthJson();
   public String getServerName();
   public String getVersion();
   public void setVersion(String version);
@@ -0,0 +1,177 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ *  Utility class that holds a named set of socket options. Options that are null are left
+ *  at their OS defaults.
+ *
+ *  Profiles are parsed from NAME:key=value,key=value,... where keys are nodelay, keepalive
+ *  (true or false), rcvbuf, sndbuf (bytes, with optional k or m suffix), tos (traffic class,
+ *  for example 0x10) and backlog (accept backlog, only used for listening sockets).
+ */
+public class SocketOptionsProfile {
+  public String name;
+  public Boolean tcpNoDelay;
+  public Boolean keepAlive;
+  public Integer receiveBufferSize;
+  public Integer sendBufferSize;
+  public Integer trafficClass;
+  public Integer backlog;
+
+  public SocketOptionsProfile(String name) {
+    this.name = name;
+  }
+
+  /*
+   *  Built-in profiles:
+   *    default     OS defaults.
+   *    lowlatency  Small interactive/RPC traffic: TCP_NODELAY and keepalive.
+   *    bulk        Long fat networks: 4MB socket buffers, TCP_NODELAY and keepalive.
+   */
+  public static SocketOptionsProfile[] builtinProfiles() {
+    return new SocketOptionsProfile[] {
+        parse("default:"),
+        parse("lowlatency:nodelay=true,keepalive=true"),
+        parse("bulk:nodelay=true,keepalive=true,rcvbuf=4m,sndbuf=4m,backlog=1024")
+    };
+  }
+
+  /*
+   *  @param spec  Profile in NAME:key=value,... format.
+   *
+   *  @throws IllegalArgumentException  If spec has no name, unknown key or bad value.
+   */
+  public static SocketOptionsProfile parse(String spec) {
+    int colon = spec.indexOf(':');
+    String name = (-1 == colon) ? spec : spec.substring(0, colon);
+    if (name.isEmpty()) {
+      throw new IllegalArgumentException("Socket options profile needs a name: " + spec);
+    }
+    SocketOptionsProfile profile = new SocketOptionsProfile(name);
+    if (-1 == colon) {
+      return profile;
+    }
+    for (String option : spec.substring(colon + 1).split(",")) {
+      if (option.isEmpty()) {
+        continue;
+      }
+      String[] keyValue = option.split("=", 2);
+      if (keyValue.length != 2) {
+        throw new IllegalArgumentException("Socket option needs key=value: " + option);
+      }
+      String key = keyValue[0].trim();
+      String value = keyValue[1].trim();
+      if (key.equals("nodelay")) {
+        profile.tcpNoDelay = parseBoolean(value);
+      } else if (key.equals("keepalive")) {
+        profile.keepAlive = parseBoolean(value);
+      } else if (key.equals("rcvbuf")) {
+        profile.receiveBufferSize = parseSize(value);
+      } else if (key.equals("sndbuf")) {
+        profile.sendBufferSize = parseSize(value);
+      } else if (key.equals("tos")) {
+        profile.trafficClass = Integer.decode(value);
+      } else if (key.equals("backlog")) {
+        profile.backlog = Integer.parseInt(value);
+      } else {
+        throw new IllegalArgumentException("Unknown socket option: " + key);
+      }
+    }
+    return profile;
+  }
+
+  private static Boolean parseBoolean(String value) {
+    if (!value.equals("true") && !value.equals("false")) {
+      throw new IllegalArgumentException("Expected true or false: " + value);
+    }
+    return Boolean.valueOf(value);
+  }
+
+  private static Integer parseSize(String value) {
+    String lower = value.toLowerCase();
+    if (lower.endsWith("k")) {
+      return Integer.parseInt(lower.substring(0, lower.length() - 1)) * 1024;
+    }
+    if (lower.endsWith("m")) {
+      return Integer.parseInt(lower.substring(0, lower.length() - 1)) * 1024 * 1024;
+    }
+    return Integer.parseInt(lower);
+  }
+
+  /*
+   *  Binds listening channel with our options. Receive buffer has to be set before bind, so
+   *  that accepted sockets can negotiate a large enough TCP window.
+   */
+  public void bind(ServerSocketChannel channel, SocketAddress address) throws IOException {
+    if (null != receiveBufferSize) {
+      channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+    }
+    channel.bind(address, null == backlog ? 0 : backlog.intValue());
+  }
+
+  /*
+   *  Applies our options to an accepted socket or to a socket before we connect it.
+   */
+  public void apply(SocketChannel channel) throws IOException {
+    if (null != tcpNoDelay) {
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+    }
+    if (null != keepAlive) {
+      channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+    }
+    if (null != receiveBufferSize) {
+      channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+    }
+    if (null != sendBufferSize) {
+      channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+    }
+    if (null != trafficClass) {
+      channel.setOption(StandardSocketOptions.IP_TOS, trafficClass);
+    }
+  }
+
+  /*
+   *  @return  Options as the OS actually set them on channel, which may differ from what we
+   *           asked for (for example, Linux doubles socket buffer sizes).
+   */
+  public static String effectiveOptions(SocketChannel channel) throws IOException {
+    return "nodelay=" + channel.getOption(StandardSocketOptions.TCP_NODELAY) +
+           ",keepalive=" + channel.getOption(StandardSocketOptions.SO_KEEPALIVE) +
+           ",rcvbuf=" + channel.getOption(StandardSocketOptions.SO_RCVBUF) +
+           ",sndbuf=" + channel.getOption(StandardSocketOptions.SO_SNDBUF) +
+           ",tos=" + channel.getOption(StandardSocketOptions.IP_TOS);
+  }
+
+  @Override
+  public String toString() {
+    String options = "";
+    if (null != tcpNoDelay) options += ",nodelay=" + tcpNoDelay;
+    if (null != keepAlive) options += ",keepalive=" + keepAlive;
+    if (null != receiveBufferSize) options += ",rcvbuf=" + receiveBufferSize;
+    if (null != sendBufferSize) options += ",sndbuf=" + sendBufferSize;
+    if (null != trafficClass) options += ",tos=" + trafficClass;
+    if (null != backlog) options += ",backlog=" + backlog;
+    return name + ":" + (options.isEmpty() ? "" : options.substring(1));
+  }
+}
@@ -0,0 +1,83 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.altiscale.Util;
+
+/**
+ * SshErrorClassifier sorts what OpenSSH writes to stderr, or exceptions of our embedded ssh
+ * client, into classes of errors, so that we wait long before we retry errors that need
+ * somebody to fix credentials, host keys or DNS, instead of hammering the jumphost with them.
+ */
+public class SshErrorClassifier implements ExecLoop.StderrClassifier {
+  public static final String AUTH = "authentication";
+  public static final String HOST_KEY = "host key";
+  public static final String DNS = "dns";
+  public static final String NETWORK = "network";
+  public static final String LOCAL_PORT = "local port";
+  public static final String FORWARD = "forward";
+  public static final String OTHER = "other";
+
+  // Substrings of stderr lines and the class of errors they report, checked in order.
+  private static final String[][] PATTERNS = {
+    {"Permission denied", AUTH},
+    {"Too many authentication failures", AUTH},
+    // Embedded ssh client.
+    {"No more authentication methods available", AUTH},
+    {"UnresolvedAddressException", DNS},
+    {"UnknownHostException", DNS},
+    {"Host key verification failed", HOST_KEY},
+    {"REMOTE HOST IDENTIFICATION HAS CHANGED", HOST_KEY},
+    {"Could not resolve hostname", DNS},
+    {"Name or service not known", DNS},
+    // Address already in use, or not allowed to bind it.
+    {"cannot listen to port", LOCAL_PORT},
+    {"Could not request local forwarding", LOCAL_PORT},
+    {"bind", LOCAL_PORT},
+    // Jumphost can't reach the server, reported per connection.
+    {"open failed", FORWARD},
+    {"connect failed", FORWARD},
+    {"Connection refused", NETWORK},
+    {"Connection timed out", NETWORK},
+    {"No route to host", NETWORK},
+    {"Network is unreachable", NETWORK},
+    {"Connection closed by", NETWORK},
+    {"Connection reset", NETWORK},
+    {"Broken pipe", NETWORK},
+    {"Timeout, server", NETWORK},
+  };
+
+  @Override
+  public String classify(String line) {
+    // ssh warns about keys it added, and prints banners.
+    if (line.startsWith("Warning: Permanently added")) {
+      return null;
+    }
+    for (String[] pattern : PATTERNS) {
+      if (line.contains(pattern[0])) {
+        return pattern[1];
+      }
+    }
+    if (line.contains("error") || line.contains("Error") || line.startsWith("ssh:")) {
+      return OTHER;
+    }
+    return null;
+  }
+
+  @Override
+  public boolean isPermanent(String errorClass) {
+    return AUTH.equals(errorClass) || HOST_KEY.equals(errorClass) || DNS.equals(errorClass);
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  ByteRateBatch unittests. */
+package com.altiscale.TcpProxy;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * Unittests for ByteRateBatch.
+ */
+public class ByteRateBatchTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public ByteRateBatchTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ByteRateBatchTest.class);
+  }
+
+  public void testFlushEveryReadByDefault() {
+    Server server = new Server(new HostPort("localhost", 1234));
+    ByteRateBatch batch = new ByteRateBatch(server);
+
+    batch.add(10);
+    assert 10 == server.byteRateCnt.getTotalCnt();
+  }
+
+  public void testFlushAfterBytes() {
+    Server server = new Server(new HostPort("localhost", 1234));
+    // Long enough that only bytes trigger the flush.
+    server.setByteRateFlush(100, 60 * 60 * 1000);
+    ByteRateBatch batch = new ByteRateBatch(server);
+
+    batch.add(60);
+    assert 0 == server.byteRateCnt.getTotalCnt();
+    batch.add(60);
+    assert 120 == server.byteRateCnt.getTotalCnt();
+
+    batch.add(30);
+    assert 120 == server.byteRateCnt.getTotalCnt();
+    batch.flush();
+    assert 150 == server.byteRateCnt.getTotalCnt();
+    assert 150 == batch.getTotalBytes();
+  }
+}
@@ -0,0 +1,125 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  CapacityEstimator unittests. */
+package com.altiscale.TcpProxy;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * Unittests for CapacityEstimator and server weights.
+ */
+public class CapacityEstimatorTest extends TestCase {
+  static final int NUM_PICKS = 10000;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public CapacityEstimatorTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(CapacityEstimatorTest.class);
+  }
+
+  // Number of picks of every server, with evenly spread random numbers.
+  private int[] countPicks(CapacityEstimator capacityEstimator, ArrayList<Server> servers) {
+    int[] pickCnt = new int[servers.size()];
+    for (int i = 0; i < NUM_PICKS; i++) {
+      pickCnt[servers.indexOf(capacityEstimator.pick((double) i / NUM_PICKS))]++;
+    }
+    return pickCnt;
+  }
+
+  public void testStaticWeightsWithoutTraffic() {
+    ArrayList<Server> servers = ServerFixture.newServers(2);
+    servers.get(1).setWeight(3);
+    CapacityEstimator capacityEstimator = new CapacityEstimator(servers);
+    int[] pickCnt = countPicks(capacityEstimator, servers);
+    assert NUM_PICKS / 4 == pickCnt[0];
+    assert 3 * NUM_PICKS / 4 == pickCnt[1];
+    assert 0 == servers.get(0).getCapacityEstimate();
+  }
+
+  public void testSpareCapacity() {
+    ArrayList<Server> servers = ServerFixture.newServers(3);
+    CapacityEstimator capacityEstimator = new CapacityEstimator(servers);
+    servers.get(0).incrementByteRateBy(4000);
+    servers.get(1).incrementByteRateBy(1000);
+    capacityEstimator.update();
+
+    // Server 2 moved nothing, so it gets the average capacity of the others.
+    assert 4000 == servers.get(0).getCapacityEstimate();
+    assert 1000 == servers.get(1).getCapacityEstimate();
+    assert 2500 == servers.get(2).getCapacityEstimate();
+
+    // Spare capacities with headroom: 1000, 250 and 3125.
+    int[] pickCnt = countPicks(capacityEstimator, servers);
+    assert Math.abs(pickCnt[0] - NUM_PICKS * 1000 / 4375) <= 1;
+    assert Math.abs(pickCnt[1] - NUM_PICKS * 250 / 4375) <= 1;
+    assert Math.abs(pickCnt[2] - NUM_PICKS * 3125 / 4375) <= 1;
+  }
+
+  public void testFailedServerGetsNothing() {
+    ArrayList<Server> servers = ServerFixture.newServers(3);
+    servers.get(1).incrementFailedConn();
+    CapacityEstimator capacityEstimator = new CapacityEstimator(servers);
+    int[] pickCnt = countPicks(capacityEstimator, servers);
+    assert 0 == pickCnt[1];
+    assert NUM_PICKS == pickCnt[0] + pickCnt[2];
+  }
+
+  public void testNoServerAvailable() {
+    ArrayList<Server> servers = ServerFixture.newServers(1);
+    servers.get(0).incrementFailedConn();
+    CapacityEstimator capacityEstimator = new CapacityEstimator(servers);
+    assert null == capacityEstimator.pick(0.5);
+  }
+
+  public void testParseWeights() throws URISyntaxException {
+    ProxyConfiguration conf = new ProxyConfiguration();
+    conf.parseServerStringAndAdd("localhost:48139@3");
+    conf.parseServerStringAndAdd("localhost:48140");
+    assert 2 == conf.serverHostPortList.size();
+    assert 48139 == conf.serverHostPortList.get(0).port;
+    assert 3 == conf.getServerWeight(conf.serverHostPortList.get(0));
+    assert 1 == conf.getServerWeight(conf.serverHostPortList.get(1));
+
+    String[] badServers = {"localhost:48139@", "localhost:48139@0", "localhost:48139@x",
+                           "localhost@3"};
+    for (String badServer : badServers) {
+      try {
+        conf.parseServerStringAndAdd(badServer);
+        fail("Expected URISyntaxException for " + badServer);
+      } catch (URISyntaxException e) {
+        // Expected.
+      }
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  ConsistentHashRing unittests. */
+package com.altiscale.TcpProxy;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for ConsistentHashRing.
+ */
+public class ConsistentHashRingTest extends TestCase {
+  static final int NUM_SERVERS = 10;
+  static final int NUM_KEYS = 100000;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public ConsistentHashRingTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ConsistentHashRingTest.class);
+  }
+
+  private HashMap<Server, Integer> countKeys(ConsistentHashRing ring) {
+    HashMap<Server, Integer> keyCnt = new HashMap<Server, Integer>();
+    for (int key = 0; key < NUM_KEYS; key++) {
+      Server server = ring.get(key);
+      keyCnt.put(server, keyCnt.containsKey(server) ? keyCnt.get(server) + 1 : 1);
+    }
+    return keyCnt;
+  }
+
+  public void testSpread() {
+    ArrayList<Server> servers = ServerFixture.newServers(NUM_SERVERS);
+    ConsistentHashRing ring = new ConsistentHashRing(servers, 160);
+    assert 160 * NUM_SERVERS == ring.getNumPoints();
+    HashMap<Server, Integer> keyCnt = countKeys(ring);
+    for (Server server : servers) {
+      // Within 25% of a fair share.
+      assert Math.abs(keyCnt.get(server) - NUM_KEYS / NUM_SERVERS) < NUM_KEYS / NUM_SERVERS / 4;
+    }
+  }
+
+  public void testWeights() {
+    ArrayList<Server> servers = ServerFixture.newServers(NUM_SERVERS);
+    servers.get(0).setWeight(3);
+    ConsistentHashRing ring = new ConsistentHashRing(servers, 160);
+    HashMap<Server, Integer> keyCnt = countKeys(ring);
+    assert keyCnt.get(servers.get(0)) > 2 * keyCnt.get(servers.get(1));
+  }
+
+  public void testFailedServerOnlyMovesItsKeys() {
+    ArrayList<Server> servers = ServerFixture.newServers(NUM_SERVERS);
+    ConsistentHashRing ring = new ConsistentHashRing(servers, 160);
+    Server[] before = new Server[NUM_KEYS];
+    for (int key = 0; key < NUM_KEYS; key++) {
+      before[key] = ring.get(key);
+    }
+
+    Server failed = servers.get(3);
+    failed.incrementFailedConn();
+    HashMap<Server, Integer> movedTo = new HashMap<Server, Integer>();
+    for (int key = 0; key < NUM_KEYS; key++) {
+      Server server = ring.get(key);
+      assert failed != server;
+      if (before[key] != failed) {
+        assert before[key] == server;
+      } else {
+        movedTo.put(server, movedTo.containsKey(server) ? movedTo.get(server) + 1 : 1);
+      }
+    }
+    // Keys of the failed server spread over the others instead of piling on its neighbour.
+    assert movedTo.size() > NUM_SERVERS / 2;
+  }
+
+  public void testSameServerForSameClient() throws Exception {
+    ArrayList<Server> servers = ServerFixture.newServers(NUM_SERVERS);
+    TcpProxyServer proxy = new TcpProxyServer("test");
+    TcpProxyServer.LoadBalancer loadBalancer = proxy.new ConsistentHash(servers);
+    InetAddress client = InetAddress.getByName("10.1.2.3");
+    Server server = loadBalancer.getServer(client);
+    for (int i = 0; i < 100; i++) {
+      assert server == loadBalancer.getServer(InetAddress.getByName("10.1.2.3"));
+    }
+  }
+
+  public void testLookupDoesNotAllocate() throws Exception {
+    java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+      return;
+    }
+    com.sun.management.ThreadMXBean allocationBean =
+        (com.sun.management.ThreadMXBean) threadBean;
+    ArrayList<Server> servers = ServerFixture.newServers(NUM_SERVERS);
+    TcpProxyServer proxy = new TcpProxyServer("test");
+    TcpProxyServer.LoadBalancer loadBalancer = proxy.new ConsistentHash(servers);
+    InetAddress client = InetAddress.getByName("10.1.2.3");
+    long threadId = Thread.currentThread().getId();
+    loadBalancer.getServer(client);
+    long before = allocationBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < 100000; i++) {
+      loadBalancer.getServer(client);
+    }
+    long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+    // Allow for the counter reading itself, not for anything per lookup.
+    assert allocated < 10000 : allocated + " bytes allocated";
+  }
+}
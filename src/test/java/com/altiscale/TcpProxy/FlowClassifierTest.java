@@ -0,0 +1,118 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  FlowClassifier unittests. */
+package com.altiscale.TcpProxy;
+
+import java.net.InetAddress;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * Unittests for FlowClassifier.
+ */
+public class FlowClassifierTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public FlowClassifierTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(FlowClassifierTest.class);
+  }
+
+  private FlowClassifier newClassifier() {
+    return new FlowClassifier(1024, ProxyConfiguration.defaultElephantPattern);
+  }
+
+  public void testPredictFromRequestLine() {
+    FlowClassifier classifier = newClassifier();
+    assert classifier.predictElephant(
+        null, "GET /webhdfs/v1/data/part-0000?op=OPEN&user.name=hdfs HTTP/1.1\r");
+    assert classifier.predictElephant(null, "PUT /webhdfs/v1/data/x?op=CREATE HTTP/1.1");
+    assert !classifier.predictElephant(null, "GET /webhdfs/v1/data?op=LISTSTATUS HTTP/1.1");
+    // Not an HTTP request line, and we know nothing about the client.
+    assert !classifier.predictElephant(null, "op=OPEN");
+    assert !classifier.predictElephant(null, null);
+  }
+
+  public void testPredictFromClientHistory() throws Exception {
+    FlowClassifier classifier = newClassifier();
+    InetAddress client = InetAddress.getByName("10.1.2.3");
+    assert !classifier.predictElephant(client, null);
+
+    Flow flow = classifier.newFlow(client, null);
+    flow.markElephant();
+    flow.finish(2048);
+    assert classifier.predictElephant(client, null);
+    assert !classifier.predictElephant(InetAddress.getByName("10.1.2.4"), null);
+
+    // Request line wins over history.
+    assert !classifier.predictElephant(client, "GET /webhdfs/v1/?op=GETFILESTATUS HTTP/1.1");
+
+    // Two mice in a row make the client a mouse again.
+    classifier.newFlow(client, null).finish(10);
+    classifier.newFlow(client, null).finish(10);
+    assert !classifier.predictElephant(client, null);
+  }
+
+  public void testElephantAfterBytes() {
+    FlowClassifier classifier = newClassifier();
+    Server server = new Server(new HostPort("localhost", 48139));
+    Flow flow = classifier.newFlow(null, null);
+    ByteRateBatch byteRateBatch = new ByteRateBatch(server, flow);
+    byteRateBatch.add(1000);
+    assert !flow.isElephant();
+    assert 1 == classifier.getOpenCnt(FlowClassifier.MICE);
+    byteRateBatch.add(100);
+    assert flow.isElephant();
+    assert 0 == classifier.getOpenCnt(FlowClassifier.MICE);
+    assert 1 == classifier.getOpenCnt(FlowClassifier.ELEPHANTS);
+
+    flow.setFirstByteMicros(500);
+    flow.finish(byteRateBatch.getTotalBytes());
+    // Second finish doesn't count.
+    flow.finish(byteRateBatch.getTotalBytes());
+    assert 0 == classifier.getOpenCnt(FlowClassifier.ELEPHANTS);
+    assert 1 == classifier.getFinishedCnt(FlowClassifier.ELEPHANTS);
+    assert 1100 == classifier.getByteCnt(FlowClassifier.ELEPHANTS);
+    assert 500 == classifier.getFirstByteLatencyMicros(FlowClassifier.ELEPHANTS);
+    assert classifier.getThroughput(FlowClassifier.ELEPHANTS) > 0;
+    assert 1 == classifier.getMissedElephantCnt();
+    assert 0 == classifier.getFinishedCnt(FlowClassifier.MICE);
+  }
+
+  public void testCancel() {
+    FlowClassifier classifier = newClassifier();
+    Flow flow = classifier.newFlow(null, null);
+    flow.cancel();
+    flow.finish(10);
+    assert 0 == classifier.getOpenCnt(FlowClassifier.MICE);
+    assert 0 == classifier.getFinishedCnt(FlowClassifier.MICE);
+  }
+}
@@ -0,0 +1,242 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  HealthChecker unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * Unittests for HealthChecker.
+ */
+public class HealthCheckerTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public HealthCheckerTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(HealthCheckerTest.class);
+  }
+
+  // Checker we drive by hand, ejecting after 2 failures for 1000ms, with 1000ms slow start.
+  private HealthChecker newChecker(Server server) {
+    return new HealthChecker(server, 1000, 100, null, 2, 1000, 1000);
+  }
+
+  public void testEjectAndReadmit() {
+    Server server = new Server(new HostPort("localhost", 48139));
+    HealthChecker checker = newChecker(server);
+    server.healthChecker = checker;
+
+    checker.onFailure(0, "test");
+    assert server.isHealthy();
+    // Opened tunnel resets failures in a row.
+    checker.onSuccess();
+    checker.onFailure(0, "test");
+    assert server.isHealthy();
+    checker.onFailure(0, "test");
+    assert !server.isHealthy();
+    assert HealthChecker.EJECTED == checker.getState();
+    assert 0 == checker.getTrafficShare(0);
+    assert 1 == checker.getEjectionCnt();
+
+    // Probes don't re-admit before ejection ends.
+    checker.onProbeSuccess(999);
+    assert HealthChecker.EJECTED == checker.getState();
+    checker.onProbeSuccess(1000);
+    assert HealthChecker.SLOW_START == checker.getState();
+    assert server.isHealthy();
+    assert HealthChecker.MIN_SLOW_START_SHARE == checker.getTrafficShare(1000);
+    assert checker.getTrafficShare(1500) > 0.5 && checker.getTrafficShare(1500) < 1;
+    assert 1 == checker.getTrafficShare(2000);
+
+    checker.onProbeSuccess(2000);
+    assert HealthChecker.HEALTHY == checker.getState();
+    assert 3 == checker.getTransitionCnt();
+    assert checker.getLastTransition().startsWith("slow start -> healthy");
+  }
+
+  public void testEjectionDoubles() {
+    Server server = new Server(new HostPort("localhost", 48139));
+    HealthChecker checker = newChecker(server);
+
+    checker.onFailure(0, "test");
+    checker.onFailure(0, "test");
+    assert 1000 == checker.getEjectedUntilMillis();
+    checker.onProbeSuccess(1000);
+    // Failing again in slow start ejects for twice as long.
+    checker.onFailure(1100, "test");
+    checker.onFailure(1100, "test");
+    assert HealthChecker.EJECTED == checker.getState();
+    assert 3100 == checker.getEjectedUntilMillis();
+
+    checker.onProbeSuccess(3100);
+    checker.onProbeSuccess(4100);
+    assert HealthChecker.HEALTHY == checker.getState();
+    // Staying healthy for an ejection gives one doubling back.
+    checker.onProbeSuccess(5100);
+    checker.onFailure(5200, "test");
+    checker.onFailure(5200, "test");
+    assert 7200 == checker.getEjectedUntilMillis();
+  }
+
+  public void testTcpProbe() throws IOException {
+    ServerSocket serverSocket = new ServerSocket();
+    serverSocket.bind(new InetSocketAddress("localhost", 0));
+    Server server = new Server(new HostPort("localhost", serverSocket.getLocalPort()));
+    HealthChecker checker = newChecker(server);
+    assert null == checker.probe();
+    serverSocket.close();
+    assert null != checker.probe();
+  }
+
+  // Accepts connects and closes them right away, like ssh -L does when the jumphost can't
+  // reach the server. With reset, closes with RST instead of FIN.
+  private Thread startClosingForwarder(final ServerSocket serverSocket, final int connectCnt,
+                                       final boolean reset) {
+    Thread forwarder = new Thread() {
+      public void run() {
+        try {
+          for (int i = 0; i < connectCnt; i++) {
+            Socket socket = serverSocket.accept();
+            if (reset) {
+              socket.setSoLinger(true, 0);
+            }
+            socket.close();
+          }
+        } catch (IOException ioe) {
+          assert false;
+        }
+      }
+    };
+    forwarder.start();
+    return forwarder;
+  }
+
+  public void testTcpProbeThroughDeadForward() throws Exception {
+    ServerSocket serverSocket = new ServerSocket();
+    serverSocket.bind(new InetSocketAddress("localhost", 0));
+    Server server = new Server(new HostPort("localhost", serverSocket.getLocalPort()));
+    HealthChecker checker = newChecker(server);
+
+    Thread forwarder = startClosingForwarder(serverSocket, 1, false);
+    assert "connection closed right after connect".equals(checker.probe());
+    forwarder.join();
+
+    forwarder = startClosingForwarder(serverSocket, 1, true);
+    assert null != checker.probe();
+    forwarder.join();
+    serverSocket.close();
+  }
+
+  public void testHttpProbe() throws Exception {
+    final ServerSocket serverSocket = new ServerSocket();
+    serverSocket.bind(new InetSocketAddress("localhost", 0));
+    final String[] statusLines = {"HTTP/1.1 200 OK", "HTTP/1.1 503 Service Unavailable"};
+    Thread httpServer = new Thread() {
+      public void run() {
+        try {
+          for (String statusLine : statusLines) {
+            Socket socket = serverSocket.accept();
+            // Read the whole request, closing with unread bytes would reset the connection.
+            InputStream in = socket.getInputStream();
+            int endCnt = 0;
+            while (endCnt < 4) {
+              int c = in.read();
+              endCnt = ('\r' == c || '\n' == c) ? endCnt + 1 : 0;
+            }
+            OutputStream out = socket.getOutputStream();
+            out.write((statusLine + "\r\nContent-Length: 0\r\n\r\n").getBytes());
+            socket.close();
+          }
+        } catch (IOException ioe) {
+          assert false;
+        }
+      }
+    };
+    httpServer.start();
+
+    Server server = new Server(new HostPort("localhost", serverSocket.getLocalPort()));
+    HealthChecker checker = new HealthChecker(server, 1000, 1000, "/health", 2, 1000, 1000);
+    assert null == checker.probe();
+    assert "HTTP status 503".equals(checker.probe());
+    httpServer.join();
+    serverSocket.close();
+  }
+
+  public void testUsesServerThreadFactory() {
+    Server server = new Server(new HostPort("localhost", 48139));
+    final AtomicInteger threadCnt = new AtomicInteger(0);
+    server.setThreadFactory(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        threadCnt.incrementAndGet();
+        return Thread.ofVirtual().unstarted(runnable);
+      }
+    });
+    HealthChecker checker = newChecker(server);
+    Thread thread = checker.start();
+    assert 1 == threadCnt.get();
+    assert thread.isVirtual();
+    assert thread.getName().startsWith("healthChecker-");
+    checker.stop();
+  }
+
+  public void testProxySkipsEjectedServer() {
+    TcpProxyServer proxy = new TcpProxyServer("test");
+    Server ejected = new Server(new HostPort("localhost", 48139));
+    Server healthy = new Server(new HostPort("localhost", 48140));
+    ejected.healthChecker = newChecker(ejected);
+    ejected.healthChecker.onFailure(System.currentTimeMillis(), "test");
+    ejected.healthChecker.onFailure(System.currentTimeMillis(), "test");
+    ArrayList<Server> servers = proxy.getServerList();
+    servers.add(ejected);
+    servers.add(healthy);
+    // RoundRobin doesn't look at health.
+    proxy.setLoadBalancer(proxy.new RoundRobin(servers));
+    for (int i = 0; i < 10; i++) {
+      assert healthy == proxy.getServer(new HashSet<Server>(), null, null);
+    }
+    // We still use it if it's the only one left.
+    HashSet<Server> excluded = new HashSet<Server>();
+    excluded.add(healthy);
+    assert ejected == proxy.getServer(excluded, null, null);
+  }
+}
@@ -0,0 +1,276 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  JumpHostMonitor unittests. */
+package com.altiscale.TcpProxy;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.JumpHost;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for JumpHostMonitor.
+ */
+public class JumpHostMonitorTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public JumpHostMonitorTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(JumpHostMonitorTest.class);
+  }
+
+  private static JumpHost newJumpHost(String host) {
+    return new JumpHost(new HostPort(host, 22),
+                        new HostPort("acme-supersecret-server", 14000),
+                        "wileEcoyote", null, false, null, null, false);
+  }
+
+  private JumpHost first;
+  private JumpHost second;
+  private JumpHostMonitor monitor;
+  private Server[] servers;
+
+  @Override
+  protected void setUp() {
+    first = newJumpHost("acme-secret-lab");
+    second = newJumpHost("acme-other-lab");
+    ArrayList<JumpHost> jumphosts = new ArrayList<JumpHost>();
+    jumphosts.add(first);
+    jumphosts.add(second);
+    monitor = new JumpHostMonitor(jumphosts, 1000, 10000);
+    // Servers without ssh processes, their tunnels are always ready.
+    servers = new Server[4];
+    for (int i = 0; i < servers.length; i++) {
+      JumpHost jumphost = i < 2 ? first : second;
+      servers[i] = new Server(new HostPort("localhost", 48139 + i), jumphost);
+      servers[i].setJumpHostGroup(monitor.getGroup(jumphost));
+    }
+  }
+
+  public void testSpreadServers() {
+    ProxyConfiguration config = new ProxyConfiguration();
+    JumpHost third = newJumpHost("acme-third-lab");
+    config.jumphosts.add(first);
+    config.jumphosts.add(second);
+    config.jumphosts.add(third);
+
+    ArrayList<JumpHost> spread = config.spreadServers(6);
+    assert 6 == spread.size();
+    for (int i = 0; i < 6; i++) {
+      assert spread.get(i) == config.jumphosts.get(i % 3);
+    }
+
+    second.tunnels = 3;
+    spread = config.spreadServers(7);
+    assert spread.get(0) == second && spread.get(1) == second && spread.get(2) == second;
+    assert spread.get(3) == first && spread.get(4) == third;
+    assert spread.get(5) == first && spread.get(6) == third;
+
+    first.tunnels = 1;
+    third.tunnels = 1;
+    spread = config.spreadServers(7);
+    assert spread.get(0) == first;
+    assert spread.get(1) == second && spread.get(3) == second;
+    assert spread.get(4) == third;
+    // Nobody is left to share, so all take turns.
+    assert spread.get(5) == first && spread.get(6) == second;
+  }
+
+  public void testUp() {
+    monitor.check(System.currentTimeMillis());
+    JumpHostMonitor.Group group = monitor.getGroup(first);
+    assert JumpHostMonitor.UP == group.getState();
+    assert 2 == group.getServerCnt();
+    assert 2 == group.getReadyServerCnt();
+    assert 1 == group.getTrafficShare();
+    assert servers[0].isHealthy();
+    assert servers[0].admitsTunnel(0.99);
+  }
+
+  public void testDownOnFailedConnects() {
+    long now = System.currentTimeMillis();
+    monitor.check(now);
+    for (int i = 0; i < 4; i++) {
+      servers[i % 2].requestCnt.increment();
+      servers[i % 2].failedCnt.increment();
+    }
+    monitor.check(now + 1000);
+    JumpHostMonitor.Group group = monitor.getGroup(first);
+    assert JumpHostMonitor.DOWN == group.getState();
+    assert 1 == group.getDownCnt();
+    assert "up -> down (4 of 4 connects failed)".equals(group.getLastTransition());
+    // Both servers of the jumphost are out, those of the other one aren't.
+    assert !servers[0].isHealthy() && !servers[1].isHealthy();
+    assert servers[2].isHealthy() && servers[3].isHealthy();
+    assert monitor.pickJumpHost() == second;
+
+    // Jumphost stays down while we eject it, and comes back once it's over.
+    monitor.check(now + 2000);
+    assert JumpHostMonitor.DOWN == group.getState();
+    monitor.check(now + 12000);
+    assert JumpHostMonitor.UP == group.getState();
+    assert servers[0].isHealthy();
+  }
+
+  public void testFewFailuresDontCount() {
+    long now = System.currentTimeMillis();
+    monitor.check(now);
+    for (int i = 0; i < 10; i++) {
+      servers[0].requestCnt.increment();
+    }
+    for (int i = 0; i < 3; i++) {
+      servers[0].failedCnt.increment();
+    }
+    monitor.check(now + 1000);
+    assert JumpHostMonitor.UP == monitor.getGroup(first).getState();
+  }
+
+  public void testDownWithoutReadyTunnels() {
+    JumpHost third = newJumpHost("acme-third-lab");
+    ArrayList<JumpHost> jumphosts = new ArrayList<JumpHost>();
+    jumphosts.add(third);
+    JumpHostMonitor thirdMonitor = new JumpHostMonitor(jumphosts, 1000, 10000);
+    Server server = new Server(new HostPort("localhost", 48150), third);
+    server.setJumpHostGroup(thirdMonitor.getGroup(third));
+    // Master that never starts never forwards.
+    server.setSshMaster(new SshMaster(third, "/tmp/acme-master", 4, null));
+    long now = System.currentTimeMillis();
+    JumpHostMonitor.Group group = thirdMonitor.getGroup(third);
+
+    // Tunnels get their time to come up before we blame the jumphost.
+    thirdMonitor.check(now);
+    assert JumpHostMonitor.UP == group.getState();
+    assert 0 == group.getReadyServerCnt();
+    assert thirdMonitor.pickJumpHost() == third;
+    thirdMonitor.check(now + Server.SSH_READY_TIMEOUT_MILLIS - 1);
+    assert JumpHostMonitor.UP == group.getState();
+
+    thirdMonitor.check(now + Server.SSH_READY_TIMEOUT_MILLIS);
+    assert JumpHostMonitor.DOWN == group.getState();
+    assert "up -> down (no ssh tunnel ready)".equals(group.getLastTransition());
+    assert null == thirdMonitor.pickJumpHost();
+  }
+
+  // Opens tunnels on server until it has openTunnels of them.
+  private static void openTunnels(Server server, int openTunnels) {
+    while (server.getOpenTunnelCnt() < openTunnels) {
+      server.acquireTunnel();
+    }
+  }
+
+  public void testNotOverloadedUnderSteadyLoad() {
+    long now = System.currentTimeMillis();
+    monitor.check(now);
+    openTunnels(servers[0], 10);
+    for (int i = 1; i <= 100; i++) {
+      servers[0].byteRateCnt.incrementBy(1000000);
+      monitor.check(now + i * 1000);
+      JumpHostMonitor.Group group = monitor.getGroup(first);
+      assert JumpHostMonitor.UP == group.getState();
+      assert 1000000 == group.getByteRate();
+      assert 0 == group.getCapacityByteRate();
+      assert 0 == group.getUtilization();
+      assert 1 == group.getTrafficShare();
+    }
+  }
+
+  public void testOverloaded() {
+    long now = System.currentTimeMillis();
+    monitor.check(now);
+    JumpHostMonitor.Group group = monitor.getGroup(first);
+    JumpHostMonitor.Group other = monitor.getGroup(second);
+    // Both jumphosts get more and more tunnels, and move the same bytes anyway.
+    for (int i = 1; i <= SaturationDetector.SATURATED_CHECKS + 1; i++) {
+      assert JumpHostMonitor.UP == group.getState();
+      assert JumpHostMonitor.UP == other.getState();
+      openTunnels(servers[0], 10 * i);
+      openTunnels(servers[2], 10 * i);
+      servers[0].byteRateCnt.incrementBy(1000000);
+      servers[2].byteRateCnt.incrementBy(500000);
+      monitor.check(now + i * 1000);
+    }
+    assert JumpHostMonitor.OVERLOADED == group.getState();
+    assert JumpHostMonitor.OVERLOADED == other.getState();
+    assert 1000000 == group.getCapacityByteRate();
+    assert 1 == group.getUtilization();
+    // Nobody has room to take tunnels over.
+    assert 1 == group.getTrafficShare();
+    assert 1 == other.getTrafficShare();
+
+    // Second jumphost has room again once its traffic drops, first one stays at capacity.
+    long later = now + (SaturationDetector.SATURATED_CHECKS + 2) * 1000;
+    servers[0].byteRateCnt.incrementBy(1000000);
+    servers[2].byteRateCnt.incrementBy(100000);
+    monitor.check(later);
+    assert JumpHostMonitor.OVERLOADED == group.getState();
+    assert JumpHostMonitor.UP == other.getState();
+    assert JumpHostMonitor.OVERLOADED_SHARE == group.getTrafficShare();
+    assert 1 == other.getTrafficShare();
+    assert servers[0].admitsTunnel(0.1);
+    assert !servers[0].admitsTunnel(0.9);
+    assert servers[2].admitsTunnel(0.9);
+    assert monitor.pickJumpHost() == second;
+
+    // Traffic of first jumphost dropped too.
+    servers[0].byteRateCnt.incrementBy(100000);
+    servers[2].byteRateCnt.incrementBy(100000);
+    monitor.check(later + 1000);
+    assert JumpHostMonitor.UP == group.getState();
+    assert 1 == group.getTrafficShare();
+  }
+
+  public void testClosedServerLeavesGroup() {
+    servers[3].close();
+    assert 1 == monitor.getGroup(second).getServerCnt();
+  }
+
+  public void testGetServerAvoidsDownJumpHost() {
+    TcpProxyServer proxy = new TcpProxyServer("test");
+    ArrayList<Server> serverList = proxy.getServerList();
+    for (Server server : servers) {
+      serverList.add(server);
+    }
+    // RoundRobin doesn't look at health.
+    proxy.setLoadBalancer(proxy.new RoundRobin(serverList));
+    long now = System.currentTimeMillis();
+    monitor.check(now);
+    for (int i = 0; i < 4; i++) {
+      servers[2].requestCnt.increment();
+      servers[2].failedCnt.increment();
+    }
+    monitor.check(now + 1000);
+    for (int i = 0; i < 100; i++) {
+      Server server = proxy.getServer(new HashSet<Server>(), null, null);
+      assert server == servers[0] || server == servers[1];
+    }
+  }
+}
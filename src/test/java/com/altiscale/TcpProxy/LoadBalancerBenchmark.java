@@ -0,0 +1,119 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  Benchmark of server selection cost of load balancers. */
+package com.altiscale.TcpProxy;
+
+import java.util.ArrayList;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Measures how long load balancers take to pick a server with 10, 100 and 1000 servers, while
+ * tunnels open, close and publish bytes in between. Results are printed, run with
+ * mvn test -Pbenchmark -Dtest=LoadBalancerBenchmark to see them.
+ */
+public class LoadBalancerBenchmark extends TestCase {
+  static final int[] NUM_SERVERS = {10, 100, 1000};
+  static final String[] NAMES = {"RoundRobin", "UniformRandom", "LeastUsed",
+                                 "LeastConnections", "PowerOfTwoChoices", "LeastLatency",
+                                 "ConsistentHash", "SpareCapacity"};
+  static final long WARMUP_MILLIS = 100;
+  static final long MEASURE_MILLIS = 200;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public LoadBalancerBenchmark(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(LoadBalancerBenchmark.class);
+  }
+
+  private TcpProxyServer.LoadBalancer newLoadBalancer(TcpProxyServer proxy, String name,
+                                                      ArrayList<Server> servers) {
+    if (name.equals("RoundRobin")) {
+      return proxy.new RoundRobin(servers);
+    } else if (name.equals("UniformRandom")) {
+      return proxy.new UniformRandom(servers);
+    } else if (name.equals("LeastUsed")) {
+      return proxy.new LeastUsed(servers);
+    } else if (name.equals("LeastConnections")) {
+      return proxy.new LeastConnections(servers);
+    } else if (name.equals("PowerOfTwoChoices")) {
+      return proxy.new PowerOfTwoChoices(servers);
+    } else if (name.equals("LeastLatency")) {
+      return proxy.new LeastLatency(servers);
+    } else if (name.equals("ConsistentHash")) {
+      return proxy.new ConsistentHash(servers);
+    }
+    return proxy.new SpareCapacity(servers, new CapacityEstimator(servers));
+  }
+
+  // Average nanoseconds per pick, including opening the tunnel and publishing its bytes.
+  private double measure(TcpProxyServer.LoadBalancer loadBalancer, long millis) {
+    long picks = 0;
+    long start = System.nanoTime();
+    long end = start + millis * 1000 * 1000;
+    long now = start;
+    Server previous = null;
+    while (now < end) {
+      for (int i = 0; i < 100; i++) {
+        Server server = loadBalancer.getServer();
+        server.acquireTunnel();
+        server.incrementByteRateBy(1024);
+        if (null != previous) {
+          previous.releaseTunnel();
+        }
+        previous = server;
+      }
+      picks += 100;
+      now = System.nanoTime();
+    }
+    previous.releaseTunnel();
+    return (double) (now - start) / picks;
+  }
+
+  public void testSelectionCost() {
+    TcpProxyServer proxy = new TcpProxyServer("benchmark");
+    double[][] nanosPerPick = new double[NAMES.length][NUM_SERVERS.length];
+    for (int j = 0; j < NUM_SERVERS.length; j++) {
+      for (int i = 0; i < NAMES.length; i++) {
+        ArrayList<Server> servers = ServerFixture.newServers(NUM_SERVERS[j]);
+        TcpProxyServer.LoadBalancer loadBalancer = newLoadBalancer(proxy, NAMES[i], servers);
+        measure(loadBalancer, WARMUP_MILLIS);
+        nanosPerPick[i][j] = measure(loadBalancer, MEASURE_MILLIS);
+      }
+    }
+
+    System.out.println(String.format("%-18s %10s %10s %10s", "ns per pick", "10", "100",
+                                     "1000"));
+    for (int i = 0; i < NAMES.length; i++) {
+      System.out.println(String.format("%-18s %10.0f %10.0f %10.0f", NAMES[i],
+                                       nanosPerPick[i][0], nanosPerPick[i][1],
+                                       nanosPerPick[i][2]));
+    }
+  }
+}
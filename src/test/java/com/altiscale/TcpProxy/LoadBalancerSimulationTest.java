@@ -0,0 +1,196 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  Simulation of load balancers placing tunnels of random lifetimes. */
+package com.altiscale.TcpProxy;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.Ewma;
+
+/**
+ * Places tunnels with heavy-tailed lifetimes on servers and compares how loaded the most
+ * loaded server gets with each load balancer. Results are printed, run with
+ * mvn test -Dtest=LoadBalancerSimulationTest to see them.
+ */
+public class LoadBalancerSimulationTest extends TestCase {
+  static final int NUM_SERVERS = 20;
+  static final int NUM_TUNNELS = 20000;
+  static final int MEAN_LIFETIME = 200;
+
+  // Most loaded server over the whole run and on average, in open tunnels.
+  class Result {
+    int peakMaxLoad;
+    double avgMaxLoad;
+  }
+
+  // Tunnel that closes at step closeStep.
+  class Tunnel implements Comparable<Tunnel> {
+    Server server;
+    long closeStep;
+
+    public int compareTo(Tunnel other) {
+      return Long.compare(closeStep, other.closeStep);
+    }
+  }
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public LoadBalancerSimulationTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(LoadBalancerSimulationTest.class);
+  }
+
+  private Result simulate(ArrayList<Server> servers, TcpProxyServer.LoadBalancer loadBalancer) {
+    // Same tunnels for every load balancer.
+    Random random = new Random(42);
+    PriorityQueue<Tunnel> openTunnels = new PriorityQueue<Tunnel>();
+    Result result = new Result();
+    long maxLoadSum = 0;
+    for (long step = 0; step < NUM_TUNNELS; step++) {
+      while (!openTunnels.isEmpty() && openTunnels.peek().closeStep <= step) {
+        openTunnels.poll().server.releaseTunnel();
+      }
+
+      Tunnel tunnel = new Tunnel();
+      tunnel.server = loadBalancer.getServer();
+      tunnel.server.acquireTunnel();
+      // Pareto lifetimes with shape 2: most tunnels are short, a few are very long.
+      tunnel.closeStep = step + (long) (MEAN_LIFETIME / 2 / Math.sqrt(1 - random.nextDouble()));
+      openTunnels.add(tunnel);
+
+      int maxLoad = 0;
+      for (Server server : servers) {
+        // Every open tunnel moves a byte per step, so that LeastUsed sees byte rates.
+        server.incrementByteRateBy(server.getOpenTunnelCnt());
+        maxLoad = Math.max(maxLoad, server.getOpenTunnelCnt());
+      }
+      result.peakMaxLoad = Math.max(result.peakMaxLoad, maxLoad);
+      maxLoadSum += maxLoad;
+    }
+    result.avgMaxLoad = (double) maxLoadSum / NUM_TUNNELS;
+    return result;
+  }
+
+  public void testTailLoad() {
+    TcpProxyServer proxy = new TcpProxyServer("simulation");
+    String[] names = {"RoundRobin", "UniformRandom", "LeastUsed", "LeastConnections",
+                      "PowerOfTwoChoices"};
+    Result[] results = new Result[names.length];
+    for (int i = 0; i < names.length; i++) {
+      ArrayList<Server> servers = ServerFixture.newServers(NUM_SERVERS);
+      TcpProxyServer.LoadBalancer loadBalancer = null;
+      if (names[i].equals("RoundRobin")) {
+        loadBalancer = proxy.new RoundRobin(servers);
+      } else if (names[i].equals("UniformRandom")) {
+        loadBalancer = proxy.new UniformRandom(servers);
+      } else if (names[i].equals("LeastUsed")) {
+        loadBalancer = proxy.new LeastUsed(servers);
+      } else if (names[i].equals("LeastConnections")) {
+        loadBalancer = proxy.new LeastConnections(servers);
+      } else {
+        loadBalancer = proxy.new PowerOfTwoChoices(servers);
+      }
+      results[i] = simulate(servers, loadBalancer);
+      System.out.println(String.format("%-18s most loaded server: %3d peak, %6.1f average " +
+                                       "open tunnels", names[i], results[i].peakMaxLoad,
+                                       results[i].avgMaxLoad));
+    }
+
+    // UniformRandom is results[1], LeastConnections results[3], PowerOfTwoChoices results[4].
+    assert results[4].avgMaxLoad < results[1].avgMaxLoad;
+    assert results[3].avgMaxLoad <= results[4].avgMaxLoad;
+  }
+
+  public void testLeastLatency() {
+    TcpProxyServer proxy = new TcpProxyServer("simulation");
+    ArrayList<Server> servers = ServerFixture.newServers(NUM_SERVERS);
+    Server fast = servers.get(0);
+    Server slow = servers.get(1);
+    ArrayList<Server> pair = new ArrayList<Server>();
+    pair.add(fast);
+    pair.add(slow);
+    fast.recordConnectLatency(1000);
+    fast.recordFirstByteLatency(1000);
+    slow.recordConnectLatency(10000);
+    slow.recordFirstByteLatency(10000);
+    TcpProxyServer.LoadBalancer loadBalancer = proxy.new LeastLatency(pair);
+    assert fast == loadBalancer.getServer();
+
+    // Fast server with 10 tunnels in flight is expected to answer slower than idle slow one.
+    for (int i = 0; i < 10; i++) {
+      fast.acquireTunnel();
+    }
+    assert slow == loadBalancer.getServer();
+    for (int i = 0; i < 10; i++) {
+      fast.releaseTunnel();
+    }
+
+    // Failure costs more than the latency difference.
+    fast.incrementFailedConn();
+    assert slow == loadBalancer.getServer();
+  }
+
+  public void testLeastLatencyTriesNewServers() {
+    TcpProxyServer proxy = new TcpProxyServer("simulation");
+    ArrayList<Server> servers = ServerFixture.newServers(NUM_SERVERS);
+    for (int i = 1; i < servers.size(); i++) {
+      servers.get(i).recordConnectLatency(100);
+    }
+    TcpProxyServer.LoadBalancer loadBalancer = proxy.new LeastLatency(servers);
+    assert servers.get(0) == loadBalancer.getServer();
+  }
+
+  public void testLeastLatencyRetriesSlowServer() {
+    TcpProxyServer proxy = new TcpProxyServer("simulation");
+    ArrayList<Server> servers = ServerFixture.newServers(NUM_SERVERS);
+    Server fast = servers.get(0);
+    Server slow = servers.get(1);
+    ArrayList<Server> pair = new ArrayList<Server>();
+    pair.add(fast);
+    pair.add(slow);
+    long now = System.currentTimeMillis();
+    fast.connectLatency.update(1000, now);
+    slow.connectLatency.update(100000, now);
+    TcpProxyServer.LoadBalancer loadBalancer = proxy.new LeastLatency(pair);
+    assert fast == loadBalancer.getServer();
+
+    // Idle slow server keeps its average, but once it's stale we try the server again.
+    long staleMillis = TcpProxyServer.LeastLatency.STALE_MILLIS;
+    slow.connectLatency = new Ewma(Server.LATENCY_DECAY_MILLIS);
+    slow.connectLatency.update(100000, now - staleMillis / 2);
+    assert fast == loadBalancer.getServer();
+    slow.connectLatency = new Ewma(Server.LATENCY_DECAY_MILLIS);
+    slow.connectLatency.update(100000, now - 2 * staleMillis);
+    assert 100000 == slow.connectLatency.get();
+    assert slow == loadBalancer.getServer();
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  LoadIndex unittests. */
+package com.altiscale.TcpProxy;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * Unittests for LoadIndex.
+ */
+public class LoadIndexTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public LoadIndexTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(LoadIndexTest.class);
+  }
+
+  public void testMin() {
+    LoadIndex loadIndex = new LoadIndex(5);
+    for (int i = 0; i < 5; i++) {
+      loadIndex.update(i, 10 - i);
+    }
+    assert 4 == loadIndex.getMin();
+
+    loadIndex.update(4, 100);
+    assert 3 == loadIndex.getMin();
+    loadIndex.update(0, 0);
+    assert 0 == loadIndex.getMin();
+  }
+
+  public void testSingleServer() {
+    LoadIndex loadIndex = new LoadIndex(1);
+    loadIndex.update(0, 42);
+    assert 0 == loadIndex.getMin();
+  }
+
+  public void testWeightedTunnels() {
+    Server light = new Server(new HostPort("localhost", 1234));
+    Server heavy = new Server(new HostPort("localhost", 1235));
+    heavy.setWeight(3);
+    LoadIndex loadIndex = new LoadIndex(2);
+    light.setLoadIndex(loadIndex, 0);
+    heavy.setLoadIndex(loadIndex, 1);
+
+    // Three tunnels on heavy weigh as much as one on light.
+    int[] tunnelCnt = new int[2];
+    for (int i = 0; i < 8; i++) {
+      int min = loadIndex.getMin();
+      (0 == min ? light : heavy).acquireTunnel();
+      tunnelCnt[min]++;
+    }
+    assert 2 == tunnelCnt[0];
+    assert 6 == tunnelCnt[1];
+
+    heavy.releaseTunnel();
+    assert 1 == loadIndex.getMin();
+  }
+}
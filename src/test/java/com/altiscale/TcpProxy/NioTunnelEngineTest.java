@@ -0,0 +1,140 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  NioTunnelEngine unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * Unittests for NioTunnelEngine.
+ */
+public class NioTunnelEngineTest extends TestCase {
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public NioTunnelEngineTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(NioTunnelEngineTest.class);
+  }
+
+  private String readFully(InputStream input, int length) throws IOException {
+    byte[] buffer = new byte[length];
+    int offset = 0;
+    while (offset < length) {
+      int cnt = input.read(buffer, offset, length - offset);
+      assert cnt >= 0;
+      offset += cnt;
+    }
+    return new String(buffer, 0, offset);
+  }
+
+  public void testOneTunnel() throws Exception {
+    ServerSocketChannel listener = ServerSocketChannel.open();
+    listener.socket().bind(new InetSocketAddress("localhost", 0));
+    int port = listener.socket().getLocalPort();
+
+    Socket client = new Socket("localhost", port);
+    SocketChannel clientPeer = listener.accept();
+    Socket server = new Socket("localhost", port);
+    SocketChannel serverPeer = listener.accept();
+
+    Server proxyServer = new Server(new HostPort("host", 1111));
+    NioTunnelEngine engine = new NioTunnelEngine(2);
+    engine.start();
+    engine.addTunnel(clientPeer, serverPeer, proxyServer);
+
+    String question = "What is the answer to life the universe and everything?";
+    client.getOutputStream().write(question.getBytes());
+    assert question.equals(readFully(server.getInputStream(), question.length()));
+
+    server.getOutputStream().write("42".getBytes());
+    assert "42".equals(readFully(client.getInputStream(), 2));
+
+    // Closing one end closes the other end as well.
+    client.close();
+    assert -1 == server.getInputStream().read();
+    server.close();
+
+    while (proxyServer.closedCnt.getTotalCnt() < 2) {
+      Thread.yield();
+    }
+    assert 2 == proxyServer.openedCnt.getTotalCnt();
+    assert question.length() + 2 == proxyServer.byteRateCnt.getTotalCnt();
+
+    engine.stop();
+    listener.close();
+  }
+
+  public void testReactorConnectsToServer() throws Exception {
+    ServerSocket backend = new ServerSocket(0);
+    Server proxyServer = new Server(new HostPort("localhost", backend.getLocalPort()));
+    TcpProxyServer proxy = new TcpProxyServer("TransferAccelerator");
+    proxy.getServerList().add(proxyServer);
+    proxy.setLoadBalancer(proxy.new RoundRobin(proxy.getServerList()));
+
+    // Find a free port for our listeners.
+    ServerSocket freePort = new ServerSocket(0);
+    int port = freePort.getLocalPort();
+    freePort.close();
+
+    NioTunnelEngine engine = new NioTunnelEngine(2);
+    engine.start();
+    engine.listen(port, proxy);
+
+    // Listening channels are bound in listen(), so we can connect right away.
+    Socket client = new Socket("localhost", port);
+    Socket server = backend.accept();
+
+    client.getOutputStream().write("ping".getBytes());
+    assert "ping".equals(readFully(server.getInputStream(), 4));
+    server.getOutputStream().write("pong".getBytes());
+    assert "pong".equals(readFully(client.getInputStream(), 4));
+
+    server.close();
+    assert -1 == client.getInputStream().read();
+    client.close();
+
+    while (proxyServer.closedCnt.getTotalCnt() < 2) {
+      Thread.yield();
+    }
+    assert 1 == proxyServer.requestCnt.getTotalCnt();
+    assert 8 == proxyServer.byteRateCnt.getTotalCnt();
+
+    engine.stop();
+    backend.close();
+  }
+}
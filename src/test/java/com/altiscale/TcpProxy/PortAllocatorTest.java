@@ -0,0 +1,134 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  PortAllocator unittests. */
+package com.altiscale.TcpProxy;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.JumpHost;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for PortAllocator.
+ */
+public class PortAllocatorTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public PortAllocatorTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(PortAllocatorTest.class);
+  }
+
+  // A port the OS just handed out, likely with free ones after it.
+  private static int firstPort() throws Exception {
+    ServerSocket socket = new ServerSocket(0);
+    int port = socket.getLocalPort();
+    socket.close();
+    return Math.min(port, 65535 - 20);
+  }
+
+  private static ServerSocket listen(int port) throws Exception {
+    ServerSocket socket = new ServerSocket();
+    socket.bind(new InetSocketAddress("localhost", port));
+    return socket;
+  }
+
+  public void testAllocateLowestFirst() throws Exception {
+    PortAllocator allocator = new PortAllocator(firstPort(), 20);
+    int first = allocator.allocate();
+    int second = allocator.allocate();
+    assert -1 != first && first < second;
+    assert 2 == allocator.getUsedCnt();
+    // A proxy that restarts gets its ports back.
+    allocator.release(first);
+    assert first == allocator.allocate();
+  }
+
+  public void testSkipTakenPorts() throws Exception {
+    PortAllocator allocator = new PortAllocator(firstPort(), 20);
+    int port = allocator.allocate();
+    allocator.release(port);
+    ServerSocket other = listen(port);
+    int otherPort = allocator.allocate();
+    assert -1 != otherPort && port != otherPort;
+    other.close();
+
+    allocator.reserve(otherPort + 1);
+    assert otherPort + 1 != allocator.allocate();
+  }
+
+  public void testReallocate() throws Exception {
+    PortAllocator allocator = new PortAllocator(firstPort(), 20);
+    int port = allocator.allocate();
+    int newPort = allocator.reallocate(port);
+    assert -1 != newPort && port != newPort;
+    assert 1 == allocator.getConflictCnt();
+    assert 1 == allocator.getUsedCnt();
+    // We don't hand out a port somebody else took for a while.
+    allocator.release(newPort);
+    assert port != allocator.allocate();
+  }
+
+  public void testExhausted() throws Exception {
+    PortAllocator allocator = new PortAllocator(firstPort(), 1);
+    int port = allocator.allocate();
+    assert -1 != port;
+    assert -1 == allocator.allocate();
+    // Without another port we keep ours.
+    assert -1 == allocator.reallocate(port);
+    assert 1 == allocator.getUsedCnt();
+  }
+
+  public void testServerMovesOffTakenPort() throws Exception {
+    PortAllocator allocator = new PortAllocator(firstPort(), 20);
+    int port = allocator.allocate();
+    ServerSocket other = listen(port);
+    // ssh binary that exits right away, we only look at its command.
+    JumpHost jumphost = new JumpHost(new HostPort("acme-secret-lab", 22),
+                                     new HostPort("acme-supersecret-server", 14000),
+                                     null, null, false, null, "true", false);
+    Server server = new Server(new HostPort("localhost", port), jumphost);
+    server.setPortAllocator(allocator);
+    server.startJumphostThread();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (port == server.hostPort.port && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    int newPort = server.hostPort.port;
+    assert port != newPort;
+    assert server.getSshProcess().getCommand().contains(
+        " -L " + newPort + ":acme-supersecret-server:14000 ");
+    server.close();
+    other.close();
+    assert 0 == allocator.getUsedCnt();
+  }
+}
@@ -0,0 +1,185 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  Benchmark of accept rate and throughput of the multi-reactor engine over loopback. */
+package com.altiscale.TcpProxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * Measures how many clients per second NioTunnelEngine accepts, connects to an echo server
+ * and tunnels one round trip for, and how many bytes per second it echoes through long lived
+ * tunnels, with 1, 2, 4 and as many event loops as we have cores. Results are printed, run
+ * with mvn test -Pbenchmark -Dtest=ReactorBenchmark to see them.
+ */
+public class ReactorBenchmark extends TestCase {
+  static final int CLIENT_THREADS = 8;
+  static final int CHUNK_BYTES = 64 * 1024;
+  static final long MEASURE_MILLIS = 300;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public ReactorBenchmark(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ReactorBenchmark.class);
+  }
+
+  // Echoes everything back, one thread per connection.
+  private static Thread startEchoServer(final ServerSocket backend) {
+    Thread acceptor = new Thread(new Runnable() {
+      public void run() {
+        while (true) {
+          final Socket socket;
+          try {
+            socket = backend.accept();
+          } catch (IOException ioe) {
+            return;
+          }
+          Thread echo = new Thread(new Runnable() {
+            public void run() {
+              byte[] buffer = new byte[CHUNK_BYTES];
+              try {
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                int cnt;
+                while ((cnt = in.read(buffer)) > 0) {
+                  out.write(buffer, 0, cnt);
+                }
+                socket.close();
+              } catch (IOException ioe) {
+                // Client went away.
+              }
+            }
+          });
+          echo.setDaemon(true);
+          echo.start();
+        }
+      }
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+    return acceptor;
+  }
+
+  private static void readFully(InputStream in, byte[] buffer, int length)
+      throws IOException {
+    int offset = 0;
+    while (offset < length) {
+      int cnt = in.read(buffer, offset, length - offset);
+      assert cnt >= 0;
+      offset += cnt;
+    }
+  }
+
+  // Runs CLIENT_THREADS clients for MEASURE_MILLIS and returns what they counted per second.
+  private static double runClients(final int port, final boolean isLongLived)
+      throws InterruptedException {
+    final AtomicLong cnt = new AtomicLong(0);
+    final long deadline = System.currentTimeMillis() + MEASURE_MILLIS;
+    Thread[] clients = new Thread[CLIENT_THREADS];
+    for (int i = 0; i < CLIENT_THREADS; i++) {
+      clients[i] = new Thread(new Runnable() {
+        public void run() {
+          byte[] buffer = new byte[CHUNK_BYTES];
+          try {
+            if (isLongLived) {
+              // Bytes echoed through one tunnel.
+              Socket socket = new Socket("localhost", port);
+              while (System.currentTimeMillis() < deadline) {
+                socket.getOutputStream().write(buffer);
+                readFully(socket.getInputStream(), buffer, CHUNK_BYTES);
+                cnt.addAndGet(CHUNK_BYTES);
+              }
+              socket.close();
+            } else {
+              // One tunnel per round trip.
+              while (System.currentTimeMillis() < deadline) {
+                Socket socket = new Socket("localhost", port);
+                socket.getOutputStream().write(buffer, 0, 1);
+                readFully(socket.getInputStream(), buffer, 1);
+                socket.close();
+                cnt.incrementAndGet();
+              }
+            }
+          } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+          }
+        }
+      });
+      clients[i].start();
+    }
+    for (Thread client : clients) {
+      client.join();
+    }
+    return cnt.get() * 1000.0 / MEASURE_MILLIS;
+  }
+
+  public void testScalingWithEventLoops() throws Exception {
+    ServerSocket backend = new ServerSocket(0, 1000);
+    startEchoServer(backend);
+    TcpProxyServer proxy = new TcpProxyServer("benchmark");
+    proxy.getServerList().add(new Server(new HostPort("localhost", backend.getLocalPort())));
+    proxy.setLoadBalancer(proxy.new RoundRobin(proxy.getServerList()));
+
+    int cores = Runtime.getRuntime().availableProcessors();
+    int[] numThreads = {1, 2, 4, cores};
+    System.out.println(String.format("%-12s %14s %14s", "event loops", "clients/s",
+                                     "MB/s echoed"));
+    for (int i = 0; i < numThreads.length; i++) {
+      if (i > 0 && numThreads[i] <= numThreads[i - 1]) {
+        continue;
+      }
+      ServerSocket freePort = new ServerSocket(0);
+      int port = freePort.getLocalPort();
+      freePort.close();
+
+      NioTunnelEngine engine = new NioTunnelEngine(numThreads[i]);
+      engine.start();
+      engine.listen(port, proxy);
+      // Warm up before we measure.
+      runClients(port, false);
+      double clientRate = runClients(port, false);
+      double byteRate = runClients(port, true);
+      engine.stop();
+      engine.join();
+
+      System.out.println(String.format("%-12d %14.0f %14.1f", numThreads[i], clientRate,
+                                       byteRate / (1024 * 1024)));
+      assert clientRate > 0 && byteRate > 0;
+    }
+    backend.close();
+  }
+}
@@ -0,0 +1,88 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  SaturationDetector unittests. */
+package com.altiscale.TcpProxy;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for SaturationDetector.
+ */
+public class SaturationDetectorTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public SaturationDetectorTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SaturationDetectorTest.class);
+  }
+
+  public void testSteadyLoadIsNotSaturation() {
+    SaturationDetector saturation = new SaturationDetector();
+    for (int i = 0; i < 100; i++) {
+      assert !saturation.check(1000, 10);
+    }
+    assert 0 == saturation.getCapacityByteRate();
+  }
+
+  public void testDemandGrowsByteRateDoesNot() {
+    SaturationDetector saturation = new SaturationDetector();
+    assert !saturation.check(1000, 10);
+    assert !saturation.check(1000, 12);
+    assert !saturation.check(1050, 14);
+    assert saturation.check(1000, 16);
+    assert 1000 == saturation.getCapacityByteRate();
+    // Demand that stops growing ends it, but we keep the estimate.
+    assert !saturation.check(1000, 16);
+    assert 1000 == saturation.getCapacityByteRate();
+  }
+
+  public void testByteRateFollowsDemand() {
+    SaturationDetector saturation = new SaturationDetector();
+    for (int i = 1; i < 10; i++) {
+      assert !saturation.check(1000 * i, 10 * i);
+    }
+  }
+
+  public void testNoBytesIsNotSaturation() {
+    SaturationDetector saturation = new SaturationDetector();
+    // Idle client tunnels pile up without moving anything.
+    for (int i = 1; i < 10; i++) {
+      assert !saturation.check(0, 10 * i);
+    }
+  }
+
+  public void testReset() {
+    SaturationDetector saturation = new SaturationDetector();
+    saturation.check(1000, 10);
+    saturation.check(1000, 12);
+    saturation.check(1000, 14);
+    saturation.reset();
+    assert !saturation.check(1000, 16);
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  ServerConnectionPool unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * Unittests for ServerConnectionPool.
+ */
+public class ServerConnectionPoolTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public ServerConnectionPoolTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ServerConnectionPoolTest.class);
+  }
+
+  private void waitForIdle(ServerConnectionPool pool, int idleCnt) {
+    while (pool.getIdleCnt() != idleCnt) {
+      Thread.yield();
+    }
+  }
+
+  public void testTakeAndRefill() throws IOException {
+    ServerSocket serverSocket = new ServerSocket();
+    serverSocket.bind(new InetSocketAddress("localhost", 0));
+    Server server = new Server(new HostPort("localhost", serverSocket.getLocalPort()));
+    ServerConnectionPool pool = new ServerConnectionPool(server, 2, 60 * 1000, 1000);
+    server.setConnectionPool(pool);
+
+    waitForIdle(pool, 2);
+    SocketChannel channel = server.connectChannel();
+    assert channel.isConnected();
+    assert 1 == pool.getHitCnt();
+    // Pool refills what we took.
+    waitForIdle(pool, 2);
+
+    channel.close();
+    pool.stop();
+    serverSocket.close();
+  }
+
+  public void testEvictClosedConnection() throws IOException, InterruptedException {
+    ServerSocket serverSocket = new ServerSocket();
+    serverSocket.bind(new InetSocketAddress("localhost", 0));
+    Server server = new Server(new HostPort("localhost", serverSocket.getLocalPort()));
+    ServerConnectionPool pool = new ServerConnectionPool(server, 1, 60 * 1000, 1000);
+    server.setConnectionPool(pool);
+
+    waitForIdle(pool, 1);
+    // Server closes our idle connection.
+    Socket accepted = serverSocket.accept();
+    serverSocket.close();
+    accepted.close();
+    // Give our side time to see the FIN.
+    Thread.sleep(100);
+
+    // We don't hand out the closed connection and can't connect a new one.
+    assert null == pool.take();
+    assert 0 == pool.getHitCnt();
+    assert 1 == pool.getEvictedCnt();
+    pool.stop();
+  }
+}
@@ -0,0 +1,183 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  ServerConnector unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * Unittests for ServerConnector.
+ */
+public class ServerConnectorTest extends TestCase {
+  // Connects that fill accept queue of our unresponsive server.
+  private ArrayList<Socket> fillers = new ArrayList<Socket>();
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public ServerConnectorTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ServerConnectorTest.class);
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    for (Socket filler : fillers) {
+      filler.close();
+    }
+    fillers.clear();
+  }
+
+  private String readFully(InputStream input, int length) throws IOException {
+    byte[] buffer = new byte[length];
+    int offset = 0;
+    while (offset < length) {
+      int cnt = input.read(buffer, offset, length - offset);
+      assert cnt >= 0;
+      offset += cnt;
+    }
+    return new String(buffer, 0, offset);
+  }
+
+  // Listener that never accepts and whose accept queue is full, so the kernel drops new SYNs
+  // and connects to it hang until they time out.
+  private ServerSocket newUnresponsiveServer() throws IOException {
+    ServerSocket listener = new ServerSocket(0, 1, InetAddress.getByName("localhost"));
+    while (true) {
+      Socket filler = new Socket();
+      try {
+        filler.connect(new InetSocketAddress("localhost", listener.getLocalPort()), 200);
+      } catch (SocketTimeoutException ste) {
+        filler.close();
+        return listener;
+      }
+      fillers.add(filler);
+    }
+  }
+
+  // Port nobody listens on, connects to it are refused.
+  private int newClosedPort() throws IOException {
+    ServerSocket listener = new ServerSocket(0);
+    int port = listener.getLocalPort();
+    listener.close();
+    return port;
+  }
+
+  private TcpProxyServer newProxy(Server first, Server second) {
+    TcpProxyServer proxy = new TcpProxyServer("test");
+    proxy.getServerList().add(first);
+    proxy.getServerList().add(second);
+    // RoundRobin tries first, then second.
+    proxy.setLoadBalancer(proxy.new RoundRobin(proxy.getServerList()));
+    return proxy;
+  }
+
+  // Connects a client through connector and checks that its bytes get to backend.
+  private void assertTunnels(ServerConnector connector, ServerSocket backend)
+      throws IOException {
+    ServerSocket listener = new ServerSocket(0);
+    Socket user = new Socket("localhost", listener.getLocalPort());
+    connector.connect(listener.accept());
+    Socket server = backend.accept();
+    user.getOutputStream().write("ping".getBytes());
+    assert "ping".equals(readFully(server.getInputStream(), 4));
+    server.close();
+    user.close();
+    listener.close();
+  }
+
+  public void testExcludesFailedServer() throws Exception {
+    ServerSocket backend = new ServerSocket(0);
+    Server refusing = new Server(new HostPort("localhost", newClosedPort()));
+    Server healthy = new Server(new HostPort("localhost", backend.getLocalPort()));
+    ServerConnector connector = new ServerConnector(newProxy(refusing, healthy), 5000, 0);
+    connector.start();
+
+    assertTunnels(connector, backend);
+    // Refused connect is not retried on the same server.
+    assert 1 == refusing.failedCnt.getTotalCnt();
+    assert 1 == healthy.requestCnt.getTotalCnt();
+    assert 0 == connector.timeoutCnt.getTotalCnt();
+
+    connector.stop();
+    backend.close();
+  }
+
+  public void testTimeoutThenRetry() throws Exception {
+    ServerSocket backend = new ServerSocket(0);
+    ServerSocket unresponsive = newUnresponsiveServer();
+    Server slow = new Server(new HostPort("localhost", unresponsive.getLocalPort()));
+    Server healthy = new Server(new HostPort("localhost", backend.getLocalPort()));
+    ServerConnector connector = new ServerConnector(newProxy(slow, healthy), 100, 0);
+    connector.start();
+
+    long startMillis = System.currentTimeMillis();
+    assertTunnels(connector, backend);
+    assert System.currentTimeMillis() - startMillis >= 100;
+    assert 1 == connector.timeoutCnt.getTotalCnt();
+    assert 1 == slow.failedCnt.getTotalCnt();
+    assert 0 == connector.hedgeCnt.getTotalCnt();
+
+    connector.stop();
+    unresponsive.close();
+    backend.close();
+  }
+
+  public void testHedgeWins() throws Exception {
+    ServerSocket backend = new ServerSocket(0);
+    ServerSocket unresponsive = newUnresponsiveServer();
+    Server slow = new Server(new HostPort("localhost", unresponsive.getLocalPort()));
+    Server healthy = new Server(new HostPort("localhost", backend.getLocalPort()));
+    ServerConnector connector = new ServerConnector(newProxy(slow, healthy), 10000, 50);
+    connector.start();
+
+    long startMillis = System.currentTimeMillis();
+    assertTunnels(connector, backend);
+    // Hedge connected long before the first connect would have timed out.
+    assert System.currentTimeMillis() - startMillis < 10000;
+    assert 1 == connector.hedgeCnt.getTotalCnt();
+    assert 1 == connector.hedgeWinCnt.getTotalCnt();
+    assert 0 == connector.timeoutCnt.getTotalCnt();
+    // We dropped the slow connect without counting it as failed.
+    assert 0 == slow.failedCnt.getTotalCnt();
+
+    connector.stop();
+    unresponsive.close();
+    backend.close();
+  }
+}
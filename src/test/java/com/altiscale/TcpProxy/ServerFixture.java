@@ -0,0 +1,44 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  Servers for unittests. */
+package com.altiscale.TcpProxy;
+
+import java.util.ArrayList;
+
+import com.altiscale.Util.HostPort;
+
+/**
+ * Creates servers for unittests that never connect to them.
+ */
+final class ServerFixture {
+  // Port of the first server, the others follow it.
+  static final int FIRST_PORT = 48139;
+
+  private ServerFixture() {
+  }
+
+  /*
+   *  @return  numServers servers on localhost with consecutive ports and default weight.
+   */
+  static ArrayList<Server> newServers(int numServers) {
+    ArrayList<Server> servers = new ArrayList<Server>();
+    for (int i = 0; i < numServers; i++) {
+      servers.add(new Server(new HostPort("localhost", FIRST_PORT + i)));
+    }
+    return servers;
+  }
+}
@@ -61,7 +61,8 @@ public class ServerTest extends TestCase {
     System.out.println(sshCommand);
     assert sshCommand.equals(
         "/usr/bin/ssh -i acme-keys -C " +
-        "-c blowfish-cbc,aes128-cbc,3des-cbc -o StrictHostKeyChecking=no -n -N -L " +
+        "-c blowfish-cbc,aes128-cbc,3des-cbc -o StrictHostKeyChecking=no " +
+        "-o ExitOnForwardFailure=yes -n -N -L " +
         "*:12345:acme-supersecret-server:14000 -l wileEcoyote -p 22 acme-secret-lab");
   }
 
@@ -79,7 +80,8 @@ public class ServerTest extends TestCase {
     String sshCommand = server.sshJumphostCommand();
     System.out.println(sshCommand);
     assert sshCommand.equals(
-        "/tmp/roadrunner/rm -rf /; -i /tmp/road-runner-keys -C -c des -o StrictHostKeyChecking=no -n -N -L " +
+        "/tmp/roadrunner/rm -rf /; -i /tmp/road-runner-keys -C -c des -o StrictHostKeyChecking=no " +
+        "-o ExitOnForwardFailure=yes -n -N -L " +
         "12345:acme-supersecret-server:14000 -l wileEcoyote -p 22 acme-secret-lab");
   }
 
@@ -97,7 +99,8 @@ public class ServerTest extends TestCase {
     String sshCommand = server.sshJumphostCommand();
     System.out.println(sshCommand);
     assert sshCommand.equals(
-        "ssh -o StrictHostKeyChecking=no -n -N -L 12345:acme-supersecret-server:14000" +
+        "ssh -o StrictHostKeyChecking=no -o ExitOnForwardFailure=yes -n -N " +
+        "-L 12345:acme-supersecret-server:14000" +
         " -l wileEcoyote acme-secret-lab");
   }
 
@@ -115,7 +118,7 @@ public class ServerTest extends TestCase {
     String sshCommand = server.sshJumphostCommand();
     System.out.println(sshCommand);
     assert sshCommand.equals(
-        "ssh -o StrictHostKeyChecking=no -n -N -L" +
+        "ssh -o StrictHostKeyChecking=no -o ExitOnForwardFailure=yes -n -N -L" +
         " *:12345:acme-supersecret-server:14000 -l wileEcoyote -p 22 acme-secret-lab");
   }
 
@@ -134,6 +137,7 @@ public class ServerTest extends TestCase {
     String sshCommand = server.sshJumphostCommand();
     System.out.println(sshCommand);
     assert sshCommand.equals(
-        "ssh -o StrictHostKeyChecking=no -n -N -L 12345:acme-supersecret-server:14000 -l wileEcoyote -p 22 acme-secret-lab");
+        "ssh -o StrictHostKeyChecking=no -o ExitOnForwardFailure=yes -n -N " +
+        "-L 12345:acme-supersecret-server:14000 -l wileEcoyote -p 22 acme-secret-lab");
   }
 }
@@ -0,0 +1,220 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+/*  SshMaster unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.JumpHost;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for SshMaster.
+ */
+public class SshMasterTest extends TestCase {
+  // Stands in for ssh. A master writes its pid to its control path and sleeps, "-O" commands
+  // fail unless that pid runs, and forward and cancel keep -L specs in a file next to it.
+  static final String FAKE_SSH =
+      "#!/bin/sh\n" +
+      "cp=; op=; spec=; master=no\n" +
+      "while [ $# -gt 0 ]; do\n" +
+      "  case \"$1\" in\n" +
+      "    -o) case \"$2\" in\n" +
+      "          ControlPath=*) cp=\"${2#ControlPath=}\" ;;\n" +
+      "          ControlMaster=yes) master=yes ;;\n" +
+      "        esac\n" +
+      "        shift ;;\n" +
+      "    -O) op=\"$2\"; shift ;;\n" +
+      "    -L) spec=\"$2\"; shift ;;\n" +
+      "  esac\n" +
+      "  shift\n" +
+      "done\n" +
+      "if [ yes = \"$master\" ]; then\n" +
+      "  echo $$ > \"$cp\"\n" +
+      "  exec sleep 1000\n" +
+      "fi\n" +
+      "if [ ! -f \"$cp\" ] || ! kill -0 \"$(cat \"$cp\")\" 2>/dev/null; then\n" +
+      "  echo \"Control socket connect($cp): No such file or directory\" >&2\n" +
+      "  exit 255\n" +
+      "fi\n" +
+      "case \"$op\" in\n" +
+      "  forward) echo \"$spec\" >> \"$cp.forwards\" ;;\n" +
+      "  cancel) grep -v -x -F \"$spec\" \"$cp.forwards\" > \"$cp.tmp\"\n" +
+      "          mv \"$cp.tmp\" \"$cp.forwards\" ;;\n" +
+      "esac\n" +
+      "exit 0\n";
+
+  // How long we wait for the master to do what we asked.
+  static final long WAIT_MILLIS = 15000;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public SshMasterTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SshMasterTest.class);
+  }
+
+  private JumpHost newJumpHost(boolean openInterfaces) {
+    return new JumpHost(new HostPort("acme-secret-lab", 22),
+                        new HostPort("acme-supersecret-server", 14000),
+                        "wileEcoyote",
+                        "acme-keys",
+                        true,
+                        null,
+                        "/usr/bin/ssh",
+                        openInterfaces);
+  }
+
+  private JumpHost newFakeJumpHost(File fakeSsh) {
+    return new JumpHost(new HostPort("acme-secret-lab", 22),
+                        new HostPort("acme-supersecret-server", 14000),
+                        "wileEcoyote", null, false, null, fakeSsh.getPath(), false);
+  }
+
+  // Forwards our fake master has right now.
+  private List<String> readForwards(String controlPath) throws IOException {
+    File forwards = new File(controlPath + ".forwards");
+    if (!forwards.exists()) {
+      return new ArrayList<String>();
+    }
+    return Files.readAllLines(forwards.toPath(), StandardCharsets.UTF_8);
+  }
+
+  private interface Condition {
+    boolean isTrue() throws Exception;
+  }
+
+  private static void waitFor(Condition condition) throws Exception {
+    long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+    while (!condition.isTrue()) {
+      assert System.currentTimeMillis() < deadline;
+      Thread.sleep(50);
+    }
+  }
+
+  public void testForwardCheckAndCancelWithFakeSsh() throws Exception {
+    File dir = Files.createTempDirectory("sshMasterTest").toFile();
+    File fakeSsh = new File(dir, "ssh");
+    Files.write(fakeSsh.toPath(), FAKE_SSH.getBytes(StandardCharsets.UTF_8));
+    assert fakeSsh.setExecutable(true);
+    final String controlPath = new File(dir, "master").getPath();
+    JumpHost jumphost = newFakeJumpHost(fakeSsh);
+
+    final SshMaster sshMaster = new SshMaster(jumphost, controlPath, 4, null);
+    final Server first = new Server(new HostPort("localhost", 12345), jumphost);
+    first.setSshMaster(sshMaster);
+    sshMaster.start();
+
+    // Master gets ready once check succeeds, and then forwards servers we added before.
+    waitFor(new Condition() {
+      public boolean isTrue() {
+        return sshMaster.isForwarding(first);
+      }
+    });
+    assert first.isSshReady();
+    assert readForwards(controlPath).contains("12345:acme-supersecret-server:14000");
+
+    // Servers added to a running master are forwarded right away.
+    final Server second = new Server(new HostPort("localhost", 12346), jumphost);
+    second.setSshMaster(sshMaster);
+    assert sshMaster.isForwarding(second);
+    assert 2 == sshMaster.getForwardedCnt();
+    assert readForwards(controlPath).contains("12346:acme-supersecret-server:14000");
+
+    second.close();
+    assert 1 == sshMaster.getCancelCnt();
+    assert !readForwards(controlPath).contains("12346:acme-supersecret-server:14000");
+    assert 1 == sshMaster.getServerCnt();
+
+    // Forwards die with the master, a restarted one forwards our servers again.
+    long pid = Long.parseLong(new String(Files.readAllBytes(new File(controlPath).toPath()),
+                                         StandardCharsets.UTF_8).trim());
+    ProcessHandle.of(pid).get().destroy();
+    waitFor(new Condition() {
+      public boolean isTrue() {
+        return sshMaster.getSshProcess().getRestartCnt() > 0 && sshMaster.isForwarding(first);
+      }
+    });
+    assert 3 == sshMaster.getForwardCnt();
+    assert 0 == sshMaster.getForwardFailureCnt();
+
+    sshMaster.stop();
+    first.close();
+    assert !new File(controlPath).exists();
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  public void testSshMasterCommand() {
+    SshMaster sshMaster = new SshMaster(newJumpHost(false), "/tmp/acme-master", 4, null);
+    String sshCommand = sshMaster.sshMasterCommand();
+    System.out.println(sshCommand);
+    assert sshCommand.equals(
+        "/usr/bin/ssh -i acme-keys -C -o StrictHostKeyChecking=no -o ControlMaster=yes " +
+        "-o ControlPath=/tmp/acme-master -o ControlPersist=no -o ServerAliveInterval=5 " +
+        "-o ServerAliveCountMax=3 -n -N -l wileEcoyote -p 22 acme-secret-lab");
+  }
+
+  public void testSshControlCommand() {
+    SshMaster sshMaster = new SshMaster(newJumpHost(true), "/tmp/acme-master", 4, null);
+    assert sshMaster.sshControlCommand("check", 0).equals(
+        "/usr/bin/ssh -o ControlPath=/tmp/acme-master -O check -l wileEcoyote -p 22 " +
+        "acme-secret-lab");
+    assert sshMaster.sshControlCommand("forward", 12345).equals(
+        "/usr/bin/ssh -o ControlPath=/tmp/acme-master -O forward " +
+        "-L *:12345:acme-supersecret-server:14000 -l wileEcoyote -p 22 acme-secret-lab");
+    assert sshMaster.sshControlCommand("cancel", 12345).equals(
+        "/usr/bin/ssh -o ControlPath=/tmp/acme-master -O cancel " +
+        "-L *:12345:acme-supersecret-server:14000 -l wileEcoyote -p 22 acme-secret-lab");
+  }
+
+  public void testControlPath() {
+    assert !SshMaster.controlPath(0).equals(SshMaster.controlPath(1));
+    assert SshMaster.controlPath(1).endsWith("-" + ProcessHandle.current().pid() + "-1");
+  }
+
+  public void testNotForwardingBeforeStart() {
+    SshMaster sshMaster = new SshMaster(newJumpHost(false), "/tmp/acme-master", 4, null);
+    Server server = new Server(new HostPort("localhost", 12345), newJumpHost(false));
+    server.setSshMaster(sshMaster);
+    assert 1 == sshMaster.getServerCnt();
+    assert 0 == sshMaster.getForwardedCnt();
+    assert !server.isSshReady();
+    assert !server.isHealthy();
+    server.close();
+    assert 0 == sshMaster.getServerCnt();
+  }
+}
@@ -0,0 +1,299 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+/*  SshMaster unittests. */
+/*  SshSession unittests. */
+package com.altiscale.TcpProxy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import org.apache.sshd.common.config.keys.writer.openssh.OpenSSHKeyPairResourceWriter;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.pubkey.AcceptAllPublickeyAuthenticator;
+import org.apache.sshd.server.forward.AcceptAllForwardingFilter;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+
+import com.altiscale.Util.ExecLoop;
+import com.altiscale.Util.HostPort;
+import com.altiscale.Util.JumpHost;
+import com.altiscale.Util.SshErrorClassifier;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for SshSession, against an sshd in our JVM.
+ */
+public class SshSessionTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public SshSessionTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SshSessionTest.class);
+  }
+
+  private SshServer sshd;
+  private ServerSocket echoServer;
+  private File keyFile;
+  private SshTransport transport;
+  private SshSession session;
+
+  private static SshServer startSshd(int port) throws IOException {
+    SshServer sshd = SshServer.setUpDefaultServer();
+    sshd.setHost("localhost");
+    sshd.setPort(port);
+    sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+    sshd.setPublickeyAuthenticator(AcceptAllPublickeyAuthenticator.INSTANCE);
+    sshd.setForwardingFilter(AcceptAllForwardingFilter.INSTANCE);
+    sshd.start();
+    return sshd;
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    sshd = startSshd(0);
+
+    echoServer = new ServerSocket(0);
+    Thread echo = new Thread() {
+      public void run() {
+        while (true) {
+          try {
+            final Socket socket = echoServer.accept();
+            new Thread() {
+              public void run() {
+                try {
+                  InputStream in = socket.getInputStream();
+                  OutputStream out = socket.getOutputStream();
+                  byte[] buffer = new byte[4096];
+                  int n;
+                  while (-1 != (n = in.read(buffer))) {
+                    out.write(buffer, 0, n);
+                  }
+                  socket.close();
+                } catch (IOException ioe) {
+                  // Client went away.
+                }
+              }
+            }.start();
+          } catch (IOException ioe) {
+            return;
+          }
+        }
+      }
+    };
+    echo.setDaemon(true);
+    echo.start();
+
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(256);
+    KeyPair keyPair = generator.generateKeyPair();
+    keyFile = File.createTempFile("sshSessionTest", ".key");
+    FileOutputStream out = new FileOutputStream(keyFile);
+    OpenSSHKeyPairResourceWriter.INSTANCE.writePrivateKey(keyPair, "test", null, out);
+    out.close();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (null != session) {
+      session.stop();
+    }
+    if (null != transport) {
+      transport.stop();
+    }
+    sshd.stop(true);
+    echoServer.close();
+    keyFile.delete();
+  }
+
+  private JumpHost newJumpHost() {
+    return new JumpHost(new HostPort("localhost", sshd.getPort()),
+                        new HostPort("localhost", echoServer.getLocalPort()),
+                        "wileEcoyote",
+                        keyFile.getPath(),
+                        true,
+                        null,
+                        null,
+                        false);
+  }
+
+  private SshSession startSession(long windowBytes, long packetBytes) {
+    transport = new SshTransport(newJumpHost(), windowBytes, packetBytes);
+    transport.start();
+    session = new SshSession(transport, "acme", 5000, 5000);
+    session.start();
+    return session;
+  }
+
+  private boolean waitFor(boolean ready, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (session.isReady() != ready) {
+      if (System.currentTimeMillis() > deadline) {
+        return false;
+      }
+      Thread.sleep(20);
+    }
+    return true;
+  }
+
+  private static String echo(Socket socket, String message) throws IOException {
+    socket.getOutputStream().write(message.getBytes("UTF-8"));
+    byte[] buffer = new byte[message.length()];
+    InputStream in = socket.getInputStream();
+    int read = 0;
+    while (read < buffer.length) {
+      int n = in.read(buffer, read, buffer.length - read);
+      if (-1 == n) {
+        break;
+      }
+      read += n;
+    }
+    return new String(buffer, 0, read, "UTF-8");
+  }
+
+  public void testOpenChannel() throws Exception {
+    startSession(0, 0);
+    assert waitFor(true, 10000);
+    assert ExecLoop.READY.equals(session.getState());
+    assert session.getReadyMilliseconds() >= 0;
+
+    Socket channel = session.openChannel(transport.getJumpHost().server);
+    assert echo(channel, "meep meep").equals("meep meep");
+    channel.close();
+    assert 1 == session.channelCnt.getTotalCnt();
+    assert session.getChannelMicros() > 0;
+  }
+
+  public void testChannelFailsToClosedPort() throws Exception {
+    startSession(0, 0);
+    assert waitFor(true, 10000);
+    ServerSocket closed = new ServerSocket(0);
+    int port = closed.getLocalPort();
+    closed.close();
+    try {
+      session.openChannel(new HostPort("localhost", port));
+      assert false;
+    } catch (IOException ioe) {
+      System.out.println(ioe.getMessage());
+    }
+    assert 1 == session.failedChannelCnt.getTotalCnt();
+    // Session survives a failed channel.
+    assert session.isReady();
+  }
+
+  public void testWindowSize() throws Exception {
+    startSession(64 * 1024, 16 * 1024);
+    assert waitFor(true, 10000);
+    SshSession.ChannelSocket channel =
+        (SshSession.ChannelSocket) session.openChannel(transport.getJumpHost().server);
+    assert 64 * 1024 == channel.getSshChannel().getLocalWindow().getMaxSize();
+    assert 16 * 1024 == channel.getSshChannel().getLocalWindow().getPacketSize();
+    channel.close();
+  }
+
+  public void testParallelChannels() throws Exception {
+    startSession(0, 0);
+    assert waitFor(true, 10000);
+    Socket[] channels = new Socket[8];
+    for (int i = 0; i < channels.length; i++) {
+      channels[i] = session.openChannel(transport.getJumpHost().server);
+    }
+    for (int i = 0; i < channels.length; i++) {
+      assert echo(channels[i], "beep " + i).equals("beep " + i);
+    }
+    for (Socket channel : channels) {
+      channel.close();
+    }
+  }
+
+  public void testEstablishTunnel() throws Exception {
+    JumpHost jumphost = newJumpHost();
+    transport = new SshTransport(jumphost, 0, 0);
+    transport.start();
+    Server server = new Server(new HostPort("localhost", 12345), jumphost);
+    session = new SshSession(transport, "acme", 5000, 5000);
+    server.setSshSession(session);
+    assert waitFor(true, 10000);
+    assert server.isSshReady();
+
+    ServerSocket proxy = new ServerSocket(0);
+    Socket client = new Socket("localhost", proxy.getLocalPort());
+    Socket clientSocket = proxy.accept();
+    proxy.close();
+    server.establishTunnel(clientSocket);
+    assert echo(client, "coyote was here").equals("coyote was here");
+    client.close();
+    server.close();
+    session = null;
+  }
+
+  public void testReconnect() throws Exception {
+    startSession(0, 0);
+    assert waitFor(true, 10000);
+    int port = sshd.getPort();
+    sshd.stop(true);
+    assert waitFor(false, 10000);
+    try {
+      session.openChannel(transport.getJumpHost().server);
+      assert false;
+    } catch (IOException ioe) {
+      System.out.println(ioe.getMessage());
+    }
+
+    sshd = startSshd(port);
+    assert waitFor(true, 20000);
+    assert session.getRestartCnt() >= 1;
+    Socket channel = session.openChannel(transport.getJumpHost().server);
+    assert echo(channel, "road runner").equals("road runner");
+    channel.close();
+  }
+
+  public void testAuthFailureBacksOffLong() throws Exception {
+    sshd.stop(true);
+    sshd = SshServer.setUpDefaultServer();
+    sshd.setHost("localhost");
+    sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+    sshd.start();
+    startSession(0, 0);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!ExecLoop.BACKING_OFF.equals(session.getState()) &&
+           System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    assert !session.isReady();
+    assert SshErrorClassifier.AUTH.equals(session.getLastErrorClass());
+    // Nobody fixes credentials in a second, so we don't retry within one.
+    assert session.getBackoffMilliseconds() >= SshSession.MAX_WAIT_MILLIS / 2;
+  }
+}
@@ -144,4 +144,30 @@ public class TcpTunnelTest extends TestCase {
       assert false;
     }
   }
+
+  public void testBufferSizer() {
+    TcpTunnel.BufferSizer bufferSizer = new TcpTunnel.BufferSizer(8192, 65536);
+    // Full reads double the buffer up to the largest size.
+    assert 16384 == bufferSizer.next(8192, 8192, 0);
+    assert 32768 == bufferSizer.next(16384, 16384, 0);
+    assert 65536 == bufferSizer.next(32768, 32768, 0);
+    assert 65536 == bufferSizer.next(65536, 65536, 0);
+
+    // A bulk transfer that finds its socket buffer nearly empty now and then keeps its buffer.
+    for (int i = 0; i < 100; i++) {
+      int cnt = 0 == i % 4 ? 100 : 65536;
+      assert 65536 == bufferSizer.next(65536, cnt, 0);
+    }
+
+    // Short reads in a row halve it.
+    for (int i = 1; i < TcpTunnel.SHRINK_AFTER_SHORT_READS; i++) {
+      assert 65536 == bufferSizer.next(65536, 100, 0);
+    }
+    assert 32768 == bufferSizer.next(65536, 100, 0);
+
+    // A read that waited for an idle tunnel takes us back to the smallest buffer.
+    long idleNanos = TcpTunnel.SHRINK_AFTER_IDLE_MILLIS * 1000 * 1000;
+    assert 8192 == bufferSizer.next(32768, 20000, idleNanos);
+    assert 8192 == bufferSizer.next(8192, 100, idleNanos);
+  }
 }
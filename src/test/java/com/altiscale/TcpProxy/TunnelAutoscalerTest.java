@@ -0,0 +1,154 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  TunnelAutoscaler unittests. */
+package com.altiscale.TcpProxy;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for TunnelAutoscaler.
+ */
+public class TunnelAutoscalerTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public TunnelAutoscalerTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(TunnelAutoscalerTest.class);
+  }
+
+  private TunnelAutoscaler newAutoscaler() {
+    return new TunnelAutoscaler(null, 1, 4, 1000,
+                                new PortAllocator(ProxyConfiguration.defaultFirstLocalPort,
+                                                  ProxyConfiguration.defaultLocalPorts));
+  }
+
+  public void testKeepUnderConstantLoad() {
+    TunnelAutoscaler autoscaler = newAutoscaler();
+    // However close to what they can move, tunnels under steady load don't ask for more.
+    for (int i = 0; i < 100; i++) {
+      assert TunnelAutoscaler.KEEP == autoscaler.decide(new double[] {1000}, new int[] {4});
+    }
+    for (int i = 0; i < 100; i++) {
+      assert TunnelAutoscaler.KEEP ==
+             autoscaler.decide(new double[] {1000, 1000}, new int[] {20, 20});
+    }
+    assert 0 == autoscaler.getCapacityByteRate();
+    assert 0 == autoscaler.getUtilization();
+  }
+
+  public void testScaleUpWhenSaturated() {
+    TunnelAutoscaler autoscaler = newAutoscaler();
+    // Client tunnels pile up while the byte rate stays flat.
+    int[] openTunnels = {2, 3, 4, 5};
+    for (int i = 0; i < SaturationDetector.SATURATED_CHECKS; i++) {
+      assert TunnelAutoscaler.KEEP ==
+             autoscaler.decide(new double[] {1000}, new int[] {openTunnels[i]});
+    }
+    assert TunnelAutoscaler.SCALE_UP ==
+           autoscaler.decide(new double[] {1010}, new int[] {openTunnels[3]});
+    assert 1010 == autoscaler.getCapacityByteRate();
+
+    // Second tunnel moves the same load, steady again.
+    for (int i = 0; i < 10; i++) {
+      assert TunnelAutoscaler.KEEP ==
+             autoscaler.decide(new double[] {1000, 1000}, new int[] {3, 3});
+    }
+  }
+
+  public void testKeepWhenByteRateFollowsDemand() {
+    TunnelAutoscaler autoscaler = newAutoscaler();
+    // More clients, more bytes: tunnels aren't the bottleneck.
+    for (int i = 1; i <= 10; i++) {
+      assert TunnelAutoscaler.KEEP ==
+             autoscaler.decide(new double[] {1000 * i}, new int[] {i});
+    }
+  }
+
+  public void testNeverAboveMaxServers() {
+    TunnelAutoscaler autoscaler = newAutoscaler();
+    for (int i = 0; i < 10; i++) {
+      assert TunnelAutoscaler.KEEP ==
+             autoscaler.decide(new double[] {1000, 1000, 1000, 1000},
+                               new int[] {2 + i, 2 + i, 2 + i, 2 + i});
+    }
+  }
+
+  public void testScaleUpOnOpenTunnels() {
+    TunnelAutoscaler autoscaler = newAutoscaler();
+    assert TunnelAutoscaler.SCALE_UP ==
+           autoscaler.decide(new double[] {0, 0},
+                             new int[] {TunnelAutoscaler.SCALE_UP_OPEN_TUNNELS,
+                                        TunnelAutoscaler.SCALE_UP_OPEN_TUNNELS});
+  }
+
+  public void testScaleDownWhenIdle() {
+    TunnelAutoscaler autoscaler = newAutoscaler();
+    // Without a capacity estimate, few client tunnels are enough to scale down.
+    for (int i = 1; i < TunnelAutoscaler.SCALE_DOWN_CHECKS; i++) {
+      assert TunnelAutoscaler.KEEP ==
+             autoscaler.decide(new double[] {300, 300, 300}, new int[] {1, 1, 1});
+    }
+    assert TunnelAutoscaler.SCALE_DOWN ==
+           autoscaler.decide(new double[] {300, 300, 300}, new int[] {1, 1, 1});
+
+    // A busy check in between starts counting again.
+    for (int i = 1; i < TunnelAutoscaler.SCALE_DOWN_CHECKS; i++) {
+      autoscaler.decide(new double[] {0, 0}, new int[] {0, 0});
+    }
+    autoscaler.decide(new double[] {0, 0}, new int[] {20, 20});
+    assert TunnelAutoscaler.KEEP == autoscaler.decide(new double[] {0, 0}, new int[] {0, 0});
+
+    // Never below minServers.
+    for (int i = 0; i < 2 * TunnelAutoscaler.SCALE_DOWN_CHECKS; i++) {
+      assert TunnelAutoscaler.KEEP == autoscaler.decide(new double[] {0}, new int[] {0});
+    }
+  }
+
+  public void testKeepNearCapacity() {
+    TunnelAutoscaler autoscaler = newAutoscaler();
+    int[] openTunnels = {2, 3, 4, 5};
+    for (int i = 0; i < openTunnels.length; i++) {
+      autoscaler.decide(new double[] {1000}, new int[] {openTunnels[i]});
+    }
+    assert 1000 == autoscaler.getCapacityByteRate();
+    // Two tunnels moving more than one could at SCALE_DOWN_UTILIZATION stay, even with few
+    // client tunnels.
+    for (int i = 0; i < 2 * TunnelAutoscaler.SCALE_DOWN_CHECKS; i++) {
+      assert TunnelAutoscaler.KEEP ==
+             autoscaler.decide(new double[] {600, 600}, new int[] {2, 2});
+    }
+    assert Math.abs(autoscaler.getUtilization() - 0.6) < 0.001;
+    for (int i = 1; i < TunnelAutoscaler.SCALE_DOWN_CHECKS; i++) {
+      assert TunnelAutoscaler.KEEP ==
+             autoscaler.decide(new double[] {200, 200}, new int[] {2, 2});
+    }
+    assert TunnelAutoscaler.SCALE_DOWN ==
+           autoscaler.decide(new double[] {200, 200}, new int[] {2, 2});
+  }
+}
@@ -0,0 +1,145 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  TunnelExecutor unittests. */
+package com.altiscale.TcpProxy;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for TunnelExecutor.
+ */
+public class TunnelExecutorTest extends TestCase {
+  // Stands in for a OneDirectionTunnel, blocks until the test releases it.
+  class BlockingDirection implements Runnable {
+    CountDownLatch release;
+
+    public BlockingDirection(CountDownLatch release) {
+      this.release = release;
+    }
+
+    public void run() {
+      try {
+        release.await();
+      } catch (InterruptedException ie) {
+        // Test is over.
+      }
+    }
+  }
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public TunnelExecutorTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(TunnelExecutorTest.class);
+  }
+
+  public void testRejectWhenFull() {
+    CountDownLatch release = new CountDownLatch(1);
+    TunnelExecutor executor = new TunnelExecutor(2, 0, TunnelExecutor.REJECT, 0);
+    assert 2 == executor.getPoolSize();
+
+    assert executor.execute(new BlockingDirection(release), new BlockingDirection(release));
+    assert !executor.execute(new BlockingDirection(release), new BlockingDirection(release));
+    assert 1 == executor.rejectedCnt.getTotalCnt();
+
+    release.countDown();
+    executor.shutdown();
+  }
+
+  public void testQueueThenReject() {
+    CountDownLatch release = new CountDownLatch(1);
+    TunnelExecutor executor = new TunnelExecutor(2, 2, TunnelExecutor.WAIT, 10);
+
+    assert executor.execute(new BlockingDirection(release), new BlockingDirection(release));
+    // Pre-started workers count as active before they take their first direction.
+    while (executor.getActiveCount() < 2 || executor.getQueueSize() > 0) {
+      Thread.yield();
+    }
+    assert executor.execute(new BlockingDirection(release), new BlockingDirection(release));
+    assert 2 == executor.getQueueSize();
+    assert !executor.execute(new BlockingDirection(release), new BlockingDirection(release));
+    assert 1 == executor.rejectedCnt.getTotalCnt();
+
+    release.countDown();
+    executor.shutdown();
+  }
+
+  public void testOverflowThreadWhenFull() {
+    CountDownLatch release = new CountDownLatch(1);
+    TunnelExecutor executor = new TunnelExecutor(2, 0, TunnelExecutor.THREAD, 0);
+
+    assert executor.execute(new BlockingDirection(release), new BlockingDirection(release));
+    assert executor.execute(new BlockingDirection(release), new BlockingDirection(release));
+    assert 2 == executor.overflowCnt.getTotalCnt();
+    assert 0 == executor.rejectedCnt.getTotalCnt();
+
+    release.countDown();
+    executor.shutdown();
+  }
+
+  public void testAsyncWaitDoesNotBlockCaller() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch rejected = new CountDownLatch(1);
+    Runnable onReject = new Runnable() {
+      @Override
+      public void run() {
+        rejected.countDown();
+      }
+    };
+    TunnelExecutor executor = new TunnelExecutor(2, 0, TunnelExecutor.WAIT, 200);
+
+    executor.executeAsync(new BlockingDirection(release), new BlockingDirection(release),
+                          onReject);
+    long startMillis = System.currentTimeMillis();
+    executor.executeAsync(new BlockingDirection(release), new BlockingDirection(release),
+                          onReject);
+    // Waiter thread waits for the slots, not us.
+    assert System.currentTimeMillis() - startMillis < 200;
+    assert 1 == rejected.getCount();
+    assert rejected.await(10, TimeUnit.SECONDS);
+    assert 1 == executor.rejectedCnt.getTotalCnt();
+
+    // A tunnel that gets its slots while waiting runs.
+    final CountDownLatch ran = new CountDownLatch(2);
+    Runnable direction = new Runnable() {
+      @Override
+      public void run() {
+        ran.countDown();
+      }
+    };
+    executor.executeAsync(direction, direction, onReject);
+    release.countDown();
+    assert ran.await(10, TimeUnit.SECONDS);
+    assert 1 == executor.rejectedCnt.getTotalCnt();
+
+    executor.shutdown();
+  }
+}
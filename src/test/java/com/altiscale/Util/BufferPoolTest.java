@@ -0,0 +1,109 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* BufferPool unittest. */
+package com.altiscale.Util;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class BufferPoolTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public BufferPoolTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(BufferPoolTest.class);
+  }
+
+  public void testReuseReleasedBuffer() {
+    BufferPool pool = new BufferPool(8192, 8192, 1024 * 1024);
+
+    ByteBuffer buffer = pool.acquire(8192);
+    assert buffer.isDirect();
+    assert 8192 == buffer.capacity();
+    assert 1 == pool.getMissCnt();
+    assert 8192 == pool.getReservedBytes();
+    assert 1 == pool.getInUseCnt(0);
+
+    buffer.put((byte) 42);
+    pool.release(buffer);
+    assert 0 == pool.getInUseCnt(0);
+
+    ByteBuffer reused = pool.acquire(8192);
+    assert buffer == reused;
+    assert 0 == reused.position();
+    assert 1 == pool.getHitCnt();
+    assert 8192 == pool.getReservedBytes();
+    assert 50 == pool.getHitRatePercent();
+  }
+
+  public void testThreadCache() {
+    BufferPool pool = new BufferPool(8192, 8192, 1024 * 1024);
+    pool.useThreadCache();
+
+    ByteBuffer buffer = pool.acquire(8192);
+    pool.release(buffer);
+    assert buffer == pool.acquire(8192);
+    assert 1 == pool.getHitCnt();
+  }
+
+  public void testSizeClasses() {
+    BufferPool pool = new BufferPool(8192, 256 * 1024, 16 * 1024 * 1024);
+
+    assert 8192 == pool.acquire(1).capacity();
+    assert 16384 == pool.acquire(8193).capacity();
+    assert 256 * 1024 == pool.acquire(256 * 1024).capacity();
+    // We never hand out more than the largest size class.
+    assert 256 * 1024 == pool.acquire(1024 * 1024).capacity();
+
+    ByteBuffer small = pool.acquire(8192);
+    pool.release(small);
+    // Released small buffer doesn't serve a larger size class.
+    assert small != pool.acquire(16384);
+  }
+
+  public void testHeapBuffersAboveCap() {
+    BufferPool pool = new BufferPool(8192, 8192, 16384);
+
+    ByteBuffer first = pool.acquire(8192);
+    ByteBuffer second = pool.acquire(8192);
+    ByteBuffer third = pool.acquire(8192);
+    assert first.isDirect();
+    assert second.isDirect();
+    assert !third.isDirect();
+    assert 1 == pool.getHeapCnt();
+    assert 16384 == pool.getHighWaterBytes();
+
+    // Heap buffers are not pooled.
+    pool.release(third);
+    pool.release(first);
+    assert first == pool.acquire(8192);
+    assert 16384 == pool.getReservedBytes();
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  Ewma unittests. */
+package com.altiscale.Util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for Ewma.
+ */
+public class EwmaTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public EwmaTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(EwmaTest.class);
+  }
+
+  public void testFirstSample() {
+    Ewma ewma = new Ewma(1000);
+    assert !ewma.hasSamples();
+    assert 0 == ewma.get();
+    assert Long.MAX_VALUE == ewma.getAgeMillis(0);
+    ewma.update(500, 0);
+    assert ewma.hasSamples();
+    assert 500 == ewma.get();
+  }
+
+  public void testWeights() {
+    Ewma ewma = new Ewma(1000);
+    ewma.update(100, 0);
+
+    // Sample at the same time as the last one still gets the least weight.
+    ewma.update(1000, 0);
+    double expected = 100 + 900 * Ewma.MIN_SAMPLE_WEIGHT;
+    assert Math.abs(ewma.get() - expected) < 0.001;
+
+    // Sample one time constant later gets weight 1 - 1/e.
+    ewma.update(1000, 1000);
+    expected = expected / Math.E + 1000 * (1 - 1 / Math.E);
+    assert Math.abs(ewma.get() - expected) < 0.001;
+
+    // Much later sample replaces the average.
+    ewma.update(10, 100000);
+    assert Math.abs(ewma.get() - 10) < 0.001;
+  }
+
+  public void testBurstMovesAverage() {
+    Ewma ewma = new Ewma(1000);
+    ewma.update(100, 0);
+    for (int i = 0; i < 100; i++) {
+      ewma.update(1000, 0);
+    }
+    assert Math.abs(ewma.get() - 1000) < 1;
+  }
+
+  public void testIdleKeepsAverage() {
+    Ewma ewma = new Ewma(1000);
+    ewma.update(1000, 0);
+    // Time alone doesn't move the average, it only tells its age.
+    assert 1000 == ewma.get();
+    assert 100000 == ewma.getAgeMillis(100000);
+    assert 0 == ewma.getAgeMillis(-5);
+  }
+}
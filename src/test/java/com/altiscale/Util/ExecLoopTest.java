@@ -0,0 +1,143 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+/*  ExecLoop unittests. */
+package com.altiscale.Util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Unittests for ExecLoop.
+ */
+public class ExecLoopTest extends TestCase {
+  private static Logger LOG = Logger.getLogger("TransferAccelerator");
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public ExecLoopTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ExecLoopTest.class);
+  }
+
+  private void waitForState(ExecLoop execLoop, String state) {
+    while (!state.equals(execLoop.getState())) {
+      Thread.yield();
+    }
+  }
+
+  public void testBackoff() {
+    ExecLoop execLoop = new ExecLoop("true", true, LOG);
+    execLoop.setWaitMilliseconds(100);
+    execLoop.setMaxWaitMilliseconds(1000);
+    for (int i = 0; i < 100; i++) {
+      long backoff = execLoop.getBackoffMilliseconds(1, null);
+      assert backoff >= 50 && backoff <= 100;
+      backoff = execLoop.getBackoffMilliseconds(3, null);
+      assert backoff >= 200 && backoff <= 400;
+      backoff = execLoop.getBackoffMilliseconds(20, null);
+      assert backoff >= 500 && backoff <= 1000;
+    }
+
+    // Errors retrying won't fix wait longest right away.
+    execLoop.setStderrClassifier(new SshErrorClassifier());
+    assert execLoop.getBackoffMilliseconds(1, SshErrorClassifier.AUTH) >= 500;
+    assert execLoop.getBackoffMilliseconds(1, SshErrorClassifier.NETWORK) <= 100;
+  }
+
+  public void testRestartFailingCommand() throws InterruptedException {
+    ExecLoop execLoop = new ExecLoop("false", true, LOG);
+    execLoop.setWaitMilliseconds(10);
+    execLoop.setMaxWaitMilliseconds(40);
+    Thread thread = execLoop.start();
+    while (execLoop.getRestartCnt() < 3) {
+      Thread.yield();
+    }
+    assert execLoop.getFailureCnt() >= 3;
+    execLoop.setShouldRestart(false);
+    execLoop.stop();
+    thread.join();
+    assert ExecLoop.STOPPED.equals(execLoop.getState());
+  }
+
+  public void testReadiness() throws InterruptedException {
+    final AtomicBoolean isReady = new AtomicBoolean(false);
+    ExecLoop execLoop = new ExecLoop("sleep 60", true, LOG);
+    execLoop.setReadinessProbe(new ExecLoop.ReadinessProbe() {
+      public boolean isReady() {
+        return isReady.get();
+      }
+    }, 60 * 1000);
+    Thread thread = execLoop.start();
+    Thread.sleep(3 * ExecLoop.READY_POLL_MILLISECONDS);
+    // Process started, but isn't ready.
+    assert !execLoop.isRunning();
+    assert ExecLoop.STARTING.equals(execLoop.getState());
+
+    isReady.set(true);
+    waitForState(execLoop, ExecLoop.READY);
+    assert execLoop.isRunning();
+
+    execLoop.setShouldRestart(false);
+    execLoop.stop();
+    thread.join();
+    assert !execLoop.isRunning();
+    assert 0 == execLoop.getRestartCnt();
+  }
+
+  public void testNotReadyInTime() throws InterruptedException {
+    ExecLoop execLoop = new ExecLoop("sleep 60", true, LOG);
+    execLoop.setWaitMilliseconds(10);
+    execLoop.setReadinessProbe(new ExecLoop.ReadinessProbe() {
+      public boolean isReady() {
+        return false;
+      }
+    }, 100);
+    Thread thread = execLoop.start();
+    while (execLoop.getRestartCnt() < 2) {
+      Thread.yield();
+    }
+    assert !execLoop.isRunning();
+    execLoop.setShouldRestart(false);
+    execLoop.stop();
+    thread.join();
+  }
+
+  public void testStderr() {
+    ExecLoop execLoop = new ExecLoop("ssh", true, LOG);
+    execLoop.setStderrClassifier(new SshErrorClassifier());
+    execLoop.onStderrLine("Warning: Permanently added 'jumphost' (ED25519) to the list of " +
+                          "known hosts.");
+    assert 0 == execLoop.getErrorCnt();
+    assert null == execLoop.getLastErrorClass();
+    execLoop.onStderrLine("user@jumphost: Permission denied (publickey).");
+    assert 1 == execLoop.getErrorCnt();
+    assert SshErrorClassifier.AUTH.equals(execLoop.getLastErrorClass());
+  }
+}
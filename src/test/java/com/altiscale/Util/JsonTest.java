@@ -0,0 +1,53 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  Json unittests. */
+package com.altiscale.Util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for Json.
+ */
+public class JsonTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public JsonTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(JsonTest.class);
+  }
+
+  public void testQuote() {
+    assert "null".equals(Json.quote(null));
+    assert "\"\"".equals(Json.quote(""));
+    assert "\"localhost:8080\"".equals(Json.quote("localhost:8080"));
+    // Exception messages can carry anything.
+    assert "\"probe failed: \\\"no\\\" at C:\\\\x\\n\\u0001\"".equals(
+        Json.quote("probe failed: \"no\" at C:\\x\n\u0001"));
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* JumpHost unittest. */
+package com.altiscale.Util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class JumpHostTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public JumpHostTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(JumpHostTest.class);
+  }
+
+  private JumpHost defaults() {
+    return new JumpHost(new HostPort("acme-secret-lab", 22),
+                        new HostPort("acme-supersecret-server", 14000),
+                        "wileEcoyote",
+                        "acme-keys",
+                        true,
+                        "aes128-ctr",
+                        "/usr/bin/ssh",
+                        false);
+  }
+
+  public void testParseInherits() {
+    JumpHost jumphost = JumpHost.parse("acme-other-lab", defaults());
+    assert jumphost.sshd.host.equals("acme-other-lab");
+    assert -1 == jumphost.sshd.port;
+    assert jumphost.server.toString().equals("acme-supersecret-server:14000");
+    assert jumphost.user.equals("wileEcoyote");
+    assert jumphost.credentials.equals("acme-keys");
+    assert jumphost.compression;
+    assert jumphost.ciphers.equals("aes128-ctr");
+    assert jumphost.sshBinary.equals("/usr/bin/ssh");
+    assert 0 == jumphost.tunnels;
+    assert jumphost.toString().equals("wileEcoyote@acme-other-lab:-1");
+  }
+
+  public void testParseOptions() {
+    JumpHost jumphost = JumpHost.parse(
+        "acme-other-lab:2222,user=roadRunner,credentials=/tmp/rr-keys,compression=false," +
+        "ciphers=aes128-gcm@openssh.com:chacha20-poly1305@openssh.com," +
+        "server=acme-other-server:14001,tunnels=6", defaults());
+    assert jumphost.sshd.toString().equals("acme-other-lab:2222");
+    assert jumphost.user.equals("roadRunner");
+    assert jumphost.credentials.equals("/tmp/rr-keys");
+    assert !jumphost.compression;
+    assert jumphost.ciphers.equals("aes128-gcm@openssh.com,chacha20-poly1305@openssh.com");
+    assert jumphost.server.toString().equals("acme-other-server:14001");
+    assert 6 == jumphost.tunnels;
+    assert jumphost.sshOptions().equals(
+        "/usr/bin/ssh -i /tmp/rr-keys -c aes128-gcm@openssh.com,chacha20-poly1305@openssh.com " +
+        "-o StrictHostKeyChecking=no");
+    assert jumphost.sshDestination().equals(" -l roadRunner -p 2222 acme-other-lab");
+  }
+
+  public void testParseErrors() {
+    String[] specs = {"", ",user=x", "acme-other-lab,user", "acme-other-lab,tunnels=0",
+                      "acme-other-lab,tunnels=many", "acme-other-lab,compression=yes",
+                      "acme-other-lab,server=acme-other-server", "acme-other-lab,color=red",
+                      "acme-other-lab:ssh"};
+    for (String spec : specs) {
+      try {
+        JumpHost.parse(spec, defaults());
+        assert false : spec;
+      } catch (IllegalArgumentException e) {
+        System.out.println(e.getMessage());
+      }
+    }
+  }
+}
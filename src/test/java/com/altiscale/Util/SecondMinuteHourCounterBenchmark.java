@@ -0,0 +1,107 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/*  Benchmark of SecondMinuteHourCounter under contention. */
+package com.altiscale.Util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Measures increments per second of one SecondMinuteHourCounter shared by 1, 2, 4 and 8
+ * threads, next to the same counter behind a lock as counters were before they were made
+ * lock-free. Results are printed, run with mvn test -Pbenchmark to see them.
+ */
+public class SecondMinuteHourCounterBenchmark extends TestCase {
+  static final int[] NUM_THREADS = {1, 2, 4, 8};
+  static final long WARMUP_MILLIS = 200;
+  static final long MEASURE_MILLIS = 500;
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public SecondMinuteHourCounterBenchmark(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SecondMinuteHourCounterBenchmark.class);
+  }
+
+  // Counter as tunnels update it, with or without a lock around it.
+  private static void increment(SecondMinuteHourCounter counter, boolean isLocked) {
+    if (isLocked) {
+      synchronized (counter) {
+        counter.incrementBy(1024);
+      }
+    } else {
+      counter.incrementBy(1024);
+    }
+  }
+
+  // Increments per second of numThreads threads sharing counter.
+  private static double measure(final SecondMinuteHourCounter counter, final boolean isLocked,
+                                int numThreads, long millis) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + millis;
+    final long[] increments = new long[numThreads];
+    Thread[] threads = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      final int index = i;
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          long cnt = 0;
+          while (System.currentTimeMillis() < deadline) {
+            for (int j = 0; j < 1000; j++) {
+              increment(counter, isLocked);
+            }
+            cnt += 1000;
+          }
+          increments[index] = cnt;
+        }
+      });
+      threads[i].start();
+    }
+    long total = 0;
+    for (int i = 0; i < numThreads; i++) {
+      threads[i].join();
+      total += increments[i];
+    }
+    return total * 1000.0 / millis;
+  }
+
+  public void testContention() throws InterruptedException {
+    System.out.println(String.format("%-10s %16s %16s", "threads", "lock-free M/s",
+                                     "locked M/s"));
+    for (int numThreads : NUM_THREADS) {
+      double[] rates = new double[2];
+      for (int locked = 0; locked < 2; locked++) {
+        SecondMinuteHourCounter counter = new SecondMinuteHourCounter("benchmark");
+        measure(counter, 1 == locked, numThreads, WARMUP_MILLIS);
+        rates[locked] = measure(counter, 1 == locked, numThreads, MEASURE_MILLIS);
+        // Windows must still count what we added, whoever won the races.
+        assert counter.getTotalCnt() > 0 && counter.getLastHourCnt() > 0;
+      }
+      System.out.println(String.format("%-10d %16.1f %16.1f", numThreads,
+                                       rates[0] / 1000000, rates[1] / 1000000));
+    }
+  }
+}
@@ -193,4 +193,31 @@ public class SecondMinuteHourCounterTest extends TestCase {
      timer.setTime(1001);
      assert counter.getLastSecondCnt() == 0;
   }
+
+  public void testConcurrentIncrements() throws InterruptedException {
+    final TestTimer timer = new TestTimer(0);
+    final SecondMinuteHourCounter counter =
+        new SecondMinuteHourCounter(timer, "Concurrent", 100L);
+
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          for (int j = 0; j < 100000; j++) {
+            counter.incrementBy(2);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assert counter.getTotalCnt() == 8 * 100000 * 2;
+    assert counter.getLastSecondCnt() == 8 * 100000 * 2;
+    timer.setTime(1001);
+    assert counter.getLastSecondCnt() == 0;
+    assert counter.getLastMinuteCnt() == 8 * 100000 * 2;
+  }
 }
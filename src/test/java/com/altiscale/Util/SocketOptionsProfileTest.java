@@ -0,0 +1,73 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+/* SocketOptionsProfile unittest. */
+package com.altiscale.Util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class SocketOptionsProfileTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public SocketOptionsProfileTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SocketOptionsProfileTest.class);
+  }
+
+  public void testParse() {
+    SocketOptionsProfile profile =
+        SocketOptionsProfile.parse("wan:nodelay=false,rcvbuf=2m,sndbuf=512k,tos=0x10");
+    assert profile.name.equals("wan");
+    assert Boolean.FALSE.equals(profile.tcpNoDelay);
+    assert null == profile.keepAlive;
+    assert 2 * 1024 * 1024 == profile.receiveBufferSize;
+    assert 512 * 1024 == profile.sendBufferSize;
+    assert 16 == profile.trafficClass;
+    assert null == profile.backlog;
+    assert profile.toString().equals("wan:nodelay=false,rcvbuf=2097152,sndbuf=524288,tos=16");
+  }
+
+  public void testBuiltinProfiles() {
+    SocketOptionsProfile[] profiles = SocketOptionsProfile.builtinProfiles();
+    assert profiles[0].name.equals("default");
+    assert profiles[0].toString().equals("default:");
+    assert 1024 == profiles[2].backlog;
+  }
+
+  public void testBadSpec() {
+    String[] badSpecs = {":nodelay=true", "x:nodelay=yes", "x:color=red", "x:rcvbuf"};
+    for (String spec : badSpecs) {
+      try {
+        SocketOptionsProfile.parse(spec);
+        assert false;
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/**
+ * (c) 2016 SAP SE or an SAP affiliate company. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+/*  SshErrorClassifier unittests. */
+package com.altiscale.Util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unittests for SshErrorClassifier.
+ */
+public class SshErrorClassifierTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName name of the test case
+   */
+  public SshErrorClassifierTest(String testName) {
+      super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SshErrorClassifierTest.class);
+  }
+
+  public void testClassify() {
+    SshErrorClassifier classifier = new SshErrorClassifier();
+    assert SshErrorClassifier.AUTH.equals(
+        classifier.classify("wile@acme-secret-lab: Permission denied (publickey,password)."));
+    assert SshErrorClassifier.HOST_KEY.equals(
+        classifier.classify("Host key verification failed."));
+    assert SshErrorClassifier.DNS.equals(classifier.classify(
+        "ssh: Could not resolve hostname acme-secret-lab: Name or service not known"));
+    assert SshErrorClassifier.NETWORK.equals(classifier.classify(
+        "ssh: connect to host acme-secret-lab port 22: Connection refused"));
+    assert SshErrorClassifier.LOCAL_PORT.equals(
+        classifier.classify("bind [127.0.0.1]:48139: Address already in use"));
+    assert SshErrorClassifier.LOCAL_PORT.equals(
+        classifier.classify("Could not request local forwarding."));
+    // Jumphost could not reach the server for one connection.
+    assert SshErrorClassifier.FORWARD.equals(classifier.classify(
+        "channel 2: open failed: connect failed: Connection refused"));
+    assert null == classifier.classify(
+        "Warning: Permanently added 'acme-secret-lab' (ED25519) to the list of known hosts.");
+    assert null == classifier.classify("Welcome to acme-secret-lab");
+  }
+
+  public void testIsPermanent() {
+    SshErrorClassifier classifier = new SshErrorClassifier();
+    assert classifier.isPermanent(SshErrorClassifier.AUTH);
+    assert classifier.isPermanent(SshErrorClassifier.HOST_KEY);
+    assert classifier.isPermanent(SshErrorClassifier.DNS);
+    assert !classifier.isPermanent(SshErrorClassifier.NETWORK);
+    assert !classifier.isPermanent(SshErrorClassifier.LOCAL_PORT);
+    assert !classifier.isPermanent(SshErrorClassifier.FORWARD);
+  }
+}